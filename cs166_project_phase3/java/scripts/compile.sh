@@ -3,9 +3,11 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/AirlineManagement.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AirlineManagement $USER"_project_phase_3_DB" $PGPORT $USER
+#Set PGREPLICAPORT to send read-only queries to a replica on that port
+#Set PGSHARDS to spread flights over more databases, e.g. db_shard1,db_shard2:5433
+java -Dairline.shards="$PGSHARDS" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AirlineManagement $USER"_project_phase_3_DB" $PGPORT $USER $PGREPLICAPORT
 
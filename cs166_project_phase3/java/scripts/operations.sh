@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# run an operations command (compile first with compile.sh), e.g.
+#   ./operations.sh generate 2025-06-01 2026-05-31
+java -Dairline.shards="$PGSHARDS" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Operations $USER"_project_phase_3_DB" $PGPORT $USER "$@"
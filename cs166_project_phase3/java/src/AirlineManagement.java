@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,8 +24,11 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.lang.Math;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -36,6 +40,99 @@ public class AirlineManagement {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // extra connections for operations that run several queries at once
+   private ConnectionPool _pool = null;
+
+   // sends read-only display queries to the read replica when one is configured
+   private ReadRouter _router = null;
+
+   // runs write transactions on the primary, retrying conflicts
+   private TransactionRunner _tx = null;
+
+   // statement time budgets, cancellation and the database circuit breaker
+   private QueryGuard _guard = null;
+
+   // places FlightInstance and Reservation rows on shards by FlightNumber
+   private ShardRouter _shards = null;
+
+   // time-limited seat holds, or null when the SeatHold table is missing
+   private SeatHolds _holds = null;
+
+   // cached reference tables (e.g. the plane set)
+   private ReferenceCache _cache = null;
+
+   // sliding-window fault counts per (PlaneID, RepairCode)
+   private RepairAnalytics _analytics = null;
+
+   // open maintenance requests ranked by their plane's next departure
+   private WorkQueue _workQueue = null;
+
+   // threads of the plane history screen, one per concurrent query
+   private ExecutorService _historyThreads = null;
+
+   // number of requests shown by the technicians' work queue view
+   public static final int WORK_QUEUE_LIMIT = 20;
+
+   // number of rows shown per page by the paginated history views
+   public static final int PAGE_SIZE = 20;
+
+   // number of pooled connections (one per concurrent plane history query)
+   public static final int POOL_SIZE = 4;
+
+   // number of contended resources reported on exit
+   public static final int HOT_SPOT_LIMIT = 10;
+
+   // time budgets per statement, in seconds, by kind of feature
+   public static final int TIMEOUT_LOOKUP_SECONDS = 5;
+   public static final int TIMEOUT_SEARCH_SECONDS = 15;
+   public static final int TIMEOUT_WRITE_SECONDS = 10;
+   public static final int TIMEOUT_BULK_SECONDS = 120;
+
+   // largest K of the cheapest-first flight search
+   public static final int TOP_K_MAX = 1000;
+
+   // longest date range of the low-fare calendar, in days
+   public static final int CALENDAR_MAX_DAYS = 62;
+
+   // column-oriented copy of FlightInstance, or null until first opened
+   private volatile FlightInstanceSnapshot _snapshot = null;
+
+   // in-memory customer name index, or null until first used
+   private volatile CustomerNameIndex _customers = null;
+
+   // CustomerIDs changed while the name index loads, or null when it is not
+   // loading; guarded by _customersLock
+   private java.util.Set<Integer> _customersChanged = null;
+   private final Object _customersLock = new Object();
+
+   // background warm-up of connections and caches at startup
+   private StartupWarmer _warmer = null;
+
+   // local append-only journal of committed write events, or null when disabled
+   private volatile EventJournal _journal = null;
+
+   // where the event journal is written
+   public static final String JOURNAL_FILE = System.getProperty("airline.journal", "airline.journal");
+
+   // delivers ChangeLog rows to the caches above
+   private ChangeLogPoller _changeLog = null;
+
+   // where the change log cursor is persisted between runs
+   public static final String CHANGELOG_CURSOR_FILE = System.getProperty("airline.changelog.cursor", "changelog.cursor");
+
+   // where the flight snapshot is persisted between runs
+   public static final String SNAPSHOT_FILE = System.getProperty("airline.snapshot", "flightinstance.snap");
+
+   // result columns of the features answered from the flight snapshot
+   static final String[] SEATS_COLUMNS = {"flightinstanceid", "flightnumber", "flightdate",
+                                          "seatstotal", "seatssold", "seatsavailable"};
+   static final String[] DAY_COLUMNS = {"flightinstanceid", "flightnumber", "departurecity", "arrivalcity", "flightdate",
+                                        "departuretime", "arrivaltime", "departedontime", "arrivedontime"};
+   static final String[] ROUTE_COLUMNS = {"flightnumber", "planeid", "dayofweek", "departuretime", "arrivaltime"};
+   static final String[] CALENDAR_COLUMNS = {"flightdate", "lowestfare", "flightnumber", "seatsavailable", "flightsavailable"};
+   static final String[] SEARCH_COLUMNS = {"flightinstanceid", "flightnumber", "departurecity", "arrivalcity", "flightdate",
+                                           "departuretime", "arrivaltime", "ticketcost", "seatsavailable"};
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -51,6 +148,20 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public AirlineManagement(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, null, user, passwd);
+   }//end AirlineManagement
+
+   /**
+    * Creates a new instance of AirlineManagement that reads from a replica.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port of the primary server
+    * @param replicaPort the port of the read replica, or null for none
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public AirlineManagement(String dbname, String dbport, String replicaPort, String user, String passwd) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -60,6 +171,23 @@ public class AirlineManagement {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._pool = new ConnectionPool(url, user, passwd, POOL_SIZE);
+         String replicaUrl = null;
+         if (replicaPort != null) {
+            replicaUrl = "jdbc:postgresql://localhost:" + replicaPort + "/" + dbname;
+            System.out.println ("Read replica URL: " + replicaUrl + "\n");
+         }
+         this._router = new ReadRouter(this._connection, this._pool, replicaUrl, user, passwd, POOL_SIZE);
+         this._guard = new QueryGuard(new CircuitBreaker());
+         this._tx = new TransactionRunner(this._connection, new ContentionMetrics());
+         this._tx.setGuard(this._guard);
+         this._shards = new ShardRouter(url, this._pool, this._tx, ShardRouter.parse(ShardRouter.SHARDS, dbport),
+                                        user, passwd, POOL_SIZE, this._guard);
+         for (int shard = 1; shard < this._shards.count(); ++shard)
+            System.out.println ("Shard " + shard + " URL: " + this._shards.url(shard) + "\n");
+         this._cache = new ReferenceCache(this._pool, this._guard);
+         this._analytics = new RepairAnalytics(this._pool);
+         this._workQueue = new WorkQueue(this._pool, this._shards, this._guard);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,6 +196,451 @@ public class AirlineManagement {
       }//end catch
    }//end AirlineManagement
 
+   /**
+    * Returns the physical connection used by the interactive features.
+    *
+    * @return the database connection
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }//end getConnection
+
+   /**
+    * Returns the pool of extra connections used by operations that issue
+    * several independent queries concurrently.
+    *
+    * @return the connection pool
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }//end getPool
+
+   /**
+    * Returns the runner used for write transactions on the primary
+    * connection.
+    *
+    * @return the transaction runner
+    */
+   public TransactionRunner getTransactionRunner() {
+      return this._tx;
+   }//end getTransactionRunner
+
+   /**
+    * Returns the guard that keeps database calls within their time budget
+    * and behind the circuit breaker.
+    *
+    * @return the query guard
+    */
+   public QueryGuard getQueryGuard() {
+      return this._guard;
+   }//end getQueryGuard
+
+   /**
+    * Returns the router that places flight instances and reservations on
+    * shards.  Without configured shards it routes everything to the
+    * primary.
+    *
+    * @return the shard router
+    */
+   public ShardRouter getShards() {
+      return this._shards;
+   }//end getShards
+
+   /**
+    * Sets the time budget of each statement of the feature about to run.
+    * The previous budget stays in force if the server settings cannot be
+    * changed.
+    *
+    * @param seconds the budget per statement
+    */
+   public void beginFeature(int seconds) {
+      try {
+         this._guard.setBudget(this._connection, seconds);
+      } catch (SQLException e) {
+         System.err.println("Warning: could not set the statement timeout: " + e.getMessage());
+      }//end try
+   }//end beginFeature
+
+   /**
+    * Returns the pool that concurrent read-only queries should borrow from:
+    * the replica pool when reads may go to the replica, otherwise the
+    * primary pool.
+    *
+    * @return the connection pool for reads
+    */
+   public ConnectionPool getReadPool() {
+      return this._router.poolForRead();
+   }//end getReadPool
+
+   /**
+    * Reports a failed read on a pool from getReadPool.
+    *
+    * @param pool the pool the read borrowed from
+    * @param e the failure
+    * @return true if the replica lost its connection and the read should be
+    *         repeated on getReadPool(), which now returns the primary pool
+    */
+   public boolean readFailedOver(ConnectionPool pool, SQLException e) {
+      return this._router.failover(pool, e);
+   }//end readFailedOver
+
+   /**
+    * Returns the executor of the plane history screen, created on first
+    * use.  It is used by nothing else, so the screen's queries never wait
+    * behind other background work.
+    *
+    * @return the executor
+    */
+   public synchronized ExecutorService getHistoryThreads() {
+      if (this._historyThreads == null)
+         this._historyThreads = PlaneDossier.newExecutor();
+      return this._historyThreads;
+   }//end getHistoryThreads
+
+   /**
+    * Records that the session wrote to the primary, so that its next reads
+    * see the write instead of a replica that may lag behind.
+    */
+   public void noteWrite() {
+      this._router.noteWrite();
+   }//end noteWrite
+
+   /**
+    * Returns the cache of reference tables.
+    *
+    * @return the reference cache
+    */
+   public ReferenceCache getReferenceCache() {
+      return this._cache;
+   }//end getReferenceCache
+
+   /**
+    * Returns the sliding-window repair analytics.
+    *
+    * @return the repair analytics
+    */
+   public RepairAnalytics getRepairAnalytics() {
+      return this._analytics;
+   }//end getRepairAnalytics
+
+   /**
+    * Returns the technicians' work queue.
+    *
+    * @return the work queue
+    */
+   public WorkQueue getWorkQueue() {
+      return this._workQueue;
+   }//end getWorkQueue
+
+   /**
+    * Returns the column-oriented FlightInstance snapshot, opening it on first
+    * use.  If it cannot be opened, null is returned and the callers fall back
+    * to querying the database; the next call tries again.  The snapshot
+    * copies one database, so it is not used when the flight instances are
+    * sharded.
+    *
+    * @return the snapshot, or null when unavailable
+    */
+   public synchronized FlightInstanceSnapshot getFlightSnapshot() {
+      if (this._snapshot == null && !this._shards.isSharded()) {
+         try {
+            this._snapshot = FlightInstanceSnapshot.open(this._pool, new File(SNAPSHOT_FILE));
+         } catch (SQLException e) {
+            System.err.println("Warning: flight snapshot unavailable, using the database: " + e.getMessage());
+         }//end try
+      }//end if
+      return this._snapshot;
+   }//end getFlightSnapshot
+
+   /**
+    * Returns the customer name index, loading it on first use.  Customer
+    * changes delivered while it loads are collected and re-read once it is
+    * in place, since the load may have read those rows before they changed.
+    *
+    * @return the index, or null when it cannot be loaded (callers then use SQL)
+    */
+   public synchronized CustomerNameIndex getCustomerIndex() {
+      if (this._customers != null)
+         return this._customers;
+      synchronized (this._customersLock) {
+         this._customersChanged = new java.util.HashSet<Integer>();
+      }
+      CustomerNameIndex index = null;
+      try {
+         index = CustomerNameIndex.load(this._pool);
+      } catch (SQLException e) {
+         System.err.println("Warning: customer name index unavailable, using the database: " + e.getMessage());
+      }//end try
+      java.util.Set<Integer> changed;
+      synchronized (this._customersLock) {
+         changed = this._customersChanged;
+         this._customersChanged = null;
+         this._customers = index;
+      }
+      if (index != null && !changed.isEmpty())
+         refreshCustomers(index, changed);
+      return this._customers;
+   }//end getCustomerIndex
+
+   /*
+    * Re-reads changed customers into the name index; an index that cannot be
+    * refreshed is dropped and reloaded on next use.
+    */
+   private void refreshCustomers(CustomerNameIndex customers, java.util.Set<Integer> changed) {
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow();
+         customers.refresh(conn, changed);
+      } catch (SQLException e) {
+         this._customers = null; // reloaded on next use
+      } finally {
+         this._pool.release(conn);
+      }//end try
+   }//end refreshCustomers
+
+   /**
+    * Starts delivering ChangeLog rows to the reference cache, the flight
+    * snapshot, the customer index, the work queue and the repair analytics,
+    * so they follow changes made by other clients.  With sharding, the
+    * ChangeLog of every shard is polled, each with its own cursor file.
+    */
+   public void startChangeLog() {
+      ChangeLogPoller.ChangeListener apply = new ChangeLogPoller.ChangeListener() {
+         public void onChanges(List<ChangeLogPoller.ChangeEvent> batch) {
+            applyChanges(batch);
+         }
+      };
+      for (int shard = 0; shard < this._shards.count(); ++shard) {
+         ChangeLogPoller poller = new ChangeLogPoller(this._shards.pool(shard),
+            new File(shard == 0 ? CHANGELOG_CURSOR_FILE : CHANGELOG_CURSOR_FILE + "." + shard));
+         poller.addListener(apply);
+         poller.addListener(this._workQueue);
+         poller.addListener(this._analytics);
+         if (shard == 0)
+            this._changeLog = poller;
+         else
+            this._changeLog.follow(poller);
+      }//end for
+      this._changeLog.start();
+   }//end startChangeLog
+
+   /**
+    * Starts warming connections, reference data and the flight snapshot in
+    * the background, so the login menu can be shown right away.
+    */
+   public void startWarmup() {
+      this._warmer = new StartupWarmer(this, POOL_SIZE);
+      this._warmer.start();
+   }//end startWarmup
+
+   /**
+    * Releases seat holds that expired while the application was not running
+    * and starts expiring the rest.  Seat holds are disabled when the
+    * SeatHold table does not exist, and when the flight instances are
+    * sharded, since a hold confirms on the primary only.
+    */
+   public void startSeatHolds() {
+      if (this._shards.isSharded()) {
+         System.err.println("Warning: seat holds disabled: not supported with shards");
+         return;
+      }//end if
+      SeatHolds holds = new SeatHolds(this._tx, this._pool);
+      try {
+         holds.start();
+         this._holds = holds;
+      } catch (SQLException e) {
+         System.err.println("Warning: seat holds disabled: " + e.getMessage());
+      }//end try
+   }//end startSeatHolds
+
+   /**
+    * Opens the event journal, after checking the records written since the
+    * last start against the database.  Journaling is disabled when the file
+    * cannot be opened; the database stays the system of record either way.
+    */
+   public void startJournal() {
+      java.io.File file = new java.io.File(JOURNAL_FILE);
+      try {
+         if (file.exists())
+            verifyJournal(file);
+         this._journal = EventJournal.open(file);
+      } catch (java.io.IOException e) {
+         System.err.println("Warning: event journal disabled: " + e.getMessage());
+      }//end try
+   }//end startJournal
+
+   /*
+    * Replays the journal records after the last verified one and checks that
+    * the bookings, repairs and maintenance requests they record are still in
+    * the database, e.g. after the database was restored from a backup.  The
+    * missing ones are reported; the sequence number reached is kept in
+    * <journal>.verified.
+    */
+   private void verifyJournal(java.io.File file) throws java.io.IOException {
+      java.io.File mark = new java.io.File(file.getPath() + ".verified");
+      long afterSeq = 0;
+      if (mark.exists()) {
+         try {
+            afterSeq = Long.parseLong(new String(java.nio.file.Files.readAllBytes(mark.toPath()), "UTF-8").trim());
+         } catch (NumberFormatException e) {
+            afterSeq = 0;
+         }//end try
+      }//end if
+      List<EventJournal.Record> records = EventJournal.replay(file, afterSeq);
+      if (records.isEmpty())
+         return;
+      int missing = 0;
+      try {
+         for (EventJournal.Record r : records) {
+            if (!inDatabase(r)) {
+               System.err.println("Warning: journal record " + r.seq + " (" + r.typeName() + " " + r.payload +
+                                  ") is not in the database");
+               ++missing;
+            }
+         }//end for
+      } catch (SQLException | RuntimeException e) {
+         System.err.println("Warning: journal not verified: " + e.getMessage());
+         return;
+      }//end try
+      if (missing > 0)
+         System.err.println("Warning: " + missing + " journaled events are missing from the database");
+      java.nio.file.Files.write(mark.toPath(), Long.toString(records.get(records.size() - 1).seq).getBytes("UTF-8"));
+   }//end verifyJournal
+
+   /*
+    * Tells whether the rows a journal record describes exist.  Holds expire
+    * and assignments move on, so only bookings, repairs and maintenance
+    * requests are checked.
+    */
+   private boolean inDatabase(EventJournal.Record r) throws SQLException {
+      switch (r.type) {
+      case EventJournal.BOOKING: {
+         int shard = this._shards.shardOfInstance(Integer.parseInt(r.field("flightInstance")));
+         Integer found = shard < 0 ? null : executeQueryForIntOnShard(shard, String.format(
+            "SELECT COUNT(*) FROM Reservation WHERE ReservationID = '%s'", r.field("reservation").replace("'", "''")));
+         return found != null && found > 0;
+      }
+      case EventJournal.REPAIR:
+         return present("Repair", "RepairID", r.field("repair"), r.field("repairs"), r.field("count"));
+      case EventJournal.MAINTENANCE_REQUEST:
+         return present("MaintenanceRequest", "RequestID", r.field("request"), r.field("requests"), r.field("count"));
+      default:
+         return true;
+      }//end switch
+   }//end inDatabase
+
+   /*
+    * Checks one id, or that a range "first..last" holds at least count rows.
+    */
+   private boolean present(String table, String column, String id, String range, String count) throws SQLException {
+      Integer found;
+      if (id != null) {
+         found = executeQueryForInt("SELECT COUNT(*) FROM " + table + " WHERE " + column + " = ?", Integer.parseInt(id));
+         return found != null && found > 0;
+      }
+      if (range == null || count == null)
+         return true;
+      String[] ends = range.split("\\.\\.");
+      found = executeQueryForInt("SELECT COUNT(*) FROM " + table + " WHERE " + column + " BETWEEN ? AND ?",
+                                 Integer.parseInt(ends[0]), Integer.parseInt(ends[1]));
+      return found != null && found >= Integer.parseInt(count);
+   }//end present
+
+   /**
+    * Records a committed write event in the journal and waits until it is on
+    * disk, so a feature confirms an event only once it is journaled.
+    * Concurrent callers share the journal's group commits.  A journal
+    * failure is reported and disables journaling; the event itself is
+    * already committed.
+    *
+    * @param type one of the EventJournal record types
+    * @param payload the event, as text
+    */
+   public void journal(byte type, String payload) {
+      EventJournal journal = this._journal;
+      if (journal == null)
+         return;
+      try {
+         journal.append(type, payload).await();
+      } catch (IllegalStateException | java.io.IOException e) {
+         System.err.println("Warning: event not journaled, journaling stopped: " + e.getMessage());
+         this._journal = null;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end journal
+
+   /*
+    * Invalidates cached reference tables and refreshes changed flight
+    * instances; inserted, deleted or moved instances swap in a merged copy
+    * of the snapshot.  A snapshot that cannot be refreshed is dropped and
+    * reopened on next use.
+    */
+   private void applyChanges(List<ChangeLogPoller.ChangeEvent> batch) {
+      java.util.Set<Integer> changedInstances = new java.util.HashSet<Integer>();
+      java.util.Set<Integer> changedCustomers = new java.util.HashSet<Integer>();
+      for (ChangeLogPoller.ChangeEvent e : batch) {
+         if (e.table.equals("plane")) {
+            this._cache.invalidatePlanes();
+         } else if (e.table.equals("flight")) {
+            this._cache.invalidateFlights();
+         } else if (e.table.equals("schedule")) {
+            this._cache.invalidateSchedules();
+         } else if (e.table.equals("flightinstance")) {
+            changedInstances.add(Integer.valueOf(e.rowKey));
+         } else if (e.table.equals("customer")) {
+            changedCustomers.add(Integer.valueOf(e.rowKey));
+         }//end if
+      }//end for
+
+      if (!changedCustomers.isEmpty()) {
+         CustomerNameIndex customers;
+         synchronized (this._customersLock) {
+            if (this._customersChanged != null)
+               this._customersChanged.addAll(changedCustomers); // applied when the load finishes
+            customers = this._customers;
+         }
+         if (customers != null)
+            refreshCustomers(customers, changedCustomers);
+      }//end if
+
+      FlightInstanceSnapshot snapshot = this._snapshot;
+      if (snapshot == null || changedInstances.isEmpty())
+         return;
+      Connection conn = null;
+      try {
+         conn = this._pool.borrow();
+         this._snapshot = snapshot.refresh(conn, changedInstances);
+      } catch (SQLException e) {
+         // reopened on next use: the persisted copy is caught up from the ChangeLog or reloaded
+         this._snapshot = null;
+      } finally {
+         this._pool.release(conn);
+      }//end try
+   }//end applyChanges
+
+   /**
+    * Method to print rows computed in memory in the same layout as
+    * executeQueryAndPrintResult.
+    *
+    * @param columns the column names
+    * @param rows the rows to print
+    * @return the number of rows printed
+    */
+   public static int printRows (String[] columns, List<String[]> rows) {
+      if (!rows.isEmpty()) {
+         for (String column : columns)
+            System.out.print(column + "\t");
+         System.out.println();
+      }//end if
+      for (String[] row : rows) {
+         for (String value : row)
+            System.out.print(value + "\t");
+         System.out.println();
+      }//end for
+      return rows.size();
+   }//end printRows
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -76,11 +649,42 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      executeUpdate (this._connection, sql);
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Method to execute an update SQL statement on a given connection, such
+    * as the connection of a shard transaction.
+    *
+    * @param conn the connection
+    * @param sql the input SQL string, with ? placeholders when params are given
+    * @param params the values bound to the placeholders, in order
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdate (Connection conn, String sql, Object... params) throws SQLException {
+      // fails at once while the database is overloaded
+      this._guard.before ();
+
+      // creates a statement object; without parameters the SQL runs as is
+      Statement stmt = params.length == 0 ? conn.createStatement () : conn.prepareStatement (sql);
+
+      // issues the update instruction within the feature's time budget
+      QueryGuard.Watch watch = this._guard.watch (stmt);
+      try {
+         for (int i = 0; i < params.length; ++i)
+            ((PreparedStatement) stmt).setObject (i + 1, params[i]);
+         if (params.length == 0)
+            stmt.executeUpdate (sql);
+         else
+            ((PreparedStatement) stmt).executeUpdate ();
+         this._guard.succeeded ();
+      } catch (SQLException e) {
+         stmt.close ();
+         throw this._guard.failed (e, conn);
+      } finally {
+         watch.done ();
+      }//end try
+      this._router.noteWrite();
 
       // close the instruction
       stmt.close ();
@@ -96,11 +700,9 @@ public class AirlineManagement {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      // issues the query instruction on the replica or the primary
+      ResultSet rs = executeRead (query);
+      Statement stmt = rs.getStatement ();
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -129,6 +731,75 @@ public class AirlineManagement {
       return rowCount;
    }//end executeQuery
 
+   /**
+    * Runs a read-only display query on the connection chosen by the read
+    * router.  When the replica cannot be reached the query is repeated on
+    * the primary; other errors are reported as they are.
+    *
+    * @param query the input query string
+    * @return the result set; close it through its statement
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private ResultSet executeRead (String query) throws SQLException {
+      return executeRead (query, null);
+   }//end executeRead
+
+   /*
+    * Runs a read-only display query as executeRead does, binding params to
+    * its ? placeholders; a null params runs the query unprepared.
+    */
+   private ResultSet executeRead (String query, Object[] params) throws SQLException {
+      Connection conn = this._router.forRead ();
+      try {
+         return readOn (conn, query, params);
+      } catch (SQLException e) {
+         if (!this._router.isReplica (conn) || !ConnectionPool.isConnectionLost (e, conn))
+            throw e;
+         this._router.replicaFailed (e);
+         return readOn (this._connection, query, params);
+      }//end try
+   }//end executeRead
+
+   private ResultSet readOn (Connection conn, String query, Object[] params) throws SQLException {
+      if (params == null)
+         return guardedQuery (conn.createStatement (), query);
+      PreparedStatement pstmt = conn.prepareStatement (query);
+      try {
+         for (int i = 0; i < params.length; ++i)
+            pstmt.setObject (i + 1, params[i]);
+      } catch (SQLException e) {
+         pstmt.close ();
+         throw e;
+      }//end try
+      return guardedQuery (pstmt, null);
+   }//end readOn
+
+   /*
+    * Runs a query within the feature's time budget and reports the outcome
+    * to the circuit breaker.  A null query executes stmt as the prepared
+    * statement it is.  The statement is closed if the query fails.
+    */
+   private ResultSet guardedQuery (Statement stmt, String query) throws SQLException {
+      try {
+         this._guard.before ();
+      } catch (SQLException e) {
+         stmt.close ();
+         throw e;
+      }//end try
+      QueryGuard.Watch watch = this._guard.watch (stmt);
+      try {
+         ResultSet rs = query == null ? ((PreparedStatement) stmt).executeQuery () : stmt.executeQuery (query);
+         this._guard.succeeded ();
+         return rs;
+      } catch (SQLException e) {
+         Connection conn = stmt.getConnection ();
+         stmt.close ();
+         throw this._guard.failed (e, conn);
+      } finally {
+         watch.done ();
+      }//end try
+   }//end guardedQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -143,7 +814,7 @@ public class AirlineManagement {
       Statement stmt = this._connection.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = guardedQuery (stmt, query);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -166,6 +837,158 @@ public class AirlineManagement {
       return result;
    }//end executeQueryAndReturnResult
 
+   // maps the first column as an Integer, null for SQL NULL
+   public static final RowMapper<Integer> INT_COLUMN = new RowMapper<Integer>() {
+      public Integer map(ResultSet rs) throws SQLException {
+         int value = rs.getInt(1);
+         return rs.wasNull() ? null : value;
+      }
+   };
+
+   /**
+    * Method to execute a parameterized query on the primary connection and
+    * map every row with typed column getters.  No column goes through a
+    * String unless the mapper asks for one.
+    *
+    * @param query the query, with ? placeholders
+    * @param mapper maps one row
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      return executeQueryAndMap (this._connection, query, mapper, params);
+   }//end executeQueryAndMap
+
+   /**
+    * Method to execute a parameterized query on a given connection, such as
+    * the connection of a shard transaction, and map every row.
+    *
+    * @param conn the connection
+    * @param query the query, with ? placeholders
+    * @param mapper maps one row
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryAndMap (Connection conn, String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      // without parameters the query runs as is, so a ? inside a quoted
+      // value is never taken for a placeholder
+      Statement stmt = params.length == 0 ? conn.createStatement () : conn.prepareStatement (query);
+      try {
+         for (int i = 0; i < params.length; ++i)
+            ((PreparedStatement) stmt).setObject (i + 1, params[i]);
+         ResultSet rs = guardedQuery (stmt, params.length == 0 ? query : null);
+         List<T> result = new ArrayList<T>();
+         while (rs.next())
+            result.add (mapper.map (rs));
+         return result;
+      } finally {
+         stmt.close ();
+      }//end try
+   }//end executeQueryAndMap
+
+   /**
+    * Method to execute a parameterized query and map its first row.
+    *
+    * @param query the query, with ? placeholders
+    * @param mapper maps the row
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped first row, or null when there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryForObject (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      List<T> rows = executeQueryAndMap (query, mapper, params);
+      return rows.isEmpty () ? null : rows.get (0);
+   }//end executeQueryForObject
+
+   /**
+    * Method to execute a parameterized query that returns one integer, such
+    * as a MAX or COUNT.
+    *
+    * @param query the query, with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the first column of the first row, or null when there is no
+    *         row or the value is NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Integer executeQueryForInt (String query, Object... params) throws SQLException {
+      return executeQueryForObject (query, INT_COLUMN, params);
+   }//end executeQueryForInt
+
+   /**
+    * Method to execute a parameterized query that returns one integer on a
+    * given connection, such as the connection of a transaction.
+    *
+    * @param conn the connection
+    * @param query the query, with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the first column of the first row, or null when there is no
+    *         row or the value is NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Integer executeQueryForInt (Connection conn, String query, Object... params) throws SQLException {
+      List<Integer> rows = executeQueryAndMap (conn, query, INT_COLUMN, params);
+      return rows.isEmpty () ? null : rows.get (0);
+   }//end executeQueryForInt
+
+   /**
+    * Method to execute a parameterized query that returns one integer on
+    * one shard.
+    *
+    * @param shard the shard, as given by the shard router
+    * @param query the query, with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the first column of the first row, or null when there is no
+    *         row or the value is NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Integer executeQueryForIntOnShard (int shard, String query, Object... params) throws SQLException {
+      if (shard == 0)
+         return executeQueryForInt (query, params);
+      List<Object[]> rows = this._shards.query (shard, query, params).rows;
+      return rows.isEmpty () || rows.get (0)[0] == null ? null : ((Number) rows.get (0)[0]).intValue ();
+   }//end executeQueryForIntOnShard
+
+   /**
+    * Method to execute a display query on one shard and print its rows in
+    * the layout of executeQueryAndPrintResult.
+    *
+    * @param shard the shard, as given by the shard router
+    * @param query the input query string
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResultOnShard (int shard, String query) throws SQLException {
+      if (shard == 0)
+         return executeQueryAndPrintResult (query);
+      ShardRouter.Rows rows = this._shards.query (shard, query);
+      return printRows (rows.columns, rows.strings ());
+   }//end executeQueryAndPrintResultOnShard
+
+   /**
+    * Method to execute a display query on every shard and print the merged
+    * rows.  Each shard sorts and limits its own rows; the merge sorts again
+    * on the same key and applies the limit once more.  Without shards this
+    * is executeQueryAndPrintResult.
+    *
+    * @param query the input query string, with its ORDER BY and LIMIT
+    * @param keyCols the (1-based) result columns of the ORDER BY, most significant first
+    * @param descending true when the ORDER BY is descending
+    * @param limit the LIMIT of the query, 0 for none
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResultAcrossShards (String query, int[] keyCols, boolean descending, int limit) throws SQLException {
+      if (!this._shards.isSharded ())
+         return executeQueryAndPrintResult (query);
+      ShardRouter.Rows rows = this._shards.scatter (query);
+      ShardRouter.sort (rows.rows, keyCols, descending);
+      if (limit > 0 && rows.rows.size () > limit)
+         rows.rows.subList (limit, rows.rows.size ()).clear ();
+      return printRows (rows.columns, rows.strings ());
+   }//end executeQueryAndPrintResultAcrossShards
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -179,7 +1002,7 @@ public class AirlineManagement {
        Statement stmt = this._connection.createStatement ();
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = guardedQuery (stmt, query);
 
        int rowCount = 0;
 
@@ -191,6 +1014,178 @@ public class AirlineManagement {
        return rowCount;
    }
 
+   /**
+    * Method to execute a history query one page at a time using keyset
+    * (seek) pagination.  Instead of an OFFSET, every page after the first
+    * adds a predicate on the sort key of the last row printed, so page N
+    * costs the same index seek as page 1.  The user is prompted between pages.
+    *
+    * @param query the SELECT ... FROM ... WHERE part of the query, without ORDER BY
+    * @param keyExprs the SQL expressions of the sort key, most significant first
+    * @param keyCols the (1-based) result columns holding the key values
+    * @param descending true to page from the highest key to the lowest
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to read the paging prompt
+    */
+   public int executeQueryAndPrintPaged (String query, String[] keyExprs, int[] keyCols, boolean descending) throws SQLException, IOException {
+      return printPaged (query, keyExprs, keyCols, directions (keyExprs.length, descending), false);
+   }//end executeQueryAndPrintPaged
+
+   /**
+    * Method to page a history query over FlightInstance and Reservation
+    * across all shards.  Every shard returns its first PAGE_SIZE + 1 rows
+    * after the last key printed; the first rows of the merge are the page.
+    * Without shards this is executeQueryAndPrintPaged.
+    *
+    * @param query the SELECT ... FROM ... WHERE part of the query, without ORDER BY
+    * @param keyExprs the SQL expressions of the sort key, most significant first
+    * @param keyCols the (1-based) result columns holding the key values
+    * @param descending true to page from the highest key to the lowest
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to read the paging prompt
+    */
+   public int executeQueryAndPrintPagedAcrossShards (String query, String[] keyExprs, int[] keyCols, boolean descending) throws SQLException, IOException {
+      return printPaged (query, keyExprs, keyCols, directions (keyExprs.length, descending), this._shards.isSharded ());
+   }//end executeQueryAndPrintPagedAcrossShards
+
+   /**
+    * Method to page a history query across all shards on a sort key whose
+    * parts run in different directions, such as newest date first and the
+    * lowest id first within a date.
+    *
+    * @param query the SELECT ... FROM ... WHERE part of the query, without ORDER BY
+    * @param keyExprs the SQL expressions of the sort key, most significant first
+    * @param keyCols the (1-based) result columns holding the key values
+    * @param descending for each key part, true to page it from the highest value to the lowest
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to read the paging prompt
+    */
+   public int executeQueryAndPrintPagedAcrossShards (String query, String[] keyExprs, int[] keyCols, boolean[] descending) throws SQLException, IOException {
+      return printPaged (query, keyExprs, keyCols, descending, this._shards.isSharded ());
+   }//end executeQueryAndPrintPagedAcrossShards
+
+   private static boolean[] directions (int keys, boolean descending) {
+      boolean[] directions = new boolean[keys];
+      Arrays.fill (directions, descending);
+      return directions;
+   }//end directions
+
+   private int printPaged (String query, String[] keyExprs, int[] keyCols, boolean[] descending, boolean acrossShards) throws SQLException, IOException {
+      StringBuilder orderBy = new StringBuilder(" ORDER BY ");
+      for (int i = 0; i < keyExprs.length; ++i)
+         orderBy.append(i == 0 ? "" : ", ").append(keyExprs[i]).append(descending[i] ? " DESC" : "");
+
+      Object[] lastKey = null;
+      int rowCount = 0;
+      boolean outputHeader = true;
+      while (true) {
+         String pageQuery = query;
+         List<Object> seekValues = new ArrayList<Object>();
+         if (lastKey != null)
+            pageQuery += " AND " + seekPredicate (keyExprs, descending, lastKey, seekValues);
+         // fetch one extra row to know whether another page exists
+         pageQuery += orderBy + " LIMIT " + (PAGE_SIZE + 1);
+
+         String[] columns;
+         List<String[]> page;
+         List<Object[]> keys = new ArrayList<Object[]>();
+         if (acrossShards) {
+            ShardRouter.Rows rows = this._shards.scatter (pageQuery, seekValues.toArray ());
+            ShardRouter.sort (rows.rows, keyCols, descending);
+            columns = rows.columns;
+            page = rows.strings ();
+            for (Object[] row : rows.rows){
+               Object[] key = new Object[keyCols.length];
+               for (int i = 0; i < keyCols.length; ++i)
+                  key[i] = row[keyCols[i] - 1];
+               keys.add (key);
+            }//end for
+         } else {
+            ResultSet rs = executeRead (pageQuery, seekValues.toArray ());
+            Statement stmt = rs.getStatement ();
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            columns = new String[rsmd.getColumnCount ()];
+            for (int i = 1; i <= columns.length; ++i)
+               columns[i - 1] = rsmd.getColumnName (i);
+            page = new ArrayList<String[]>();
+            while (rs.next()){
+               String[] row = new String[columns.length];
+               for (int i=1; i<=columns.length; ++i)
+                  row[i - 1] = rs.getString (i);
+               page.add (row);
+               Object[] key = new Object[keyCols.length];
+               for (int i = 0; i < keyCols.length; ++i)
+                  key[i] = rs.getObject (keyCols[i]);
+               keys.add (key);
+            }//end while
+            stmt.close ();
+         }//end if
+
+         int pageRows = Math.min (page.size (), PAGE_SIZE);
+         boolean morePages = page.size () > PAGE_SIZE;
+         for (int r = 0; r < pageRows; ++r){
+            if(outputHeader){
+               for (String column : columns)
+                  System.out.print(column + "\t");
+               System.out.println();
+               outputHeader = false;
+            }
+            String[] row = page.get (r);
+            for (String value : row)
+               System.out.print (value + "\t");
+            System.out.println ();
+
+            lastKey = keys.get (r);
+         }//end for
+         rowCount += pageRows;
+
+         if (!morePages)
+            return rowCount;
+         System.out.print("-- Press Enter for the next page, or q to stop: ");
+         String answer = in.readLine();
+         if (answer == null || answer.trim().equalsIgnoreCase("q"))
+            return rowCount;
+      }//end while
+   }//end printPaged
+
+   /*
+    * Returns the predicate selecting the rows after lastKey in the sort
+    * order, adding the values bound to its placeholders to params.  A key
+    * running in one direction is a single row comparison, which Postgres
+    * answers with one index seek.  A mixed key such as (date DESC, id) is
+    * expanded to  k1 <= v1 AND (k1 < v1 OR (k2 > v2))  so the range on the
+    * leading part still bounds the scan.
+    */
+   private static String seekPredicate (String[] keyExprs, boolean[] descending, Object[] lastKey, List<Object> params) {
+      boolean uniform = true;
+      for (boolean d : descending)
+         uniform &= d == descending[0];
+      if (uniform) {
+         StringBuilder placeholders = new StringBuilder();
+         for (int i = 0; i < lastKey.length; ++i) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+            params.add(lastKey[i]);
+         }
+         return "(" + String.join(", ", keyExprs) + ")" + (descending[0] ? " < (" : " > (") + placeholders + ")";
+      }//end if
+      return seekFrom (0, keyExprs, descending, lastKey, params);
+   }//end seekPredicate
+
+   private static String seekFrom (int i, String[] keyExprs, boolean[] descending, Object[] lastKey, List<Object> params) {
+      String after = descending[i] ? " < ?" : " > ?";
+      if (i == keyExprs.length - 1) {
+         params.add(lastKey[i]);
+         return keyExprs[i] + after;
+      }
+      params.add(lastKey[i]);
+      params.add(lastKey[i]);
+      return keyExprs[i] + (descending[i] ? " <= ?" : " >= ?") + " AND (" + keyExprs[i] + after +
+             " OR (" + seekFrom (i + 1, keyExprs, descending, lastKey, params) + "))";
+   }//end seekFrom
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -213,7 +1208,40 @@ public class AirlineManagement {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._warmer != null){
+         this._warmer.report();
+      }//end if
+      if (this._tx != null){
+         this._tx.getMetrics().printHotSpots(HOT_SPOT_LIMIT);
+      }//end if
+      if (this._guard != null){
+         this._guard.printMetrics();
+         this._guard.close();
+      }//end if
+      if (this._journal != null){
+         this._journal.close (); // flushes what is still queued
+         long[] stats = this._journal.stats();
+         System.out.println("Event journal: " + stats[0] + " records in " + stats[1] + " flushes (" + JOURNAL_FILE + ")");
+      }//end if
       try{
+         if (this._changeLog != null){
+            this._changeLog.stop ();
+         }//end if
+         if (this._holds != null){
+            this._holds.stop ();
+         }//end if
+         if (this._historyThreads != null){
+            this._historyThreads.shutdownNow ();
+         }//end if
+         if (this._router != null){
+            this._router.close ();
+         }//end if
+         if (this._shards != null){
+            this._shards.close ();
+         }//end if
+         if (this._pool != null){
+            this._pool.close ();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -228,12 +1256,12 @@ public class AirlineManagement {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && args.length != 4) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             AirlineManagement.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<replica port>]");
          return;
       }//end if
 
@@ -247,17 +1275,25 @@ public class AirlineManagement {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new AirlineManagement (dbname, dbport, user, "");
+         String replicaPort = args.length == 4 ? args[3] : null;
+         esql = new AirlineManagement (dbname, dbport, replicaPort, user, "");
+         esql.startChangeLog();
+         esql.startJournal();
+         esql.startSeatHolds();
+         esql.startWarmup();
          String authorisedUser = null;
          boolean keepon = true;
          while (keepon) {
             if (authorisedUser == null) {
+                esql._warmer.markFirstMenu();
                 System.out.println("\n========= AIRLINE SYSTEM LOGIN =========");
                 System.out.println("1. Create User Account");
                 System.out.println("2. Log In");
                 System.out.println("9. Exit Application");
                 System.out.println("======================================");
-                switch (readChoice()) {
+                int loginChoice = readChoice();
+                esql.beginFeature(TIMEOUT_WRITE_SECONDS);
+                switch (loginChoice) {
                     case 1: CreateUser(esql); break;
                     case 2: authorisedUser = LogIn(esql); break;
                     case 9: keepon = false; break;
@@ -271,6 +1307,8 @@ public class AirlineManagement {
                     userRole = "Pilot";
                 } else if (authorisedUser.startsWith("TECHNICIAN_")) {
                     userRole = "Technician";
+                } else if (authorisedUser.startsWith("AGENT_")) {
+                    userRole = "Agent";
                 }
                 System.out.println("\n========= " + userRole.toUpperCase() + " MENU =========");
                 System.out.println("Logged in as: " + authorisedUser);
@@ -285,15 +1323,26 @@ public class AirlineManagement {
                     System.out.println("6. Search Available Flights (by criteria)");
                     System.out.println("7. Book a Flight / Make Reservation");
                     System.out.println("8. View My Current Reservations");
+                    System.out.println("10. Hold Seats on a Flight");
+                    System.out.println("11. Confirm Held Seats");
+                    System.out.println("12. Low-Fare Calendar (flexible dates)");
+                    System.out.println("13. View My Travel Statistics");
                 } else if (userRole.equals("Pilot")) {
                     System.out.println("1. View My Assigned Flights for Today/Date");
                     System.out.println("2. View Flight Manifest (Passenger List)");
                     System.out.println("3. Submit Maintenance Request");
                     System.out.println("4. View Plane Maintenance History");
+                    System.out.println("5. Submit Maintenance Requests from CSV");
                 } else if (userRole.equals("Technician")) {
                     System.out.println("1. View Open Maintenance Requests");
                     System.out.println("2. Log a Completed Repair");
                     System.out.println("3. View Repair History for a Plane");
+                    System.out.println("4. View Plane Maintenance History");
+                    System.out.println("5. Import Completed Repairs from CSV");
+                    System.out.println("6. View Planes with Recurring Faults");
+                    System.out.println("7. Take Next Maintenance Request");
+                } else if (userRole.equals("Agent")) {
+                    System.out.println("1. Find Customer by Name");
                 }
 
                 System.out.println("--------------------------------------");
@@ -301,6 +1350,7 @@ public class AirlineManagement {
                 System.out.println("======================================");
 
                 int choice = readChoice();
+                esql.beginFeature(featureBudget(userRole, choice));
                 if (userRole.equals("Customer")) {
                     switch (choice) {
                         case 1: feature1(esql); break;
@@ -311,6 +1361,10 @@ public class AirlineManagement {
                         case 6: SearchAvailableFlights(esql); break;
                         case 7: BookFlight(esql, authorisedUser); break; // CORRECTED
                         case 8: ViewMyReservations(esql, authorisedUser); break; // CORRECTED
+                        case 10: HoldSeats(esql, authorisedUser); break;
+                        case 11: ConfirmHeldSeats(esql, authorisedUser); break;
+                        case 12: LowFareCalendar(esql); break;
+                        case 13: ViewMyTravelStats(esql, authorisedUser); break;
                         case 9: authorisedUser = null; System.out.println("Logged out successfully."); break; // CORRECTED
                         default: System.out.println("Unrecognized choice!"); break;
                     }
@@ -320,17 +1374,28 @@ public class AirlineManagement {
                         case 2: ViewFlightManifest(esql, authorisedUser); break; // CORRECTED
                         case 3: SubmitMaintenanceRequest(esql, authorisedUser); break; // CORRECTED
                         case 4: ViewPlaneMaintenanceHistoryForPilot(esql); break;
+                        case 5: SubmitMaintenanceRequestsFromCsv(esql, authorisedUser); break;
                         case 9: authorisedUser = null; System.out.println("Logged out successfully."); break; // CORRECTED
                         default: System.out.println("Unrecognized choice!"); break;
                     }
                 } else if (userRole.equals("Technician")) {
                     switch (choice) {
-                        case 1: ViewOpenMaintenanceRequests(esql); break;
+                        case 1: ViewOpenMaintenanceRequests(esql, authorisedUser); break;
                         case 2: LogCompletedRepair(esql, authorisedUser); break; // CORRECTED
                         case 3: ViewPlaneRepairHistoryForTechnician(esql); break;
+                        case 4: ViewPlaneMaintenanceHistoryForPilot(esql); break;
+                        case 5: ImportRepairsFromCsv(esql, authorisedUser); break;
+                        case 6: ViewRecurringFaults(esql); break;
+                        case 7: TakeNextMaintenanceRequest(esql, authorisedUser); break;
                         case 9: authorisedUser = null; System.out.println("Logged out successfully."); break; // CORRECTED
                         default: System.out.println("Unrecognized choice!"); break;
                     }
+                } else if (userRole.equals("Agent")) {
+                    switch (choice) {
+                        case 1: FindCustomerByName(esql); break;
+                        case 9: authorisedUser = null; System.out.println("Logged out successfully."); break;
+                        default: System.out.println("Unrecognized choice!"); break;
+                    }
                 }
                 // This check was slightly redundant if authorisedUser is set to null in the switch cases,
                 // but harmless.
@@ -382,6 +1447,56 @@ public class AirlineManagement {
       return input;
    }//end readChoice
 
+   /*
+    * Time budget per statement of a menu choice, in seconds.  Writes, CSV
+    * imports and single-row lookups are listed per role; everything else,
+    * including a choice added to a menu later, gets the search budget
+    * rather than the shortest one.
+    * @int
+    **/
+   public static int featureBudget(String userRole, int choice) {
+      switch (userRole) {
+         case "Customer":
+            switch (choice) {
+               case 7: case 10: case 11: return TIMEOUT_WRITE_SECONDS;
+               case 1: case 2: case 3: case 4: case 13: return TIMEOUT_LOOKUP_SECONDS;
+               default: return TIMEOUT_SEARCH_SECONDS;
+            }
+         case "Pilot":
+            switch (choice) {
+               case 3: return TIMEOUT_WRITE_SECONDS;
+               case 5: return TIMEOUT_BULK_SECONDS;
+               case 1: case 2: return TIMEOUT_LOOKUP_SECONDS;
+               default: return TIMEOUT_SEARCH_SECONDS;
+            }
+         case "Technician":
+            switch (choice) {
+               case 2: case 7: return TIMEOUT_WRITE_SECONDS;
+               case 5: return TIMEOUT_BULK_SECONDS;
+               case 1: return TIMEOUT_LOOKUP_SECONDS;
+               default: return TIMEOUT_SEARCH_SECONDS;
+            }
+         default:
+            return TIMEOUT_SEARCH_SECONDS;
+      }
+   }//end featureBudget
+
+   /*
+    * Checks that a string is a real calendar date in YYYY-MM-DD form
+    * @boolean
+    **/
+   public static boolean isValidDate(String value) {
+      if (value == null || !value.matches("\\d{4}-\\d{2}-\\d{2}"))
+         return false;
+      try {
+         // strict: rejects 2024-02-30, which java.sql.Date.valueOf rolls over to March 1
+         java.time.LocalDate.parse(value);
+         return true;
+      } catch (java.time.format.DateTimeParseException e) {
+         return false;
+      }//end try
+   }//end isValidDate
+
    /*
     * Creates a new user
     **/
@@ -395,7 +1510,7 @@ public class AirlineManagement {
          System.out.print("Enter desired Password: ");
          String password = in.readLine().trim();
 
-         System.out.print("Select User Role (C for Customer, P for Pilot, T for Technician): ");
+         System.out.print("Select User Role (C for Customer, P for Pilot, T for Technician, A for Agent): ");
          String roleChoice = in.readLine().trim().toUpperCase();
 
          String fullName = firstName + " " + lastName;
@@ -423,22 +1538,20 @@ public class AirlineManagement {
             String safePhone = phone.replace("'", "''");
             String safeZip = zip.replace("'", "''");
 
-            String queryMaxId = "SELECT MAX(CustomerID) FROM Customer";
-            List<List<String>> result = esql.executeQueryAndReturnResult(queryMaxId);
-            int nextCustomerId = 1;
-            if (result != null && !result.isEmpty() && result.get(0).get(0) != null) {
-               try {
-                  nextCustomerId = Integer.parseInt(result.get(0).get(0)) + 1;
-               } catch (NumberFormatException e) {
-                  System.err.println("Warning: Could not parse max CustomerID, defaulting to 1. " + e.getMessage());
-               }
-            }
+            Integer maxCustomerId = esql.executeQueryForInt("SELECT MAX(CustomerID) FROM Customer");
+            int nextCustomerId = maxCustomerId == null ? 1 : maxCustomerId + 1;
 
             String insertQuery = String.format(
                   "INSERT INTO Customer (CustomerID, FirstName, LastName, Password, Gender, DOB, Address, Phone, Zip) " +
                   "VALUES (%d, '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s')",
                   nextCustomerId, safeFirstName, safeLastName, safePassword, safeGender, dob, safeAddress, safePhone, safeZip);
             
+            // Customer is replicated, so reservations on every shard can reference the new id.
+            // The other shards get the row first: once it is on shard 0 it is on all of them.
+            esql.getShards().replicate(insertQuery + " ON CONFLICT (CustomerID) DO UPDATE SET " +
+                                       "FirstName = EXCLUDED.FirstName, LastName = EXCLUDED.LastName, " +
+                                       "Password = EXCLUDED.Password, Gender = EXCLUDED.Gender, DOB = EXCLUDED.DOB, " +
+                                       "Address = EXCLUDED.Address, Phone = EXCLUDED.Phone, Zip = EXCLUDED.Zip");
             esql.executeUpdate(insertQuery);
             System.out.println("Customer account created successfully for " + fullName + " with CustomerID: " + nextCustomerId);
 
@@ -447,12 +1560,8 @@ public class AirlineManagement {
             System.out.println("--- Creating Pilot Account ---");
             String prefix = "P";
             String maxIdQuery = "SELECT MAX(CAST(SUBSTRING(PilotID FROM 2) AS INTEGER)) FROM Pilot";
-            List<List<String>> result = esql.executeQueryAndReturnResult(maxIdQuery);
-            int nextNumericId = 1;
-            
-            if (result != null && !result.isEmpty() && result.get(0).get(0) != null) {
-                nextNumericId = Integer.parseInt(result.get(0).get(0)) + 1;
-            }
+            Integer maxNumericId = esql.executeQueryForInt(maxIdQuery);
+            int nextNumericId = maxNumericId == null ? 1 : maxNumericId + 1;
             
             String pilotId = prefix + String.format("%03d", nextNumericId);
             
@@ -471,12 +1580,8 @@ public class AirlineManagement {
          } else if (roleChoice.equals("T")) {
             System.out.println("--- Creating Technician Account ---");
             String maxIdQuery = "SELECT MAX(CAST(SUBSTRING(TechnicianID FROM 2) AS INTEGER)) FROM Technician";
-            List<List<String>> result = esql.executeQueryAndReturnResult(maxIdQuery);
-            int nextNumericId = 1;
-            
-            if (result != null && !result.isEmpty() && result.get(0).get(0) != null) {
-                nextNumericId = Integer.parseInt(result.get(0).get(0)) + 1;
-            }
+            Integer maxNumericId = esql.executeQueryForInt(maxIdQuery);
+            int nextNumericId = maxNumericId == null ? 1 : maxNumericId + 1;
             
             String technicianId = "T" + String.format("%03d", nextNumericId);
             
@@ -491,6 +1596,25 @@ public class AirlineManagement {
                System.err.println("Database error during technician insertion: " + insertEx.getMessage());
                return;
             }
+         } else if (roleChoice.equals("A")) {
+            System.out.println("--- Creating Agent Account ---");
+            String maxIdQuery = "SELECT MAX(CAST(SUBSTRING(AgentID FROM 2) AS INTEGER)) FROM Agent";
+            Integer maxNumericId = esql.executeQueryForInt(maxIdQuery);
+            int nextNumericId = maxNumericId == null ? 1 : maxNumericId + 1;
+
+            String agentId = "A" + String.format("%03d", nextNumericId);
+
+            String insertQuery = String.format(
+                  "INSERT INTO Agent (AgentID, Name, Password) VALUES ('%s', '%s', '%s')",
+                  agentId, safeFullName, safePassword);
+
+            try {
+               esql.executeUpdate(insertQuery);
+               System.out.println("Agent account created successfully for " + fullName + " with AgentID: " + agentId);
+            } catch (SQLException insertEx) {
+               System.err.println("Database error during agent insertion: " + insertEx.getMessage());
+               return;
+            }
          } else {
             System.out.println("Invalid role selected. User account not created.");
          }
@@ -516,53 +1640,73 @@ public class AirlineManagement {
 
       try {
          System.out.println("============== User Login ==============");
-         System.out.print("Enter your role (Customer/Pilot/Technician): ");
+         System.out.print("Enter your role (Customer/Pilot/Technician/Agent): ");
          String role = in.readLine().trim().toLowerCase(); 
          System.out.print("Enter your ID: ");
          String idStr = in.readLine().trim();
          System.out.print("Enter your password: ");
          String password = in.readLine().trim();
 
-         String query = "";
-         List<List<String>> result = null;
-         
+         // {authorised user, name to display} of the matching account
+         String[] account = null;
+
+         // quoted by hand: the 7.3 driver escapes a bound string's quotes as \',
+         // which a server with standard_conforming_strings reads as a backslash
          String safeIdStr = idStr.replace("'", "''");
          String safePassword = password.replace("'", "''");
 
          if (role.equals("customer")) {
+            int customerId;
             try {
-                Integer.parseInt(idStr);
+                customerId = Integer.parseInt(idStr);
             } catch (NumberFormatException e) {
                 System.out.println("Invalid Customer ID format. Customer ID must be a number.");
                 return null;
             }
-            query = String.format("SELECT CustomerID, FirstName, LastName FROM Customer WHERE CustomerID = %s AND Password = '%s'", safeIdStr, safePassword);
-            result = esql.executeQueryAndReturnResult(query);
-            if (result != null && !result.isEmpty()) {
-               authorisedUser = "CUSTOMER_" + result.get(0).get(0); // CustomerID
-               userNameToDisplay = result.get(0).get(1) + " " + result.get(0).get(2); // FirstName LastName
-            }
+            account = esql.executeQueryForObject(String.format(
+               "SELECT CustomerID, FirstName, LastName FROM Customer WHERE CustomerID = %d AND Password = '%s'",
+               customerId, safePassword),
+               new RowMapper<String[]>() {
+                  public String[] map(ResultSet rs) throws SQLException {
+                     return new String[] {"CUSTOMER_" + rs.getInt(1), rs.getString(2) + " " + rs.getString(3)};
+                  }
+               });
 
          } else if (role.equals("pilot")) {
-            query = String.format("SELECT PilotID, Name FROM Pilot WHERE PilotID = '%s' AND Password = '%s'", safeIdStr, safePassword);
-            result = esql.executeQueryAndReturnResult(query);
-            if (result != null && !result.isEmpty()) {
-               authorisedUser = "PILOT_" + result.get(0).get(0); // PilotID
-               userNameToDisplay = result.get(0).get(1); // Name
-            }
+            account = esql.executeQueryForObject(String.format(
+               "SELECT PilotID, Name FROM Pilot WHERE PilotID = '%s' AND Password = '%s'", safeIdStr, safePassword),
+               new RowMapper<String[]>() {
+                  public String[] map(ResultSet rs) throws SQLException {
+                     return new String[] {"PILOT_" + rs.getString(1), rs.getString(2)};
+                  }
+               });
 
          } else if (role.equals("technician")) {
-            query = String.format("SELECT TechnicianID, Name FROM Technician WHERE TechnicianID = '%s' AND Password = '%s'", safeIdStr, safePassword);
-            result = esql.executeQueryAndReturnResult(query);
-            if (result != null && !result.isEmpty()) {
-               authorisedUser = "TECHNICIAN_" + result.get(0).get(0); // TechnicianID
-               userNameToDisplay = result.get(0).get(1); // Name
-            }
+            account = esql.executeQueryForObject(String.format(
+               "SELECT TechnicianID, Name FROM Technician WHERE TechnicianID = '%s' AND Password = '%s'", safeIdStr, safePassword),
+               new RowMapper<String[]>() {
+                  public String[] map(ResultSet rs) throws SQLException {
+                     return new String[] {"TECHNICIAN_" + rs.getString(1), rs.getString(2)};
+                  }
+               });
+
+         } else if (role.equals("agent")) {
+            account = esql.executeQueryForObject(String.format(
+               "SELECT AgentID, Name FROM Agent WHERE AgentID = '%s' AND Password = '%s'", safeIdStr, safePassword),
+               new RowMapper<String[]>() {
+                  public String[] map(ResultSet rs) throws SQLException {
+                     return new String[] {"AGENT_" + rs.getString(1), rs.getString(2)};
+                  }
+               });
          } else {
-            System.out.println("Invalid role entered. Please choose Customer, Pilot, or Technician.");
+            System.out.println("Invalid role entered. Please choose Customer, Pilot, Technician, or Agent.");
             return null;
          }
 
+         if (account != null) {
+            authorisedUser = account[0];
+            userNameToDisplay = account[1];
+         }
          if (authorisedUser != null) {
             System.out.println("\nWelcome, " + userNameToDisplay + "! (" + authorisedUser + ") You are logged in.\n");
          } else {
@@ -607,7 +1751,21 @@ public class AirlineManagement {
             safeDepartureCity, safeArrivalCity
         );
         System.out.println("\n--- Available Flights and Schedules ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount;
+        try {
+            rowCount = esql.executeQueryAndPrintResult(query);
+        } catch (SQLException e) {
+            // database overloaded or timed out: answer from the cached Flight and Schedule tables
+            boolean overloaded = e instanceof QueryGuard.Rejected || QueryGuard.isTimeout(e);
+            List<List<String>> cached = overloaded ? esql.getReferenceCache().cachedRoute(departureCity, arrivalCity) : null;
+            if (cached == null)
+                throw e;
+            System.out.println("(" + e.getMessage() + "; showing cached schedules)");
+            List<String[]> rows = new ArrayList<String[]>();
+            for (List<String> row : cached)
+                rows.add(row.toArray(new String[0]));
+            rowCount = printRows(ROUTE_COLUMNS, rows);
+        }
 
         if (rowCount == 0) {
             System.out.println("No flights found for the specified route: " + departureCity + " to " + arrivalCity);
@@ -656,7 +1814,21 @@ public class AirlineManagement {
         String query = queryBuilder.toString();
         System.out.println("\n--- Seat Availability for Flight " + flightNumber + 
                            (flightDateStr.isEmpty() ? "" : " on " + flightDateStr) + " ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        // answered from the in-memory flight snapshot when it is available
+        FlightInstanceSnapshot snapshot = esql.getFlightSnapshot();
+        int rowCount;
+        if (snapshot != null) {
+            List<String[]> rows = new ArrayList<String[]>();
+            for (int r : snapshot.rowsOfFlight(flightNumber, flightDateStr.isEmpty() ? null : flightDateStr)) {
+                int sold = snapshot.seatsSold(r);
+                rows.add(new String[] {String.valueOf(snapshot.id(r)), snapshot.flightNumber(r), snapshot.date(r),
+                                       String.valueOf(snapshot.seatsTotal(r)), String.valueOf(sold),
+                                       String.valueOf(snapshot.seatsTotal(r) - sold)});
+            }
+            rowCount = printRows(SEATS_COLUMNS, rows);
+        } else {
+            rowCount = esql.executeQueryAndPrintResultOnShard(esql.getShards().shardOf(flightNumber), query);
+        }
 
         if (rowCount == 0) {
             System.out.println("No flight instances found for Flight Number: " + flightNumber + 
@@ -706,7 +1878,7 @@ public class AirlineManagement {
         String query = queryBuilder.toString();
         System.out.println("\n--- Status for Flight " + flightNumber + 
                            (flightDateStr.isEmpty() ? "" : " on " + flightDateStr) + " ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintResultOnShard(esql.getShards().shardOf(flightNumber), query);
 
         if (rowCount == 0) {
             System.out.println("No flight instances found for Flight Number: " + flightNumber + 
@@ -752,7 +1924,11 @@ public class AirlineManagement {
             flightDateStr
         );
         System.out.println("\n--- Flights Scheduled for " + flightDateStr + " ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        // answered from the in-memory flight snapshot when it is available
+        FlightInstanceSnapshot snapshot = esql.getFlightSnapshot();
+        int rowCount = snapshot != null
+            ? printRows(DAY_COLUMNS, flightsOfDaySnapshot(esql, snapshot, flightDateStr))
+            : esql.executeQueryAndPrintResultAcrossShards(query, new int[] {6, 2}, false, 0);
 
         if (rowCount == 0) {
             System.out.println("No flights found scheduled for " + flightDateStr + ".");
@@ -788,6 +1964,7 @@ public class AirlineManagement {
             return;
         }
         
+        // Paged newest flight first, then by ReservationID
         String query = String.format(
             "SELECT R.ReservationID, R.Status, " +
             "FI.FlightNumber, F.DepartureCity, F.ArrivalCity, FI.FlightDate, " +
@@ -795,12 +1972,12 @@ public class AirlineManagement {
             "FROM Reservation R " +
             "INNER JOIN FlightInstance FI ON R.FlightInstanceID = FI.FlightInstanceID " +
             "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
-            "WHERE R.CustomerID = %s " + 
-            "ORDER BY FI.FlightDate DESC, R.ReservationID",
+            "WHERE R.CustomerID = %s",
             customerIdStr
         );
         System.out.println("\n--- Your Reservations ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintPagedAcrossShards(query,
+            new String[] {"FI.FlightDate", "R.ReservationID"}, new int[] {6, 1}, new boolean[] {true, false});
 
         if (rowCount == 0) {
             System.out.println("You have no reservations in the system.");
@@ -814,6 +1991,52 @@ public class AirlineManagement {
     }
    }
 
+   // Customer Feature
+   public static void ViewMyTravelStats(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== Your Travel Statistics ==========");
+    if (authorisedUser == null || !authorisedUser.startsWith("CUSTOMER_")) {
+        System.out.println("You must be logged in as a Customer to view your travel statistics.");
+        System.out.println("============================================");
+        return;
+    }
+
+    try {
+        int customerId = Integer.parseInt(authorisedUser.substring("CUSTOMER_".length()));
+
+        // maintained by the Reservation trigger: one row per flight year, no join over the history
+        ShardRouter shards = esql.getShards();
+        System.out.println("\n--- Per Year (flown, reserved, waitlisted, spend on flown flights) ---");
+        int years;
+        if (shards.isSharded()) {
+            ShardRouter.Rows merged = TravelStats.mergeYears(shards.scatter(String.format(TravelStats.YEARS_QUERY, customerId)));
+            years = printRows(merged.columns, merged.strings());
+        } else {
+            years = esql.executeQueryAndPrintResult(String.format(TravelStats.YEARS_QUERY, customerId));
+        }
+        if (years == 0) {
+            System.out.println("No travel recorded yet.");
+        } else {
+            System.out.println("\n--- Favorite Route ---");
+            int routes;
+            if (shards.isSharded()) {
+                ShardRouter.Rows merged = TravelStats.mergeFavoriteRoute(shards.scatter(String.format(TravelStats.ROUTES_QUERY, customerId)));
+                routes = printRows(merged.columns, merged.strings());
+            } else {
+                routes = esql.executeQueryAndPrintResult(String.format(TravelStats.FAVORITE_ROUTE_QUERY, customerId));
+            }
+            if (routes == 0) {
+                System.out.println("No reserved or flown segments yet.");
+            }
+        }
+        System.out.println("============================================");
+
+    } catch (NumberFormatException e) {
+        System.err.println("Invalid authorised user format for customer ID extraction: " + authorisedUser);
+    } catch (SQLException e) {
+        System.err.println("Database query error: " + e.getMessage());
+    }
+   }
+
    public static void feature6(AirlineManagement esql) {}
   
    public static void SearchAvailableFlights(AirlineManagement esql) {
@@ -827,6 +2050,12 @@ public class AirlineManagement {
          String travelDateStr = in.readLine().trim();
          System.out.print("Enter Number of Passengers (e.g., 1): ");
          String numPassengersStr = in.readLine().trim();
+         System.out.print("Enter Minimum Ticket Price (blank for none): ");
+         String minPriceStr = in.readLine().trim();
+         System.out.print("Enter Maximum Ticket Price (blank for none): ");
+         String maxPriceStr = in.readLine().trim();
+         System.out.print("Show only the K cheapest flights (enter K, blank for all by departure time): ");
+         String topKStr = in.readLine().trim();
          int numPassengers = 1; // Default to 1 passenger
 
          if (departureCity.isEmpty() || arrivalCity.isEmpty() || travelDateStr.isEmpty()) {
@@ -856,24 +2085,50 @@ public class AirlineManagement {
                return;
          }
 
-         String safeDepartureCity = departureCity.replace("'", "''");
-         String safeArrivalCity = arrivalCity.replace("'", "''");
+         // price bounds in cents; -1 and Long.MAX_VALUE mean no bound
+         long minCents = -1;
+         long maxCents = Long.MAX_VALUE;
+         int topK = 0; // 0 = all rows, ordered by departure time
+         try {
+               if (!minPriceStr.isEmpty()) {
+                  minCents = new java.math.BigDecimal(minPriceStr).movePointRight(2)
+                                 .setScale(0, java.math.RoundingMode.CEILING).longValueExact();
+               }
+               if (!maxPriceStr.isEmpty()) {
+                  maxCents = new java.math.BigDecimal(maxPriceStr).movePointRight(2)
+                                 .setScale(0, java.math.RoundingMode.FLOOR).longValueExact();
+               }
+               if (!topKStr.isEmpty()) {
+                  topK = Integer.parseInt(topKStr);
+               }
+         } catch (ArithmeticException | NumberFormatException e) {
+               System.out.println("Invalid price or K. Please enter numbers, e.g. 149.99 and 5.");
+               System.out.println("==============================================");
+               return;
+         }
+         if (minCents < -1 || maxCents < 0 || topK < 0) {
+               System.out.println("Prices and K cannot be negative.");
+               System.out.println("==============================================");
+               return;
+         }
+         if (topK > TOP_K_MAX) {
+               System.out.println("K can be at most " + TOP_K_MAX + "; leave it blank to see all flights.");
+               System.out.println("==============================================");
+               return;
+         }
 
-         // Query to find flight instances matching criteria with available seats
-         // Joining with Schedule to get the scheduled times for that day of week.
-         String query = String.format(
-               "SELECT FI.FlightInstanceID, FI.FlightNumber, F.DepartureCity, F.ArrivalCity, FI.FlightDate, " +
-               "S.DepartureTime, S.ArrivalTime, FI.TicketCost, (FI.SeatsTotal - FI.SeatsSold) AS SeatsAvailable " +
-               "FROM FlightInstance FI " +
-               "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
-               "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
-               "WHERE F.DepartureCity = '%s' " +
-               "AND F.ArrivalCity = '%s' " +
-               "AND FI.FlightDate = '%s' " +
-               "AND (FI.SeatsTotal - FI.SeatsSold) >= %d " + // Check for available seats
-               "ORDER BY S.DepartureTime",
-               safeDepartureCity, safeArrivalCity, travelDateStr, numPassengers
-         );
+         String priceFilter = "";
+         if (minCents >= 0) {
+               priceFilter += " AND FI.TicketCost >= " + java.math.BigDecimal.valueOf(minCents, 2).toPlainString();
+         }
+         if (maxCents != Long.MAX_VALUE) {
+               priceFilter += " AND FI.TicketCost <= " + java.math.BigDecimal.valueOf(maxCents, 2).toPlainString();
+         }
+         String orderBy = topK > 0
+               ? " ORDER BY FI.TicketCost, S.DepartureTime LIMIT " + topK
+               : " ORDER BY S.DepartureTime";
+
+         String query = searchQuery(departureCity, arrivalCity, travelDateStr, numPassengers, priceFilter, orderBy);
 
          /* // --- PreparedStatement Example ---
          String queryPS = "SELECT FI.FlightInstanceID, FI.FlightNumber, F.DepartureCity, F.ArrivalCity, FI.FlightDate, " +
@@ -892,7 +2147,13 @@ public class AirlineManagement {
          */
          
          System.out.println("\n--- Available Flights Matching Your Search ---");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         // answered from the in-memory flight snapshot when it is available
+         FlightInstanceSnapshot snapshot = esql.getFlightSnapshot();
+         int rowCount = snapshot != null
+               ? printRows(SEARCH_COLUMNS, searchSnapshot(esql, snapshot, departureCity, arrivalCity, travelDateStr,
+                                                          numPassengers, minCents, maxCents, topK))
+               : esql.executeQueryAndPrintResultAcrossShards(query, topK > 0 ? new int[] {8, 6} : new int[] {6},
+                                                             false, topK);
 
          if (rowCount == 0) {
                System.out.println("No available flights found for your criteria.");
@@ -909,6 +2170,268 @@ public class AirlineManagement {
          System.err.println("An unexpected error occurred: " + e.getMessage());
       }
    }
+   /*
+    * Query to find flight instances matching criteria with available seats,
+    * joined with Schedule to get the scheduled times for that day of week.
+    * priceFilter and orderBy are appended as they are.
+    **/
+   static String searchQuery(String departureCity, String arrivalCity, String date, int numPassengers,
+                             String priceFilter, String orderBy) {
+      return String.format(
+            "SELECT FI.FlightInstanceID, FI.FlightNumber, F.DepartureCity, F.ArrivalCity, FI.FlightDate, " +
+            "S.DepartureTime, S.ArrivalTime, FI.TicketCost, (FI.SeatsTotal - FI.SeatsSold) AS SeatsAvailable " +
+            "FROM FlightInstance FI " +
+            "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+            "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
+            "WHERE F.DepartureCity = '%s' " +
+            "AND F.ArrivalCity = '%s' " +
+            "AND FI.FlightDate = '%s' " +
+            "AND (FI.SeatsTotal - FI.SeatsSold) >= %d" + // Check for available seats
+            "%s%s",
+            departureCity.replace("'", "''"), arrivalCity.replace("'", "''"), date, numPassengers, priceFilter, orderBy
+      );
+   }//end searchQuery
+
+   /*
+    * Flight search over the snapshot: instances on the given date of the flights
+    * between the two cities within the price bounds, joined in memory with
+    * Flight and Schedule.  With topK > 0 the rows of all matching flights
+    * stream through a bounded heap that keeps the topK cheapest.
+    **/
+   static List<String[]> searchSnapshot(AirlineManagement esql, FlightInstanceSnapshot snapshot, String departureCity,
+                                        String arrivalCity, String date, int numPassengers,
+                                        long minCents, long maxCents, int topK) throws SQLException {
+      List<String> flights = new ArrayList<String>();
+      for (List<String> flight : esql.getReferenceCache().flights().values()) {
+         if (departureCity.equals(flight.get(2)) && arrivalCity.equals(flight.get(3)))
+            flights.add(flight.get(0));
+      }
+      List<String[]> rows = new ArrayList<String[]>();
+      TopK<String[]> cheapest = topK > 0 ? new TopK<String[]>(topK, CHEAPEST_FIRST) : null;
+      for (int r : snapshot.available(flights, date, date, numPassengers, minCents, maxCents)) {
+         for (List<String> times : esql.getReferenceCache().schedule(snapshot.flightNumber(r), snapshot.dayOfWeek(r))) {
+            String[] row = {String.valueOf(snapshot.id(r)), snapshot.flightNumber(r), departureCity, arrivalCity,
+                            snapshot.date(r), times.get(0), times.get(1), snapshot.cost(r),
+                            String.valueOf(snapshot.seatsTotal(r) - snapshot.seatsSold(r))};
+            if (cheapest != null)
+               cheapest.offer(row);
+            else
+               rows.add(row);
+         }
+      }
+      if (cheapest != null)
+         return cheapest.sorted();
+      sortByColumns(rows, 5);
+      return rows;
+   }//end searchSnapshot
+
+   // SEARCH_COLUMNS rows by TicketCost (NULL last), then DepartureTime, like the SQL ORDER BY
+   static final java.util.Comparator<String[]> CHEAPEST_FIRST = new java.util.Comparator<String[]>() {
+      public int compare(String[] a, String[] b) {
+         if (a[7] == null || b[7] == null) {
+            if (a[7] != b[7])
+               return a[7] == null ? 1 : -1;
+         } else {
+            int cmp = new java.math.BigDecimal(a[7]).compareTo(new java.math.BigDecimal(b[7]));
+            if (cmp != 0)
+               return cmp;
+         }
+         return a[5].compareTo(b[5]);
+      }
+   };
+
+   // Customer Feature
+   public static void LowFareCalendar(AirlineManagement esql) {
+      System.out.println("========== Low-Fare Calendar ==========");
+      try {
+         System.out.print("Enter Departure City: ");
+         String departureCity = in.readLine().trim();
+         System.out.print("Enter Arrival City: ");
+         String arrivalCity = in.readLine().trim();
+         System.out.print("Enter Travel Date (YYYY-MM-DD) or Month (YYYY-MM): ");
+         String when = in.readLine().trim();
+
+         if (departureCity.isEmpty() || arrivalCity.isEmpty() || when.isEmpty()) {
+            System.out.println("Departure city, arrival city, and date cannot be empty.");
+            System.out.println("=======================================");
+            return;
+         }
+
+         java.time.LocalDate from;
+         java.time.LocalDate to;
+         if (when.matches("\\d{4}-\\d{2}") && isValidDate(when + "-01")) {
+            from = java.time.LocalDate.parse(when + "-01");
+            to = from.plusMonths(1).minusDays(1);
+         } else if (isValidDate(when)) {
+            System.out.print("Days before and after the date (default 3): ");
+            String daysStr = in.readLine().trim();
+            int days = daysStr.isEmpty() ? 3 : Integer.parseInt(daysStr);
+            if (days < 0 || 2 * days + 1 > CALENDAR_MAX_DAYS) {
+               System.out.println("Days must be between 0 and " + (CALENDAR_MAX_DAYS - 1) / 2 + ".");
+               System.out.println("=======================================");
+               return;
+            }
+            java.time.LocalDate center = java.time.LocalDate.parse(when);
+            from = center.minusDays(days);
+            to = center.plusDays(days);
+         } else {
+            System.out.println("Invalid date. Please use YYYY-MM-DD or YYYY-MM.");
+            System.out.println("=======================================");
+            return;
+         }
+
+         System.out.print("Enter Number of Passengers (default 1): ");
+         String numPassengersStr = in.readLine().trim();
+         int numPassengers = numPassengersStr.isEmpty() ? 1 : Integer.parseInt(numPassengersStr);
+         if (numPassengers <= 0) {
+            System.out.println("Number of passengers must be a positive number.");
+            System.out.println("=======================================");
+            return;
+         }
+
+         // cheapest bookable instance per day, plus the number of bookable instances that day
+         String query = String.format(
+            "SELECT DISTINCT ON (FI.FlightDate) FI.FlightDate, FI.TicketCost AS LowestFare, FI.FlightNumber, " +
+            "(FI.SeatsTotal - FI.SeatsSold) AS SeatsAvailable, " +
+            "COUNT(*) OVER (PARTITION BY FI.FlightDate) AS FlightsAvailable " +
+            "FROM FlightInstance FI " +
+            "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+            "WHERE F.DepartureCity = '%s' AND F.ArrivalCity = '%s' " +
+            "AND FI.FlightDate BETWEEN '%s' AND '%s' " +
+            "AND (FI.SeatsTotal - FI.SeatsSold) >= %d " +
+            "AND EXISTS (SELECT 1 FROM Schedule S WHERE S.FlightNumber = FI.FlightNumber " +
+            "            AND S.DayOfWeek = TRIM(TO_CHAR(FI.FlightDate, 'Day'))) " +
+            "ORDER BY FI.FlightDate, FI.TicketCost, FI.FlightNumber",
+            departureCity.replace("'", "''"), arrivalCity.replace("'", "''"), from, to, numPassengers
+         );
+
+         System.out.println("\n--- Lowest Fares from " + from + " to " + to + " ---");
+         // answered from the in-memory flight snapshot when it is available
+         FlightInstanceSnapshot snapshot = esql.getFlightSnapshot();
+         int rowCount = snapshot != null
+            ? printRows(CALENDAR_COLUMNS, calendarSnapshot(esql, snapshot, departureCity, arrivalCity,
+                                                             from.toString(), to.toString(), numPassengers))
+            : esql.getShards().isSharded()
+            ? printRows(CALENDAR_COLUMNS, mergeCalendar(esql.getShards().scatter(query)))
+            : esql.executeQueryAndPrintResult(query);
+
+         if (rowCount == 0) {
+            System.out.println("No available flights found in this period.");
+         } else {
+            System.out.println("Days without a row have no available flight.");
+         }
+         System.out.println("=======================================");
+
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid number. Please enter digits only.");
+         System.out.println("=======================================");
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Database query error: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Low-fare calendar over the snapshot in one pass over the date range:
+    * rows come in (FlightDate, FlightNumber) order, so each day's cheapest
+    * instance and count are complete when the day changes.
+    **/
+   static List<String[]> calendarSnapshot(AirlineManagement esql, FlightInstanceSnapshot snapshot, String departureCity,
+                                          String arrivalCity, String fromDate, String toDate, int numPassengers)
+         throws SQLException {
+      List<String> flights = new ArrayList<String>();
+      for (List<String> flight : esql.getReferenceCache().flights().values()) {
+         if (departureCity.equals(flight.get(2)) && arrivalCity.equals(flight.get(3)))
+            flights.add(flight.get(0));
+      }
+      List<String[]> rows = new ArrayList<String[]>();
+      String day = null;
+      int best = -1;
+      int count = 0;
+      for (int r : snapshot.available(flights, fromDate, toDate, numPassengers)) {
+         if (esql.getReferenceCache().schedule(snapshot.flightNumber(r), snapshot.dayOfWeek(r)).isEmpty())
+            continue; // not scheduled on that weekday, as in the search
+         String date = snapshot.date(r);
+         if (!date.equals(day)) {
+            if (best >= 0)
+               rows.add(calendarRow(snapshot, best, count));
+            day = date;
+            best = r;
+            count = 0;
+         } else if (cheaper(snapshot.costCents(r), snapshot.costCents(best))) {
+            best = r;
+         }
+         ++count;
+      }
+      if (best >= 0)
+         rows.add(calendarRow(snapshot, best, count));
+      return rows;
+   }//end calendarSnapshot
+
+   // true if cost a sorts before cost b, with unknown costs (-1) last
+   private static boolean cheaper(long a, long b) {
+      return a >= 0 && (b < 0 || a < b);
+   }//end cheaper
+
+   private static String[] calendarRow(FlightInstanceSnapshot snapshot, int r, int count) {
+      return new String[] {snapshot.date(r), snapshot.cost(r), snapshot.flightNumber(r),
+                           String.valueOf(snapshot.seatsTotal(r) - snapshot.seatsSold(r)), String.valueOf(count)};
+   }//end calendarRow
+
+   /*
+    * Merges the calendar rows of all shards: each shard has the cheapest
+    * instance and the count of its own flights per day, so the merged day
+    * keeps the cheapest row of all shards and the sum of the counts.
+    **/
+   static List<String[]> mergeCalendar(ShardRouter.Rows gathered) {
+      ShardRouter.sort(gathered.rows, new int[] {1, 2, 3}, false);
+      List<Object[]> days = new ArrayList<Object[]>();
+      for (Object[] row : gathered.rows) {
+         Object[] last = days.isEmpty() ? null : days.get(days.size() - 1);
+         if (last != null && last[0].equals(row[0]))
+            last[4] = ((Number) last[4]).longValue() + ((Number) row[4]).longValue();
+         else
+            days.add(row.clone());
+      }
+      return new ShardRouter.Rows(gathered.columns, days).strings();
+   }//end mergeCalendar
+
+   /*
+    * All scheduled instances of one date from the snapshot, ordered by departure time and flight.
+    **/
+   static List<String[]> flightsOfDaySnapshot(AirlineManagement esql, FlightInstanceSnapshot snapshot, String date) throws SQLException {
+      List<String[]> rows = new ArrayList<String[]>();
+      for (int r : snapshot.rowsOfDate(date)) {
+         List<String> flight = esql.getReferenceCache().flights().get(snapshot.flightNumber(r));
+         if (flight == null)
+            continue;
+         for (List<String> times : esql.getReferenceCache().schedule(snapshot.flightNumber(r), snapshot.dayOfWeek(r))) {
+            rows.add(new String[] {String.valueOf(snapshot.id(r)), snapshot.flightNumber(r), flight.get(2), flight.get(3),
+                                   snapshot.date(r), times.get(0), times.get(1),
+                                   snapshot.departedOnTime(r), snapshot.arrivedOnTime(r)});
+         }
+      }
+      sortByColumns(rows, 5, 1);
+      return rows;
+   }//end flightsOfDaySnapshot
+
+   /*
+    * Sorts rows by the given columns (as strings), like an ORDER BY.
+    **/
+   static void sortByColumns(List<String[]> rows, final int... columns) {
+      java.util.Collections.sort(rows, new java.util.Comparator<String[]>() {
+         public int compare(String[] a, String[] b) {
+            for (int c : columns) {
+               int cmp = String.valueOf(a[c]).compareTo(String.valueOf(b[c]));
+               if (cmp != 0)
+                  return cmp;
+            }
+            return 0;
+         }
+      });
+   }//end sortByColumns
+
    public static void BookFlight(AirlineManagement esql, String authorisedUser) {
     System.out.println("========== Book a Flight ==========");
     if (authorisedUser == null || !authorisedUser.startsWith("CUSTOMER_")) {
@@ -939,63 +2462,119 @@ public class AirlineManagement {
             return;
         }
 
-        // --- Start Transaction ---
-        esql._connection.setAutoCommit(false); // Manually manage transaction
+        // Ask about the waitlist before the transaction, so no locks are held while waiting for input
+        int shard = esql.getShards().shardOfInstance(flightInstanceId);
+        Integer seatsLeft = shard < 0 ? null : esql.executeQueryForIntOnShard(shard,
+            "SELECT SeatsTotal - SeatsSold FROM FlightInstance WHERE FlightInstanceID = ?", flightInstanceId);
+        if (seatsLeft == null) {
+            System.out.println("FlightInstanceID " + flightInstanceId + " not found.");
+            System.out.println("=================================");
+            return;
+        }
+        boolean full = seatsLeft <= 0;
+        boolean waitlistOk = full && askWaitlist();
+        if (full && !waitlistOk) {
+            System.out.println("=================================");
+            return;
+        }
+
+        String[] booked = bookSerializable(esql, shard, customerId, flightInstanceId, waitlistOk);
+        if (booked == null) {
+            // the last seats went to concurrent bookings after the check above
+            if (!askWaitlist()) {
+                System.out.println("=================================");
+                return;
+            }
+            booked = bookSerializable(esql, shard, customerId, flightInstanceId, true);
+        }
+        esql.noteWrite();
+        esql.journal(EventJournal.BOOKING, "reservation=" + booked[0] + " customer=" + customerId +
+                     " flightInstance=" + flightInstanceId + " status=" + booked[1]);
+        if (booked[1].equals("reserved") && esql._snapshot != null) {
+            esql._snapshot.applySeatsSold(flightInstanceId, 1);
+        }
+        if (booked[1].equals("reserved")) {
+            System.out.println("Seat count updated for FlightInstanceID: " + flightInstanceId);
+        }
+        System.out.println("Reservation " + booked[0] + " created with status: " + booked[1]);
+        if (booked[2] != null) {
+            System.out.println("Seat: " + booked[2]);
+        }
+        System.out.println("=================================");
+
+    } catch (IOException e) {
+        System.err.println("Error reading input: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database error during booking transaction: " + e.getMessage());
+        System.out.println("=================================");
+    } catch (Exception e) {
+        System.err.println("An unexpected error occurred: " + e.getMessage());
+    }
+}
+
+/*
+ * Tells the user the flight is full and asks whether to join the waitlist.
+ */
+private static boolean askWaitlist() throws IOException {
+    System.out.println("This flight is currently full.");
+    System.out.print("Would you like to be added to the waitlist? (yes/no): ");
+    if (in.readLine().trim().toLowerCase().equals("yes")) {
+        return true;
+    }
+    System.out.println("Booking cancelled.");
+    return false;
+}
 
-        try {
-            // 1. Check seat availability and get current SeatsSold
-            String checkSeatsQuery = String.format(
-                "SELECT SeatsTotal, SeatsSold FROM FlightInstance WHERE FlightInstanceID = %d FOR UPDATE", // FOR UPDATE locks the row
-                flightInstanceId
-            );
-            List<List<String>> seatInfo = esql.executeQueryAndReturnResult(checkSeatsQuery);
+/*
+ * Books one seat, or a waitlist place when the flight is full and waitlistOk
+ * is set, as a SERIALIZABLE transaction on the shard of the flight.
+ * Concurrent bookings of the same flight are retried by the transaction
+ * runner.  Returns {ReservationID, Status, Seat},
+ * or null when the flight is full and waitlistOk is not set.  Seat is null
+ * for a waitlist place.
+ */
+private static String[] bookSerializable(AirlineManagement esql, int shard, int customerId,
+                                         int flightInstanceId, boolean waitlistOk) throws SQLException {
+    return esql.getShards().run(shard, "FlightInstance " + flightInstanceId, Connection.TRANSACTION_SERIALIZABLE,
+                                bookingWork(esql, shard, customerId, flightInstanceId, waitlistOk));
+}
 
-            if (seatInfo == null || seatInfo.isEmpty()) {
-                System.out.println("FlightInstanceID " + flightInstanceId + " not found.");
-                esql._connection.rollback(); // Rollback transaction
-                System.out.println("=================================");
-                return;
+/*
+ * The booking transaction of bookSerializable, for a runner of any
+ * connection to the shard (the load test runs it on pooled connections).
+ */
+static TransactionRunner.Work<String[]> bookingWork(final AirlineManagement esql, final int shard, final int customerId,
+                                                    final int flightInstanceId, final boolean waitlistOk) {
+    return new TransactionRunner.Work<String[]>() {
+        public String[] run(Connection conn) throws SQLException {
+            // 1. Check seat availability
+            List<int[]> seatRows = esql.executeQueryAndMap(conn,
+                "SELECT SeatsTotal, SeatsSold FROM FlightInstance WHERE FlightInstanceID = ?",
+                new RowMapper<int[]>() {
+                    public int[] map(ResultSet rs) throws SQLException {
+                        return new int[] {rs.getInt(1), rs.getInt(2)};
+                    }
+                }, flightInstanceId);
+            if (seatRows.isEmpty()) {
+                throw new SQLException("FlightInstanceID " + flightInstanceId + " not found.");
             }
-
-            int seatsTotal = Integer.parseInt(seatInfo.get(0).get(0));
-            int seatsSold = Integer.parseInt(seatInfo.get(0).get(1));
+            int[] seats = seatRows.get(0);
             String reservationStatus;
-
-            if ((seatsTotal - seatsSold) > 0) { // Seats available
+            if ((seats[0] - seats[1]) > 0) { // Seats available
                 reservationStatus = "reserved";
-                // Increment SeatsSold
                 String updateSeatsQuery = String.format(
                     "UPDATE FlightInstance SET SeatsSold = SeatsSold + 1 WHERE FlightInstanceID = %d",
                     flightInstanceId
                 );
-                esql.executeUpdate(updateSeatsQuery);
-                System.out.println("Seat count updated for FlightInstanceID: " + flightInstanceId);
-            } else { // No seats available, offer waitlist
-                System.out.println("This flight is currently full.");
-                System.out.print("Would you like to be added to the waitlist? (yes/no): ");
-                String waitlistChoice = in.readLine().trim().toLowerCase();
-                if (waitlistChoice.equals("yes")) {
-                    reservationStatus = "waitlist";
-                } else {
-                    System.out.println("Booking cancelled.");
-                    esql._connection.rollback(); // Rollback transaction
-                    System.out.println("=================================");
-                    return;
-                }
+                esql.executeUpdate(conn, updateSeatsQuery);
+            } else if (waitlistOk) {
+                reservationStatus = "waitlist";
+            } else {
+                return null;
             }
 
-            // 2. Generate new ReservationID (simple MAX+1, vulnerable to race conditions without proper DB sequences)
-            // Example: R0001, R0002. This needs a more robust ID generation in a real system.
-            // For now, let's use a simplified numeric part.
-            String queryMaxResId = "SELECT MAX(CAST(SUBSTRING(ReservationID FROM 2) AS INTEGER)) FROM Reservation WHERE ReservationID LIKE 'R%'";
-            List<List<String>> resIdResult = esql.executeQueryAndReturnResult(queryMaxResId);
-            int nextResNumericId = 1;
-            if (resIdResult != null && !resIdResult.isEmpty() && resIdResult.get(0).get(0) != null) {
-                try {
-                    nextResNumericId = Integer.parseInt(resIdResult.get(0).get(0)) + 1;
-                } catch (NumberFormatException e) { /* use default */ }
-            }
-            String reservationId = "R" + String.format("%04d", nextResNumericId);
+            // 2. Generate new ReservationID (from the sequence on shard 0, unique across shards)
+            String reservationId = esql.getShards().nextReservationIds(conn, shard, 1).get(0);
 
             // 3. Insert into Reservation table
             String insertReservationQuery = String.format(
@@ -1003,29 +2582,112 @@ public class AirlineManagement {
                 "VALUES ('%s', %d, %d, '%s')",
                 reservationId, customerId, flightInstanceId, reservationStatus
             );
-            esql.executeUpdate(insertReservationQuery);
+            esql.executeUpdate(conn, insertReservationQuery);
 
-            esql._connection.commit(); // Commit transaction
-            System.out.println("Reservation " + reservationId + " created with status: " + reservationStatus);
+            // 4. Assign a seat from the flight's seat map (waitlisted reservations get none)
+            String seat = null;
+            if (reservationStatus.equals("reserved")) {
+                List<String> assigned = SeatMap.assign(conn, flightInstanceId, Collections.singletonList(reservationId));
+                seat = assigned == null ? null : assigned.get(0);
+            }
+            return new String[] {reservationId, reservationStatus, seat};
+        }
+    };
+}
 
-        } catch (SQLException e) {
-            esql._connection.rollback(); // Rollback on any SQL error during transaction
-            System.err.println("Database error during booking transaction: " + e.getMessage());
-            // e.printStackTrace();
-        } catch (NumberFormatException e) {
-            esql._connection.rollback();
-            System.err.println("Error parsing seat information or IDs.");
-        } finally {
-            esql._connection.setAutoCommit(true); // Always reset auto-commit
+// Customer Feature
+public static void HoldSeats(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== Hold Seats ==========");
+    if (authorisedUser == null || !authorisedUser.startsWith("CUSTOMER_")) {
+        System.out.println("You must be logged in as a Customer to hold seats.");
+        System.out.println("================================");
+        return;
+    }
+    if (esql._holds == null) {
+        System.out.println("Seat holds are not available.");
+        System.out.println("================================");
+        return;
+    }
+
+    try {
+        int customerId = Integer.parseInt(authorisedUser.substring("CUSTOMER_".length()));
+        System.out.print("Enter the FlightInstanceID to hold seats on: ");
+        int flightInstanceId = Integer.parseInt(in.readLine().trim());
+        System.out.print("Enter the number of seats to hold: ");
+        int seats = Integer.parseInt(in.readLine().trim());
+        if (seats <= 0) {
+            System.out.println("Number of seats must be positive.");
+            System.out.println("================================");
+            return;
         }
-        System.out.println("=================================");
 
+        SeatHolds.Hold hold = esql._holds.hold(customerId, flightInstanceId, seats);
+        esql.noteWrite();
+        if (hold == null) {
+            System.out.println("Fewer than " + seats + " seats are available on FlightInstanceID " + flightInstanceId + ".");
+        } else {
+            esql.journal(EventJournal.HOLD, "hold=" + hold.holdId + " customer=" + customerId +
+                         " flightInstance=" + flightInstanceId + " seats=" + seats);
+            if (esql._snapshot != null) {
+                esql._snapshot.applySeatsSold(flightInstanceId, seats);
+            }
+            System.out.println("Hold " + hold.holdId + ": " + seats + " seats on FlightInstanceID " + flightInstanceId +
+                               " for " + (hold.seconds / 60) + " minutes. Confirm it with option 11.");
+        }
+        System.out.println("================================");
+
+    } catch (NumberFormatException e) {
+        System.out.println("Invalid number. Please enter digits only.");
+        System.out.println("================================");
     } catch (IOException e) {
         System.err.println("Error reading input: " + e.getMessage());
-    } catch (SQLException e) { // For the setAutoCommit calls outside the transaction block
-        System.err.println("Database error setting auto-commit: " + e.getMessage());
-    } catch (Exception e) {
-        System.err.println("An unexpected error occurred: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database error: " + e.getMessage());
+        System.out.println("================================");
+    }
+}
+
+// Customer Feature
+public static void ConfirmHeldSeats(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== Confirm Held Seats ==========");
+    if (authorisedUser == null || !authorisedUser.startsWith("CUSTOMER_")) {
+        System.out.println("You must be logged in as a Customer to confirm holds.");
+        System.out.println("========================================");
+        return;
+    }
+    if (esql._holds == null) {
+        System.out.println("Seat holds are not available.");
+        System.out.println("========================================");
+        return;
+    }
+
+    try {
+        int customerId = Integer.parseInt(authorisedUser.substring("CUSTOMER_".length()));
+        System.out.print("Enter the HoldID to confirm: ");
+        int holdId = Integer.parseInt(in.readLine().trim());
+
+        List<String> reservations = esql._holds.confirm(customerId, holdId);
+        esql.noteWrite();
+        if (reservations == null) {
+            System.out.println("Hold " + holdId + " was not found or has expired.");
+        } else {
+            esql.journal(EventJournal.HOLD_CONFIRMED, "hold=" + holdId + " customer=" + customerId +
+                         " reservations=" + String.join(",", reservations));
+            System.out.println("Reservations created with status reserved: " + String.join(", ", reservations));
+            esql.executeQueryAndPrintResult(String.format(
+                "SELECT ReservationID, Seat FROM SeatAssignment WHERE ReservationID IN ('%s') ORDER BY Seat",
+                String.join("', '", reservations)));
+        }
+        System.out.println("========================================");
+
+    } catch (NumberFormatException e) {
+        System.out.println("Invalid HoldID. Please enter a number.");
+        System.out.println("========================================");
+    } catch (IOException e) {
+        System.err.println("Error reading input: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database error: " + e.getMessage());
+        System.out.println("========================================");
     }
 }
 
@@ -1052,13 +2714,13 @@ public static void ViewMyReservations(AirlineManagement esql, String authorisedU
     try {
         String query = String.format(
             "SELECT R.ReservationID, R.Status, FI.FlightNumber, F.DepartureCity, F.ArrivalCity, FI.FlightDate, " +
-            "S.DepartureTime, S.ArrivalTime, FI.TicketCost " +
+            "S.DepartureTime, S.ArrivalTime, FI.TicketCost, SA.Seat " +
             "FROM Reservation R " +
             "INNER JOIN FlightInstance FI ON R.FlightInstanceID = FI.FlightInstanceID " +
             "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
             "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
-            "WHERE R.CustomerID = %d AND R.Status IN ('reserved', 'waitlist') " +
-            "ORDER BY FI.FlightDate, S.DepartureTime",
+            "LEFT JOIN SeatAssignment SA ON R.ReservationID = SA.ReservationID " +
+            "WHERE R.CustomerID = %d AND R.Status IN ('reserved', 'waitlist')",
             customerId
         );
         
@@ -1077,7 +2739,8 @@ public static void ViewMyReservations(AirlineManagement esql, String authorisedU
         */
 
         System.out.println("\n--- Your Active and Waitlisted Reservations ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintPagedAcrossShards(query,
+            new String[] {"FI.FlightDate", "S.DepartureTime", "R.ReservationID"}, new int[] {6, 7, 1}, false);
 
         if (rowCount == 0) {
             System.out.println("You have no current (reserved or waitlisted) reservations.");
@@ -1132,7 +2795,7 @@ public static void ViewPilotAssignedFlights(AirlineManagement esql, String autho
         
         System.out.println("\n--- All Flights Scheduled for " + flightDateStr + " ---");
         System.out.println("(Note: This view shows all operational flights. Specific pilot assignments are not tracked in the current system.)");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintResultAcrossShards(query, new int[] {7, 2}, false, 0);
 
         if (rowCount == 0) {
             System.out.println("No flights found scheduled for " + flightDateStr + ".");
@@ -1170,16 +2833,7 @@ public static void ViewFlightManifest(AirlineManagement esql, String authorisedU
             return;
         }
 
-        // Query to get passenger list for the given FlightInstanceID
-        // Shows customers who are 'reserved' or have 'flown' (in case manifest is checked post-flight)
-        String query = String.format(
-            "SELECT C.CustomerID, C.FirstName, C.LastName, R.Status " +
-            "FROM Reservation R " +
-            "INNER JOIN Customer C ON R.CustomerID = C.CustomerID " +
-            "WHERE R.FlightInstanceID = %d AND R.Status IN ('reserved', 'flown') " +
-            "ORDER BY C.LastName, C.FirstName",
-            flightInstanceId
-        );
+        String query = manifestQuery(flightInstanceId);
 
         /* // --- PreparedStatement Example ---
         String queryPS = "SELECT C.CustomerID, C.FirstName, C.LastName, R.Status " +
@@ -1192,7 +2846,8 @@ public static void ViewFlightManifest(AirlineManagement esql, String authorisedU
         */
 
         System.out.println("\n--- Passenger Manifest for FlightInstanceID: " + flightInstanceId + " ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int shard = esql.getShards().shardOfInstance(flightInstanceId);
+        int rowCount = shard < 0 ? 0 : esql.executeQueryAndPrintResultOnShard(shard, query);
 
         if (rowCount == 0) {
             System.out.println("No passengers (reserved or flown) found for this flight instance, or FlightInstanceID is invalid.");
@@ -1208,6 +2863,23 @@ public static void ViewFlightManifest(AirlineManagement esql, String authorisedU
     }
 }
 
+/*
+ * Query to get passenger list for the given FlightInstanceID.
+ * Shows customers who are 'reserved' or have 'flown' (in case manifest is checked post-flight),
+ * with their seat; reservations made before seat maps existed have none.
+ */
+static String manifestQuery(int flightInstanceId) {
+    return String.format(
+        "SELECT C.CustomerID, C.FirstName, C.LastName, R.Status, SA.Seat " +
+        "FROM Reservation R " +
+        "INNER JOIN Customer C ON R.CustomerID = C.CustomerID " +
+        "LEFT JOIN SeatAssignment SA ON R.ReservationID = SA.ReservationID " +
+        "WHERE R.FlightInstanceID = %d AND R.Status IN ('reserved', 'flown') " +
+        "ORDER BY C.LastName, C.FirstName",
+        flightInstanceId
+    );
+}
+
 // Pilot Feature
 public static void SubmitMaintenanceRequest(AirlineManagement esql, String authorisedUser) {
     System.out.println("========== Submit Maintenance Request ==========");
@@ -1220,9 +2892,17 @@ public static void SubmitMaintenanceRequest(AirlineManagement esql, String autho
 
     try {
         System.out.println("\n--- Available Planes ---");
-        esql.executeQueryAndPrintResult("SELECT PlaneID, Make, Model FROM Plane ORDER BY PlaneID");
+        System.out.println("planeid\tmake\tmodel\t");
+        for (List<String> plane : esql.getReferenceCache().planes()) {
+            System.out.println(plane.get(0) + "\t" + plane.get(1) + "\t" + plane.get(2) + "\t");
+        }
         System.out.print("\nEnter Plane ID for the maintenance request (e.g., PL001): ");
         String planeId = in.readLine().trim().toUpperCase();
+        if (!planeId.isEmpty() && !esql.getReferenceCache().isKnownPlane(planeId)) {
+            System.out.println("Unknown Plane ID: " + planeId);
+            System.out.println("============================================");
+            return;
+        }
 
         // Simple list of repair codes, can be expanded or read from a table if desired
         System.out.println("\n--- Common Repair Codes ---");
@@ -1243,6 +2923,14 @@ public static void SubmitMaintenanceRequest(AirlineManagement esql, String autho
             return;
         }
 
+        // repair codes are letters and digits, e.g. RC001; the bound values below must hold no quote,
+        // which the 7.3 driver would escape as \'
+        if (!repairCode.matches("[A-Z0-9]+")) {
+            System.out.println("Invalid Repair Code. Use letters and digits only, e.g. RC001.");
+            System.out.println("============================================");
+            return;
+        }
+
         String requestDate;
         if (requestDateStr.isEmpty()) {
             requestDate = java.time.LocalDate.now().toString(); // Defaults to today
@@ -1254,26 +2942,32 @@ public static void SubmitMaintenanceRequest(AirlineManagement esql, String autho
             }
             requestDate = requestDateStr;
         }
-
-        // Generate new RequestID (MAX + 1)
-        String queryMaxId = "SELECT MAX(RequestID) FROM MaintenanceRequest";
-        List<List<String>> result = esql.executeQueryAndReturnResult(queryMaxId);
-        int nextRequestId = 1;
-        if (result != null && !result.isEmpty() && result.get(0).get(0) != null) {
-            try {
-                nextRequestId = Integer.parseInt(result.get(0).get(0)) + 1;
-            } catch (NumberFormatException e) { /* ignore, use default */ }
+        final java.sql.Date requestSqlDate;
+        try {
+            requestSqlDate = java.sql.Date.valueOf(requestDate);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid date. Please use YYYY-MM-DD or leave blank.");
+            System.out.println("============================================");
+            return;
         }
 
-        String safePlaneId = planeId.replace("'", "''");
-        String safeRepairCode = repairCode.replace("'", "''");
-        String safePilotId = pilotId.replace("'", "''");
-
-        String insertQuery = String.format(
-            "INSERT INTO MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID) " +
-            "VALUES (%d, '%s', '%s', '%s', '%s')",
-            nextRequestId, safePlaneId, safeRepairCode, requestDate, safePilotId
-        );
+        final String boundPlaneId = planeId;
+        final String boundRepairCode = repairCode;
+
+        // RequestID generation (MAX + 1) and insert in one transaction; a duplicate id is retried
+        int nextRequestId = esql.getTransactionRunner().run("Plane " + planeId, Connection.TRANSACTION_SERIALIZABLE,
+                                                            new TransactionRunner.Work<Integer>() {
+            public Integer run(Connection conn) throws SQLException {
+                Integer maxRequestId = esql.executeQueryForInt(conn, "SELECT MAX(RequestID) FROM MaintenanceRequest");
+                int nextRequestId = maxRequestId == null ? 1 : maxRequestId + 1;
+
+                esql.executeUpdate(conn,
+                    "INSERT INTO MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID) " +
+                    "VALUES (?, ?, ?, ?, ?)",
+                    nextRequestId, boundPlaneId, boundRepairCode, requestSqlDate, pilotId);
+                return nextRequestId;
+            }
+        });
 
         /* // --- PreparedStatement Example ---
         String insertQueryPS = "INSERT INTO MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID) VALUES (?, ?, ?, ?, ?)";
@@ -1286,8 +2980,11 @@ public static void SubmitMaintenanceRequest(AirlineManagement esql, String autho
         pstmt.executeUpdate();
         pstmt.close();
         */
-        
-        esql.executeUpdate(insertQuery);
+
+        esql.getRepairAnalytics().recordRequest(nextRequestId, planeId, repairCode, requestDate);
+        esql.getWorkQueue().requestsChanged(Collections.singletonList(nextRequestId));
+        esql.journal(EventJournal.MAINTENANCE_REQUEST, "request=" + nextRequestId + " plane=" + planeId +
+                     " repairCode=" + repairCode + " date=" + requestDate + " pilot=" + pilotId);
         System.out.println("Maintenance Request submitted successfully with RequestID: " + nextRequestId);
         System.out.println("============================================");
 
@@ -1300,44 +2997,202 @@ public static void SubmitMaintenanceRequest(AirlineManagement esql, String autho
     }
 }
 
+// Pilot Feature
+public static void SubmitMaintenanceRequestsFromCsv(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== Submit Maintenance Requests (CSV) ==========");
+    if (authorisedUser == null || !authorisedUser.startsWith("PILOT_")) {
+        System.out.println("Access Denied. Only pilots can submit maintenance requests.");
+        System.out.println("=======================================================");
+        return;
+    }
+    String pilotId = authorisedUser.substring("PILOT_".length());
+
+    try {
+        System.out.println("The file must use the MaintenanceRequest.csv layout: RequestID,PlaneID,RepairCode,RequestDate,PilotID");
+        System.out.println("(RequestIDs are assigned on submission and all requests are filed under " + pilotId + ".)");
+        System.out.print("Enter path of the CSV file: ");
+        String path = in.readLine().trim();
+
+        if (path.isEmpty()) {
+            System.out.println("File path cannot be empty.");
+            System.out.println("=======================================================");
+            return;
+        }
+
+        MaintenanceRequests.BatchResult result =
+            MaintenanceRequests.submitCsv(esql.getConnection(), esql.getReferenceCache(), pilotId, path,
+                                          esql.getRepairAnalytics());
+        esql.noteWrite();
+        esql.getWorkQueue().requestsChanged(result.submitted);
+        for (String failed : result.failed) {
+            System.out.println("Not submitted: " + failed);
+        }
+        if (result.submitted.isEmpty()) {
+            System.out.println("No maintenance requests were submitted.");
+        } else {
+            esql.journal(EventJournal.MAINTENANCE_REQUEST, "requests=" + result.submitted.get(0) + ".." +
+                         result.submitted.get(result.submitted.size() - 1) + " count=" + result.submitted.size() +
+                         " pilot=" + pilotId + " source=" + path);
+            System.out.println(result.submitted.size() + " maintenance requests submitted (RequestID " +
+                               result.submitted.get(0) + " to " + result.submitted.get(result.submitted.size() - 1) + ").");
+        }
+        System.out.println("=======================================================");
+
+    } catch (IOException e) {
+        System.err.println("Error reading file: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database error: " + e.getMessage());
+    } catch (Exception e) {
+        System.err.println("An unexpected error occurred: " + e.getMessage());
+    }
+}
+
+// Agent Feature
+public static void FindCustomerByName(AirlineManagement esql) {
+    System.out.println("========== Find Customer by Name ==========");
+    try {
+        System.out.print("Enter Last Name prefix (or ~name for a fuzzy match): ");
+        String lastName = in.readLine().trim();
+        if (lastName.startsWith("~")) {
+            String misspelt = lastName.substring(1).trim();
+            CustomerNameIndex index = esql.getCustomerIndex();
+            if (misspelt.isEmpty() || index == null) {
+                System.out.println(misspelt.isEmpty() ? "Last name cannot be empty." : "Fuzzy search is not available.");
+                System.out.println("===========================================");
+                return;
+            }
+            System.out.println("\n--- Customers with a Last Name like " + misspelt + " ---");
+            if (printCustomers(index.fuzzy(misspelt, PAGE_SIZE)) == 0) {
+                System.out.println("No similar last names found.");
+            }
+            System.out.println("===========================================");
+            return;
+        }
+        System.out.print("Enter First Name prefix (blank for any): ");
+        String firstName = in.readLine().trim();
+        if (lastName.isEmpty() && firstName.isEmpty()) {
+            System.out.println("Enter at least one name prefix.");
+            System.out.println("===========================================");
+            return;
+        }
+
+        System.out.println("\n--- Matching Customers ---");
+        int rowCount = 0;
+        CustomerNameIndex index = esql.getCustomerIndex();
+        if (index != null) {
+            // keyset paging over the in-memory index
+            CustomerNameIndex.Match last = null;
+            while (true) {
+                List<CustomerNameIndex.Match> page = index.prefix(lastName, firstName, last, PAGE_SIZE + 1);
+                boolean morePages = page.size() > PAGE_SIZE;
+                if (morePages) {
+                    page = page.subList(0, PAGE_SIZE);
+                }
+                if (rowCount == 0) {
+                    rowCount += printCustomers(page);
+                } else {
+                    for (CustomerNameIndex.Match m : page) {
+                        System.out.println(m.customerId + "\t" + m.firstName + "\t" + m.lastName + "\t");
+                    }
+                    rowCount += page.size();
+                }
+                if (!morePages) {
+                    break;
+                }
+                last = page.get(page.size() - 1);
+                System.out.print("-- Press Enter for the next page, or q to stop: ");
+                String answer = in.readLine();
+                if (answer == null || answer.trim().equalsIgnoreCase("q")) {
+                    break;
+                }
+            }
+        } else {
+            // case-sensitive prefix match on idx_customer_name_combo
+            String query = String.format(
+                "SELECT CustomerID, FirstName, LastName FROM Customer " +
+                "WHERE LastName LIKE '%s%%' AND FirstName LIKE '%s%%'",
+                escapeLike(lastName), escapeLike(firstName)
+            );
+            rowCount = esql.executeQueryAndPrintPaged(query,
+                new String[] {"LastName", "FirstName", "CustomerID"}, new int[] {3, 2, 1}, false);
+        }
+
+        if (rowCount == 0) {
+            System.out.println("No customers found with that name.");
+        }
+        System.out.println("===========================================");
+
+    } catch (IOException e) {
+        System.err.println("Error reading input: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database query error: " + e.getMessage());
+    }
+}
+
+/*
+ * Prints customer matches in the executeQueryAndPrintResult layout.
+ */
+private static int printCustomers(List<CustomerNameIndex.Match> matches) {
+    List<String[]> rows = new ArrayList<String[]>();
+    for (CustomerNameIndex.Match m : matches) {
+        rows.add(new String[] {String.valueOf(m.customerId), m.firstName, m.lastName});
+    }
+    return printRows(new String[] {"customerid", "firstname", "lastname"}, rows);
+}
+
+/*
+ * Quotes a string for use inside a LIKE pattern literal.
+ */
+private static String escapeLike(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_").replace("'", "''");
+}
+
 // Pilot Feature (can also be used by Technicians if menu structure allows)
 public static void ViewPlaneMaintenanceHistoryForPilot(AirlineManagement esql) {
-    System.out.println("========== View Plane Maintenance & Repair History ==========");
+    System.out.println("========== View Plane Maintenance History ==========");
     try {
         System.out.print("Enter Plane ID to view its history (e.g., PL001): ");
         String planeId = in.readLine().trim().toUpperCase();
 
         if (planeId.isEmpty()) {
             System.out.println("Plane ID cannot be empty.");
-            System.out.println("========================================================");
+            System.out.println("========================================");
             return;
         }
-        String safePlaneId = planeId.replace("'", "''");
 
-        System.out.println("\n--- Maintenance Requests for Plane " + planeId + " ---");
-        String requestsQuery = String.format(
-            "SELECT MR.RequestID, MR.RepairCode, MR.RequestDate, MR.PilotID, P.Name AS PilotName " +
-            "FROM MaintenanceRequest MR INNER JOIN Pilot P ON MR.PilotID = P.PilotID " +
-            "WHERE MR.PlaneID = '%s' ORDER BY MR.RequestDate DESC",
-            safePlaneId
-        );
-        int requestCount = esql.executeQueryAndPrintResult(requestsQuery);
-        if (requestCount == 0) {
-            System.out.println("No maintenance requests found for this plane.");
+        // Plane row, requests, repairs and upcoming flights are fetched concurrently
+        PlaneDossier dossier = loadDossierPage(esql, null, planeId);
+        if (dossier.plane == null) {
+            System.out.println("No plane found with Plane ID: " + planeId);
+            System.out.println("========================================");
+            return;
         }
 
-        System.out.println("\n--- Repair History for Plane " + planeId + " ---");
-        String repairsQuery = String.format(
-            "SELECT R.RepairID, R.RepairCode, R.RepairDate, R.TechnicianID, T.Name AS TechnicianName " +
-            "FROM Repair R INNER JOIN Technician T ON R.TechnicianID = T.TechnicianID " +
-            "WHERE R.PlaneID = '%s' ORDER BY R.RepairDate DESC",
-            safePlaneId
-        );
-        int repairCount = esql.executeQueryAndPrintResult(repairsQuery);
-        if (repairCount == 0) {
-            System.out.println("No repair history found for this plane.");
+        System.out.println("\n--- Plane " + dossier.plane.get(0) + " ---");
+        System.out.println("Make: " + dossier.plane.get(1) + "\tModel: " + dossier.plane.get(2) +
+                           "\tYear: " + dossier.plane.get(3) + "\tLast Repair: " + dossier.plane.get(4));
+
+        System.out.println("\n--- Timeline (newest first) ---");
+        if (dossier.timeline.isEmpty()) {
+            System.out.println("No requests, repairs or upcoming flights found for this plane.");
+        } else {
+            System.out.println("Date\tType\tReference\tCode\tDetail");
+            while (true) {
+                for (PlaneDossier.Event e : dossier.timeline) {
+                    System.out.println(e.date + "\t" + e.kind + "\t" + e.reference + "\t" + e.code + "\t" + e.detail);
+                }
+                if (!dossier.more) {
+                    break;
+                }
+                System.out.print("-- Press Enter for the next page, or q to stop: ");
+                String answer = in.readLine();
+                if (answer == null || answer.trim().equalsIgnoreCase("q")) {
+                    break;
+                }
+                dossier = loadDossierPage(esql, dossier, planeId);
+            }
         }
-        System.out.println("========================================================");
+        System.out.println("========================================");
 
     } catch (IOException e) {
         System.err.println("Error reading input: " + e.getMessage());
@@ -1348,23 +3203,49 @@ public static void ViewPlaneMaintenanceHistoryForPilot(AirlineManagement esql) {
     }
 }
 
+/*
+ * Loads the first page of a plane's dossier, or the page after previous,
+ * from the read pool, once more on the primary if the replica failed.
+ */
+private static PlaneDossier loadDossierPage(AirlineManagement esql, PlaneDossier previous, String planeId)
+        throws SQLException {
+    ConnectionPool pool = esql.getReadPool();
+    try {
+        return previous == null ? PlaneDossier.load(esql.getHistoryThreads(), pool, esql.getQueryGuard(), planeId, PAGE_SIZE)
+                                : previous.next(esql.getHistoryThreads(), pool, esql.getQueryGuard());
+    } catch (SQLException e) {
+        if (!esql.readFailedOver(pool, e))
+            throw e;
+        pool = esql.getReadPool();
+        return previous == null ? PlaneDossier.load(esql.getHistoryThreads(), pool, esql.getQueryGuard(), planeId, PAGE_SIZE)
+                                : previous.next(esql.getHistoryThreads(), pool, esql.getQueryGuard());
+    }
+}
 
 // New Technician Functions
-public static void ViewOpenMaintenanceRequests(AirlineManagement esql) {
-    System.out.println("========== View Open/All Maintenance Requests ==========");
+public static void ViewOpenMaintenanceRequests(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== View Open Maintenance Requests ==========");
     try {
-        String query = "SELECT MR.RequestID, MR.PlaneID, P.Make, P.Model, MR.RepairCode, MR.RequestDate, MR.PilotID, PI.Name AS PilotName " +
-                       "FROM MaintenanceRequest MR " +
-                       "INNER JOIN Plane P ON MR.PlaneID = P.PlaneID " +
-                       "INNER JOIN Pilot PI ON MR.PilotID = PI.PilotID " +
-                       "ORDER BY MR.RequestDate DESC, MR.RequestID";
-        
-        System.out.println("\n--- All Logged Maintenance Requests ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        // ranked by the next departure of the plane, kept up to date by the work queue
+        WorkQueue queue = esql.getWorkQueue();
+        List<WorkQueue.Job> jobs = queue.queue(WORK_QUEUE_LIMIT);
 
-        if (rowCount == 0) {
-            System.out.println("No maintenance requests found in the system.");
+        System.out.println("\n--- Unassigned Requests, Most Urgent First (" + jobs.size() + " of " + queue.size() + ") ---");
+        if (jobs.isEmpty()) {
+            System.out.println("No unassigned open maintenance requests.");
+        } else {
+            printJobs(jobs);
         }
+
+        if (authorisedUser != null && authorisedUser.startsWith("TECHNICIAN_")) {
+            List<WorkQueue.Job> mine = queue.claimedBy(authorisedUser.substring("TECHNICIAN_".length()));
+            System.out.println("\n--- Requests Assigned to You ---");
+            if (mine.isEmpty()) {
+                System.out.println("None. Use option 7 to take the next request.");
+            } else {
+                printJobs(mine);
+            }
+        }//end if
         System.out.println("====================================================");
 
     } catch (SQLException e) {
@@ -1374,6 +3255,50 @@ public static void ViewOpenMaintenanceRequests(AirlineManagement esql) {
     }
 }
 
+public static void TakeNextMaintenanceRequest(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== Take Next Maintenance Request ==========");
+    if (authorisedUser == null || !authorisedUser.startsWith("TECHNICIAN_")) {
+        System.out.println("Access Denied. Only technicians can take maintenance requests.");
+        System.out.println("===================================================");
+        return;
+    }
+    String technicianId = authorisedUser.substring("TECHNICIAN_".length());
+
+    try {
+        WorkQueue.Job job = esql.getWorkQueue().claimNext(technicianId);
+        esql.noteWrite();
+        if (job == null) {
+            System.out.println("No unassigned open maintenance requests.");
+        } else {
+            esql.journal(EventJournal.WORK_ASSIGNED, "request=" + job.requestId + " plane=" + job.planeId +
+                         " technician=" + technicianId);
+            System.out.println("Maintenance Request " + job.requestId + " is now assigned to you:");
+            printJobs(Collections.singletonList(job));
+            System.out.println("Log the repair with option 2 when the work is done.");
+        }
+        System.out.println("===================================================");
+
+    } catch (SQLException e) {
+        System.err.println("Database error: " + e.getMessage());
+    } catch (Exception e) {
+        System.err.println("An unexpected error occurred: " + e.getMessage());
+    }
+}
+
+/*
+ * Prints work queue entries in the layout of executeQueryAndPrintResult.
+ */
+private static void printJobs(List<WorkQueue.Job> jobs) {
+    List<String[]> rows = new ArrayList<String[]>();
+    for (WorkQueue.Job job : jobs) {
+        rows.add(new String[] {String.valueOf(job.requestId), job.planeId, job.repairCode,
+                               String.valueOf(job.requestDate),
+                               job.departure == null ? "none scheduled" : job.departure.toString(),
+                               job.technicianId == null ? "" : job.technicianId});
+    }
+    printRows(new String[] {"requestid", "planeid", "repaircode", "requestdate", "nextdeparture", "technicianid"}, rows);
+}
+
 public static void LogCompletedRepair(AirlineManagement esql, String authorisedUser) {
     System.out.println("========== Log a Completed Repair ==========");
     try {
@@ -1413,52 +3338,30 @@ public static void LogCompletedRepair(AirlineManagement esql, String authorisedU
             }
             repairDate = repairDateStr;
         }
-        
-        // Generate new RepairID (MAX + 1)
-        String queryMaxId = "SELECT MAX(RepairID) FROM Repair";
-        List<List<String>> result = esql.executeQueryAndReturnResult(queryMaxId);
-        int nextRepairId = 1;
-        if (result != null && !result.isEmpty() && result.get(0).get(0) != null) {
-            try {
-                nextRepairId = Integer.parseInt(result.get(0).get(0)) + 1;
-            } catch (NumberFormatException e) { /* ignore, use default */ }
-        }
-
-        // Basic escaping
-        String safePlaneId = planeId.replace("'", "''");
-        String safeRepairCode = repairCode.replace("'", "''");
-        String safeTechnicianId = technicianId.replace("'", "''");
-
 
-        String insertQuery = String.format(
-            "INSERT INTO Repair (RepairID, PlaneID, RepairCode, RepairDate, TechnicianID) " +
-            "VALUES (%d, '%s', '%s', '%s', '%s')",
-            nextRepairId, safePlaneId, safeRepairCode, repairDate, safeTechnicianId
-        );
-        
-        esql.executeUpdate(insertQuery);
+        // RepairID generation, Repair insert and Plane.LastRepairDate update in one transaction
+        int nextRepairId = RepairLog.logRepair(esql.getTransactionRunner(), planeId, repairCode, repairDate, technicianId,
+                                             esql.getRepairAnalytics());
+        esql.noteWrite();
+        esql.getWorkQueue().repairsLogged(Collections.singletonList(nextRepairId));
+        esql.journal(EventJournal.REPAIR, "repair=" + nextRepairId + " plane=" + planeId + " repairCode=" + repairCode +
+                     " date=" + repairDate + " technician=" + technicianId);
         System.out.println("Repair logged successfully with RepairID: " + nextRepairId);
+        System.out.println("Plane " + planeId + " LastRepairDate is now at least " + repairDate);
 
         if (!requestIdStr.isEmpty()) {
             try {
                 int reqId = Integer.parseInt(requestIdStr);
-                // To truly mark as "closed", you'd need a status column.
-                // For now, we could just note that a repair potentially linked to it was made.
-                // Or, if MaintenanceRequest had a 'ResolvedByRepairID' FK column:
-                // String updateMaintenanceQuery = String.format("UPDATE MaintenanceRequest SET ResolvedByRepairID = %d WHERE RequestID = %d", nextRepairId, reqId);
-                // esql.executeUpdate(updateMaintenanceQuery);
-                // System.out.println("Maintenance Request " + reqId + " potentially addressed.");
-                System.out.println("(Note: To explicitly close Maintenance Request " + reqId + ", schema update for status is recommended.)");
+                // a request is closed by a repair of the same plane and code dated on or after it
+                if (esql.getWorkQueue().isOpen(reqId)) {
+                    System.out.println("Maintenance Request " + reqId + " is still open (its plane, repair code or date does not match this repair).");
+                } else {
+                    System.out.println("Maintenance Request " + reqId + " is closed.");
+                }
             } catch (NumberFormatException e) {
                 System.out.println("Invalid Maintenance Request ID format entered: " + requestIdStr);
             }
         }
-        // Also, update Plane.LastRepairDate
-        String updatePlaneQuery = String.format("UPDATE Plane SET LastRepairDate = '%s' WHERE PlaneID = '%s'", repairDate, safePlaneId);
-        esql.executeUpdate(updatePlaneQuery);
-        System.out.println("Plane " + planeId + " LastRepairDate updated to " + repairDate);
-
-
         System.out.println("==========================================");
 
     } catch (IOException e) {
@@ -1470,6 +3373,88 @@ public static void LogCompletedRepair(AirlineManagement esql, String authorisedU
     }
 }
 
+public static void ImportRepairsFromCsv(AirlineManagement esql, String authorisedUser) {
+    System.out.println("========== Import Completed Repairs (CSV) ==========");
+    try {
+        if (authorisedUser == null || !authorisedUser.startsWith("TECHNICIAN_")) {
+            System.out.println("Access Denied. Only technicians can import repairs.");
+            System.out.println("====================================================");
+            return;
+        }
+
+        System.out.println("The file must use the Repair.csv layout: RepairID,PlaneID,RepairCode,RepairDate,TechnicianID");
+        System.out.println("(RepairIDs in the file are ignored; new IDs are assigned on import.)");
+        System.out.print("Enter path of the CSV file: ");
+        String path = in.readLine().trim();
+
+        if (path.isEmpty()) {
+            System.out.println("File path cannot be empty.");
+            System.out.println("====================================================");
+            return;
+        }
+
+        RepairLog.ImportResult result = RepairLog.importCsv(esql.getConnection(), path, esql.getRepairAnalytics());
+        esql.noteWrite();
+        List<Integer> imported = new ArrayList<Integer>();
+        for (int repairId = result.firstRepairId; result.imported > 0 && repairId <= result.lastRepairId; ++repairId) {
+            imported.add(repairId);
+        }
+        esql.getWorkQueue().repairsLogged(imported);
+        for (String rejected : result.rejected) {
+            System.out.println("Skipped " + rejected);
+        }
+        if (result.imported == 0) {
+            System.out.println("No repairs were imported.");
+        } else {
+            esql.journal(EventJournal.REPAIR, "repairs=" + result.firstRepairId + ".." + result.lastRepairId +
+                         " count=" + result.imported + " source=" + path);
+            System.out.println("Imported " + result.imported + " repairs (RepairID " + result.firstRepairId +
+                               " to " + result.lastRepairId + "), LastRepairDate updated on " +
+                               result.planesUpdated + " planes.");
+        }
+        System.out.println("====================================================");
+
+    } catch (IOException e) {
+        System.err.println("Error reading file: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database error, import rolled back: " + e.getMessage());
+    } catch (Exception e) {
+        System.err.println("An unexpected error occurred: " + e.getMessage());
+    }
+}
+
+public static void ViewRecurringFaults(AirlineManagement esql) {
+    System.out.println("========== Planes with Recurring Faults ==========");
+    try {
+        System.out.print("Enter Plane ID (leave blank for all planes): ");
+        String planeId = in.readLine().trim().toUpperCase();
+
+        RepairAnalytics analytics = esql.getRepairAnalytics();
+        List<RepairAnalytics.Offender> offenders =
+            planeId.isEmpty() ? analytics.repeatOffenders() : analytics.repeatOffenders(planeId);
+        String windowEnd = analytics.windowEnd();
+
+        System.out.println("\n--- Repair codes with " + RepairAnalytics.REPEAT_THRESHOLD + "+ faults in the " +
+                           RepairAnalytics.WINDOW_DAYS + " days up to " + windowEnd + " ---");
+        if (offenders.isEmpty()) {
+            System.out.println("No recurring faults found" + (planeId.isEmpty() ? "." : " for Plane ID: " + planeId));
+        } else {
+            System.out.println("planeid\trepaircode\tfaults\t");
+            for (RepairAnalytics.Offender o : offenders) {
+                System.out.println(o.planeId + "\t" + o.repairCode + "\t" + o.count + "\t");
+            }
+        }
+        System.out.println("==================================================");
+
+    } catch (IOException e) {
+        System.err.println("Error reading input: " + e.getMessage());
+    } catch (SQLException e) {
+        System.err.println("Database query error: " + e.getMessage());
+    } catch (Exception e) {
+        System.err.println("An unexpected error occurred: " + e.getMessage());
+    }
+}
+
 public static void ViewPlaneRepairHistoryForTechnician(AirlineManagement esql) {
     System.out.println("========== View Repair History for a Plane ==========");
     try {
@@ -1486,8 +3471,7 @@ public static void ViewPlaneRepairHistoryForTechnician(AirlineManagement esql) {
         String query = String.format(
             "SELECT R.RepairID, R.RepairCode, R.RepairDate, R.TechnicianID, T.Name AS TechnicianName " +
             "FROM Repair R INNER JOIN Technician T ON R.TechnicianID = T.TechnicianID " +
-            "WHERE R.PlaneID = '%s' " +
-            "ORDER BY R.RepairDate DESC, R.RepairID DESC",
+            "WHERE R.PlaneID = '%s'",
             safePlaneId
         );
         
@@ -1501,7 +3485,8 @@ public static void ViewPlaneRepairHistoryForTechnician(AirlineManagement esql) {
         */
 
         System.out.println("\n--- Repair History for Plane " + planeId + " ---");
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        int rowCount = esql.executeQueryAndPrintPaged(query,
+            new String[] {"R.RepairDate", "R.RepairID"}, new int[] {3, 1}, true);
 
         if (rowCount == 0) {
             System.out.println("No repair history found for Plane ID: " + planeId);
@@ -0,0 +1,417 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the row changes recorded by the ChangeLog triggers
+ * (sql/src/create_triggers.sql) to in-process listeners, so caches can drop
+ * or refresh exactly the rows that changed.
+ *
+ * A background thread polls ChangeLog past the last delivered ChangeID and
+ * hands each batch, in ChangeID order, to every listener.  The cursor is
+ * persisted to a file after each batch.
+ *
+ * ChangeIDs come from a sequence, so a transaction that is still open can
+ * leave a hole below ids that are already visible.  Delivery does not wait
+ * for it: the missing ids are remembered together with the end of the
+ * transaction snapshot (txid_snapshot_xmax) at the time, and looked up
+ * again on every poll.  A change that fills a hole later is delivered in a
+ * later batch, after changes with higher ids.  Once every transaction of
+ * that snapshot has ended (txid_snapshot_xmin is past the recorded xmax), a
+ * hole that is still empty belonged to a rollback and is forgotten.  The
+ * writer of a hole always has a txid below that xmax, because the triggers
+ * run after the audited row was written, which assigns the txid.
+ *
+ * Rows older than RETENTION_DAYS are pruned every PRUNE_MILLIS; the newest
+ * row is always kept so the end of the log stays known.
+ *
+ * With sharding every shard has its own ChangeLog.  The pollers of shards
+ * 1..N-1 follow the poller of shard 0: they are drained on its thread after
+ * it, so listeners are never called concurrently.
+ *
+ */
+public class ChangeLogPoller {
+
+   /**
+    * One row-level change.
+    */
+   public static class ChangeEvent {
+      public final long changeId;
+      public final String table;       // lower case table name, e.g. flightinstance
+      public final String rowKey;      // primary key of the changed row, as text
+      public final char operation;     // 'I', 'U' or 'D'
+      public final Set<String> changedColumns;  // lower case columns an update changed, or null when unknown
+
+      public ChangeEvent(long changeId, String table, String rowKey, char operation, Set<String> changedColumns) {
+         this.changeId = changeId;
+         this.table = table;
+         this.rowKey = rowKey;
+         this.operation = operation;
+         this.changedColumns = changedColumns;
+      }
+
+      /**
+       * Tells whether the change may have touched some columns: true for
+       * inserts, deletes and updates whose changed columns are unknown.
+       *
+       * @param columns the lower case column names
+       * @return false only for an update that left all of them alone
+       */
+      public boolean changedAny(String... columns) {
+         if (operation != 'U' || changedColumns == null)
+            return true;
+         for (String column : columns) {
+            if (changedColumns.contains(column))
+               return true;
+         }
+         return false;
+      }//end changedAny
+   }//end ChangeEvent
+
+   /**
+    * Receives batches of changes in ChangeID order.
+    */
+   public interface ChangeListener {
+      void onChanges(List<ChangeEvent> batch);
+   }//end ChangeListener
+
+   // delay between two polls
+   public static final long POLL_MILLIS = 1000;
+
+   // maximum number of changes delivered per batch
+   public static final int BATCH_SIZE = 500;
+
+   // days a change stays in ChangeLog
+   public static final int RETENTION_DAYS = Integer.getInteger("airline.changelog.retention.days", 7);
+
+   // delay between two prunes
+   public static final long PRUNE_MILLIS = 3600000;
+
+   private static final String POLL_QUERY =
+      "SELECT ChangeID, TableName, RowKey, Operation, ChangedColumns FROM ChangeLog " +
+      "WHERE ChangeID > ? ORDER BY ChangeID LIMIT " + BATCH_SIZE;
+
+   private static final String RESCAN_QUERY =
+      "SELECT ChangeID, TableName, RowKey, Operation, ChangedColumns FROM ChangeLog WHERE ChangeID IN ";
+
+   private static final String HORIZON_QUERY =
+      "SELECT txid_snapshot_xmin(s), txid_snapshot_xmax(s) FROM (SELECT txid_current_snapshot() AS s) AS t";
+
+   private static final String PRUNE_QUERY =
+      "DELETE FROM ChangeLog WHERE ChangedAt < now() - ? * INTERVAL '1 day' " +
+      "AND ChangeID < (SELECT MAX(ChangeID) FROM ChangeLog)";
+
+   private final ConnectionPool pool;
+   private final File cursorFile;
+   private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+   private final List<ChangeLogPoller> followers = new CopyOnWriteArrayList<ChangeLogPoller>();
+   private ScheduledExecutorService timer = null;
+
+   // last ChangeID delivered; -1 until initialised
+   private long cursor = -1;
+
+   // ChangeIDs of holes below the cursor, each with the txid_snapshot_xmax
+   // of the poll that found it
+   private final TreeMap<Long, Long> holes = new TreeMap<Long, Long>();
+
+   public ChangeLogPoller(ConnectionPool pool, File cursorFile) {
+      this.pool = pool;
+      this.cursorFile = cursorFile;
+   }
+
+   /**
+    * Registers a listener for all subsequent batches.
+    *
+    * @param listener the listener
+    */
+   public void addListener(ChangeListener listener) {
+      listeners.add(listener);
+   }//end addListener
+
+   /**
+    * Polls another database (a shard) on this poller's thread, after this
+    * one.  A follower that fails is dropped; the others keep polling.
+    *
+    * @param follower the poller of the other database, not started itself
+    */
+   public void follow(ChangeLogPoller follower) {
+      followers.add(follower);
+   }//end follow
+
+   /**
+    * Starts polling on a background daemon thread.
+    */
+   public synchronized void start() {
+      if (timer != null)
+         return;
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "changelog-poller");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      timer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               while (pollOnce() >= BATCH_SIZE) {
+                  // keep draining while full batches come back
+               }
+            } catch (SQLException e) {
+               // ChangeLog missing (triggers not installed) or database gone: stop quietly
+               System.err.println("Warning: change log polling stopped: " + e.getMessage());
+               stop();
+               return;
+            }//end try
+            for (ChangeLogPoller follower : followers) {
+               try {
+                  while (follower.pollOnce() >= BATCH_SIZE) {
+                     // keep draining while full batches come back
+                  }
+               } catch (SQLException e) {
+                  System.err.println("Warning: change log polling of a shard stopped: " + e.getMessage());
+                  followers.remove(follower);
+               }//end try
+            }//end for
+         }
+      }, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+      timer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               prune();
+               for (ChangeLogPoller follower : followers)
+                  follower.prune();
+            } catch (SQLException e) {
+               System.err.println("Warning: change log prune failed: " + e.getMessage());
+            }//end try
+         }
+      }, PRUNE_MILLIS, PRUNE_MILLIS, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops polling.
+    */
+   public synchronized void stop() {
+      if (timer != null) {
+         timer.shutdown();
+         timer = null;
+      }
+   }//end stop
+
+   /**
+    * Fetches and delivers the next batch of changes, together with the
+    * changes that have filled holes since the last poll.
+    *
+    * @return the number of changes delivered past the cursor
+    * @throws java.sql.SQLException when ChangeLog cannot be read
+    */
+   public int pollOnce() throws SQLException {
+      Connection conn = pool.borrow();
+      try {
+         if (cursor < 0)
+            cursor = initialCursor(conn);
+
+         PreparedStatement stmt = conn.prepareStatement(POLL_QUERY);
+         stmt.setLong(1, cursor);
+         ResultSet rs = stmt.executeQuery();
+         List<ChangeEvent> fresh = read(rs);
+         stmt.close();
+
+         List<Long> gaps = new ArrayList<Long>();
+         long expected = cursor + 1;
+         for (ChangeEvent e : fresh) {
+            for (long id = expected; id < e.changeId; ++id)
+               gaps.add(id);
+            expected = e.changeId + 1;
+         }//end for
+         if (gaps.isEmpty() && holes.isEmpty() && fresh.isEmpty())
+            return 0;
+
+         // taken after the poll, so every writer of a new gap has a txid below xmax
+         long[] horizon = horizon(conn);
+         List<ChangeEvent> batch = rescan(conn);
+         for (Iterator<Map.Entry<Long, Long>> it = holes.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() <= horizon[0])
+               it.remove(); // its writer has ended without committing it
+         }//end for
+         for (Long id : gaps)
+            holes.put(id, horizon[1]);
+
+         batch.addAll(fresh);
+         if (!batch.isEmpty()) {
+            List<ChangeEvent> delivered = Collections.unmodifiableList(batch);
+            for (ChangeListener listener : listeners) {
+               try {
+                  listener.onChanges(delivered);
+               } catch (RuntimeException e) {
+                  System.err.println("Warning: change listener failed: " + e);
+               }//end try
+            }//end for
+         }//end if
+         if (!fresh.isEmpty())
+            cursor = fresh.get(fresh.size() - 1).changeId;
+         saveCursor();
+         return fresh.size();
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end pollOnce
+
+   /**
+    * Deletes the changes older than RETENTION_DAYS, keeping the newest.
+    *
+    * @return the number of changes deleted
+    * @throws java.sql.SQLException when ChangeLog cannot be written
+    */
+   public int prune() throws SQLException {
+      Connection conn = pool.borrow();
+      try {
+         PreparedStatement stmt = conn.prepareStatement(PRUNE_QUERY);
+         stmt.setInt(1, RETENTION_DAYS);
+         int deleted = stmt.executeUpdate();
+         stmt.close();
+         return deleted;
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end prune
+
+   private static List<ChangeEvent> read(ResultSet rs) throws SQLException {
+      List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+      while (rs.next()) {
+         String changed = rs.getString(5);
+         Set<String> columns = changed == null ? null : new HashSet<String>(Arrays.asList(changed.split(",")));
+         events.add(new ChangeEvent(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4).charAt(0), columns));
+      }
+      return events;
+   }//end read
+
+   /*
+    * The oldest transaction still open and the first one not yet started.
+    */
+   private static long[] horizon(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery(HORIZON_QUERY);
+      rs.next();
+      long[] horizon = new long[] {rs.getLong(1), rs.getLong(2)};
+      stmt.close();
+      return horizon;
+   }//end horizon
+
+   /*
+    * Looks the holes up again and returns, in ChangeID order, the changes
+    * that have filled them; those holes are closed.
+    */
+   private List<ChangeEvent> rescan(Connection conn) throws SQLException {
+      List<ChangeEvent> filled = new ArrayList<ChangeEvent>();
+      List<Long> ids = new ArrayList<Long>(holes.keySet());
+      for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+         List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE));
+         StringBuilder in = new StringBuilder("(");
+         for (int i = 0; i < chunk.size(); ++i)
+            in.append(i == 0 ? "?" : ", ?");
+         PreparedStatement stmt = conn.prepareStatement(RESCAN_QUERY + in + ") ORDER BY ChangeID");
+         for (int i = 0; i < chunk.size(); ++i)
+            stmt.setLong(i + 1, chunk.get(i));
+         ResultSet rs = stmt.executeQuery();
+         filled.addAll(read(rs));
+         stmt.close();
+      }//end for
+      for (ChangeEvent e : filled)
+         holes.remove(e.changeId);
+      return filled;
+   }//end rescan
+
+   /*
+    * The persisted cursor and holes, or the current end of the log when
+    * there are none or the changes after the cursor have been pruned
+    * (freshly loaded caches do not need the history).
+    */
+   private long initialCursor(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT COALESCE(MIN(ChangeID), 0), COALESCE(MAX(ChangeID), 0) FROM ChangeLog");
+      rs.next();
+      long first = rs.getLong(1);
+      long last = rs.getLong(2);
+      stmt.close();
+      if (cursorFile.exists()) {
+         try {
+            BufferedReader reader = new BufferedReader(new FileReader(cursorFile));
+            try {
+               long saved = Long.parseLong(reader.readLine().trim());
+               if (saved + 1 >= first) {
+                  for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                     String[] hole = line.trim().split(" ");
+                     holes.put(Long.valueOf(hole[0]), Long.valueOf(hole[1]));
+                  }//end for
+                  return saved;
+               }//end if
+            } finally {
+               reader.close();
+            }//end try
+         } catch (IOException | RuntimeException e) {
+            // unreadable cursor; start from the end of the log
+         }//end try
+      }//end if
+      holes.clear();
+      return last;
+   }//end initialCursor
+
+   /*
+    * Writes the cursor and the holes through a temporary file so a crash never leaves it half written.
+    */
+   private void saveCursor() {
+      File tmp = new File(cursorFile.getPath() + ".tmp");
+      try {
+         FileWriter writer = new FileWriter(tmp);
+         try {
+            writer.write(Long.toString(cursor));
+            for (Map.Entry<Long, Long> hole : holes.entrySet())
+               writer.write("\n" + hole.getKey() + " " + hole.getValue());
+         } finally {
+            writer.close();
+         }//end try
+         if (!tmp.renameTo(cursorFile)) {
+            cursorFile.delete();
+            tmp.renameTo(cursorFile);
+         }
+      } catch (IOException e) {
+         System.err.println("Warning: could not save change log cursor: " + e.getMessage());
+      }//end try
+   }//end saveCursor
+
+}//end ChangeLogPoller
@@ -0,0 +1,122 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * Circuit breaker in front of the database.  After FAILURE_THRESHOLD
+ * consecutive failures (timeouts, lock timeouts, lost connections) the
+ * breaker opens and calls fail at once instead of queueing behind a
+ * saturated server.  After OPEN_MILLIS one probe call is let through: if
+ * it succeeds the breaker closes again, otherwise it stays open for
+ * another OPEN_MILLIS.
+ *
+ */
+public class CircuitBreaker {
+
+   // consecutive failures that open the breaker
+   public static final int FAILURE_THRESHOLD = 3;
+
+   // how long the breaker stays open before the next probe
+   public static final long OPEN_MILLIS = 15000;
+
+   private static final int CLOSED = 0;
+   private static final int OPEN = 1;
+   private static final int HALF_OPEN = 2;
+
+   private int state = CLOSED;
+   private int failures = 0;
+   private long openUntil = 0;
+   private long probeStarted = 0;
+   private long trips = 0;
+
+   /**
+    * Tells whether a call may go to the database now.  When the open period
+    * is over, the first caller becomes the probe.
+    *
+    * @return false while the breaker is open
+    */
+   public synchronized boolean allow() {
+      long now = System.currentTimeMillis();
+      switch (state) {
+         case CLOSED:
+            return true;
+         case OPEN:
+            if (now < openUntil)
+               return false;
+            state = HALF_OPEN;
+            probeStarted = now;
+            return true;
+         default:
+            // one probe at a time; a probe that never reported back is replaced
+            if (now - probeStarted < OPEN_MILLIS)
+               return false;
+            probeStarted = now;
+            return true;
+      }
+   }//end allow
+
+   /**
+    * Records a call the database answered.
+    */
+   public synchronized void success() {
+      failures = 0;
+      state = CLOSED;
+   }//end success
+
+   /**
+    * Records a call that timed out or could not reach the database.
+    */
+   public synchronized void failure() {
+      ++failures;
+      if (state == HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+         state = OPEN;
+         openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+         failures = 0;
+         ++trips;
+      }
+   }//end failure
+
+   /**
+    * Returns how long callers are turned away: while open, until the next
+    * probe; while a probe is in flight, until it counts as lost and another
+    * probe may go.
+    *
+    * @return milliseconds until a call may be let through, 0 when closed
+    */
+   public synchronized long retryInMillis() {
+      long now = System.currentTimeMillis();
+      if (state == OPEN)
+         return Math.max(0, openUntil - now);
+      if (state == HALF_OPEN)
+         return Math.max(0, probeStarted + OPEN_MILLIS - now);
+      return 0;
+   }//end retryInMillis
+
+   /**
+    * Tells whether a probe call is deciding whether the breaker closes.
+    *
+    * @return true while half open
+    */
+   public synchronized boolean isProbing() {
+      return state == HALF_OPEN;
+   }//end isProbing
+
+   /**
+    * Returns how many times the breaker opened.
+    *
+    * @return the number of trips
+    */
+   public synchronized long trips() {
+      return trips;
+   }//end trips
+
+}//end CircuitBreaker
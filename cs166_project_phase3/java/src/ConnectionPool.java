@@ -0,0 +1,169 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A small fixed-size pool of physical connections to the same database.
+ * Connections are opened lazily up to the pool size and handed back with
+ * auto-commit enabled, so operations that run several queries at once
+ * (e.g. the plane dossier) do not have to share the interactive connection.
+ *
+ */
+public class ConnectionPool {
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final int maxSize;
+
+   // connections that are open and not borrowed by anyone
+   private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+
+   // number of physical connections currently open (idle + borrowed)
+   private int opened = 0;
+
+   /**
+    * Creates a new pool; no connection is opened until it is first needed.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of physical connections
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize) {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.maxSize = maxSize;
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, opening a new one while the pool is below its
+    * size and otherwise waiting for one to be released.
+    *
+    * @return an open connection in auto-commit mode
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public Connection borrow() throws SQLException {
+      Connection conn = idle.poll();
+      if (conn != null)
+         return conn;
+
+      synchronized (this) {
+         if (opened < maxSize) {
+            conn = DriverManager.getConnection(url, user, passwd);
+            ++opened;
+            return conn;
+         }//end if
+      }
+      try {
+         return idle.take();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a pooled connection");
+      }//end try
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool.  Broken connections are
+    * closed and discarded so that a later borrow opens a fresh one.
+    *
+    * @param conn the connection obtained from borrow()
+    */
+   public void release(Connection conn) {
+      if (conn == null)
+         return;
+      try {
+         if (!conn.isClosed()) {
+            if (!conn.getAutoCommit()) {
+               conn.rollback();
+               conn.setAutoCommit(true);
+            }//end if
+            idle.offer(conn);
+            return;
+         }//end if
+      } catch (SQLException e) {
+         try { conn.close(); } catch (SQLException ignored) { }
+      }//end try
+      synchronized (this) {
+         --opened;
+      }
+   }//end release
+
+   /**
+    * Opens connections ahead of time so that the first users of the pool
+    * do not pay the connection set-up cost.
+    *
+    * @param count the number of connections to have open
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public void warm(int count) throws SQLException {
+      synchronized (this) {
+         while (opened < Math.min(count, maxSize)) {
+            idle.offer(DriverManager.getConnection(url, user, passwd));
+            ++opened;
+         }//end while
+      }
+   }//end warm
+
+   /**
+    * Tells whether a failure means the connection to the server is gone,
+    * rather than that the server rejected the statement.  The 7.3 driver
+    * reports server errors without an SQLState and folds I/O errors into
+    * the message, so the message is checked as well.
+    *
+    * @param e the failure
+    * @param conn the connection it happened on, or null when released already
+    * @return true when the connection is lost
+    */
+   public static boolean isConnectionLost(SQLException e, Connection conn) {
+      String state = e.getSQLState();
+      if (state != null && state.startsWith("08"))
+         return true; // connection_exception
+      if (e.getCause() instanceof IOException)
+         return true;
+      String message = e.getMessage();
+      if (message != null && (message.contains("I/O error") || message.contains("IO erro")
+                              || message.contains("broken the connection")
+                              || message.contains("Connection is closed")
+                              || message.contains("Connection refused")))
+         return true;
+      try {
+         return conn != null && conn.isClosed();
+      } catch (SQLException ignored) {
+         return true;
+      }//end try
+   }//end isConnectionLost
+
+   /**
+    * Closes every idle connection.  Connections still borrowed are closed
+    * by their users.
+    */
+   public void close() {
+      Connection conn;
+      while ((conn = idle.poll()) != null) {
+         try {
+            conn.close();
+         } catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end while
+   }//end close
+
+}//end ConnectionPool
@@ -0,0 +1,122 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts transaction outcomes per contended resource (e.g. one flight
+ * instance), so the resources whose transactions keep conflicting show up
+ * as hot spots.
+ *
+ */
+public class ContentionMetrics {
+
+   /**
+    * Counters of one resource.
+    */
+   public static class Counters {
+      public final String key;
+      public final AtomicLong commits = new AtomicLong();
+      public final AtomicLong retries = new AtomicLong();
+      public final AtomicLong aborts = new AtomicLong();
+
+      Counters(String key) {
+         this.key = key;
+      }
+
+      // retries and aborts together: how often this resource caused a conflict
+      public long conflicts() {
+         return retries.get() + aborts.get();
+      }
+   }//end Counters
+
+   private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+   /**
+    * Records a committed transaction.
+    *
+    * @param key the resource the transaction worked on
+    */
+   public void commit(String key) {
+      counters(key).commits.incrementAndGet();
+   }//end commit
+
+   /**
+    * Records a transaction that conflicted and is being retried.
+    *
+    * @param key the resource the transaction worked on
+    */
+   public void retry(String key) {
+      counters(key).retries.incrementAndGet();
+   }//end retry
+
+   /**
+    * Records a transaction that gave up.
+    *
+    * @param key the resource the transaction worked on
+    */
+   public void abort(String key) {
+      counters(key).aborts.incrementAndGet();
+   }//end abort
+
+   /**
+    * Returns the resources that had conflicts, most conflicts first.
+    *
+    * @param limit the maximum number of resources returned
+    * @return the hot spots
+    */
+   public List<Counters> hotSpots(int limit) {
+      List<Counters> result = new ArrayList<Counters>();
+      for (Counters c : counters.values())
+         if (c.conflicts() > 0)
+            result.add(c);
+      Collections.sort(result, new Comparator<Counters>() {
+         public int compare(Counters a, Counters b) {
+            return Long.compare(b.conflicts(), a.conflicts());
+         }
+      });
+      return result.size() > limit ? result.subList(0, limit) : result;
+   }//end hotSpots
+
+   /**
+    * Prints the hot spots, if there were any.
+    *
+    * @param limit the maximum number of resources printed
+    */
+   public void printHotSpots(int limit) {
+      List<Counters> hot = hotSpots(limit);
+      if (hot.isEmpty())
+         return;
+      System.out.println("\n--- Transaction Contention ---");
+      System.out.println("resource\tcommits\tretries\taborts");
+      for (Counters c : hot)
+         System.out.println(c.key + "\t" + c.commits.get() + "\t" + c.retries.get() + "\t" + c.aborts.get());
+   }//end printHotSpots
+
+   private Counters counters(String key) {
+      Counters c = counters.get(key);
+      if (c == null) {
+         Counters created = new Counters(key);
+         c = counters.putIfAbsent(key, created);
+         if (c == null)
+            c = created;
+      }
+      return c;
+   }//end counters
+
+}//end ContentionMetrics
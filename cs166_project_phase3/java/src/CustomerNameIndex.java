@@ -0,0 +1,546 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory name index of Customer for lookups by last-name and first-name
+ * prefix, plus fuzzy last-name matching.
+ *
+ * The base is a sorted array of all customers keyed by (last name, first
+ * name, CustomerID), case folded.  The folded keys are packed into one
+ * char array, folded once at load, and searches compare them in place
+ * without building strings; the names as entered are packed into a second
+ * array for display.  A prefix query is a binary search.  When a
+ * first-name prefix is given,
+ * the scan jumps from one matching surname group to the next with further
+ * binary searches instead of walking every row.  Results are paged by key
+ * (keyset pagination), so page N costs the same as page 1.
+ *
+ * Fuzzy matching uses a trigram index over the distinct surnames.  The
+ * similarity is shared trigrams / all trigrams, as in pg_trgm.
+ *
+ * Changes delivered by the change log do not touch the base arrays.  A
+ * changed CustomerID is hidden in the base and its current row goes into a
+ * small sorted overlay that every query merges in, by key for prefixes and
+ * by similarity for fuzzy matches.
+ *
+ */
+public class CustomerNameIndex {
+
+   // minimum trigram similarity of a fuzzy surname match (pg_trgm's default)
+   public static final double SIMILARITY_THRESHOLD = 0.3;
+
+   // rows per round trip of the load; the 7.3 driver has no fetch size, so
+   // the table is read through an explicit cursor in pieces of this many rows
+   public static final int FETCH_ROWS = 10000;
+
+   // digits of the zero-padded CustomerID that ends a key
+   private static final int ID_DIGITS = 11;
+
+   private static final String LOAD_QUERY =
+      "SELECT CustomerID, FirstName, LastName FROM Customer";
+
+   private static final String ROW_QUERY =
+      "SELECT CustomerID, FirstName, LastName FROM Customer WHERE CustomerID = ?";
+
+   /**
+    * One customer found by a lookup.
+    */
+   public static class Match {
+      public final int customerId;
+      public final String firstName;
+      public final String lastName;
+      final String key;
+
+      Match(int customerId, String firstName, String lastName) {
+         this.customerId = customerId;
+         this.firstName = firstName;
+         this.lastName = lastName;
+         this.key = keyOf(lastName, firstName, customerId);
+      }
+   }//end Match
+
+   // base rows in key order: folded "last\0first" of row r in keys[keyOffset[r], keyOffset[r+1]),
+   // the names as entered, "Last\0First", in names[nameOffset[r], nameOffset[r+1])
+   private final int[] id;
+   private final char[] keys;
+   private final int[] keyOffset;
+   private final char[] names;
+   private final int[] nameOffset;
+
+   // distinct folded surnames in order, their first base row, and their trigram counts
+   private final String[] surnames;
+   private final int[] surnameStart;
+   private final int[] surnameTrigrams;
+   private final Map<Long, int[]> postings;
+
+   // CustomerIDs whose base row is out of date, and their current rows by key
+   private final Set<Integer> stale = new HashSet<Integer>();
+   private final TreeMap<String, Match> overlay = new TreeMap<String, Match>();
+   private final Map<Integer, String> overlayKey = new HashMap<Integer, String>();
+
+   private CustomerNameIndex(int[] id, char[] keys, int[] keyOffset, char[] names, int[] nameOffset) {
+      this.id = id;
+      this.keys = keys;
+      this.keyOffset = keyOffset;
+      this.names = names;
+      this.nameOffset = nameOffset;
+
+      List<String> distinct = new ArrayList<String>();
+      List<Integer> starts = new ArrayList<Integer>();
+      for (int r = 0; r < id.length; ++r) {
+         String last = lastKey(r);
+         if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(last)) {
+            distinct.add(last);
+            starts.add(r);
+         }
+      }
+      surnames = distinct.toArray(new String[0]);
+      surnameStart = new int[surnames.length + 1];
+      for (int s = 0; s < surnames.length; ++s)
+         surnameStart[s] = starts.get(s);
+      surnameStart[surnames.length] = id.length;
+
+      // trigram -> surnames containing it
+      Map<Long, int[]> lists = new HashMap<Long, int[]>();
+      Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+      surnameTrigrams = new int[surnames.length];
+      for (int s = 0; s < surnames.length; ++s) {
+         Set<Long> grams = trigrams(surnames[s]);
+         surnameTrigrams[s] = grams.size();
+         for (Long g : grams) {
+            int[] list = lists.get(g);
+            int size = sizes.containsKey(g) ? sizes.get(g) : 0;
+            if (list == null)
+               list = new int[4];
+            else if (size == list.length)
+               list = Arrays.copyOf(list, size * 2);
+            list[size] = s;
+            lists.put(g, list);
+            sizes.put(g, size + 1);
+         }
+      }
+      for (Map.Entry<Long, int[]> e : lists.entrySet())
+         e.setValue(Arrays.copyOf(e.getValue(), sizes.get(e.getKey())));
+      postings = lists;
+   }//end CustomerNameIndex
+
+   /**
+    * Loads the index from the Customer table.
+    *
+    * @param pool the pool to borrow a connection from
+    * @return the index
+    * @throws java.sql.SQLException when the table cannot be read
+    */
+   public static CustomerNameIndex load(ConnectionPool pool) throws SQLException {
+      int capacity = 1024, n = 0;
+      int[] ids = new int[capacity];
+      String[] firsts = new String[capacity], lasts = new String[capacity];
+      Connection conn = pool.borrow();
+      try {
+         conn.setAutoCommit(false); // the cursor lives until the transaction ends
+         Statement stmt = conn.createStatement();
+         stmt.execute("DECLARE customer_names NO SCROLL CURSOR FOR " + LOAD_QUERY);
+         int fetched = FETCH_ROWS;
+         while (fetched == FETCH_ROWS) {
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_ROWS + " FROM customer_names");
+            fetched = 0;
+            while (rs.next()) {
+               if (n == capacity) {
+                  capacity *= 2;
+                  ids = Arrays.copyOf(ids, capacity);
+                  firsts = Arrays.copyOf(firsts, capacity);
+                  lasts = Arrays.copyOf(lasts, capacity);
+               }
+               ids[n] = rs.getInt(1);
+               firsts[n] = nonNull(rs.getString(2));
+               lasts[n] = nonNull(rs.getString(3));
+               ++n;
+               ++fetched;
+            }//end while
+            rs.close();
+         }//end while
+         stmt.execute("CLOSE customer_names");
+         stmt.close();
+         conn.commit();
+      } finally {
+         pool.release(conn); // rolls back and restores auto-commit after a failure
+      }//end try
+
+      // fold once, then sort by (folded last, folded first, id) here rather than trusting the server's collation
+      final int[] idOf = ids;
+      final String[] firstKey = new String[n], lastKey = new String[n];
+      for (int r = 0; r < n; ++r) {
+         firstKey[r] = fold(firsts[r]);
+         lastKey[r] = fold(lasts[r]);
+      }
+      Integer[] order = new Integer[n];
+      for (int r = 0; r < n; ++r)
+         order[r] = r;
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            int cmp = lastKey[a].compareTo(lastKey[b]);
+            if (cmp == 0)
+               cmp = firstKey[a].compareTo(firstKey[b]);
+            return cmp != 0 ? cmp : Integer.compare(idOf[a], idOf[b]);
+         }
+      });
+
+      int keyChars = 0, nameChars = 0;
+      for (int r = 0; r < n; ++r) {
+         keyChars += lastKey[r].length() + 1 + firstKey[r].length();
+         nameChars += lasts[r].length() + 1 + firsts[r].length();
+      }
+      int[] id = new int[n];
+      int[] keyOffset = new int[n + 1], nameOffset = new int[n + 1];
+      char[] keys = new char[keyChars], names = new char[nameChars];
+      int keyPos = 0, namePos = 0;
+      for (int i = 0; i < n; ++i) {
+         int r = order[i];
+         id[i] = ids[r];
+         keyOffset[i] = keyPos;
+         keyPos = pack(keys, keyPos, lastKey[r], firstKey[r]);
+         nameOffset[i] = namePos;
+         namePos = pack(names, namePos, lasts[r], firsts[r]);
+      }
+      keyOffset[n] = keyPos;
+      nameOffset[n] = namePos;
+      return new CustomerNameIndex(id, keys, keyOffset, names, nameOffset);
+   }//end load
+
+   /*
+    * Writes "last\0first" at pos and returns the position after it.
+    */
+   private static int pack(char[] into, int pos, String last, String first) {
+      last.getChars(0, last.length(), into, pos);
+      pos += last.length();
+      into[pos++] = '\0';
+      first.getChars(0, first.length(), into, pos);
+      return pos + first.length();
+   }//end pack
+
+   /**
+    * Re-reads changed customers into the overlay.
+    *
+    * @param conn the connection to read on
+    * @param customerIds the changed CustomerIDs
+    * @throws java.sql.SQLException when the rows cannot be read
+    */
+   public synchronized void refresh(Connection conn, Collection<Integer> customerIds) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(ROW_QUERY);
+      for (Integer customerId : customerIds) {
+         stale.add(customerId);
+         String old = overlayKey.remove(customerId);
+         if (old != null)
+            overlay.remove(old);
+         stmt.setInt(1, customerId);
+         ResultSet rs = stmt.executeQuery();
+         if (rs.next()) { // gone when deleted
+            Match m = new Match(customerId, nonNull(rs.getString(2)), nonNull(rs.getString(3)));
+            overlay.put(m.key, m);
+            overlayKey.put(customerId, m.key);
+         }
+         rs.close();
+      }
+      stmt.close();
+   }//end refresh
+
+   /**
+    * Returns the customers whose last name starts with lastPrefix and first
+    * name with firstPrefix (both case-insensitive), in (LastName,
+    * FirstName, CustomerID) order.
+    *
+    * @param lastPrefix the last-name prefix, may be empty
+    * @param firstPrefix the first-name prefix, may be empty
+    * @param after the last match of the previous page, or null for the first page
+    * @param limit the page size
+    * @return up to limit matches
+    */
+   public synchronized List<Match> prefix(String lastPrefix, String firstPrefix, Match after, int limit) {
+      String lp = fold(lastPrefix);
+      String fp = fold(firstPrefix);
+      String from = after == null ? lp : max(lp, after.key + '\0');
+
+      List<Match> result = new ArrayList<Match>();
+      int row = nextBase(lowerBound(from), lp, fp);
+      java.util.Iterator<Match> extra = overlay.tailMap(from, true).values().iterator();
+      Match pending = nextOverlay(extra, lp, fp);
+      while (result.size() < limit && (row >= 0 || pending != null)) {
+         if (row >= 0 && (pending == null || compareKey(row, pending.key) < 0)) {
+            result.add(match(row));
+            row = nextBase(row + 1, lp, fp);
+         } else {
+            result.add(pending);
+            pending = nextOverlay(extra, lp, fp);
+         }
+      }
+      return result;
+   }//end prefix
+
+   /**
+    * Returns customers whose last name is similar to the given one, most
+    * similar surnames first, then in (LastName, FirstName, CustomerID)
+    * order.  Changed customers are ranked the same way.
+    *
+    * @param lastName the (possibly misspelt) last name
+    * @param limit the maximum number of matches
+    * @return up to limit matches
+    */
+   public synchronized List<Match> fuzzy(String lastName, int limit) {
+      Set<Long> query = trigrams(fold(lastName));
+      if (query.isEmpty())
+         return new ArrayList<Match>();
+
+      // shared trigrams per surname, counted only for surnames that share one
+      Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+      for (Long g : query) {
+         int[] list = postings.get(g);
+         if (list == null)
+            continue;
+         for (int s : list) {
+            Integer c = shared.get(s);
+            shared.put(s, c == null ? 1 : c + 1);
+         }
+      }
+      final Map<Integer, Double> score = new HashMap<Integer, Double>();
+      for (Map.Entry<Integer, Integer> e : shared.entrySet()) {
+         int common = e.getValue();
+         double sim = (double) common / (query.size() + surnameTrigrams[e.getKey()] - common);
+         if (sim >= SIMILARITY_THRESHOLD)
+            score.put(e.getKey(), sim);
+      }
+      List<Integer> best = new ArrayList<Integer>(score.keySet());
+      java.util.Collections.sort(best, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            int cmp = Double.compare(score.get(b), score.get(a));
+            return cmp != 0 ? cmp : surnames[a].compareTo(surnames[b]);
+         }
+      });
+
+      // changed rows are few; score them directly and merge them in by rank
+      final Map<Match, Double> changedScore = new HashMap<Match, Double>();
+      for (Match m : overlay.values()) {
+         double sim = similarity(query, trigrams(fold(m.lastName)));
+         if (sim >= SIMILARITY_THRESHOLD)
+            changedScore.put(m, sim);
+      }
+      List<Match> changed = new ArrayList<Match>(changedScore.keySet());
+      java.util.Collections.sort(changed, new Comparator<Match>() {
+         public int compare(Match a, Match b) {
+            int cmp = Double.compare(changedScore.get(b), changedScore.get(a));
+            return cmp != 0 ? cmp : a.key.compareTo(b.key);
+         }
+      });
+
+      List<Match> result = new ArrayList<Match>();
+      int next = 0;
+      for (int s : best) {
+         double sim = score.get(s);
+         for (int r = surnameStart[s]; r < surnameStart[s + 1] && result.size() < limit; ++r) {
+            if (stale.contains(id[r]))
+               continue;
+            // a key starts with the surname, so equal scores order by key as the surnames do
+            while (next < changed.size() && result.size() < limit
+                   && (changedScore.get(changed.get(next)) > sim
+                       || (changedScore.get(changed.get(next)) == sim && compareKey(r, changed.get(next).key) > 0)))
+               result.add(changed.get(next++));
+            if (result.size() < limit)
+               result.add(match(r));
+         }
+         if (result.size() == limit)
+            return result;
+      }
+      while (next < changed.size() && result.size() < limit)
+         result.add(changed.get(next++));
+      return result;
+   }//end fuzzy
+
+   /*
+    * The first base row at or after row whose names match both prefixes and
+    * that is not stale, or -1.  Inside a surname group the first names are
+    * sorted, so rows before the first-name prefix are skipped by a binary
+    * search and rows after it by a jump to the next surname.
+    */
+   private int nextBase(int row, String lp, String fp) {
+      while (row < id.length) {
+         int sep = separator(keys, keyOffset[row]);
+         if (!regionStartsWith(keyOffset[row], sep, lp))
+            return -1;
+         if (regionStartsWith(sep + 1, keyOffset[row + 1], fp)) {
+            if (!stale.contains(id[row]))
+               return row;
+            ++row;
+         } else if (compareRegion(sep + 1, keyOffset[row + 1], fp) < 0) {
+            row = Math.max(row + 1, lowerBound(lastKey(row) + '\0' + fp));
+         } else {
+            row = Math.max(row + 1, lowerBound(lastKey(row) + '\1'));
+         }
+      }
+      return -1;
+   }//end nextBase
+
+   private static Match nextOverlay(java.util.Iterator<Match> it, String lp, String fp) {
+      while (it.hasNext()) {
+         Match m = it.next();
+         if (!m.key.startsWith(lp))
+            return null;
+         if (fold(m.lastName).startsWith(lp) && fold(m.firstName).startsWith(fp))
+            return m;
+      }
+      return null;
+   }//end nextOverlay
+
+   /*
+    * First base row whose key is at or after the given key.
+    */
+   private int lowerBound(String key) {
+      int lo = 0, hi = id.length;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (compareKey(mid, key) < 0)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }//end lowerBound
+
+   /*
+    * Compares the key of a base row, as keyOf would build it, with a key,
+    * reading the packed chars in place.
+    */
+   private int compareKey(int row, String key) {
+      int from = keyOffset[row], length = keyOffset[row + 1] - from;
+      long number = (long) id[row] + Integer.MAX_VALUE;
+      int total = length + 1 + ID_DIGITS;
+      for (int i = 0; i < total && i < key.length(); ++i) {
+         char c = i < length ? keys[from + i] : i == length ? '\0' : digit(number, i - length - 1);
+         char k = key.charAt(i);
+         if (c != k)
+            return c < k ? -1 : 1;
+      }
+      return Integer.compare(total, key.length());
+   }//end compareKey
+
+   /*
+    * Digit at position p (0 = most significant) of a number zero-padded to ID_DIGITS.
+    */
+   private static char digit(long number, int p) {
+      for (int i = p + 1; i < ID_DIGITS; ++i)
+         number /= 10;
+      return (char) ('0' + number % 10);
+   }
+
+   private boolean regionStartsWith(int from, int end, String prefix) {
+      if (end - from < prefix.length())
+         return false;
+      for (int i = 0; i < prefix.length(); ++i)
+         if (keys[from + i] != prefix.charAt(i))
+            return false;
+      return true;
+   }
+
+   private int compareRegion(int from, int end, String s) {
+      int length = end - from;
+      for (int i = 0; i < length && i < s.length(); ++i) {
+         char c = keys[from + i], k = s.charAt(i);
+         if (c != k)
+            return c < k ? -1 : 1;
+      }
+      return Integer.compare(length, s.length());
+   }
+
+   private String lastKey(int row) {
+      return new String(keys, keyOffset[row], separator(keys, keyOffset[row]) - keyOffset[row]);
+   }
+
+   private String lastName(int row) {
+      int sep = separator(names, nameOffset[row]);
+      return new String(names, nameOffset[row], sep - nameOffset[row]);
+   }
+
+   private String firstName(int row) {
+      int sep = separator(names, nameOffset[row]);
+      return new String(names, sep + 1, nameOffset[row + 1] - sep - 1);
+   }
+
+   private static int separator(char[] chars, int p) {
+      while (chars[p] != '\0')
+         ++p;
+      return p;
+   }
+
+   private Match match(int row) {
+      return new Match(id[row], firstName(row), lastName(row));
+   }
+
+   /*
+    * Sort key: folded last name, folded first name and zero-padded id, so
+    * that string order is the (LastName, FirstName, CustomerID) order.
+    */
+   static String keyOf(String last, String first, int customerId) {
+      return fold(last) + '\0' + fold(first) + '\0' + String.format("%0" + ID_DIGITS + "d", (long) customerId + Integer.MAX_VALUE);
+   }
+
+   static String fold(String s) {
+      return s.toLowerCase(java.util.Locale.ROOT);
+   }
+
+   private static String nonNull(String s) {
+      return s == null ? "" : s.trim();
+   }
+
+   private static String max(String a, String b) {
+      return a.compareTo(b) >= 0 ? a : b;
+   }
+
+   /*
+    * Shared trigrams / all trigrams.
+    */
+   private static double similarity(Set<Long> a, Set<Long> b) {
+      int common = 0;
+      for (Long g : b)
+         if (a.contains(g))
+            ++common;
+      return (double) common / (a.size() + b.size() - common);
+   }//end similarity
+
+   /*
+    * Trigrams of a word padded as in pg_trgm ("  word "), packed into longs.
+    */
+   private static Set<Long> trigrams(String word) {
+      Set<Long> grams = new HashSet<Long>();
+      if (word.isEmpty())
+         return grams;
+      String padded = "  " + word + " ";
+      for (int i = 0; i + 3 <= padded.length(); ++i)
+         grams.add(((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2));
+      return grams;
+   }//end trigrams
+
+}//end CustomerNameIndex
@@ -0,0 +1,410 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only journal of the write events of this application
+ * (bookings, holds, repairs, maintenance requests, work assignments).  It
+ * serves as the audit history and can be replayed after a crash.
+ *
+ * Records go into a memory-mapped file:
+ *
+ *    int length | int crc32 | long seq | long time | byte type | payload (UTF-8)
+ *
+ * The CRC covers everything after the crc field.  Each record is followed
+ * by a zero length, which marks the end of the journal, and its own length
+ * is written last.  On open, the records are scanned up to the first bad
+ * CRC or out-of-sequence record (a torn write, or stale bytes past the
+ * end) and appending continues from there.  The file is locked while it
+ * is open, so two processes never append to the same journal.
+ *
+ * Callers enqueue a record and wait on the returned ticket.  A writer
+ * thread drains everything queued, writes it and forces it to disk once
+ * per batch (group commit), so concurrent callers share one flush.
+ *
+ */
+public class EventJournal {
+
+   // record types
+   public static final byte BOOKING = 1;
+   public static final byte HOLD = 2;
+   public static final byte HOLD_CONFIRMED = 3;
+   public static final byte REPAIR = 4;
+   public static final byte MAINTENANCE_REQUEST = 5;
+   public static final byte WORK_ASSIGNED = 6;
+
+   private static final String[] TYPE_NAMES = {"?", "BOOKING", "HOLD", "HOLD_CONFIRMED", "REPAIR", "MAINTENANCE_REQUEST",
+                                               "WORK_ASSIGNED"};
+
+   // size of one mapped region of the file
+   public static final int CHUNK_BYTES = 16 << 20;
+
+   // most records written per group commit
+   public static final int MAX_BATCH = 1024;
+
+   private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 1;
+
+   /**
+    * Completion of one append.
+    */
+   public static class Ticket {
+      private final CountDownLatch durable = new CountDownLatch(1);
+      private volatile long seq = -1;
+
+      /**
+       * Waits until the record is on disk.
+       *
+       * @return the sequence number of the record
+       * @throws java.lang.InterruptedException when interrupted while waiting
+       * @throws java.io.IOException when the journal failed before the
+       *         record was written
+       */
+      public long await() throws InterruptedException, IOException {
+         durable.await();
+         if (seq < 0)
+            throw new IOException("journal record was not written");
+         return seq;
+      }
+   }//end Ticket
+
+   /**
+    * A record read back from the journal.
+    */
+   public static class Record {
+      public final long seq;
+      public final long time;
+      public final byte type;
+      public final String payload;
+
+      Record(long seq, long time, byte type, String payload) {
+         this.seq = seq;
+         this.time = time;
+         this.type = type;
+         this.payload = payload;
+      }
+
+      public String typeName() {
+         return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "TYPE_" + type;
+      }
+
+      /**
+       * Returns one name=value field of the payload.
+       *
+       * @param name the field name
+       * @return the value, or null when the payload has no such field
+       */
+      public String field(String name) {
+         for (String token : payload.split(" "))
+            if (token.startsWith(name + "="))
+               return token.substring(name.length() + 1);
+         return null;
+      }
+   }//end Record
+
+   private static class Pending {
+      final byte type;
+      final byte[] payload;
+      final Ticket ticket = new Ticket();
+
+      Pending(byte type, byte[] payload) {
+         this.type = type;
+         this.payload = payload;
+      }
+   }//end Pending
+
+   private final RandomAccessFile file;
+   private final FileChannel channel;
+   private final FileLock lock;
+   private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+   private final Thread writer;
+   private volatile boolean running = true;
+   private volatile boolean failed = false;
+
+   // owned by the writer thread after open
+   private MappedByteBuffer region;
+   private long regionStart;
+   private long nextSeq;
+   private long batches = 0;
+   private long records = 0;
+
+   private EventJournal(File path) throws IOException {
+      file = new RandomAccessFile(path, "rw");
+      channel = file.getChannel();
+      FileLock held = null;
+      try {
+         held = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+         // another journal of this process has it open
+      }//end try
+      if (held == null) {
+         file.close();
+         throw new IOException(path + " is in use by another process");
+      }
+      lock = held;
+      long[] end = new long[1];
+      List<Record> existing = scan(channel, 0, end);
+      nextSeq = existing.isEmpty() ? 1 : existing.get(existing.size() - 1).seq + 1;
+      long chunk = end[0] / CHUNK_BYTES * CHUNK_BYTES;
+      map(chunk);
+      region.position((int) (end[0] - chunk));
+      writer = new Thread(new Runnable() {
+         public void run() {
+            writeLoop();
+         }
+      }, "journal-writer");
+      writer.setDaemon(true);
+   }//end EventJournal
+
+   /**
+    * Opens (or creates) a journal and starts its writer thread.
+    *
+    * @param path the journal file
+    * @return the journal, positioned after its last valid record
+    * @throws java.io.IOException when the file cannot be opened
+    */
+   public static EventJournal open(File path) throws IOException {
+      EventJournal journal = new EventJournal(path);
+      journal.writer.start();
+      return journal;
+   }//end open
+
+   /**
+    * Queues a record.  Returns at once; the record is written with the
+    * next group commit.
+    *
+    * @param type one of the record type constants
+    * @param payload the event, as text
+    * @return a ticket to wait on for durability
+    * @throws java.lang.IllegalStateException when the journal is closed or
+    *         its writer has failed
+    */
+   public Ticket append(byte type, String payload) {
+      Pending p = new Pending(type, payload.getBytes(StandardCharsets.UTF_8));
+      if (!running || failed)
+         throw new IllegalStateException("event journal is " + (failed ? "failed" : "closed"));
+      queue.add(p);
+      // the writer may have stopped after the check; take the record back
+      // unless it already got it
+      if ((!running || failed) && queue.remove(p))
+         throw new IllegalStateException("event journal is " + (failed ? "failed" : "closed"));
+      return p.ticket;
+   }//end append
+
+   /**
+    * Writes what is queued, stops the writer thread and closes the file.
+    */
+   public void close() {
+      running = false;
+      try {
+         writer.join(5000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+      try {
+         lock.release();
+         channel.close();
+         file.close();
+      } catch (IOException e) {
+         // ignored.
+      }//end try
+   }//end close
+
+   /**
+    * Returns the number of records written and the number of flushes they took.
+    *
+    * @return {records, batches}
+    */
+   public long[] stats() {
+      return new long[] {records, batches};
+   }//end stats
+
+   /**
+    * Reads the valid records of a journal file.  Must not be called on the
+    * file of an open journal of this process: closing the file would drop
+    * that journal's lock.
+    *
+    * @param path the journal file
+    * @param afterSeq only records with a higher sequence number are returned
+    * @return the records in order, up to the first damaged one
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static List<Record> replay(File path, long afterSeq) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(path, "r");
+      try {
+         return scan(in.getChannel(), afterSeq, new long[1]);
+      } finally {
+         in.close();
+      }//end try
+   }//end replay
+
+   /*
+    * Group commit loop: wait for a record, take whatever else is queued,
+    * write them all and force once.
+    */
+   private void writeLoop() {
+      List<Pending> batch = new ArrayList<Pending>();
+      while ((running || !queue.isEmpty()) && !failed) {
+         try {
+            Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (Pending p : batch)
+               p.ticket.seq = write(p);
+            region.force();
+            records += batch.size();
+            ++batches;
+         } catch (InterruptedException e) {
+            failed = true;
+         } catch (IOException | RuntimeException e) {
+            System.err.println("Warning: journal write failed, journaling stopped: " + e);
+            failed = true;
+         } finally {
+            for (Pending p : batch) {
+               if (failed)
+                  p.ticket.seq = -1;
+               p.ticket.durable.countDown();
+            }
+            batch.clear();
+         }//end try
+      }//end while
+      Pending p;
+      while ((p = queue.poll()) != null) // left over after a failure
+         p.ticket.durable.countDown();
+   }//end writeLoop
+
+   private long write(Pending p) throws IOException {
+      int size = HEADER_BYTES + p.payload.length;
+      if (size + 4 > CHUNK_BYTES)
+         throw new IOException("journal record too large: " + size + " bytes");
+      if (region.remaining() < size + 4) { // keep room for the zero end marker
+         region.force();
+         map(regionStart + CHUNK_BYTES);
+      }
+      long seq = nextSeq++;
+      long time = System.currentTimeMillis();
+      CRC32 crc = new CRC32();
+      crc.update(longBytes(seq));
+      crc.update(longBytes(time));
+      crc.update(p.type);
+      crc.update(p.payload);
+
+      int start = region.position();
+      region.position(start + 4);
+      region.putInt((int) crc.getValue());
+      region.putLong(seq);
+      region.putLong(time);
+      region.put(p.type);
+      region.put(p.payload);
+      region.putInt(region.position(), 0); // end marker, over whatever was left past the end
+      region.putInt(start, p.payload.length); // length last: a torn record reads as the end
+      return seq;
+   }//end write
+
+   /*
+    * Maps the region of the file starting at the given (chunk aligned) offset.
+    */
+   private void map(long offset) throws IOException {
+      regionStart = offset;
+      region = channel.map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_BYTES);
+   }//end map
+
+   /*
+    * Reads records chunk by chunk.  Records never span chunks; a chunk ends
+    * at its first zero length.  The journal ends at a bad CRC or a record
+    * that does not continue the sequence.  end[0] receives the offset after
+    * the last valid record.
+    */
+   private static List<Record> scan(FileChannel channel, long afterSeq, long[] end) throws IOException {
+      List<Record> result = new ArrayList<Record>();
+      long size = channel.size();
+      long lastSeq = 0;
+      end[0] = 0;
+      for (long chunk = 0; chunk + HEADER_BYTES <= size; chunk += CHUNK_BYTES) {
+         MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, chunk,
+                                            Math.min(size - chunk, (long) CHUNK_BYTES));
+         boolean any = false;
+         while (buf.remaining() >= HEADER_BYTES) {
+            int length = buf.getInt();
+            if (length <= 0 || buf.remaining() < HEADER_BYTES - 4 + length)
+               break;
+            int crc = buf.getInt();
+            long seq = buf.getLong();
+            long time = buf.getLong();
+            byte type = buf.get();
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            CRC32 check = new CRC32();
+            check.update(longBytes(seq));
+            check.update(longBytes(time));
+            check.update(type);
+            check.update(payload);
+            if ((int) check.getValue() != crc || (lastSeq != 0 && seq != lastSeq + 1))
+               return result; // torn, damaged or stale record: the journal ends here
+            lastSeq = seq;
+            if (seq > afterSeq)
+               result.add(new Record(seq, time, type, new String(payload, StandardCharsets.UTF_8)));
+            end[0] = chunk + buf.position();
+            any = true;
+         }//end while
+         if (!any)
+            return result;
+      }//end for
+      return result;
+   }//end scan
+
+   private static byte[] longBytes(long v) {
+      byte[] b = new byte[8];
+      for (int i = 7; i >= 0; --i) {
+         b[i] = (byte) v;
+         v >>>= 8;
+      }
+      return b;
+   }//end longBytes
+
+   /**
+    * Prints the records of a journal file, optionally only those after a
+    * sequence number and of one type.
+    *
+    * @param args the journal file, then optionally the sequence number to
+    *        start after and a type name such as BOOKING
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1 || args.length > 3) {
+         System.err.println("Usage: java " + EventJournal.class.getName() + " <journal file> [after seq] [type]");
+         return;
+      }
+      long afterSeq = args.length > 1 ? Long.parseLong(args[1]) : 0;
+      String type = args.length > 2 ? args[2].toUpperCase() : null;
+      for (Record r : replay(new File(args[0]), afterSeq))
+         if (type == null || r.typeName().equals(type))
+            System.out.println(r.seq + "\t" + new java.sql.Timestamp(r.time) + "\t" + r.typeName() + "\t" + r.payload);
+   }//end main
+
+}//end EventJournal
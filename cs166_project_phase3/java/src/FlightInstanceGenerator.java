@@ -0,0 +1,174 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the FlightInstance rows of future dates from Schedule.  Every
+ * date of the range is matched against the days of week in Schedule, so a
+ * flight gets one instance on each date it is scheduled to fly.
+ *
+ * The range is written in batches of BATCH_DAYS dates, each one INSERT ...
+ * SELECT over generate_series in its own transaction, so the rows never
+ * leave the server and no transaction holds a long range of dates.  Dates
+ * that already have an instance of a flight are skipped, which makes the
+ * generator idempotent: running it again over the same or an overlapping
+ * range only adds what is missing, e.g. after a batch failed.
+ *
+ * A new instance copies SeatsTotal, NumOfStops and TicketCost from the
+ * latest existing instance of its flight.  Flights without instances get
+ * the defaults passed in.
+ *
+ * With sharded flight instances each shard generates the instances of its
+ * own flights, with ids above the highest id of all shards.
+ *
+ */
+public class FlightInstanceGenerator {
+
+   // defaults for flights that have no instance to copy from
+   public static final int DEFAULT_SEATS_TOTAL = 180;
+   public static final BigDecimal DEFAULT_TICKET_COST = new BigDecimal("300.00");
+
+   // longest date range generated in one call, in days
+   public static final int MAX_DAYS = 731;
+
+   // dates generated per transaction
+   public static final int BATCH_DAYS = Integer.getInteger("airline.generate.batch.days", 7);
+
+   // one row per (date, scheduled flight) that has no instance yet; ids follow the current maximum
+   // or the given floor, whichever is higher.  %s restricts the flights (empty for all).
+   private static final String GENERATE =
+      "INSERT INTO FlightInstance (FlightInstanceID, FlightNumber, FlightDate, DepartedOnTime, ArrivedOnTime, " +
+      "                            SeatsTotal, SeatsSold, NumOfStops, TicketCost) " +
+      "SELECT B.MaxID + ROW_NUMBER() OVER (ORDER BY N.Day, N.FlightNumber), N.FlightNumber, N.Day, NULL, NULL, " +
+      "       COALESCE(L.SeatsTotal, ?), 0, COALESCE(L.NumOfStops, 0), COALESCE(L.TicketCost, ?) " +
+      "FROM (SELECT DISTINCT D.Day, S.FlightNumber " +
+      "      FROM (SELECT CAST(G AS DATE) AS Day " +
+      "            FROM generate_series(CAST(? AS DATE), CAST(? AS DATE), INTERVAL '1 day') G) D " +
+      "      INNER JOIN Schedule S ON S.DayOfWeek = TRIM(TO_CHAR(D.Day, 'Day')) " +
+      "      WHERE NOT EXISTS (SELECT 1 FROM FlightInstance FI " +
+      "                        WHERE FI.FlightDate = D.Day AND FI.FlightNumber = S.FlightNumber)%s) N " +
+      "CROSS JOIN (SELECT GREATEST(COALESCE(MAX(FlightInstanceID), 0), ?) AS MaxID FROM FlightInstance) B " +
+      "LEFT JOIN (SELECT DISTINCT ON (FlightNumber) FlightNumber, SeatsTotal, NumOfStops, TicketCost " +
+      "           FROM FlightInstance ORDER BY FlightNumber, FlightDate DESC, FlightInstanceID DESC) L " +
+      "       ON L.FlightNumber = N.FlightNumber";
+
+   /**
+    * Creates the missing flight instances of a date range, one transaction
+    * per batch of dates.  A concurrent run or a collision on the generated
+    * ids is retried by the transaction runner, and the retry skips whatever
+    * the other run created.
+    *
+    * @param tx the transaction runner of the connection to write on
+    * @param firstDate the first date to generate (YYYY-MM-DD)
+    * @param lastDate the last date to generate (YYYY-MM-DD), inclusive
+    * @param seatsTotal SeatsTotal of flights without an earlier instance
+    * @param ticketCost TicketCost of flights without an earlier instance
+    * @return the number of instances created
+    * @throws java.sql.SQLException when a batch failed and was rolled back;
+    *         the batches before it keep their new instances
+    */
+   public static int generate(TransactionRunner tx, String firstDate, String lastDate,
+                              int seatsTotal, BigDecimal ticketCost) throws SQLException {
+      int created = 0;
+      for (java.sql.Date[] batch : batches(firstDate, lastDate))
+         created += tx.run("FlightInstance generation", Connection.TRANSACTION_SERIALIZABLE,
+                           work(batch[0], batch[1], seatsTotal, ticketCost, "", 0));
+      return created;
+   }//end generate
+
+   /**
+    * Creates the missing flight instances of a date range on every shard.
+    * Each shard gets the instances of the flights placed on it, one
+    * transaction per batch of dates; the shards are generated one after the
+    * other so that each starts its ids above those of the shards before it.
+    * Concurrent runs must not be started against the same shards.
+    *
+    * @param shards the shard router
+    * @param firstDate the first date to generate (YYYY-MM-DD)
+    * @param lastDate the last date to generate (YYYY-MM-DD), inclusive
+    * @param seatsTotal SeatsTotal of flights without an earlier instance
+    * @param ticketCost TicketCost of flights without an earlier instance
+    * @return the number of instances created on all shards
+    * @throws java.sql.SQLException when a batch failed; the batches and
+    *         shards before it keep their new instances, and a rerun adds the
+    *         rest
+    */
+   public static int generate(ShardRouter shards, String firstDate, String lastDate,
+                              int seatsTotal, BigDecimal ticketCost) throws SQLException {
+      List<java.sql.Date[]> batches = batches(firstDate, lastDate);
+      int created = 0;
+      for (int shard = 0; shard < shards.count(); ++shard) {
+         // Flight is replicated, so every shard knows all flights
+         List<String> flights = new ArrayList<String>();
+         for (Object[] row : shards.query(shard, "SELECT FlightNumber FROM Flight").rows) {
+            if (shards.shardOf((String) row[0]) == shard)
+               flights.add("'" + ((String) row[0]).replace("'", "''") + "'");
+         }
+         if (flights.isEmpty())
+            continue;
+         String filter = " AND S.FlightNumber IN (" + String.join(", ", flights) + ")";
+         for (java.sql.Date[] batch : batches) {
+            int floor = 0;
+            for (Object[] row : shards.scatter("SELECT COALESCE(MAX(FlightInstanceID), 0) FROM FlightInstance").rows)
+               floor = Math.max(floor, ((Number) row[0]).intValue());
+            created += shards.run(shard, "FlightInstance generation", Connection.TRANSACTION_SERIALIZABLE,
+                                  work(batch[0], batch[1], seatsTotal, ticketCost, filter, floor));
+         }//end for
+      }//end for
+      return created;
+   }//end generate
+
+   /*
+    * Splits a date range into {first, last} batches of at most BATCH_DAYS
+    * dates.
+    */
+   private static List<java.sql.Date[]> batches(String firstDate, String lastDate) {
+      java.time.LocalDate first = java.time.LocalDate.parse(firstDate);
+      java.time.LocalDate last = java.time.LocalDate.parse(lastDate);
+      long days = java.time.temporal.ChronoUnit.DAYS.between(first, last) + 1;
+      if (days < 1 || days > MAX_DAYS)
+         throw new IllegalArgumentException("date range must cover 1 to " + MAX_DAYS + " days");
+      int step = Math.max(BATCH_DAYS, 1);
+      List<java.sql.Date[]> batches = new ArrayList<java.sql.Date[]>();
+      for (java.time.LocalDate start = first; !start.isAfter(last); start = start.plusDays(step)) {
+         java.time.LocalDate end = start.plusDays(step - 1);
+         batches.add(new java.sql.Date[] {java.sql.Date.valueOf(start), java.sql.Date.valueOf(end.isAfter(last) ? last : end)});
+      }
+      return batches;
+   }//end batches
+
+   private static TransactionRunner.Work<Integer> work(final java.sql.Date first, final java.sql.Date last,
+                                                       final int seatsTotal, final BigDecimal ticketCost,
+                                                       final String flightFilter, final int idFloor) {
+      return new TransactionRunner.Work<Integer>() {
+         public Integer run(Connection conn) throws SQLException {
+            PreparedStatement insert = conn.prepareStatement(String.format(GENERATE, flightFilter));
+            insert.setInt(1, seatsTotal);
+            insert.setBigDecimal(2, ticketCost);
+            insert.setDate(3, first);
+            insert.setDate(4, last);
+            insert.setInt(5, idFloor);
+            int created = insert.executeUpdate();
+            insert.close();
+            return created;
+         }
+      };
+   }//end work
+
+}//end FlightInstanceGenerator
@@ -0,0 +1,780 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column-oriented, read-mostly copy of FlightInstance used by the seat
+ * availability and flight search features.
+ *
+ * Rows are sorted by (FlightDate, FlightNumber, FlightInstanceID) and every
+ * column is a primitive array, so a date lookup is a binary search and the
+ * filters are tight loops over int arrays.  Flight numbers are dictionary
+ * encoded in sorted order, so comparing codes is the same as comparing
+ * FlightNumbers.
+ *
+ * The snapshot is persisted to a file, which is written once to a temporary
+ * file and renamed over the old one, so a reader never sees it half
+ * written.  The file records the ChangeLog position the rows reflect: the
+ * highest ChangeID and the oldest transaction still open when the table was
+ * read.  On restart the columns are bulk-copied back into the arrays and
+ * every instance changed after that position (a later ChangeID, or one
+ * written by a transaction that was still open) is re-read, so fare, date
+ * and seat changes made by any client are caught up.  Without the ChangeLog
+ * table the file cannot be checked and the table is re-read.  Changes made
+ * while the program runs are applied in memory only.
+ *
+ */
+public class FlightInstanceSnapshot {
+
+   private static final int MAGIC = 0x46495332; // "FIS2"
+
+   // magic, row count, dictionary size, padding, ChangeLog position, padding
+   private static final int HEADER_BYTES = 40;
+
+   // when more than 1 / RELOAD_FRACTION of the rows changed since the file was
+   // written, reloading the table is cheaper than re-reading them one by one
+   private static final int RELOAD_FRACTION = 8;
+
+   private static final String LOAD_QUERY =
+      "SELECT FlightInstanceID, FlightNumber, FlightDate, SeatsTotal, SeatsSold, " +
+      "DepartedOnTime, ArrivedOnTime, TicketCost " +
+      "FROM FlightInstance WHERE FlightDate IS NOT NULL AND FlightNumber IS NOT NULL";
+
+   // every change committed before this statement has a ChangeID up to the
+   // first column or a TxID from the second on (it was still open)
+   private static final String POSITION_QUERY =
+      "SELECT COALESCE(MAX(ChangeID), 0), txid_snapshot_xmin(txid_current_snapshot()), " +
+      "COALESCE(MIN(ChangeID), 0) FROM ChangeLog";
+
+   private static final String CHANGED_SINCE_QUERY =
+      "SELECT DISTINCT CAST(RowKey AS INTEGER) FROM ChangeLog " +
+      "WHERE TableName = 'flightinstance' AND (ChangeID > ? OR TxID >= ?)";
+
+   // boolean columns: 0 = false, 1 = true, 2 = NULL
+   public static final byte FALSE = 0, TRUE = 1, NULL = 2;
+
+   // sorted dictionary of flight numbers; the code of a flight is its index
+   private String[] flightNumbers;
+
+   // one entry per row, sorted by (day, flight, id)
+   private int rows;
+   private int[] id;
+   private int[] day;          // FlightDate as epoch day
+   private int[] flight;       // FlightNumber dictionary code
+   private int[] seatsTotal;
+   private int[] seatsSold;
+   private long[] costCents;   // TicketCost * 100
+   private byte[] departedOnTime;
+   private byte[] arrivedOnTime;
+
+   // FlightInstanceIDs in ascending order and the row of each, for delta updates
+   private int[] sortedIds;
+   private int[] rowOfSortedId;
+
+   // ChangeLog position the rows reflect (see POSITION_QUERY), or null
+   // when the ChangeLog table is missing
+   private long[] position;
+
+   private FlightInstanceSnapshot() { }
+
+   /**
+    * Opens the snapshot persisted at the given path and catches it up with
+    * the changes logged since it was written, otherwise loads the table and
+    * persists a fresh snapshot there.
+    *
+    * @param pool the pool to borrow a connection from
+    * @param file where the snapshot is persisted
+    * @return the snapshot
+    * @throws java.sql.SQLException when the table cannot be read
+    */
+   public static FlightInstanceSnapshot open(ConnectionPool pool, File file) throws SQLException {
+      Connection conn = pool.borrow();
+      try {
+         FlightInstanceSnapshot snap = null;
+         if (file.exists()) {
+            try {
+               snap = read(file).catchUp(conn, file);
+            } catch (IOException e) {
+               // unreadable or from an older layout; rebuild it below
+               snap = null;
+            }//end try
+         }//end if
+         if (snap != null)
+            return snap;
+         snap = load(conn);
+         snap.persist(file);
+         return snap;
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end open
+
+   /*
+    * Re-reads the instances changed since the snapshot's position and
+    * persists the result when there were any.  Returns null when the table
+    * must be reloaded instead: no ChangeLog, changes after the position
+    * have been pruned, or too many changed.
+    */
+   private FlightInstanceSnapshot catchUp(Connection conn, File file) throws SQLException {
+      long[] now = position(conn);
+      if (now == null || position == null || now[2] > position[0] + 1)
+         return null;
+      List<Integer> changed = new ArrayList<Integer>();
+      PreparedStatement stmt = conn.prepareStatement(CHANGED_SINCE_QUERY);
+      stmt.setLong(1, position[0]);
+      stmt.setLong(2, position[1]);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next())
+         changed.add(rs.getInt(1));
+      stmt.close();
+      if (changed.size() > rows / RELOAD_FRACTION)
+         return null;
+      FlightInstanceSnapshot snap = refresh(conn, changed);
+      snap.position = new long[] {now[0], now[1]};
+      if (!changed.isEmpty())
+         snap.persist(file); // so the next open starts from here
+      return snap;
+   }//end catchUp
+
+   /*
+    * Current ChangeLog position followed by the lowest ChangeID left after
+    * pruning, or null when there is no ChangeLog table.
+    */
+   private static long[] position(Connection conn) {
+      try {
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(POSITION_QUERY);
+            rs.next();
+            return new long[] {rs.getLong(1), rs.getLong(2), rs.getLong(3)};
+         } finally {
+            stmt.close();
+         }//end try
+      } catch (SQLException e) {
+         return null;
+      }//end try
+   }//end position
+
+   /*
+    * Writes the snapshot, keeping it in memory only when that fails.
+    */
+   private void persist(File file) {
+      try {
+         write(file);
+      } catch (IOException e) {
+         System.err.println("Warning: could not persist flight snapshot: " + e.getMessage());
+      }//end try
+   }//end persist
+
+   /*
+    * Reads the whole FlightInstance table into column arrays.
+    */
+   private static FlightInstanceSnapshot load(Connection conn) throws SQLException {
+      FlightInstanceSnapshot snap = new FlightInstanceSnapshot();
+      // read before the table, so every change the rows miss is after it
+      long[] now = position(conn);
+      snap.position = now == null ? null : new long[] {now[0], now[1]};
+      List<String> numbers = new ArrayList<String>();
+      int capacity = 1024, n = 0;
+      int[] id = new int[capacity], day = new int[capacity], seatsTotal = new int[capacity], seatsSold = new int[capacity];
+      String[] flightOf = new String[capacity];
+      long[] cost = new long[capacity];
+      byte[] dep = new byte[capacity], arr = new byte[capacity];
+
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery(LOAD_QUERY);
+      while (rs.next()) {
+         if (n == capacity) {
+            capacity *= 2;
+            id = Arrays.copyOf(id, capacity);
+            day = Arrays.copyOf(day, capacity);
+            seatsTotal = Arrays.copyOf(seatsTotal, capacity);
+            seatsSold = Arrays.copyOf(seatsSold, capacity);
+            flightOf = Arrays.copyOf(flightOf, capacity);
+            cost = Arrays.copyOf(cost, capacity);
+            dep = Arrays.copyOf(dep, capacity);
+            arr = Arrays.copyOf(arr, capacity);
+         }
+         id[n] = rs.getInt(1);
+         flightOf[n] = rs.getString(2);
+         day[n] = (int) rs.getDate(3).toLocalDate().toEpochDay();
+         seatsTotal[n] = rs.getInt(4);
+         seatsSold[n] = rs.getInt(5);
+         dep[n] = bool(rs, 6);
+         arr[n] = bool(rs, 7);
+         BigDecimal ticketCost = rs.getBigDecimal(8);
+         cost[n] = ticketCost == null ? -1 : ticketCost.movePointRight(2).longValue();
+         ++n;
+      }//end while
+      stmt.close();
+
+      // dictionary in sorted order, so code order is FlightNumber order
+      for (int r = 0; r < n; ++r)
+         numbers.add(flightOf[r]);
+      String[] dict = new java.util.TreeSet<String>(numbers).toArray(new String[0]);
+      final int[] code = new int[n];
+      for (int r = 0; r < n; ++r)
+         code[r] = Arrays.binarySearch(dict, flightOf[r]);
+
+      // sort rows by (day, flight code, id) here rather than trusting the server's collation
+      final int[] dayOf = day, idOf = id;
+      Integer[] order = new Integer[n];
+      for (int r = 0; r < n; ++r)
+         order[r] = r;
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            if (dayOf[a] != dayOf[b])
+               return Integer.compare(dayOf[a], dayOf[b]);
+            if (code[a] != code[b])
+               return Integer.compare(code[a], code[b]);
+            return Integer.compare(idOf[a], idOf[b]);
+         }
+      });
+
+      snap.flightNumbers = dict;
+      snap.rows = n;
+      snap.id = new int[n];
+      snap.day = new int[n];
+      snap.flight = new int[n];
+      snap.seatsTotal = new int[n];
+      snap.seatsSold = new int[n];
+      snap.costCents = new long[n];
+      snap.departedOnTime = new byte[n];
+      snap.arrivedOnTime = new byte[n];
+      for (int i = 0; i < n; ++i) {
+         int r = order[i];
+         snap.id[i] = id[r];
+         snap.day[i] = day[r];
+         snap.flight[i] = code[r];
+         snap.seatsTotal[i] = seatsTotal[r];
+         snap.seatsSold[i] = seatsSold[r];
+         snap.costCents[i] = cost[r];
+         snap.departedOnTime[i] = dep[r];
+         snap.arrivedOnTime[i] = arr[r];
+      }
+      snap.indexIds();
+      return snap;
+   }//end load
+
+   private static byte bool(ResultSet rs, int col) throws SQLException {
+      boolean value = rs.getBoolean(col);
+      return rs.wasNull() ? NULL : (value ? TRUE : FALSE);
+   }
+
+   /*
+    * Builds the id -> row lookup used by delta updates.
+    */
+   private void indexIds() {
+      Integer[] order = new Integer[rows];
+      for (int r = 0; r < rows; ++r)
+         order[r] = r;
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return Integer.compare(id[a], id[b]);
+         }
+      });
+      sortedIds = new int[rows];
+      rowOfSortedId = new int[rows];
+      for (int i = 0; i < rows; ++i) {
+         rowOfSortedId[i] = order[i];
+         sortedIds[i] = id[order[i]];
+      }
+   }//end indexIds
+
+   // ------------------------------------------------------------------
+   // persistence
+   // ------------------------------------------------------------------
+
+   /*
+    * Byte offsets of the columns in the persisted file.  Longs come first so
+    * every column stays naturally aligned.
+    */
+   private static long costOffset()                  { return HEADER_BYTES; }
+   private static long idOffset(int n)               { return costOffset() + 8L * n; }
+   private static long dayOffset(int n)              { return idOffset(n) + 4L * n; }
+   private static long flightOffset(int n)           { return dayOffset(n) + 4L * n; }
+   private static long seatsTotalOffset(int n)       { return flightOffset(n) + 4L * n; }
+   private static long seatsSoldOffset(int n)        { return seatsTotalOffset(n) + 4L * n; }
+   private static long departedOffset(int n)         { return seatsSoldOffset(n) + 4L * n; }
+   private static long arrivedOffset(int n)          { return departedOffset(n) + n; }
+   private static long dictionaryOffset(int n)       { return arrivedOffset(n) + n; }
+
+   /*
+    * Writes the snapshot to a temporary file next to the given one and
+    * renames it over it.  Columns are written at long offsets, so the file
+    * may exceed 2 GB.
+    */
+   private void write(File file) throws IOException {
+      byte[][] names = new byte[flightNumbers.length][];
+      int dictBytes = 0;
+      for (int i = 0; i < names.length; ++i) {
+         names[i] = flightNumbers[i].getBytes(StandardCharsets.UTF_8);
+         dictBytes += 2 + names[i].length;
+      }
+
+      File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+      try {
+         FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+         try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(0, MAGIC);
+            header.putInt(4, rows);
+            header.putInt(8, flightNumbers.length);
+            header.putLong(16, position == null ? -1 : position[0]);
+            header.putLong(24, position == null ? -1 : position[1]);
+            writeFully(ch, header, 0);
+            ByteBuffer longs = ByteBuffer.allocate(8 * rows);
+            longs.asLongBuffer().put(costCents);
+            writeFully(ch, longs, costOffset());
+            writeInts(ch, id, idOffset(rows));
+            writeInts(ch, day, dayOffset(rows));
+            writeInts(ch, flight, flightOffset(rows));
+            writeInts(ch, seatsTotal, seatsTotalOffset(rows));
+            writeInts(ch, seatsSold, seatsSoldOffset(rows));
+            writeFully(ch, ByteBuffer.wrap(departedOnTime), departedOffset(rows));
+            writeFully(ch, ByteBuffer.wrap(arrivedOnTime), arrivedOffset(rows));
+            ByteBuffer dict = ByteBuffer.allocate(dictBytes);
+            for (byte[] name : names) {
+               dict.putShort((short) name.length);
+               dict.put(name);
+            }
+            dict.flip();
+            writeFully(ch, dict, dictionaryOffset(rows));
+            ch.force(true);
+         } finally {
+            ch.close();
+         }//end try
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+         tmp.delete(); // only still there when the write failed
+      }//end try
+   }//end write
+
+   private static void writeInts(FileChannel ch, int[] values, long offset) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(4 * values.length);
+      buf.asIntBuffer().put(values);
+      writeFully(ch, buf, offset);
+   }//end writeInts
+
+   private static void writeFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+      while (buf.hasRemaining())
+         offset += ch.write(buf, offset);
+   }//end writeFully
+
+   /*
+    * Reads a persisted snapshot, bulk-copying each column into its array.
+    */
+   private static FlightInstanceSnapshot read(File file) throws IOException {
+      FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         long length = ch.size();
+         if (length < HEADER_BYTES)
+            throw new IOException("not a flight snapshot");
+         ByteBuffer header = readFully(ch, 0, HEADER_BYTES);
+         if (header.getInt(0) != MAGIC)
+            throw new IOException("not a flight snapshot");
+         FlightInstanceSnapshot snap = new FlightInstanceSnapshot();
+         int n = snap.rows = header.getInt(4);
+         int dictSize = header.getInt(8);
+         if (header.getLong(16) >= 0)
+            snap.position = new long[] {header.getLong(16), header.getLong(24)};
+         if (n < 0 || dictSize < 0 || dictionaryOffset(n) > length)
+            throw new IOException("truncated flight snapshot");
+
+         snap.costCents = new long[n];
+         snap.id = new int[n];
+         snap.day = new int[n];
+         snap.flight = new int[n];
+         snap.seatsTotal = new int[n];
+         snap.seatsSold = new int[n];
+         readFully(ch, costOffset(), 8 * n).asLongBuffer().get(snap.costCents);
+         readFully(ch, idOffset(n), 4 * n).asIntBuffer().get(snap.id);
+         readFully(ch, dayOffset(n), 4 * n).asIntBuffer().get(snap.day);
+         readFully(ch, flightOffset(n), 4 * n).asIntBuffer().get(snap.flight);
+         readFully(ch, seatsTotalOffset(n), 4 * n).asIntBuffer().get(snap.seatsTotal);
+         readFully(ch, seatsSoldOffset(n), 4 * n).asIntBuffer().get(snap.seatsSold);
+         snap.departedOnTime = readFully(ch, departedOffset(n), n).array();
+         snap.arrivedOnTime = readFully(ch, arrivedOffset(n), n).array();
+         ByteBuffer dict = readFully(ch, dictionaryOffset(n), (int) (length - dictionaryOffset(n)));
+         snap.flightNumbers = new String[dictSize];
+         for (int i = 0; i < dictSize; ++i) {
+            byte[] name = new byte[dict.getShort()];
+            dict.get(name);
+            snap.flightNumbers[i] = new String(name, StandardCharsets.UTF_8);
+         }
+         snap.indexIds();
+         return snap;
+      } catch (RuntimeException e) {
+         throw new IOException("corrupt flight snapshot: " + e);
+      } finally {
+         ch.close();
+      }//end try
+   }//end read
+
+   private static ByteBuffer readFully(FileChannel ch, long offset, int bytes) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(bytes);
+      while (buf.hasRemaining()) {
+         if (ch.read(buf, offset + buf.position()) < 0)
+            throw new IOException("truncated flight snapshot");
+      }
+      buf.flip();
+      return buf;
+   }//end readFully
+
+   // ------------------------------------------------------------------
+   // delta updates
+   // ------------------------------------------------------------------
+
+   /**
+    * Applies a change of SeatsSold made by a booking of this program.  The
+    * persisted file is not touched; the booking's ChangeLog row brings it up
+    * to date on the next open.
+    *
+    * @param flightInstanceId the booked flight instance
+    * @param delta the change of SeatsSold (e.g. +1 for one reserved seat)
+    * @return false if the instance is not in the snapshot
+    */
+   public synchronized boolean applySeatsSold(int flightInstanceId, int delta) {
+      int row = rowOf(flightInstanceId);
+      if (row < 0)
+         return false;
+      seatsSold[row] += delta;
+      return true;
+   }//end applySeatsSold
+
+   /**
+    * Re-reads the given instances.  Seats, fare and on-time flags are
+    * updated in place.  When instances were inserted or deleted, or a date
+    * or flight number changed, the sort order changes: the rows are then
+    * merged into a copy, so callers holding row numbers of this snapshot
+    * keep a consistent view, and the copy is returned.
+    *
+    * @param conn the connection to read on
+    * @param flightInstanceIds the instances that changed
+    * @return this snapshot, or the copy with the rows merged in
+    * @throws java.sql.SQLException when the rows cannot be read
+    */
+   public synchronized FlightInstanceSnapshot refresh(Connection conn, java.util.Collection<Integer> flightInstanceIds) throws SQLException {
+      if (flightInstanceIds.isEmpty())
+         return this;
+      StringBuilder in = new StringBuilder();
+      for (int fid : flightInstanceIds)
+         in.append(in.length() == 0 ? "" : ",").append(fid);
+
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery(LOAD_QUERY + " AND FlightInstanceID IN (" + in + ")");
+      boolean[] drop = new boolean[rows];
+      java.util.Set<Integer> seen = new java.util.HashSet<Integer>();
+      List<Object[]> moved = new ArrayList<Object[]>();
+      while (rs.next()) {
+         int fid = rs.getInt(1);
+         int row = rowOf(fid);
+         String number = rs.getString(2);
+         int date = (int) rs.getDate(3).toLocalDate().toEpochDay();
+         BigDecimal ticketCost = rs.getBigDecimal(8);
+         long cents = ticketCost == null ? -1L : ticketCost.movePointRight(2).longValue();
+         seen.add(fid);
+         if (row >= 0 && flightNumbers[flight[row]].equals(number) && day[row] == date) {
+            seatsTotal[row] = rs.getInt(4);
+            seatsSold[row] = rs.getInt(5);
+            departedOnTime[row] = bool(rs, 6);
+            arrivedOnTime[row] = bool(rs, 7);
+            costCents[row] = cents;
+         } else {
+            if (row >= 0)
+               drop[row] = true;
+            moved.add(new Object[] {fid, number, date, rs.getInt(4), rs.getInt(5), bool(rs, 6), bool(rs, 7), cents});
+         }//end if
+      }//end while
+      stmt.close();
+
+      int dropped = 0;
+      for (int fid : flightInstanceIds) {
+         int row = rowOf(fid);
+         if (row >= 0 && !seen.contains(fid))
+            drop[row] = true; // deleted, or its date or flight number became NULL
+      }//end for
+      for (boolean d : drop)
+         dropped += d ? 1 : 0;
+      if (dropped == 0 && moved.isEmpty())
+         return this;
+      return merge(drop, dropped, moved);
+   }//end refresh
+
+   /*
+    * A copy without the dropped rows and with the added ones, which are
+    * {id, flight number, epoch day, seats total, seats sold, departed,
+    * arrived, cost cents}, merged in at their sorted positions.
+    */
+   private FlightInstanceSnapshot merge(boolean[] drop, int dropped, List<Object[]> added) {
+      java.util.TreeSet<String> numbers = new java.util.TreeSet<String>(Arrays.asList(flightNumbers));
+      for (Object[] a : added)
+         numbers.add((String) a[1]);
+      String[] dict = numbers.toArray(new String[0]);
+      int[] recode = new int[flightNumbers.length];
+      for (int c = 0; c < recode.length; ++c)
+         recode[c] = Arrays.binarySearch(dict, flightNumbers[c]);
+
+      final int[] code = new int[added.size()];
+      for (int i = 0; i < code.length; ++i)
+         code[i] = Arrays.binarySearch(dict, (String) added.get(i)[1]);
+      final List<Object[]> rowsAdded = added;
+      Integer[] order = new Integer[added.size()];
+      for (int i = 0; i < order.length; ++i)
+         order[i] = i;
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return compareKey((Integer) rowsAdded.get(a)[2], code[a], (Integer) rowsAdded.get(a)[0],
+                              (Integer) rowsAdded.get(b)[2], code[b], (Integer) rowsAdded.get(b)[0]);
+         }
+      });
+
+      FlightInstanceSnapshot snap = new FlightInstanceSnapshot();
+      int n = rows - dropped + added.size();
+      snap.flightNumbers = dict;
+      snap.rows = n;
+      snap.id = new int[n];
+      snap.day = new int[n];
+      snap.flight = new int[n];
+      snap.seatsTotal = new int[n];
+      snap.seatsSold = new int[n];
+      snap.costCents = new long[n];
+      snap.departedOnTime = new byte[n];
+      snap.arrivedOnTime = new byte[n];
+      snap.position = position;
+      int r = 0, a = 0;
+      for (int i = 0; i < n; ++i) {
+         while (r < rows && drop[r])
+            ++r;
+         boolean takeOld = a == order.length
+            || (r < rows && compareKey(day[r], recode[flight[r]], id[r],
+                                       (Integer) added.get(order[a])[2], code[order[a]], (Integer) added.get(order[a])[0]) < 0);
+         if (takeOld) {
+            snap.id[i] = id[r];
+            snap.day[i] = day[r];
+            snap.flight[i] = recode[flight[r]];
+            snap.seatsTotal[i] = seatsTotal[r];
+            snap.seatsSold[i] = seatsSold[r];
+            snap.costCents[i] = costCents[r];
+            snap.departedOnTime[i] = departedOnTime[r];
+            snap.arrivedOnTime[i] = arrivedOnTime[r];
+            ++r;
+         } else {
+            Object[] row = added.get(order[a]);
+            snap.id[i] = (Integer) row[0];
+            snap.day[i] = (Integer) row[2];
+            snap.flight[i] = code[order[a]];
+            snap.seatsTotal[i] = (Integer) row[3];
+            snap.seatsSold[i] = (Integer) row[4];
+            snap.departedOnTime[i] = (Byte) row[5];
+            snap.arrivedOnTime[i] = (Byte) row[6];
+            snap.costCents[i] = (Long) row[7];
+            ++a;
+         }//end if
+      }//end for
+      snap.indexIds();
+      return snap;
+   }//end merge
+
+   private static int compareKey(int dayA, int codeA, int idA, int dayB, int codeB, int idB) {
+      if (dayA != dayB)
+         return Integer.compare(dayA, dayB);
+      if (codeA != codeB)
+         return Integer.compare(codeA, codeB);
+      return Integer.compare(idA, idB);
+   }//end compareKey
+
+   /*
+    * Row of a FlightInstanceID, or -1.
+    */
+   private int rowOf(int flightInstanceId) {
+      int i = Arrays.binarySearch(sortedIds, flightInstanceId);
+      return i < 0 ? -1 : rowOfSortedId[i];
+   }//end rowOf
+
+   // ------------------------------------------------------------------
+   // queries
+   // ------------------------------------------------------------------
+
+   /**
+    * Returns the dictionary code of a flight number, or -1 if no instance of
+    * that flight is in the snapshot.
+    *
+    * @param flightNumber the flight number
+    * @return the code
+    */
+   public int flightCode(String flightNumber) {
+      int code = Arrays.binarySearch(flightNumbers, flightNumber);
+      return code < 0 ? -1 : code;
+   }//end flightCode
+
+   /**
+    * Returns the rows of a flight, optionally restricted to one date, in
+    * (FlightDate, FlightInstanceID) order.
+    *
+    * @param flightNumber the flight number
+    * @param date the flight date (YYYY-MM-DD), or null for all dates
+    * @return the matching rows
+    */
+   public synchronized int[] rowsOfFlight(String flightNumber, String date) {
+      int code = flightCode(flightNumber);
+      if (code < 0)
+         return new int[0];
+      int lo = 0, hi = rows;
+      if (date != null) {
+         int d = (int) java.time.LocalDate.parse(date).toEpochDay();
+         lo = lowerBound(d);
+         hi = lowerBound(d + 1);
+      }
+      int[] match = new int[hi - lo];
+      int n = 0;
+      for (int r = lo; r < hi; ++r)
+         if (flight[r] == code)
+            match[n++] = r;
+      return Arrays.copyOf(match, n);
+   }//end rowsOfFlight
+
+   /**
+    * Returns the rows of a date range whose flight is in the given set and
+    * that have at least the given number of free seats.
+    *
+    * @param flights the flight numbers to accept
+    * @param fromDate the first date (YYYY-MM-DD)
+    * @param toDate the last date (YYYY-MM-DD), inclusive
+    * @param minSeats the number of seats required
+    * @return the matching rows in (FlightDate, FlightNumber) order
+    */
+   public int[] available(java.util.Collection<String> flights, String fromDate, String toDate, int minSeats) {
+      return available(flights, fromDate, toDate, minSeats, -1, Long.MAX_VALUE);
+   }//end available
+
+   /**
+    * Returns the rows of a date range whose flight is in the given set, that
+    * have at least the given number of free seats and whose ticket cost is
+    * within the bounds.  Rows without a cost only match when both bounds
+    * are open.
+    *
+    * @param flights the flight numbers to accept
+    * @param fromDate the first date (YYYY-MM-DD)
+    * @param toDate the last date (YYYY-MM-DD), inclusive
+    * @param minSeats the number of seats required
+    * @param minCents the lowest cost in cents, or -1 for no bound
+    * @param maxCents the highest cost in cents, or Long.MAX_VALUE for no bound
+    * @return the matching rows in (FlightDate, FlightNumber) order
+    */
+   public synchronized int[] available(java.util.Collection<String> flights, String fromDate, String toDate, int minSeats,
+                                       long minCents, long maxCents) {
+      boolean open = minCents < 0 && maxCents == Long.MAX_VALUE;
+      boolean[] wanted = new boolean[flightNumbers.length];
+      for (String f : flights) {
+         int code = flightCode(f);
+         if (code >= 0)
+            wanted[code] = true;
+      }
+      int lo = lowerBound((int) java.time.LocalDate.parse(fromDate).toEpochDay());
+      int hi = lowerBound((int) java.time.LocalDate.parse(toDate).toEpochDay() + 1);
+      int[] match = new int[Math.max(0, hi - lo)];
+      int n = 0;
+      for (int r = lo; r < hi; ++r)
+         if (wanted[flight[r]] && seatsTotal[r] - seatsSold[r] >= minSeats
+             && (costCents[r] < 0 ? open : costCents[r] >= minCents && costCents[r] <= maxCents))
+            match[n++] = r;
+      return Arrays.copyOf(match, n);
+   }//end available
+
+   /**
+    * Returns all rows of one date in FlightNumber order.
+    *
+    * @param date the flight date (YYYY-MM-DD)
+    * @return the rows
+    */
+   public synchronized int[] rowsOfDate(String date) {
+      int d = (int) java.time.LocalDate.parse(date).toEpochDay();
+      int lo = lowerBound(d), hi = lowerBound(d + 1);
+      int[] match = new int[hi - lo];
+      for (int r = lo; r < hi; ++r)
+         match[r - lo] = r;
+      return match;
+   }//end rowsOfDate
+
+   /*
+    * First row whose day is >= d.
+    */
+   private int lowerBound(int d) {
+      int lo = 0, hi = rows;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (day[mid] < d)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }//end lowerBound
+
+   // column accessors for a row returned by the queries above
+   public int id(int row)                 { return id[row]; }
+   public String flightNumber(int row)    { return flightNumbers[flight[row]]; }
+   public String date(int row)            { return java.time.LocalDate.ofEpochDay(day[row]).toString(); }
+   public int seatsTotal(int row)         { return seatsTotal[row]; }
+   public synchronized int seatsSold(int row) { return seatsSold[row]; }
+   public long costCents(int row)         { return costCents[row]; }
+   public String cost(int row)            { return costCents[row] < 0 ? null : BigDecimal.valueOf(costCents[row], 2).toPlainString(); }
+   public String departedOnTime(int row)  { return flag(departedOnTime[row]); }
+   public String arrivedOnTime(int row)   { return flag(arrivedOnTime[row]); }
+
+   /*
+    * Prints booleans the way the JDBC driver returns them as strings.
+    */
+   private static String flag(byte value) {
+      return value == NULL ? null : (value == TRUE ? "t" : "f");
+   }
+
+   /**
+    * Returns the day-of-week name of a row's date as stored in Schedule.
+    *
+    * @param row the row
+    * @return e.g. Monday
+    */
+   public String dayOfWeek(int row) {
+      return java.time.LocalDate.ofEpochDay(day[row]).getDayOfWeek()
+                .getDisplayName(java.time.format.TextStyle.FULL, java.util.Locale.ENGLISH);
+   }//end dayOfWeek
+
+   /**
+    * Returns the number of rows in the snapshot.
+    *
+    * @return the row count
+    */
+   public int size() {
+      return rows;
+   }
+
+}//end FlightInstanceSnapshot
@@ -0,0 +1,457 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for the booking, search, manifest and repair code paths.
+ * Every simulated user is a thread that repeatedly picks an operation from
+ * the configured mix, runs it on a pooled connection and records its
+ * latency.  Flight instances are picked from a Zipf distribution, so a few
+ * hot flights take most bookings and manifests, as on a sale.
+ *
+ * The application's circuit breaker is turned off for the run: the test
+ * measures the database under overload, so calls must reach it instead
+ * of being rejected once a few have timed out.
+ *
+ * After the run the report gives throughput and p50/p99 latency per
+ * operation, the errors by kind, and checks the invariants the
+ * transactions must keep under contention:
+ *    - no FlightInstance has SeatsSold > SeatsTotal;
+ *    - no ReservationID exists twice, across all shards;
+ *    - every reservation the test was told about exists;
+ *    - the SeatsSold of each booked instance grew by exactly the seats the
+ *      test booked (only meaningful when nothing else writes meanwhile).
+ *
+ * The test writes real reservations and repairs; run it on a copy of the
+ * data.
+ *
+ */
+public class LoadTest {
+
+   // the operations of the mix, in report order
+   public static final String[] OPERATIONS = {"book", "search", "manifest", "repair"};
+   private static final int BOOK = 0, SEARCH = 1, MANIFEST = 2, REPAIR = 3;
+
+   // mix used when none is given, as <operation>:<weight>
+   public static final String DEFAULT_MIX = "book:40,search:40,manifest:10,repair:10";
+
+   // skew of the flight popularity: rank k is picked with weight 1/k^ZIPF_EXPONENT
+   public static final double ZIPF_EXPONENT = 1.1;
+
+   // connections per shard shared by the simulated users
+   public static final int MAX_CONNECTIONS = 50;
+
+   // seed of the flight popularity order, so runs are comparable
+   public static final long POPULARITY_SEED = 166;
+
+   // future flight instances with their route, or all instances when none is in the future
+   private static final String INSTANCES_QUERY =
+      "SELECT FI.FlightInstanceID, FI.FlightNumber, FI.FlightDate, FI.SeatsSold, F.DepartureCity, F.ArrivalCity " +
+      "FROM FlightInstance FI INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "WHERE FI.FlightDate >= CURRENT_DATE OR NOT EXISTS (SELECT 1 FROM FlightInstance WHERE FlightDate >= CURRENT_DATE)";
+
+   /*
+    * Draws ranks 0..n-1 with probability proportional to 1/(rank+1)^s.
+    */
+   static class Zipf {
+      private final double[] cdf;
+
+      Zipf(int n, double s) {
+         cdf = new double[n];
+         double sum = 0;
+         for (int k = 0; k < n; ++k) {
+            sum += 1.0 / Math.pow(k + 1, s);
+            cdf[k] = sum;
+         }
+      }
+
+      int next(Random random) {
+         int k = Arrays.binarySearch(cdf, random.nextDouble() * cdf[cdf.length - 1]);
+         return Math.min(k < 0 ? -k - 1 : k, cdf.length - 1);
+      }
+   }//end Zipf
+
+   /*
+    * Latencies and errors of one operation.
+    */
+   static class Latencies {
+      private long[] nanos = new long[1024];
+      private int count = 0;
+      private int errors = 0;
+      private final Map<String, Integer> errorKinds = new TreeMap<String, Integer>();
+
+      synchronized void record(long elapsed) {
+         if (count == nanos.length)
+            nanos = Arrays.copyOf(nanos, count * 2);
+         nanos[count++] = elapsed;
+      }
+
+      synchronized void error(long elapsed, SQLException e) {
+         record(elapsed);
+         ++errors;
+         String kind = kind(e);
+         Integer seen = errorKinds.get(kind);
+         errorKinds.put(kind, seen == null ? 1 : seen + 1);
+      }
+
+      /*
+       * Names the kind of a failure.  The 7.3 driver reports server errors
+       * without a SQLState, so the exception type and message decide.
+       */
+      static String kind(SQLException e) {
+         if (e instanceof QueryGuard.Rejected)
+            return "rejected";
+         if (TransactionRunner.isRetryable(e))
+            return "conflict";
+         if (QueryGuard.isLockTimeout(e))
+            return "lock timeout";
+         if (QueryGuard.isTimeout(e))
+            return "timeout";
+         if (ConnectionPool.isConnectionLost(e, null))
+            return "connection";
+         if (e.getSQLState() != null)
+            return "SQLState " + e.getSQLState();
+         // the first line of the message, with the numbers blanked out so like errors count together
+         String line = String.valueOf(e.getMessage()).split("\n")[0].replaceAll("[0-9]+", "#");
+         return line.length() > 60 ? line.substring(0, 60) : line;
+      }
+
+      // nearest-rank percentile in milliseconds
+      synchronized double percentile(double p) {
+         if (count == 0)
+            return 0;
+         long[] sorted = Arrays.copyOf(nanos, count);
+         Arrays.sort(sorted);
+         return sorted[Math.max(0, (int) Math.ceil(p * count) - 1)] / 1e6;
+      }
+   }//end Latencies
+
+   private final AirlineManagement esql;
+   private final ShardRouter shards;
+   private final ConnectionPool[] pools;
+   private final int[] weights;
+
+   // flight instances in popularity order
+   private final List<Object[]> instances = new ArrayList<Object[]>();
+   private final Zipf popularity;
+   private final int[] customers;
+   private final List<String> planes = new ArrayList<String>();
+   private final List<String> technicians = new ArrayList<String>();
+   private final List<String> repairCodes = new ArrayList<String>();
+
+   private final Latencies[] latencies = new Latencies[OPERATIONS.length];
+   private final ConcurrentHashMap<Integer, AtomicInteger> seatsBooked = new ConcurrentHashMap<Integer, AtomicInteger>();
+   private final Set<String> reservations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final AtomicInteger duplicatesReturned = new AtomicInteger();
+
+   /**
+    * Prepares a load test: parses the mix and loads the flight instances,
+    * customers, planes and technicians the simulated users pick from.
+    *
+    * @param esql the application whose code paths are driven
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    * @param users the number of simulated users, which bounds the connections
+    * @param mix the operation weights, e.g. DEFAULT_MIX
+    * @throws java.sql.SQLException when the test data cannot be loaded
+    */
+   public LoadTest(AirlineManagement esql, String user, String passwd, int users, String mix) throws SQLException {
+      this.esql = esql;
+      this.shards = esql.getShards();
+      // bookingWork runs its statements through the application's guard
+      esql.getQueryGuard().setBreakerEnabled(false);
+      this.weights = parseMix(mix);
+      this.pools = new ConnectionPool[shards.count()];
+      for (int shard = 0; shard < pools.length; ++shard)
+         pools[shard] = new ConnectionPool(shards.url(shard), user, passwd, Math.min(users, MAX_CONNECTIONS));
+      for (int i = 0; i < latencies.length; ++i)
+         latencies[i] = new Latencies();
+
+      instances.addAll(shards.scatter(INSTANCES_QUERY).rows);
+      if (instances.isEmpty())
+         throw new IllegalArgumentException("there are no flight instances to book");
+      ShardRouter.sort(instances, new int[] {1}, false);
+      Collections.shuffle(instances, new Random(POPULARITY_SEED));
+      popularity = new Zipf(instances.size(), ZIPF_EXPONENT);
+
+      List<Object[]> customerRows = shards.query(0, "SELECT CustomerID FROM Customer").rows;
+      if (customerRows.isEmpty())
+         throw new IllegalArgumentException("there are no customers to book for");
+      customers = new int[customerRows.size()];
+      for (int i = 0; i < customers.length; ++i)
+         customers[i] = ((Number) customerRows.get(i)[0]).intValue();
+      for (Object[] row : shards.query(0, "SELECT PlaneID FROM Plane").rows)
+         planes.add((String) row[0]);
+      for (Object[] row : shards.query(0, "SELECT TechnicianID FROM Technician").rows)
+         technicians.add((String) row[0]);
+      for (Object[] row : shards.query(0, "SELECT DISTINCT RepairCode FROM Repair WHERE RepairCode IS NOT NULL").rows)
+         repairCodes.add((String) row[0]);
+      if (weights[REPAIR] > 0 && (planes.isEmpty() || technicians.isEmpty() || repairCodes.isEmpty()))
+         throw new IllegalArgumentException("repair needs planes, technicians and earlier repairs");
+   }//end LoadTest
+
+   /*
+    * Parses <operation>:<weight>,... into weights in OPERATIONS order.
+    */
+   private static int[] parseMix(String mix) {
+      int[] result = new int[OPERATIONS.length];
+      int total = 0;
+      for (String part : mix.split(",")) {
+         String[] pair = part.trim().split(":");
+         int op = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+         if (pair.length != 2 || op < 0)
+            throw new IllegalArgumentException("mix must be <operation>:<weight>,... with operations " +
+                                               String.join(", ", OPERATIONS));
+         result[op] = Integer.parseInt(pair[1].trim());
+         if (result[op] < 0)
+            throw new IllegalArgumentException("weights cannot be negative");
+         total += result[op];
+      }
+      if (total == 0)
+         throw new IllegalArgumentException("the mix needs a positive weight");
+      return result;
+   }//end parseMix
+
+   /**
+    * Runs the simulated users and prints the report.
+    *
+    * @param users the number of simulated users
+    * @param seconds how long the users keep issuing operations
+    * @param thinkMillis the longest random pause of a user between operations
+    * @return true when every invariant held
+    * @throws java.sql.SQLException when the invariants cannot be checked
+    */
+   public boolean run(int users, int seconds, final int thinkMillis) throws SQLException {
+      final long deadline = System.currentTimeMillis() + seconds * 1000L;
+      final CountDownLatch done = new CountDownLatch(users);
+      for (int i = 0; i < users; ++i) {
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  simulateUser(deadline, thinkMillis);
+               } finally {
+                  done.countDown();
+               }
+            }
+         }, "load-user-" + i);
+         t.setDaemon(true);
+         t.start();
+      }
+      try {
+         done.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the simulated users");
+      }//end try
+      long elapsed = seconds * 1000L + Math.max(0, System.currentTimeMillis() - deadline);
+      report(users, elapsed);
+      boolean ok = checkInvariants();
+      for (ConnectionPool pool : pools)
+         pool.close();
+      return ok;
+   }//end run
+
+   private void simulateUser(long deadline, int thinkMillis) {
+      Random random = ThreadLocalRandom.current();
+      int total = 0;
+      for (int weight : weights)
+         total += weight;
+      while (System.currentTimeMillis() < deadline) {
+         int pick = random.nextInt(total);
+         int op = 0;
+         while (pick >= weights[op])
+            pick -= weights[op++];
+         long start = System.nanoTime();
+         try {
+            execute(op, random);
+            latencies[op].record(System.nanoTime() - start);
+         } catch (SQLException e) {
+            latencies[op].error(System.nanoTime() - start, e);
+         }//end try
+         if (thinkMillis > 0) {
+            try {
+               Thread.sleep(random.nextInt(thinkMillis + 1));
+            } catch (InterruptedException e) {
+               return;
+            }//end try
+         }
+      }//end while
+   }//end simulateUser
+
+   private void execute(int op, Random random) throws SQLException {
+      Object[] instance = instances.get(popularity.next(random));
+      int flightInstanceId = ((Number) instance[0]).intValue();
+      int shard = shards.shardOf((String) instance[1]);
+      switch (op) {
+         case BOOK: {
+            int customerId = customers[random.nextInt(customers.length)];
+            String[] booked = onShard(shard, new Task<String[]>() {
+               public String[] run(Connection conn, TransactionRunner tx) throws SQLException {
+                  return tx.run("FlightInstance " + flightInstanceId, Connection.TRANSACTION_SERIALIZABLE,
+                                AirlineManagement.bookingWork(esql, shard, customerId, flightInstanceId, true));
+               }
+            });
+            if (!reservations.add(booked[0]))
+               duplicatesReturned.incrementAndGet();
+            if (booked[1].equals("reserved")) {
+               seatsBooked.putIfAbsent(flightInstanceId, new AtomicInteger());
+               seatsBooked.get(flightInstanceId).incrementAndGet();
+            }
+            break;
+         }
+         case SEARCH: {
+            // a search spans every shard, like the menu's search
+            final String query = AirlineManagement.searchQuery((String) instance[4], (String) instance[5],
+                                                               instance[2].toString(), 1, "", " ORDER BY S.DepartureTime");
+            for (int s = 0; s < pools.length; ++s)
+               onShard(s, drain(query));
+            break;
+         }
+         case MANIFEST:
+            onShard(shard, drain(AirlineManagement.manifestQuery(flightInstanceId)));
+            break;
+         default: {
+            final String planeId = planes.get(random.nextInt(planes.size()));
+            final String repairCode = repairCodes.get(random.nextInt(repairCodes.size()));
+            final String technicianId = technicians.get(random.nextInt(technicians.size()));
+            onShard(0, new Task<Integer>() {
+               public Integer run(Connection conn, TransactionRunner tx) throws SQLException {
+                  return RepairLog.logRepair(tx, planeId, repairCode, java.time.LocalDate.now().toString(),
+                                             technicianId, null);
+               }
+            });
+            break;
+         }
+      }//end switch
+   }//end execute
+
+   private interface Task<T> {
+      T run(Connection conn, TransactionRunner tx) throws SQLException;
+   }//end Task
+
+   /*
+    * Runs a task on a pooled connection of a shard.  Its transactions are
+    * counted with the application's, so the contended flights show up in
+    * the hot spot report on exit.
+    */
+   private <T> T onShard(int shard, Task<T> task) throws SQLException {
+      Connection conn = pools[shard].borrow();
+      try {
+         return task.run(conn, new TransactionRunner(conn, esql.getTransactionRunner().getMetrics()));
+      } finally {
+         pools[shard].release(conn);
+      }//end try
+   }//end onShard
+
+   private static Task<Integer> drain(final String query) {
+      return new Task<Integer>() {
+         public Integer run(Connection conn, TransactionRunner tx) throws SQLException {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(query);
+            int rows = 0;
+            while (rs.next())
+               ++rows;
+            stmt.close();
+            return rows;
+         }
+      };
+   }//end drain
+
+   private void report(int users, long elapsedMillis) {
+      System.out.println("Load test: " + users + " users for " + (elapsedMillis / 1000.0) + " s over " +
+                         instances.size() + " flight instances (Zipf " + ZIPF_EXPONENT + ")");
+      System.out.println("operation\tcount\terrors\tops/s\tp50 ms\tp99 ms\tmax ms");
+      long count = 0;
+      long errors = 0;
+      for (int op = 0; op < OPERATIONS.length; ++op) {
+         Latencies l = latencies[op];
+         synchronized (l) {
+            if (l.count == 0)
+               continue;
+            System.out.println(String.format("%s\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f", OPERATIONS[op], l.count, l.errors,
+                                             l.count * 1000.0 / elapsedMillis, l.percentile(0.50),
+                                             l.percentile(0.99), l.percentile(1.0)));
+            count += l.count;
+            errors += l.errors;
+            if (!l.errorKinds.isEmpty())
+               System.out.println("  errors by kind: " + l.errorKinds);
+         }
+      }//end for
+      System.out.println(String.format("total\t%d\t%d\t%.1f", count, errors, count * 1000.0 / elapsedMillis));
+   }//end report
+
+   private boolean checkInvariants() throws SQLException {
+      int oversold = 0;
+      for (Object[] row : shards.scatter("SELECT COUNT(*) FROM FlightInstance WHERE SeatsSold > SeatsTotal").rows)
+         oversold += ((Number) row[0]).intValue();
+
+      Set<String> existing = new HashSet<String>();
+      int duplicates = duplicatesReturned.get();
+      for (Object[] row : shards.scatter("SELECT ReservationID FROM Reservation").rows) {
+         if (!existing.add((String) row[0]))
+            ++duplicates;
+      }
+      int missing = 0;
+      for (String reservationId : reservations) {
+         if (!existing.contains(reservationId))
+            ++missing;
+      }
+
+      // SeatsSold now against SeatsSold when the instances were loaded plus the seats booked
+      Map<Integer, Integer> seatsBefore = new HashMap<Integer, Integer>();
+      for (Object[] instance : instances)
+         seatsBefore.put(((Number) instance[0]).intValue(), ((Number) instance[3]).intValue());
+      int drifted = 0;
+      if (!seatsBooked.isEmpty()) {
+         StringBuilder ids = new StringBuilder();
+         for (Integer id : seatsBooked.keySet())
+            ids.append(ids.length() == 0 ? "" : ", ").append(id);
+         for (Object[] row : shards.scatter("SELECT FlightInstanceID, SeatsSold FROM FlightInstance " +
+                                            "WHERE FlightInstanceID IN (" + ids + ")").rows) {
+            int id = ((Number) row[0]).intValue();
+            if (((Number) row[1]).intValue() != seatsBefore.get(id) + seatsBooked.get(id).get())
+               ++drifted;
+         }
+      }
+
+      System.out.println("Invariants:");
+      System.out.println(check("flight instances with SeatsSold > SeatsTotal", oversold));
+      System.out.println(check("duplicate ReservationIDs", duplicates));
+      System.out.println(check("booked reservations missing", missing));
+      System.out.println(check("booked instances whose SeatsSold is off", drifted));
+      return oversold + duplicates + missing + drifted == 0;
+   }//end checkInvariants
+
+   private static String check(String name, int violations) {
+      return "  " + name + ":\t" + violations + (violations == 0 ? "\tOK" : "\tVIOLATED");
+   }//end check
+
+}//end LoadTest
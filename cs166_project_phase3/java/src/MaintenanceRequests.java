@@ -0,0 +1,193 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Files maintenance requests in bulk.  Rows are validated against the
+ * cached plane set first, and the valid ones are inserted with a single
+ * JDBC batch.  If the server rejects the batch, the rows are retried one
+ * at a time so only the offending rows fail.
+ *
+ */
+public class MaintenanceRequests {
+
+   private static final String MAX_ID_QUERY = "SELECT MAX(RequestID) FROM MaintenanceRequest";
+
+   // tries per row when a concurrent insert takes the RequestID first
+   private static final int ID_ATTEMPTS = 3;
+
+   private static final String INSERT_REQUEST =
+      "INSERT INTO MaintenanceRequest (RequestID, PlaneID, RepairCode, RequestDate, PilotID) VALUES (?, ?, ?, ?, ?)";
+
+   /**
+    * Outcome of a bulk submission.
+    */
+   public static class BatchResult {
+      // RequestIDs of the rows that were inserted
+      public final List<Integer> submitted = new ArrayList<Integer>();
+      // "line N: reason" for every row that was not inserted
+      public final List<String> failed = new ArrayList<String>();
+   }//end BatchResult
+
+   /**
+    * Submits the requests listed in a CSV file in the MaintenanceRequest.csv
+    * layout (RequestID,PlaneID,RepairCode,RequestDate,PilotID, with a header
+    * line).  RequestIDs are assigned on insert and every request is filed
+    * under the given pilot, so those two columns of the file are ignored.
+    * A blank RequestDate defaults to today.
+    *
+    * @param conn the connection to write on
+    * @param cache the reference cache used to validate PlaneIDs
+    * @param pilotId the pilot filing the requests
+    * @param path the CSV file to read
+    * @param analytics the fault analytics to notify of submitted rows, or null
+    * @return the ids submitted and the per-row failures
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when the database cannot be reached at all
+    */
+   public static BatchResult submitCsv(Connection conn, ReferenceCache cache, String pilotId, String path,
+                                        RepairAnalytics analytics) throws IOException, SQLException {
+      BatchResult result = new BatchResult();
+      List<String[]> rows = new ArrayList<String[]>();
+      List<Integer> lineNos = new ArrayList<Integer>();
+      String today = java.time.LocalDate.now().toString();
+
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+         String line = reader.readLine(); // header
+         int lineNo = 1;
+         while ((line = reader.readLine()) != null) {
+            ++lineNo;
+            if (line.trim().isEmpty())
+               continue;
+            String[] fields = line.split(",", -1);
+            if (fields.length < 4) {
+               result.failed.add("line " + lineNo + ": expected at least 4 fields, found " + fields.length);
+               continue;
+            }
+            String planeId = fields[1].trim().toUpperCase();
+            String repairCode = fields[2].trim().toUpperCase();
+            String requestDate = fields[3].trim().isEmpty() ? today : fields[3].trim();
+            if (repairCode.isEmpty()) {
+               result.failed.add("line " + lineNo + ": RepairCode is required");
+               continue;
+            }
+            if (!AirlineManagement.isValidDate(requestDate)) {
+               result.failed.add("line " + lineNo + ": invalid RequestDate '" + requestDate + "'");
+               continue;
+            }
+            if (!cache.isKnownPlane(planeId)) {
+               result.failed.add("line " + lineNo + ": unknown PlaneID '" + planeId + "'");
+               continue;
+            }
+            rows.add(new String[] {planeId, repairCode, requestDate});
+            lineNos.add(lineNo);
+         }//end while
+      } finally {
+         reader.close();
+      }//end try
+
+      if (rows.isEmpty())
+         return result;
+
+      conn.setAutoCommit(false);
+      boolean done = false;
+      try {
+         int firstId = nextRequestId(conn);
+         PreparedStatement insert = conn.prepareStatement(INSERT_REQUEST);
+         for (int i = 0; i < rows.size(); ++i) {
+            bind(insert, firstId + i, rows.get(i), pilotId);
+            insert.addBatch();
+         }//end for
+         insert.executeBatch();
+         insert.close();
+         conn.commit();
+         done = true;
+         for (int i = 0; i < rows.size(); ++i) {
+            result.submitted.add(firstId + i);
+            if (analytics != null)
+               analytics.recordRequest(firstId + i, rows.get(i)[0], rows.get(i)[1], rows.get(i)[2]);
+         }
+         return result;
+      } catch (BatchUpdateException e) {
+         // the whole batch was rolled back; fall through and isolate the bad rows
+      } finally {
+         if (!done)
+            conn.rollback();
+         conn.setAutoCommit(true);
+      }//end try
+
+      // one auto-committed insert per row, so a failure only affects its own row.
+      // Ids are read again per row: the ones the batch meant to use may have
+      // been taken by another session since it was rolled back.
+      PreparedStatement insert = conn.prepareStatement(INSERT_REQUEST);
+      try {
+         for (int i = 0; i < rows.size(); ++i) {
+            for (int attempt = 1; ; ++attempt) {
+               int requestId = nextRequestId(conn);
+               try {
+                  bind(insert, requestId, rows.get(i), pilotId);
+                  insert.executeUpdate();
+                  result.submitted.add(requestId);
+                  if (analytics != null)
+                     analytics.recordRequest(requestId, rows.get(i)[0], rows.get(i)[1], rows.get(i)[2]);
+                  break;
+               } catch (SQLException rowError) {
+                  if (TransactionRunner.isDuplicateKey(rowError) && attempt < ID_ATTEMPTS)
+                     continue;
+                  result.failed.add("line " + lineNos.get(i) + ": " + rowError.getMessage());
+                  break;
+               }//end try
+            }//end for
+         }//end for
+      } finally {
+         insert.close();
+      }//end try
+      return result;
+   }//end submitCsv
+
+   /*
+    * Binds one request row (PlaneID, RepairCode, RequestDate) to the insert.
+    */
+   private static void bind(PreparedStatement insert, int requestId, String[] row, String pilotId) throws SQLException {
+      insert.setInt(1, requestId);
+      insert.setString(2, row[0]);
+      insert.setString(3, row[1]);
+      insert.setDate(4, java.sql.Date.valueOf(row[2]));
+      insert.setString(5, pilotId);
+   }//end bind
+
+   /*
+    * Next RequestID (MAX + 1).
+    */
+   private static int nextRequestId(Connection conn) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(MAX_ID_QUERY);
+      ResultSet rs = stmt.executeQuery();
+      int next = 1;
+      if (rs.next())
+         next = rs.getInt(1) + 1;
+      stmt.close();
+      return next;
+   }//end nextRequestId
+
+}//end MaintenanceRequests
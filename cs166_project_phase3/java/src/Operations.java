@@ -0,0 +1,448 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line entry point for the batch jobs run by airline operations
+ * rather than by customers, pilots or technicians:
+ *
+ *    generate [<first date> <last date> [<seats> <fare>]]
+ *       creates the FlightInstance rows of the dates from Schedule
+ *       (default: today and the following 364 days)
+ *    reprice [<minutes>]
+ *       recomputes the fares of all future flight instances, once or
+ *       every <minutes> until stopped
+ *    backfill-stats
+ *       recomputes the per-customer travel statistics from Reservation
+ *    bench-rows [<rows>]
+ *       compares the allocation and time per row of String-per-cell and
+ *       typed row mapping
+ *    shard-load
+ *       copies the reference tables to every shard and moves the flight
+ *       instances and reservations to the shards of their flights
+ *    load-test <users> <seconds> [<mix> [<think ms>]]
+ *       simulates concurrent users booking, searching, reading manifests
+ *       and logging repairs, then reports latencies and checks invariants
+ *    check-rotations [<first date> <last date>]
+ *       reports planes on overlapping flights and planes still flying
+ *       with an open maintenance request
+ *    check-schedule <flight> <day> <departure> <arrival> [<first date> <last date>]
+ *       checks a proposed Schedule entry against the other flights of
+ *       its plane before it is written
+ *
+ * With shards configured (-Dairline.shards), generate, reprice and
+ * backfill-stats work on every shard.
+ *
+ * Usage: java Operations <dbname> <port> <user> <command> [<arguments>]
+ *
+ */
+public class Operations {
+
+   // days generated when no date range is given
+   public static final int DEFAULT_HORIZON_DAYS = 365;
+
+   // rows per query and rounds of the row mapping benchmark
+   public static final int BENCH_DEFAULT_ROWS = 100000;
+   public static final int BENCH_WARMUP_ROUNDS = 5;
+   public static final int BENCH_ROUNDS = 10;
+
+   // FlightInstance-shaped rows, generated so the benchmark does not depend on the data
+   private static final String BENCH_QUERY =
+      "SELECT G, CURRENT_DATE + G % 365, 180, G % 180, CAST(G % 50000 AS DECIMAL(10,2)) / 100 " +
+      "FROM generate_series(1, ?) G";
+
+   // one benchmark row as the features use it
+   private static class FareRow {
+      final int flightInstanceId;
+      final java.sql.Date flightDate;
+      final int seatsTotal;
+      final int seatsSold;
+      final BigDecimal ticketCost;
+
+      FareRow(int flightInstanceId, java.sql.Date flightDate, int seatsTotal, int seatsSold, BigDecimal ticketCost) {
+         this.flightInstanceId = flightInstanceId;
+         this.flightDate = flightDate;
+         this.seatsTotal = seatsTotal;
+         this.seatsSold = seatsSold;
+         this.ticketCost = ticketCost;
+      }
+   }//end FareRow
+
+   /**
+    * Runs one operations command.
+    *
+    * @param args the database, port and user, then the command and its arguments
+    */
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         usage();
+         return;
+      }//end if
+
+      AirlineManagement esql = null;
+      try {
+         Class.forName("org.postgresql.Driver").getDeclaredConstructor().newInstance();
+         esql = new AirlineManagement(args[0], args[1], args[2], "");
+         String command = args[3];
+         String[] rest = java.util.Arrays.copyOfRange(args, 4, args.length);
+         switch (command) {
+            case "generate": generate(esql, rest); break;
+            case "reprice": reprice(esql, rest); break;
+            case "backfill-stats": backfillStats(esql, rest); break;
+            case "bench-rows": benchRows(esql, rest); break;
+            case "shard-load": shardLoad(esql, rest); break;
+            case "load-test": loadTest(esql, args[2], rest); break;
+            case "check-rotations": checkRotations(esql, rest); break;
+            case "check-schedule": checkSchedule(esql, rest); break;
+            default: usage(); break;
+         }
+      } catch (IllegalArgumentException e) {
+         System.err.println("Invalid argument: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Database error: " + e.getMessage());
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+   private static void usage() {
+      System.err.println(
+         "Usage: java [-classpath <classpath>] " + Operations.class.getName() +
+         " <dbname> <port> <user> <command> [<arguments>]\n" +
+         "Commands:\n" +
+         "  generate [<first date> <last date> [<seats> <fare>]]   create flight instances from Schedule\n" +
+         "  reprice [<minutes>]                                    reprice future flights, once or periodically\n" +
+         "  backfill-stats                                         recompute customer travel statistics\n" +
+         "  bench-rows [<rows>]                                    compare String-per-cell and typed row mapping\n" +
+         "  shard-load                                             place reference tables and flights on the shards\n" +
+         "  load-test <users> <seconds> [<mix> [<think ms>]]       simulate concurrent users, e.g. mix " +
+         LoadTest.DEFAULT_MIX + "\n" +
+         "  check-rotations [<first date> <last date>]             find plane rotation and maintenance conflicts\n" +
+         "  check-schedule <flight> <day> <dep> <arr> [<first> <last>]   check a schedule change, e.g. F100 Monday 13:00 16:00");
+   }//end usage
+
+   /*
+    * generate [<first date> <last date> [<seats> <fare>]]
+    */
+   private static void generate(AirlineManagement esql, String[] args) throws SQLException {
+      String first = java.time.LocalDate.now().toString();
+      String last = java.time.LocalDate.now().plusDays(DEFAULT_HORIZON_DAYS - 1).toString();
+      int seats = FlightInstanceGenerator.DEFAULT_SEATS_TOTAL;
+      BigDecimal fare = FlightInstanceGenerator.DEFAULT_TICKET_COST;
+      if (args.length != 0 && args.length != 2 && args.length != 4)
+         throw new IllegalArgumentException("generate takes no arguments, a date range, or a date range, seats and fare");
+      if (args.length >= 2) {
+         if (!AirlineManagement.isValidDate(args[0]) || !AirlineManagement.isValidDate(args[1]))
+            throw new IllegalArgumentException("dates must be YYYY-MM-DD");
+         first = args[0];
+         last = args[1];
+      }
+      if (args.length == 4) {
+         seats = Integer.parseInt(args[2]);
+         fare = new BigDecimal(args[3]);
+         if (seats <= 0 || fare.signum() < 0)
+            throw new IllegalArgumentException("seats must be positive and the fare not negative");
+      }
+
+      long start = System.currentTimeMillis();
+      int created = esql.getShards().isSharded()
+         ? FlightInstanceGenerator.generate(esql.getShards(), first, last, seats, fare)
+         : FlightInstanceGenerator.generate(esql.getTransactionRunner(), first, last, seats, fare);
+      System.out.println("Created " + created + " flight instances from " + first + " to " + last +
+                         " in " + (System.currentTimeMillis() - start) + " ms.");
+   }//end generate
+
+   /*
+    * reprice [<minutes>]
+    */
+   private static void reprice(AirlineManagement esql, String[] args) throws SQLException, InterruptedException {
+      if (args.length > 1)
+         throw new IllegalArgumentException("reprice takes at most the minutes between passes");
+      long interval = args.length == 1 ? Long.parseLong(args[0]) * 60 * 1000 : 0;
+      if (args.length == 1 && interval <= 0)
+         throw new IllegalArgumentException("minutes must be positive");
+
+      // each shard is repriced from the route history it holds
+      ShardRouter shards = esql.getShards();
+      List<RepricingEngine> engines = new ArrayList<RepricingEngine>();
+      for (int shard = 0; shard < shards.count(); ++shard)
+         engines.add(new RepricingEngine(shards.pool(shard), AirlineManagement.POOL_SIZE));
+      while (true) {
+         for (int shard = 0; shard < engines.size(); ++shard) {
+            long start = System.currentTimeMillis();
+            RepricingEngine.PassResult result;
+            try {
+               result = engines.get(shard).reprice();
+            } catch (SQLException | RuntimeException e) {
+               if (interval == 0)
+                  throw e;
+               // a periodic run keeps going; the next pass retries
+               System.err.println(new java.sql.Timestamp(start) + ": repricing pass" +
+                                  (shards.isSharded() ? " on shard " + shard : "") + " failed: " + e.getMessage());
+               continue;
+            }//end try
+            System.out.println(new java.sql.Timestamp(start) + ": repriced " + result.changed + " of " +
+                               result.examined + " future flight instances" +
+                               (shards.isSharded() ? " on shard " + shard : "") + " in " +
+                               (System.currentTimeMillis() - start) + " ms (" + result.noBaseFare +
+                               " without base fare, " + result.conflicts + " changed concurrently).");
+         }
+         if (interval == 0)
+            return;
+         Thread.sleep(interval);
+      }//end while
+   }//end reprice
+
+   /*
+    * backfill-stats
+    */
+   private static void backfillStats(AirlineManagement esql, String[] args) throws SQLException {
+      if (args.length != 0)
+         throw new IllegalArgumentException("backfill-stats takes no arguments");
+      long start = System.currentTimeMillis();
+      // every shard counts the reservations it holds; the customer views add the shards up
+      int rows = 0;
+      for (int shard = 0; shard < esql.getShards().count(); ++shard)
+         rows += TravelStats.backfill(esql.getShards().pool(shard), esql.getTransactionRunner().getMetrics(),
+                                      AirlineManagement.POOL_SIZE);
+      System.out.println("Wrote " + rows + " travel statistics rows in " +
+                         (System.currentTimeMillis() - start) + " ms.");
+   }//end backfillStats
+
+   /*
+    * shard-load
+    */
+   private static void shardLoad(AirlineManagement esql, String[] args) throws SQLException {
+      if (args.length != 0)
+         throw new IllegalArgumentException("shard-load takes no arguments");
+      ShardRouter shards = esql.getShards();
+      if (!shards.isSharded())
+         throw new IllegalArgumentException("no shards configured; set -Dairline.shards=<dbname>[:<port>],...");
+      long start = System.currentTimeMillis();
+      int copied = ShardLoader.copyReferenceTables(shards);
+      int moved = ShardLoader.moveFlightInstances(shards);
+      System.out.println("Copied " + copied + " reference rows and moved " + moved + " flight instances to " +
+                         (shards.count() - 1) + " shards in " + (System.currentTimeMillis() - start) + " ms.");
+   }//end shardLoad
+
+   /*
+    * load-test <users> <seconds> [<mix> [<think ms>]]
+    */
+   private static void loadTest(AirlineManagement esql, String user, String[] args) throws SQLException {
+      if (args.length < 2 || args.length > 4)
+         throw new IllegalArgumentException("load-test takes the users, the seconds, and optionally the mix and think time");
+      int users = Integer.parseInt(args[0]);
+      int seconds = Integer.parseInt(args[1]);
+      String mix = args.length >= 3 ? args[2] : LoadTest.DEFAULT_MIX;
+      int thinkMillis = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+      if (users <= 0 || seconds <= 0 || thinkMillis < 0)
+         throw new IllegalArgumentException("users and seconds must be positive and the think time not negative");
+
+      LoadTest test = new LoadTest(esql, user, "", users, mix);
+      if (!test.run(users, seconds, thinkMillis))
+         System.out.println("Load test FAILED: an invariant was violated.");
+   }//end loadTest
+
+   /*
+    * check-rotations [<first date> <last date>]
+    */
+   private static void checkRotations(AirlineManagement esql, String[] args) throws SQLException {
+      String[] range = dateRange(args, 0, "check-rotations");
+      long start = System.currentTimeMillis();
+      RotationChecker checker = RotationChecker.load(esql.getShards(), range[0], range[1], null);
+      List<RotationChecker.Overlap> overlaps = checker.overlaps();
+      List<RotationChecker.GroundingConflict> grounded = checker.groundingConflicts(esql.getShards());
+      long elapsed = System.currentTimeMillis() - start;
+
+      System.out.println("--- Planes on overlapping flights ---");
+      printOverlaps(overlaps);
+      System.out.println("--- Planes flying with an open maintenance request ---");
+      List<String[]> rows = new ArrayList<String[]>();
+      for (RotationChecker.GroundingConflict c : grounded)
+         rows.add(new String[] {c.planeId, String.valueOf(c.requestId), c.repairCode, String.valueOf(c.requestDate),
+                                String.valueOf(c.legs), c.next.flightNumber, at(c.next.departure)});
+      AirlineManagement.printRows(new String[] {"planeid", "requestid", "repaircode", "requestdate",
+                                                "flightssince", "nextflight", "nextdeparture"}, rows);
+      System.out.println("Checked " + checker.legs() + " flight instances of " + checker.planes() + " planes in " +
+                         elapsed + " ms: " + overlaps.size() + " overlaps, " + grounded.size() +
+                         " open maintenance requests on flying planes.");
+   }//end checkRotations
+
+   /*
+    * check-schedule <flight> <day> <departure> <arrival> [<first date> <last date>]
+    */
+   private static void checkSchedule(AirlineManagement esql, String[] args) throws SQLException {
+      if (args.length != 4 && args.length != 6)
+         throw new IllegalArgumentException("check-schedule takes a flight, a day, departure and arrival times, " +
+                                            "and optionally a date range");
+      String flightNumber = args[0].toUpperCase();
+      String day = args[1].substring(0, 1).toUpperCase() + args[1].substring(1).toLowerCase();
+      java.sql.Time departure = time(args[2]);
+      java.sql.Time arrival = time(args[3]);
+      String[] range = dateRange(args, 4, "check-schedule");
+      if (range[0] == null) {
+         // the dates generate would fill without a range
+         range[0] = java.time.LocalDate.now().toString();
+         range[1] = java.time.LocalDate.now().plusDays(DEFAULT_HORIZON_DAYS - 1).toString();
+      }
+      try {
+         java.time.DayOfWeek.valueOf(day.toUpperCase());
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException("unknown day " + args[1]);
+      }//end try
+
+      ShardRouter.Rows flight = esql.getShards().query(0, "SELECT PlaneID FROM Flight WHERE FlightNumber = ?", flightNumber);
+      if (flight.rows.isEmpty() || flight.rows.get(0)[0] == null)
+         throw new IllegalArgumentException("flight " + flightNumber + " not found or has no plane");
+      String planeId = (String) flight.rows.get(0)[0];
+
+      long start = System.currentTimeMillis();
+      RotationChecker checker = RotationChecker.load(esql.getShards(), range[0], range[1], planeId);
+      List<RotationChecker.Overlap> overlaps = checker.checkSchedule(esql.getShards(), planeId, flightNumber, day,
+                                                                     departure, arrival, range[0], range[1]);
+      long elapsed = System.currentTimeMillis() - start;
+      printOverlaps(overlaps);
+      System.out.println(flightNumber + " on " + day + " from " + departure + " to " + arrival + ": " +
+                         (overlaps.isEmpty() ? "no conflicts" : overlaps.size() + " overlaps") + " from " +
+                         range[0] + " to " + range[1] + " with the " + checker.legs() +
+                         " flight instances of plane " + planeId + " (" + elapsed + " ms).");
+   }//end checkSchedule
+
+   private static void printOverlaps(List<RotationChecker.Overlap> overlaps) {
+      List<String[]> rows = new ArrayList<String[]>();
+      for (RotationChecker.Overlap o : overlaps)
+         rows.add(new String[] {o.planeId,
+                                o.first.flightNumber, instanceId(o.first),
+                                at(o.first.departure), at(o.first.arrival),
+                                o.second.flightNumber, instanceId(o.second),
+                                at(o.second.departure), at(o.second.arrival)});
+      AirlineManagement.printRows(new String[] {"planeid", "flightnumber", "flightinstanceid", "departure", "arrival",
+                                                "flightnumber", "flightinstanceid", "departure", "arrival"}, rows);
+   }//end printOverlaps
+
+   private static String instanceId(RotationChecker.Leg leg) {
+      return leg.flightInstanceId == RotationChecker.NOT_GENERATED ? "-" : String.valueOf(leg.flightInstanceId);
+   }//end instanceId
+
+   private static String at(long time) {
+      return new java.sql.Timestamp(time).toLocalDateTime().toString().replace('T', ' ');
+   }//end at
+
+   /*
+    * An optional date range at args[from], as {first, last}; nulls when absent.
+    */
+   private static String[] dateRange(String[] args, int from, String command) {
+      if (args.length == from)
+         return new String[] {null, null};
+      if (args.length != from + 2)
+         throw new IllegalArgumentException(command + " takes no date range or a first and a last date");
+      if (!AirlineManagement.isValidDate(args[from]) || !AirlineManagement.isValidDate(args[from + 1]))
+         throw new IllegalArgumentException("dates must be YYYY-MM-DD");
+      return new String[] {args[from], args[from + 1]};
+   }//end dateRange
+
+   private static java.sql.Time time(String text) {
+      if (!text.matches("\\d{1,2}:\\d{2}(:\\d{2})?"))
+         throw new IllegalArgumentException("times must be HH:MM");
+      return java.sql.Time.valueOf(text.length() <= 5 ? text + ":00" : text);
+   }//end time
+
+   /*
+    * bench-rows [<rows>]
+    *
+    * Runs the same query through both mapping styles and measures only the
+    * mapping loop: the driver has read every row when executeQuery returns,
+    * so its own buffers are not counted.  Allocation is read from the
+    * HotSpot per-thread allocation counter.
+    */
+   private static void benchRows(AirlineManagement esql, String[] args) throws SQLException {
+      if (args.length > 1)
+         throw new IllegalArgumentException("bench-rows takes at most the number of rows");
+      int rows = args.length == 1 ? Integer.parseInt(args[0]) : BENCH_DEFAULT_ROWS;
+      if (rows <= 0)
+         throw new IllegalArgumentException("rows must be positive");
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+
+      PreparedStatement pstmt = esql.getConnection().prepareStatement(BENCH_QUERY);
+      pstmt.setInt(1, rows);
+      String[] names = {"String per cell", "typed RowMapper"};
+      long[] bytes = new long[2];
+      long[] nanos = new long[2];
+      long checksum = 0;
+      for (int round = 0; round < BENCH_WARMUP_ROUNDS + BENCH_ROUNDS; ++round) {
+         for (int style = 0; style < 2; ++style) {
+            ResultSet rs = pstmt.executeQuery();
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            List<FareRow> mapped = style == 0 ? mapStrings(rs) : mapTyped(rs);
+            long elapsed = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            rs.close();
+            checksum += mapped.get(mapped.size() - 1).seatsSold;
+            if (round >= BENCH_WARMUP_ROUNDS) {
+               bytes[style] += allocated;
+               nanos[style] += elapsed;
+            }
+         }//end for
+      }//end for
+      pstmt.close();
+
+      System.out.println("Row mapping of " + rows + " rows x " + BENCH_ROUNDS + " rounds (checksum " + checksum + "):");
+      System.out.println("style\tbytes/row\tns/row");
+      long measured = (long) rows * BENCH_ROUNDS;
+      for (int style = 0; style < 2; ++style)
+         System.out.println(names[style] + "\t" + (bytes[style] / measured) + "\t" + (nanos[style] / measured));
+   }//end benchRows
+
+   // the old way: every cell becomes a String, then is parsed back
+   private static List<FareRow> mapStrings(ResultSet rs) throws SQLException {
+      List<List<String>> cells = new ArrayList<List<String>>();
+      while (rs.next()) {
+         List<String> record = new ArrayList<String>();
+         for (int i = 1; i <= 5; ++i)
+            record.add(rs.getString(i));
+         cells.add(record);
+      }
+      List<FareRow> result = new ArrayList<FareRow>(cells.size());
+      for (List<String> record : cells)
+         result.add(new FareRow(Integer.parseInt(record.get(0)), java.sql.Date.valueOf(record.get(1)),
+                                Integer.parseInt(record.get(2)), Integer.parseInt(record.get(3)),
+                                new BigDecimal(record.get(4))));
+      return result;
+   }//end mapStrings
+
+   private static final RowMapper<FareRow> FARE_ROW = new RowMapper<FareRow>() {
+      public FareRow map(ResultSet rs) throws SQLException {
+         return new FareRow(rs.getInt(1), rs.getDate(2), rs.getInt(3), rs.getInt(4), rs.getBigDecimal(5));
+      }
+   };
+
+   private static List<FareRow> mapTyped(ResultSet rs) throws SQLException {
+      List<FareRow> result = new ArrayList<FareRow>();
+      while (rs.next())
+         result.add(FARE_ROW.map(rs));
+      return result;
+   }//end mapTyped
+
+}//end Operations
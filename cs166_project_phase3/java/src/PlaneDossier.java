@@ -0,0 +1,291 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Everything a pilot or technician wants to know about one plane: the Plane
+ * row, its maintenance requests, its repairs and its upcoming flights.  The
+ * queries are independent, so they are issued concurrently on separate
+ * pooled connections and the rows are merged into a single timeline.
+ *
+ * The timeline is read a page at a time, newest first on (date, kind,
+ * reference).  Each stream keeps a keyset cursor, the (date, id) of its
+ * last row shown, and every page fetches the next page + 1 rows of each
+ * stream after its cursor in parallel.  The first rows of the merge are the
+ * page, and each cursor moves past the rows of its stream that were shown,
+ * so page N costs the same as page 1.
+ *
+ * Every query runs through the QueryGuard: it keeps to the running
+ * feature's time budget and fails at once while the breaker is open.
+ *
+ */
+public class PlaneDossier {
+
+   /**
+    * One line of the dossier timeline.
+    */
+   public static class Event implements Comparable<Event> {
+      public final String date;
+      public final String kind;
+      public final String reference;
+      public final String code;
+      public final String detail;
+      // the stream and id the event came from, for the stream's cursor
+      final int stream;
+      final int id;
+
+      Event(int stream, String date, int id, String kind, String reference, String code, String detail) {
+         this.stream = stream;
+         this.date = date;
+         this.id = id;
+         this.kind = kind;
+         this.reference = reference;
+         this.code = code;
+         this.detail = detail;
+      }
+
+      // newest first and undated last, then by kind, then highest id first like each stream;
+      // ISO dates compare correctly as strings
+      public int compareTo(Event other) {
+         int c;
+         if (this.date == null || other.date == null)
+            c = this.date == null ? (other.date == null ? 0 : 1) : -1;
+         else
+            c = other.date.compareTo(this.date);
+         if (c == 0)
+            c = this.kind.compareTo(other.kind);
+         return c != 0 ? c : Integer.compare(other.id, this.id);
+      }
+   }//end Event
+
+   private static final String PLANE_QUERY =
+      "SELECT PlaneID, Make, Model, Year, LastRepairDate FROM Plane WHERE PlaneID = ?";
+
+   // the history streams; each query takes the plane, then its page size, and is
+   // completed with SEEK and the ORDER BY/LIMIT of its (date, id) key
+   private static final String[] STREAM_QUERIES = {
+      "SELECT MR.RequestDate, MR.RequestID, MR.RepairCode, MR.PilotID, P.Name " +
+      "FROM MaintenanceRequest MR INNER JOIN Pilot P ON MR.PilotID = P.PilotID " +
+      "WHERE MR.PlaneID = ?",
+
+      "SELECT R.RepairDate, R.RepairID, R.RepairCode, R.TechnicianID, T.Name " +
+      "FROM Repair R INNER JOIN Technician T ON R.TechnicianID = T.TechnicianID " +
+      "WHERE R.PlaneID = ?",
+
+      "SELECT FI.FlightDate, FI.FlightInstanceID, FI.FlightNumber, F.DepartureCity, F.ArrivalCity, S.DepartureTime " +
+      "FROM FlightInstance FI " +
+      "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
+      "WHERE F.PlaneID = ? AND FI.FlightDate >= CURRENT_DATE"
+   };
+
+   // the sort key (date, id) of each stream
+   private static final String[][] STREAM_KEYS = {
+      {"MR.RequestDate", "MR.RequestID"},
+      {"R.RepairDate", "R.RepairID"},
+      {"FI.FlightDate", "FI.FlightInstanceID"}
+   };
+
+   private static final int REQUESTS = 0;
+   private static final int REPAIRS = 1;
+   private static final int FLIGHTS = 2;
+
+   // the number of queries a dossier issues at the same time
+   public static final int QUERIES = 4;
+
+   // the Plane row (PlaneID, Make, Model, Year, LastRepairDate), or null if unknown
+   public final List<String> plane;
+
+   // one page of requests, repairs and upcoming flights, newest first
+   public final List<Event> timeline;
+
+   // true when the timeline goes on past this page
+   public final boolean more;
+
+   private final String planeId;
+   private final int pageSize;
+   // per stream, the (date, id) of the last row shown (date null when undated), or null before its first
+   private final String[][] cursors;
+
+   private PlaneDossier(List<String> plane, List<Event> timeline, boolean more,
+                        String planeId, int pageSize, String[][] cursors) {
+      this.plane = plane;
+      this.timeline = timeline;
+      this.more = more;
+      this.planeId = planeId;
+      this.pageSize = pageSize;
+      this.cursors = cursors;
+   }
+
+   /**
+    * Creates the threads a screen loads dossiers on, one per query.  They
+    * are daemon threads, so they never keep the JVM alive.
+    *
+    * @return the executor; shut it down when the screen is closed
+    */
+   public static ExecutorService newExecutor() {
+      return Executors.newFixedThreadPool(QUERIES, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "dossier-fetch");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end newExecutor
+
+   /**
+    * Loads the Plane row and the first page of the timeline of a plane.
+    * The Plane row and the three history streams are fetched in parallel,
+    * each on its own pooled connection.
+    *
+    * @param threads the executor the queries run on, see newExecutor
+    * @param pool the pool to borrow connections from
+    * @param guard the guard the queries run under
+    * @param planeId the plane to look up
+    * @param pageSize the number of timeline rows per page
+    * @return the dossier with its first page
+    * @throws java.sql.SQLException when any of the queries fails
+    */
+   public static PlaneDossier load(ExecutorService threads, ConnectionPool pool, QueryGuard guard,
+                                   String planeId, int pageSize) throws SQLException {
+      Future<List<List<String>>> planeRows = threads.submit(fetch(pool, guard, PLANE_QUERY, new Object[] {planeId}, 5));
+      PlaneDossier first = page(threads, pool, guard, null, planeId, pageSize, new String[STREAM_QUERIES.length][]);
+      for (List<String> row : await(planeRows))
+         return new PlaneDossier(row, first.timeline, first.more, planeId, pageSize, first.cursors);
+      return new PlaneDossier(null, first.timeline, first.more, planeId, pageSize, first.cursors);
+   }//end load
+
+   /**
+    * Loads the next page of the timeline, the streams again in parallel.
+    *
+    * @param threads the executor the queries run on, see newExecutor
+    * @param pool the pool to borrow connections from
+    * @param guard the guard the queries run under
+    * @return the dossier with the page after this one
+    * @throws java.sql.SQLException when any of the queries fails
+    */
+   public PlaneDossier next(ExecutorService threads, ConnectionPool pool, QueryGuard guard) throws SQLException {
+      return page(threads, pool, guard, plane, planeId, pageSize, cursors);
+   }//end next
+
+   /*
+    * Fetches pageSize + 1 rows of every stream after its cursor, keeps the
+    * first pageSize rows of the merge and moves each cursor past the rows
+    * of its stream that were kept.
+    */
+   private static PlaneDossier page(ExecutorService threads, ConnectionPool pool, QueryGuard guard, List<String> plane,
+                                    String planeId, int pageSize, String[][] cursors) throws SQLException {
+      List<Future<List<List<String>>>> streams = new ArrayList<Future<List<List<String>>>>();
+      for (int stream = 0; stream < STREAM_QUERIES.length; ++stream) {
+         String sql = STREAM_QUERIES[stream];
+         String[] key = STREAM_KEYS[stream];
+         Object[] params;
+         if (cursors[stream] == null) {
+            params = new Object[] {planeId};
+         } else if (cursors[stream][0] == null) {
+            // past the dated rows, among the undated ones at the end
+            sql += " AND " + key[0] + " IS NULL AND " + key[1] + " < ?";
+            params = new Object[] {planeId, Integer.valueOf(cursors[stream][1])};
+         } else {
+            // both key parts run newest first, so the seek is one row comparison
+            sql += " AND ((" + key[0] + ", " + key[1] + ") < (?, ?) OR " + key[0] + " IS NULL)";
+            params = new Object[] {planeId, java.sql.Date.valueOf(cursors[stream][0]),
+                                   Integer.valueOf(cursors[stream][1])};
+         }
+         sql += " ORDER BY " + key[0] + " DESC NULLS LAST, " + key[1] + " DESC LIMIT " + (pageSize + 1);
+         streams.add(threads.submit(fetch(pool, guard, sql, params, stream == FLIGHTS ? 6 : 5)));
+      }//end for
+
+      List<Event> merged = new ArrayList<Event>();
+      for (List<String> row : await(streams.get(REQUESTS)))
+         merged.add(new Event(REQUESTS, row.get(0), Integer.parseInt(row.get(1)), "REQUEST", "MR#" + row.get(1),
+                              row.get(2), "filed by " + row.get(3) + " " + row.get(4)));
+      for (List<String> row : await(streams.get(REPAIRS)))
+         merged.add(new Event(REPAIRS, row.get(0), Integer.parseInt(row.get(1)), "REPAIR", "R#" + row.get(1),
+                              row.get(2), "done by " + row.get(3) + " " + row.get(4)));
+      for (List<String> row : await(streams.get(FLIGHTS)))
+         merged.add(new Event(FLIGHTS, row.get(0), Integer.parseInt(row.get(1)), "FLIGHT", "FI#" + row.get(1),
+                              row.get(2), row.get(3) + " -> " + row.get(4) + " at " + row.get(5)));
+      Collections.sort(merged);
+
+      List<Event> timeline = new ArrayList<Event>(merged.subList(0, Math.min(pageSize, merged.size())));
+      String[][] next = cursors.clone();
+      for (Event e : timeline)
+         next[e.stream] = new String[] {e.date, Integer.toString(e.id)};
+      return new PlaneDossier(plane, timeline, merged.size() > pageSize, planeId, pageSize, next);
+   }//end page
+
+   /*
+    * Builds the task that runs one dossier query on a pooled connection
+    * and returns its rows as strings.
+    */
+   private static Callable<List<List<String>>> fetch(final ConnectionPool pool, final QueryGuard guard, final String sql,
+                                                     final Object[] params, final int numCol) {
+      return new Callable<List<List<String>>>() {
+         public List<List<String>> call() throws SQLException {
+            Connection conn = pool.borrow();
+            try {
+               PreparedStatement pstmt = conn.prepareStatement(sql);
+               try {
+                  for (int i = 0; i < params.length; ++i)
+                     pstmt.setObject(i + 1, params[i]);
+                  ResultSet rs = guard.executeQuery(pstmt);
+                  List<List<String>> result = new ArrayList<List<String>>();
+                  while (rs.next()) {
+                     List<String> record = new ArrayList<String>();
+                     for (int i = 1; i <= numCol; ++i)
+                        record.add(rs.getString(i));
+                     result.add(record);
+                  }//end while
+                  return result;
+               } finally {
+                  // the connection goes back to the pool, so the statement must not outlive the call
+                  pstmt.close();
+               }//end try
+            } finally {
+               pool.release(conn);
+            }//end try
+         }
+      };
+   }//end fetch
+
+   /*
+    * Waits for a dossier query and rethrows its failure as an SQLException.
+    */
+   private static List<List<String>> await(Future<List<List<String>>> future) throws SQLException {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while loading plane dossier");
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException("Failed to load plane dossier: " + e.getCause());
+      }//end try
+   }//end await
+
+}//end PlaneDossier
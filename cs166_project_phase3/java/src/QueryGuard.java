@@ -0,0 +1,340 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps database calls within the time budget of the running feature.
+ *
+ * A budget is enforced two ways:
+ *    - a watchdog that cancels every guarded statement still running at
+ *      the end of its budget, on any connection (the 7.3 driver ignores
+ *      Statement.setQueryTimeout, so this is the timeout of replica and
+ *      pooled connections);
+ *    - statement_timeout and lock_timeout on the interactive connection,
+ *      so the server also ends a runaway query or a wait behind another
+ *      session's locks by itself.
+ *
+ * The driver cancels whatever the connection's backend is running, not a
+ * particular statement.  A cancel is therefore only sent while its
+ * statement is still watched, and Watch.done() waits for a cancel being
+ * sent, so the next statement on the connection never gets it.
+ *
+ * Timeouts and lost connections are reported to a CircuitBreaker.  The
+ * driver reports server errors without a SQLState, so a failure is
+ * classified by its message as well.  While the breaker is open, guarded
+ * calls fail at once with Rejected, and callers can fall back to cached
+ * data.
+ *
+ */
+public class QueryGuard {
+
+   /**
+    * Thrown instead of calling the database while the breaker is open.
+    */
+   public static class Rejected extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      Rejected(long retryMillis, boolean probing) {
+         super(probing
+               ? "Database is overloaded; a probe call is checking whether it recovered, retry in up to " +
+                 ((retryMillis + 999) / 1000) + " s"
+               : "Database is overloaded; requests are paused for another " +
+                 ((retryMillis + 999) / 1000) + " s", "57P03");
+      }
+   }//end Rejected
+
+   /**
+    * A statement under watch; call done() when it has finished.
+    */
+   public static class Watch {
+      private ScheduledFuture<?> cancel = null;
+      private boolean done = false;
+
+      /*
+       * Cancels the statement unless it is done.  The lock is held while
+       * the cancel request goes out, so done() cannot return meanwhile.
+       */
+      synchronized boolean fire(Statement stmt) throws SQLException {
+         if (done)
+            return false;
+         stmt.cancel();
+         return true;
+      }
+
+      synchronized void schedule(ScheduledFuture<?> cancel) {
+         if (done)
+            cancel.cancel(false);
+         else
+            this.cancel = cancel;
+      }
+
+      public synchronized void done() {
+         done = true;
+         if (cancel != null)
+            cancel.cancel(false);
+      }
+   }//end Watch
+
+   private final CircuitBreaker breaker;
+   private final ScheduledThreadPoolExecutor watchdog;
+   private volatile int budgetSeconds = 0;
+   private volatile boolean breakerEnabled = true;
+   private int appliedSeconds = -1;
+
+   private final AtomicLong timeouts = new AtomicLong();
+   private final AtomicLong lockTimeouts = new AtomicLong();
+   private final AtomicLong cancels = new AtomicLong();
+   private final AtomicLong connectionFailures = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+
+   public QueryGuard(CircuitBreaker breaker) {
+      this.breaker = breaker;
+      this.watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "query-watchdog");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this.watchdog.setRemoveOnCancelPolicy(true);
+   }
+
+   /**
+    * Sets the time budget of each statement of the feature about to run and
+    * applies it to the server settings of the interactive connection.
+    *
+    * @param conn the interactive connection
+    * @param seconds the budget per statement, 0 for none
+    * @throws java.sql.SQLException when the settings cannot be changed
+    */
+   public synchronized void setBudget(Connection conn, int seconds) throws SQLException {
+      budgetSeconds = seconds;
+      if (seconds == appliedSeconds)
+         return;
+      Statement stmt = conn.createStatement();
+      stmt.execute("SET statement_timeout = " + (seconds * 1000));
+      stmt.execute("SET lock_timeout = " + (seconds * 1000));
+      stmt.close();
+      appliedSeconds = seconds;
+   }//end setBudget
+
+   /**
+    * Turns the breaker on or off.  With the breaker off every call goes to
+    * the database and failures are only counted, e.g. while a load test
+    * measures the server under overload.
+    *
+    * @param enabled false to let every call through
+    */
+   public void setBreakerEnabled(boolean enabled) {
+      breakerEnabled = enabled;
+   }//end setBreakerEnabled
+
+   /**
+    * Returns the budget per statement of the running feature.
+    *
+    * @return the budget in seconds, 0 for none
+    */
+   public int budgetSeconds() {
+      return budgetSeconds;
+   }//end budgetSeconds
+
+   /**
+    * Checks the breaker before a call to the database.
+    *
+    * @throws QueryGuard.Rejected while the breaker is open
+    */
+   public void before() throws SQLException {
+      if (breakerEnabled && !breaker.allow()) {
+         rejected.incrementAndGet();
+         throw new Rejected(breaker.retryInMillis(), breaker.isProbing());
+      }
+   }//end before
+
+   /**
+    * Starts watching a statement: it is cancelled if it is still running
+    * when the budget is used up.
+    *
+    * @param stmt the statement about to execute
+    * @return the watch, to be marked done when the statement finished
+    */
+   public Watch watch(final Statement stmt) {
+      final Watch watch = new Watch();
+      int seconds = budgetSeconds;
+      if (seconds <= 0)
+         return watch;
+      watch.schedule(watchdog.schedule(new Runnable() {
+         public void run() {
+            try {
+               if (watch.fire(stmt))
+                  cancels.incrementAndGet();
+            } catch (SQLException e) {
+               // the connection is gone already.
+            }//end try
+         }
+      }, seconds * 1000L, TimeUnit.MILLISECONDS));
+      return watch;
+   }//end watch
+
+   /**
+    * Runs a prepared query under the guard, for statements on pooled
+    * connections, which never see the interactive connection's
+    * statement_timeout: checks the breaker, watches the statement for the
+    * running budget and reports the outcome.  The driver reads every row in
+    * executeQuery, so the watch can end when it returns.
+    *
+    * @param stmt the statement, its parameters bound
+    * @return the result set
+    * @throws java.sql.SQLException when the breaker is open or the query failed
+    */
+   public ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+      return executeQuery(stmt, null);
+   }//end executeQuery
+
+   /**
+    * Runs a query under the guard, like executeQuery(PreparedStatement).
+    *
+    * @param stmt the statement
+    * @param sql the query, or null to execute stmt as a prepared statement
+    * @return the result set
+    * @throws java.sql.SQLException when the breaker is open or the query failed
+    */
+   public ResultSet executeQuery(Statement stmt, String sql) throws SQLException {
+      before();
+      Watch watch = watch(stmt);
+      try {
+         ResultSet rs = sql == null ? ((PreparedStatement) stmt).executeQuery() : stmt.executeQuery(sql);
+         succeeded();
+         return rs;
+      } catch (SQLException e) {
+         throw failed(e, stmt.getConnection());
+      } finally {
+         watch.done();
+      }//end try
+   }//end executeQuery
+
+   /**
+    * Runs a prepared update under the guard, like executeQuery.
+    *
+    * @param stmt the statement, its parameters bound
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when the breaker is open or the update failed
+    */
+   public int executeUpdate(PreparedStatement stmt) throws SQLException {
+      before();
+      Watch watch = watch(stmt);
+      try {
+         int count = stmt.executeUpdate();
+         succeeded();
+         return count;
+      } catch (SQLException e) {
+         throw failed(e, stmt.getConnection());
+      } finally {
+         watch.done();
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Tells whether a failure is a statement that was cancelled, by
+    * statement_timeout or the watchdog.  The driver reports server errors
+    * without a SQLState, so the message is checked as well.
+    *
+    * @param e the failure
+    * @return true for a cancelled statement
+    */
+   public static boolean isTimeout(SQLException e) {
+      return "57014".equals(e.getSQLState()) || String.valueOf(e.getMessage()).contains("canceling statement");
+   }//end isTimeout
+
+   /**
+    * Tells whether a failure is a wait for a lock that ran out of time.
+    *
+    * @param e the failure
+    * @return true for a lock timeout
+    */
+   public static boolean isLockTimeout(SQLException e) {
+      return "55P03".equals(e.getSQLState()) || String.valueOf(e.getMessage()).contains("lock timeout");
+   }//end isLockTimeout
+
+   /**
+    * Records a call the database answered.
+    */
+   public void succeeded() {
+      if (breakerEnabled)
+         breaker.success();
+   }//end succeeded
+
+   /**
+    * Records a failed call.  Timeouts and connection failures count against
+    * the breaker; any other error means the database answered.
+    *
+    * @param e the failure
+    * @param conn the connection of the call, or null when released already
+    * @return the same exception, for rethrowing
+    */
+   public SQLException failed(SQLException e, Connection conn) {
+      String state = e.getSQLState();
+      String message = String.valueOf(e.getMessage());
+      if (isLockTimeout(e)) {
+         lockTimeouts.incrementAndGet();        // lock_not_available: lock_timeout
+         tripping();
+      } else if (isTimeout(e)) {
+         timeouts.incrementAndGet();            // query_canceled: statement_timeout or the watchdog
+         tripping();
+      } else if (ConnectionPool.isConnectionLost(e, conn) || "53300".equals(state) || "57P03".equals(state)
+                 || message.contains("too many clients") || message.contains("the database system is")) {
+         connectionFailures.incrementAndGet();  // connection lost, too many connections, not accepting
+         tripping();
+      } else {
+         succeeded();
+      }
+      return e;
+   }//end failed
+
+   private void tripping() {
+      if (breakerEnabled)
+         breaker.failure();
+   }//end tripping
+
+   /**
+    * Stops the watchdog.
+    */
+   public void close() {
+      watchdog.shutdownNow();
+   }//end close
+
+   /**
+    * Prints the counters, if anything was counted.
+    */
+   public void printMetrics() {
+      if (timeouts.get() + lockTimeouts.get() + cancels.get() + connectionFailures.get() + rejected.get() == 0)
+         return;
+      System.out.println("\n--- Query Guard ---");
+      System.out.println("statement timeouts:\t" + timeouts.get());
+      System.out.println("lock timeouts:\t" + lockTimeouts.get());
+      System.out.println("watchdog cancels:\t" + cancels.get());
+      System.out.println("connection failures:\t" + connectionFailures.get());
+      System.out.println("breaker trips:\t" + breaker.trips());
+      System.out.println("rejected while open:\t" + rejected.get());
+   }//end printMetrics
+
+}//end QueryGuard
@@ -0,0 +1,273 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a read-only query may go to the read replica or must go
+ * to the primary.  Writes always use the primary.  A read goes to the
+ * primary when:
+ *   - no replica is configured, or the replica failed recently;
+ *   - the primary connection is inside a transaction;
+ *   - this session wrote less than READ_YOUR_WRITES_MILLIS ago, so the
+ *     replica may not have the write yet;
+ *   - the replica is more than MAX_LAG_MILLIS behind.
+ *
+ * The lag is measured with a heartbeat: while a replica is configured the
+ * router stamps the ReplicaHeartbeat row on the primary every
+ * HEARTBEAT_MILLIS, and the age of the replica's copy of that row is how
+ * far the replica is behind.  Unlike the replay timestamp of the last
+ * transaction, the heartbeat keeps moving while the primary is idle, and
+ * a replica that stops replaying shows up as lagging.
+ *
+ */
+public class ReadRouter {
+
+   // replicas lagging more than this are not used
+   public static final long MAX_LAG_MILLIS = 10000;
+
+   // reads stay on the primary this long after the session's last write; at
+   // least MAX_LAG_MILLIS, so a replica within the lag bound has the write
+   public static final long READ_YOUR_WRITES_MILLIS = MAX_LAG_MILLIS;
+
+   // how long a failed replica is avoided before it is tried again
+   public static final long RETRY_MILLIS = 30000;
+
+   // how often the replica lag is measured
+   public static final long LAG_CHECK_MILLIS = 5000;
+
+   // how often the primary stamps the heartbeat row
+   public static final long HEARTBEAT_MILLIS = 1000;
+
+   // stamps the row unless another session did within the last interval
+   private static final String HEARTBEAT_UPDATE =
+      "UPDATE ReplicaHeartbeat SET Beat = now() " +
+      "WHERE ID = 1 AND Beat < now() - " + HEARTBEAT_MILLIS / 2 + " * INTERVAL '1 millisecond'";
+
+   // age of the heartbeat on the replica; the row may be up to one interval old on the primary too
+   private static final String LAG_QUERY =
+      "SELECT EXTRACT(EPOCH FROM (now() - Beat)) * 1000 - " + HEARTBEAT_MILLIS + " FROM ReplicaHeartbeat WHERE ID = 1";
+
+   private final Connection primary;
+   private final String replicaUrl;
+   private final String user;
+   private final String passwd;
+   private final ConnectionPool primaryPool;
+   private final ConnectionPool replicaPool;
+   private final ScheduledExecutorService heartbeat;
+
+   private Connection replica = null;
+   private volatile long lastWrite = 0;
+   private volatile long replicaDownUntil = 0;
+   private long lagCheckedAt = 0;
+   private boolean lagOk = true;
+
+   /**
+    * Creates a router and, with a replica, starts stamping the heartbeat.
+    *
+    * @param primary the primary connection
+    * @param primaryPool the pool of primary connections
+    * @param replicaUrl the JDBC URL of the replica, or null for none
+    * @param user the user name used to login to the replica
+    * @param passwd the user login password
+    * @param poolSize the size of the replica pool
+    */
+   public ReadRouter(Connection primary, ConnectionPool primaryPool, String replicaUrl,
+                     String user, String passwd, int poolSize) {
+      this.primary = primary;
+      this.primaryPool = primaryPool;
+      this.replicaUrl = replicaUrl;
+      this.user = user;
+      this.passwd = passwd;
+      this.replicaPool = replicaUrl == null ? null : new ConnectionPool(replicaUrl, user, passwd, poolSize);
+      this.heartbeat = replicaUrl == null ? null : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "replica-heartbeat");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      if (this.heartbeat != null) {
+         this.heartbeat.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+               beat();
+            }
+         }, 0, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+      }//end if
+   }//end ReadRouter
+
+   /**
+    * Records that this session just wrote to the primary.
+    */
+   public void noteWrite() {
+      lastWrite = System.currentTimeMillis();
+   }//end noteWrite
+
+   /**
+    * Returns the connection a read-only query should use.
+    *
+    * @return the replica when the rules allow it, otherwise the primary
+    */
+   public synchronized Connection forRead() {
+      if (!replicaAllowed())
+         return primary;
+      try {
+         if (!lagWithinBound())
+            return primary;
+         if (replica == null || replica.isClosed())
+            replica = DriverManager.getConnection(replicaUrl, user, passwd);
+         return replica;
+      } catch (SQLException e) {
+         replicaFailed(e);
+         return primary;
+      }//end try
+   }//end forRead
+
+   /**
+    * Returns the pool concurrent read-only queries should borrow from.  A
+    * caller whose read on the replica pool fails should pass the failure to
+    * failover and, when that returns true, ask for the pool again.
+    *
+    * @return the replica pool when the rules allow it, otherwise the primary pool
+    */
+   public ConnectionPool poolForRead() {
+      if (!replicaAllowed())
+         return primaryPool;
+      try {
+         return lagWithinBound() ? replicaPool : primaryPool;
+      } catch (SQLException e) {
+         replicaFailed(e);
+         return primaryPool;
+      }//end try
+   }//end poolForRead
+
+   /**
+    * Reports a failed read on a pool from poolForRead.  When the replica
+    * pool lost its connection, the replica is avoided for RETRY_MILLIS.
+    *
+    * @param pool the pool the read borrowed from
+    * @param e the failure
+    * @return true if the read should be repeated on poolForRead()
+    */
+   public boolean failover(ConnectionPool pool, SQLException e) {
+      if (pool != replicaPool || replicaPool == null || !ConnectionPool.isConnectionLost(e, null))
+         return false;
+      replicaFailed(e);
+      return true;
+   }//end failover
+
+   /**
+    * Reports a failed replica query; reads fall back to the primary for
+    * RETRY_MILLIS.
+    *
+    * @param e the failure
+    */
+   public synchronized void replicaFailed(SQLException e) {
+      if (replicaUrl == null)
+         return;
+      System.err.println("Warning: read replica unavailable, reading from the primary: " + e.getMessage());
+      replicaDownUntil = System.currentTimeMillis() + RETRY_MILLIS;
+      lagCheckedAt = 0;
+      if (replica != null) {
+         try { replica.close(); } catch (SQLException ignored) { }
+         replica = null;
+      }
+   }//end replicaFailed
+
+   /**
+    * Tells whether a connection is the replica connection.
+    *
+    * @param conn the connection to check
+    * @return true if conn is the replica
+    */
+   public boolean isReplica(Connection conn) {
+      return conn != null && conn != primary;
+   }//end isReplica
+
+   /**
+    * Stops the heartbeat and closes the replica connections.
+    */
+   public synchronized void close() {
+      if (heartbeat != null)
+         heartbeat.shutdownNow();
+      if (replicaPool != null)
+         replicaPool.close();
+      if (replica != null) {
+         try { replica.close(); } catch (SQLException ignored) { }
+         replica = null;
+      }
+   }//end close
+
+   /*
+    * The rules that do not need to touch the replica.
+    */
+   private boolean replicaAllowed() {
+      long now = System.currentTimeMillis();
+      if (replicaUrl == null || now < replicaDownUntil)
+         return false;
+      if (now - lastWrite < READ_YOUR_WRITES_MILLIS)
+         return false;
+      try {
+         return primary.getAutoCommit(); // not inside a transaction
+      } catch (SQLException e) {
+         return false;
+      }//end try
+   }//end replicaAllowed
+
+   /*
+    * Replica lag, re-measured at most every LAG_CHECK_MILLIS on a pooled
+    * replica connection.
+    */
+   private synchronized boolean lagWithinBound() throws SQLException {
+      long now = System.currentTimeMillis();
+      if (now - lagCheckedAt >= LAG_CHECK_MILLIS) {
+         Connection conn = replicaPool.borrow();
+         try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(LAG_QUERY);
+            lagOk = rs.next() && rs.getDouble(1) <= MAX_LAG_MILLIS;
+            stmt.close();
+         } finally {
+            replicaPool.release(conn);
+         }//end try
+         lagCheckedAt = now;
+      }//end if
+      return lagOk;
+   }//end lagWithinBound
+
+   /*
+    * Stamps the heartbeat row on the primary.
+    */
+   private void beat() {
+      Connection conn = null;
+      try {
+         conn = primaryPool.borrow();
+         Statement stmt = conn.createStatement();
+         stmt.executeUpdate(HEARTBEAT_UPDATE);
+         stmt.close();
+      } catch (SQLException e) {
+         // the primary is unreachable; the replica's heartbeat ages and reads stay on the primary
+      } finally {
+         primaryPool.release(conn);
+      }//end try
+   }//end beat
+
+}//end ReadRouter
@@ -0,0 +1,276 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of small, rarely changing reference tables.  Each table is
+ * loaded on first use from a pooled connection, under the QueryGuard's time
+ * budget and circuit breaker, and kept until invalidated.
+ *
+ */
+public class ReferenceCache {
+
+   private final ConnectionPool pool;
+   private final QueryGuard guard;
+
+   /*
+    * The Plane rows and their ids, swapped as one reference so a reader
+    * never sees the rows of one load with the ids of another.
+    */
+   private static class PlaneSet {
+      // (PlaneID, Make, Model) ordered by PlaneID
+      final List<List<String>> rows;
+      final Set<String> ids;
+
+      PlaneSet(List<List<String>> rows, Set<String> ids) {
+         this.rows = rows;
+         this.ids = ids;
+      }
+   }//end PlaneSet
+
+   // the Plane rows, or null when not loaded
+   private volatile PlaneSet planes = null;
+
+   // Flight rows keyed by FlightNumber: (FlightNumber, PlaneID, DepartureCity, ArrivalCity)
+   private volatile Map<String, List<String>> flights = null;
+
+   // Schedule rows keyed by "FlightNumber|DayOfWeek": (DepartureTime, ArrivalTime) pairs
+   private volatile Map<String, List<List<String>>> schedules = null;
+
+   public ReferenceCache(ConnectionPool pool, QueryGuard guard) {
+      this.pool = pool;
+      this.guard = guard;
+   }
+
+   /**
+    * Returns the cached Plane rows, loading them if needed.
+    *
+    * @return the rows (PlaneID, Make, Model) ordered by PlaneID
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public List<List<String>> planes() throws SQLException {
+      // read the field once: invalidatePlanes may clear it at any time
+      PlaneSet set = planes;
+      if (set == null)
+         set = readPlanes();
+      return set.rows;
+   }//end planes
+
+   /**
+    * Checks a PlaneID against the cached plane set.
+    *
+    * @param planeId the id to check
+    * @return true if a Plane row with this id exists
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public boolean isKnownPlane(String planeId) throws SQLException {
+      PlaneSet set = planes;
+      if (set == null)
+         set = readPlanes();
+      return set.ids.contains(planeId);
+   }//end isKnownPlane
+
+   /**
+    * Returns the cached Flight rows, loading them if needed.
+    *
+    * @return FlightNumber -> (FlightNumber, PlaneID, DepartureCity, ArrivalCity)
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public Map<String, List<String>> flights() throws SQLException {
+      Map<String, List<String>> rows = flights;
+      if (rows == null)
+         rows = readFlights();
+      return rows;
+   }//end flights
+
+   /**
+    * Returns the scheduled (DepartureTime, ArrivalTime) pairs of a flight on
+    * a day of the week, loading the Schedule table if needed.
+    *
+    * @param flightNumber the flight
+    * @param dayOfWeek the day name as stored in Schedule (e.g. Monday)
+    * @return the matching schedule times, possibly empty
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public List<List<String>> schedule(String flightNumber, String dayOfWeek) throws SQLException {
+      Map<String, List<List<String>>> rows = schedules;
+      if (rows == null)
+         rows = readSchedules();
+      List<List<String>> times = rows.get(flightNumber + "|" + dayOfWeek);
+      return times == null ? Collections.<List<String>>emptyList() : times;
+   }//end schedule
+
+   /**
+    * Returns the scheduled flights of a route from the cached Flight and
+    * Schedule rows, without loading anything.  Used to keep answering
+    * while the database is overloaded.
+    *
+    * @param departureCity the departure city
+    * @param arrivalCity the arrival city
+    * @return rows (FlightNumber, PlaneID, DayOfWeek, DepartureTime, ArrivalTime)
+    *         ordered like the SQL of the route view, or null when the
+    *         tables are not cached
+    */
+   public List<List<String>> cachedRoute(String departureCity, String arrivalCity) {
+      Map<String, List<String>> flightRows = flights;
+      Map<String, List<List<String>>> scheduleRows = schedules;
+      if (flightRows == null || scheduleRows == null)
+         return null;
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Map.Entry<String, List<List<String>>> entry : scheduleRows.entrySet()) {
+         String[] key = entry.getKey().split("\\|", 2);
+         List<String> flight = flightRows.get(key[0]);
+         if (flight == null || !departureCity.equals(flight.get(2)) || !arrivalCity.equals(flight.get(3)))
+            continue;
+         for (List<String> times : entry.getValue())
+            result.add(Arrays.asList(key[0], flight.get(1), key[1], times.get(0), times.get(1)));
+      }//end for
+      Collections.sort(result, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            for (int i : new int[] {0, 2, 3}) {
+               int c = String.valueOf(a.get(i)).compareTo(String.valueOf(b.get(i)));
+               if (c != 0)
+                  return c;
+            }
+            return 0;
+         }
+      });
+      return result;
+   }//end cachedRoute
+
+   /**
+    * Drops the cached Plane rows; the next access reloads them.
+    */
+   public void invalidatePlanes() {
+      planes = null;
+   }//end invalidatePlanes
+
+   /**
+    * Drops the cached Flight rows; the next access reloads them.
+    */
+   public void invalidateFlights() {
+      flights = null;
+   }//end invalidateFlights
+
+   /**
+    * Drops the cached Schedule rows; the next access reloads them.
+    */
+   public void invalidateSchedules() {
+      schedules = null;
+   }//end invalidateSchedules
+
+   /**
+    * (Re)loads the Plane rows.
+    *
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public void loadPlanes() throws SQLException {
+      readPlanes();
+   }//end loadPlanes
+
+   /*
+    * Loads the Plane rows and returns them, so the caller does not have to
+    * read back a field that may already have been invalidated again.
+    */
+   private synchronized PlaneSet readPlanes() throws SQLException {
+      List<List<String>> rows = query("SELECT PlaneID, Make, Model FROM Plane ORDER BY PlaneID", 3);
+      Set<String> ids = new HashSet<String>();
+      for (List<String> row : rows)
+         ids.add(row.get(0));
+      PlaneSet set = new PlaneSet(Collections.unmodifiableList(rows), ids);
+      planes = set;
+      return set;
+   }//end readPlanes
+
+   /**
+    * (Re)loads the Flight rows.
+    *
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public void loadFlights() throws SQLException {
+      readFlights();
+   }//end loadFlights
+
+   private synchronized Map<String, List<String>> readFlights() throws SQLException {
+      Map<String, List<String>> rows = new HashMap<String, List<String>>();
+      for (List<String> row : query("SELECT FlightNumber, PlaneID, DepartureCity, ArrivalCity FROM Flight", 4))
+         rows.put(row.get(0), row);
+      Map<String, List<String>> loaded = Collections.unmodifiableMap(rows);
+      flights = loaded;
+      return loaded;
+   }//end readFlights
+
+   /**
+    * (Re)loads the Schedule rows.
+    *
+    * @throws java.sql.SQLException when the table cannot be loaded
+    */
+   public void loadSchedules() throws SQLException {
+      readSchedules();
+   }//end loadSchedules
+
+   private synchronized Map<String, List<List<String>>> readSchedules() throws SQLException {
+      Map<String, List<List<String>>> rows = new HashMap<String, List<List<String>>>();
+      String sql = "SELECT FlightNumber, DayOfWeek, DepartureTime, ArrivalTime FROM Schedule ORDER BY DepartureTime";
+      for (List<String> row : query(sql, 4)) {
+         String key = row.get(0) + "|" + row.get(1);
+         List<List<String>> times = rows.get(key);
+         if (times == null) {
+            times = new ArrayList<List<String>>();
+            rows.put(key, times);
+         }
+         times.add(row.subList(2, 4));
+      }//end for
+      schedules = rows;
+      return rows;
+   }//end readSchedules
+
+   /*
+    * Runs a query on a pooled connection and returns its rows as strings.
+    */
+   private List<List<String>> query(String sql, int numCol) throws SQLException {
+      Connection conn = pool.borrow();
+      try {
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = guard.executeQuery(stmt, sql);
+            List<List<String>> result = new ArrayList<List<String>>();
+            while (rs.next()) {
+               List<String> record = new ArrayList<String>();
+               for (int i = 1; i <= numCol; ++i)
+                  record.add(rs.getString(i));
+               result.add(Collections.unmodifiableList(record));
+            }//end while
+            return result;
+         } finally {
+            stmt.close();
+         }//end try
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end query
+
+}//end ReferenceCache
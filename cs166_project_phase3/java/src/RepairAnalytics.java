@@ -0,0 +1,404 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sliding-window fault counts per (PlaneID, RepairCode) over the
+ * WINDOW_DAYS up to today, fed by repairs and maintenance requests as they
+ * are written, by this session directly and by other sessions through the
+ * ChangeLog triggers.
+ *
+ * A fault is counted once: it starts with the first request for the code
+ * (or with a repair nobody requested) and ends with a repair of the same
+ * plane and code on or after the request.  Further requests while it is
+ * open, and the repair that closes it, are the same fault.  Events from
+ * the LOOKBACK_DAYS before the window are kept so that a fault reported
+ * before the window and repaired inside it is not counted again.
+ *
+ * Every (PlaneID, RepairCode) pair gets a small integer slot; per slot the
+ * events are kept in a sorted long array and expired lazily from the
+ * front.  A per-plane query only touches that plane's slots.
+ *
+ */
+public class RepairAnalytics implements ChangeLogPoller.ChangeListener {
+
+   // length of the sliding window in days
+   public static final int WINDOW_DAYS = 30;
+
+   // days before the window whose open faults are carried into it
+   public static final int LOOKBACK_DAYS = 30;
+
+   // faults of the same code inside the window that make a plane a repeat offender
+   public static final int REPEAT_THRESHOLD = 3;
+
+   private static final String BACKFILL_QUERY =
+      "SELECT 0, RequestID, PlaneID, RepairCode, RequestDate FROM MaintenanceRequest WHERE RequestDate >= ? " +
+      "UNION ALL " +
+      "SELECT 1, RepairID, PlaneID, RepairCode, RepairDate FROM Repair WHERE RepairDate >= ?";
+
+   // event kinds; a request sorts before a repair of the same day, which closes it
+   private static final int REQUEST = 0;
+   private static final int REPAIR = 1;
+
+   /**
+    * One (PlaneID, RepairCode) pair at or above the repeat threshold.
+    */
+   public static class Offender {
+      public final String planeId;
+      public final String repairCode;
+      public final int count;
+
+      public Offender(String planeId, String repairCode, int count) {
+         this.planeId = planeId;
+         this.repairCode = repairCode;
+         this.count = count;
+      }
+   }//end Offender
+
+   private final ConnectionPool pool;
+   private boolean loaded = false;
+
+   // "PlaneID|RepairCode" -> slot
+   private Map<String, Integer> slots;
+   // PlaneID -> slots of that plane
+   private Map<String, int[]> planeSlots;
+   // kind << 32 | id of every event held, so a write seen both directly and
+   // through the ChangeLog is counted once
+   private Set<Long> seen;
+
+   // per slot: key parts, sorted events (see event) and number of live events
+   private String[] slotPlane;
+   private String[] slotCode;
+   private long[][] slotEvents;
+   private int[] slotSize;
+   private int slotCount;
+
+   public RepairAnalytics(ConnectionPool pool) {
+      this.pool = pool;
+      reset();
+   }
+
+   /**
+    * Records a maintenance request written by this session.  Events are
+    * ignored until the window has been backfilled, since the backfill reads
+    * them from the database anyway.
+    *
+    * @param requestId the RequestID
+    * @param planeId the plane
+    * @param repairCode the repair code
+    * @param date the request date (YYYY-MM-DD)
+    */
+   public synchronized void recordRequest(int requestId, String planeId, String repairCode, String date) {
+      if (loaded)
+         add(REQUEST, requestId, planeId, repairCode, (int) java.time.LocalDate.parse(date).toEpochDay());
+   }//end recordRequest
+
+   /**
+    * Records a repair written by this session.
+    *
+    * @param repairId the RepairID
+    * @param planeId the plane
+    * @param repairCode the repair code
+    * @param date the repair date (YYYY-MM-DD)
+    */
+   public synchronized void recordRepair(int repairId, String planeId, String repairCode, String date) {
+      if (loaded)
+         add(REPAIR, repairId, planeId, repairCode, (int) java.time.LocalDate.parse(date).toEpochDay());
+   }//end recordRepair
+
+   /**
+    * Adds the requests and repairs inserted by other sessions.  An update
+    * or delete of either table, or a failure, makes the window reload on
+    * next use.
+    *
+    * @param batch the changes, in ChangeID order
+    */
+   public synchronized void onChanges(List<ChangeLogPoller.ChangeEvent> batch) {
+      if (!loaded)
+         return;
+      List<Integer> requests = new ArrayList<Integer>();
+      List<Integer> repairs = new ArrayList<Integer>();
+      for (ChangeLogPoller.ChangeEvent e : batch) {
+         boolean request = e.table.equals("maintenancerequest");
+         if (!request && !e.table.equals("repair"))
+            continue;
+         if (e.operation != 'I') {
+            reset();
+            return;
+         }
+         (request ? requests : repairs).add(Integer.valueOf(e.rowKey));
+      }//end for
+      try {
+         load(REQUEST, "SELECT RequestID, PlaneID, RepairCode, RequestDate FROM MaintenanceRequest WHERE RequestID IN ", requests);
+         load(REPAIR, "SELECT RepairID, PlaneID, RepairCode, RepairDate FROM Repair WHERE RepairID IN ", repairs);
+      } catch (SQLException e) {
+         reset();
+      }//end try
+   }//end onChanges
+
+   /**
+    * Returns the codes with at least REPEAT_THRESHOLD faults inside the
+    * window for one plane.
+    *
+    * @param planeId the plane
+    * @return the repeat offenders of that plane, highest count first
+    * @throws java.sql.SQLException when the window cannot be backfilled
+    */
+   public synchronized List<Offender> repeatOffenders(String planeId) throws SQLException {
+      ensureLoaded();
+      List<Offender> result = new ArrayList<Offender>();
+      int[] mine = planeSlots.get(planeId);
+      if (mine != null)
+         collect(mine, result);
+      sort(result);
+      return result;
+   }//end repeatOffenders
+
+   /**
+    * Returns the repeat offenders of every plane.
+    *
+    * @return all (PlaneID, RepairCode) pairs at or above the threshold, highest count first
+    * @throws java.sql.SQLException when the window cannot be backfilled
+    */
+   public synchronized List<Offender> repeatOffenders() throws SQLException {
+      ensureLoaded();
+      List<Offender> result = new ArrayList<Offender>();
+      for (int[] mine : planeSlots.values())
+         collect(mine, result);
+      sort(result);
+      return result;
+   }//end repeatOffenders
+
+   /**
+    * Returns the last day of the window.
+    *
+    * @return today's date
+    */
+   public String windowEnd() {
+      return java.time.LocalDate.now().toString();
+   }//end windowEnd
+
+   /*
+    * Drops every event; the next query reloads the window.
+    */
+   private void reset() {
+      loaded = false;
+      slots = new HashMap<String, Integer>();
+      planeSlots = new HashMap<String, int[]>();
+      seen = new HashSet<Long>();
+      slotPlane = new String[64];
+      slotCode = new String[64];
+      slotEvents = new long[64][];
+      slotSize = new int[64];
+      slotCount = 0;
+   }//end reset
+
+   /*
+    * First day whose events are kept: the lookback before the window.
+    */
+   private static int firstKeptDay() {
+      return (int) java.time.LocalDate.now().toEpochDay() - WINDOW_DAYS - LOOKBACK_DAYS + 1;
+   }//end firstKeptDay
+
+   /*
+    * Loads the events of the lookback and the window from Repair and
+    * MaintenanceRequest.  The first day is bound from the JVM's clock, so
+    * the backfill and the live window agree on what today is.
+    */
+   private void ensureLoaded() throws SQLException {
+      if (loaded)
+         return;
+      java.sql.Date first = java.sql.Date.valueOf(java.time.LocalDate.ofEpochDay(firstKeptDay()));
+      Connection conn = pool.borrow();
+      try {
+         PreparedStatement stmt = conn.prepareStatement(BACKFILL_QUERY);
+         stmt.setDate(1, first);
+         stmt.setDate(2, first);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            addRow(rs.getInt(1), rs, 2);
+         stmt.close();
+         loaded = true;
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end ensureLoaded
+
+   /*
+    * Adds the rows of the given ids of one table, read as (id, PlaneID,
+    * RepairCode, date).  The ids are integers, so they are inlined.
+    */
+   private void load(int kind, String query, List<Integer> ids) throws SQLException {
+      if (ids.isEmpty())
+         return;
+      StringBuilder in = new StringBuilder("(");
+      for (int i = 0; i < ids.size(); ++i)
+         in.append(i == 0 ? "" : ", ").append(ids.get(i));
+      Connection conn = pool.borrow();
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(query + in + ")");
+         while (rs.next())
+            addRow(kind, rs, 1);
+         stmt.close();
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end load
+
+   /*
+    * Adds one event read from the columns (id, PlaneID, RepairCode, date)
+    * starting at col.
+    */
+   private void addRow(int kind, ResultSet rs, int col) throws SQLException {
+      String planeId = rs.getString(col + 1);
+      String repairCode = rs.getString(col + 2);
+      java.sql.Date date = rs.getDate(col + 3);
+      if (planeId != null && repairCode != null && date != null)
+         add(kind, rs.getInt(col), planeId, repairCode, (int) date.toLocalDate().toEpochDay());
+   }//end addRow
+
+   /*
+    * Packs an event so that sorting the longs orders events by day, puts a
+    * request before a repair of the same day and then orders by id.
+    */
+   private static long event(int day, int kind, int id) {
+      return ((long) day << 33) | ((long) kind << 32) | (id & 0xffffffffL);
+   }//end event
+
+   private static int dayOf(long event) {
+      return (int) (event >> 33);
+   }//end dayOf
+
+   private static int kindOf(long event) {
+      return (int) (event >>> 32) & 1;
+   }//end kindOf
+
+   private static long seenKey(long event) {
+      return event & 0x1ffffffffL;
+   }//end seenKey
+
+   /*
+    * Inserts one event into its slot, keeping the slot's events sorted.
+    */
+   private void add(int kind, int id, String planeId, String repairCode, int day) {
+      if (day < firstKeptDay())
+         return; // before the lookback
+      long event = event(day, kind, id);
+      if (!seen.add(seenKey(event)))
+         return;
+
+      int slot = slotFor(planeId, repairCode);
+      long[] events = slotEvents[slot];
+      int size = slotSize[slot];
+      if (size == events.length)
+         events = slotEvents[slot] = Arrays.copyOf(events, size * 2);
+      // events almost always arrive in date order, so this loop rarely runs
+      int pos = size;
+      while (pos > 0 && events[pos - 1] > event) {
+         events[pos] = events[pos - 1];
+         --pos;
+      }
+      events[pos] = event;
+      slotSize[slot] = size + 1;
+   }//end add
+
+   /*
+    * Returns the slot of a (PlaneID, RepairCode) pair, creating it if needed.
+    */
+   private int slotFor(String planeId, String repairCode) {
+      String key = planeId + "|" + repairCode;
+      Integer existing = slots.get(key);
+      if (existing != null)
+         return existing;
+
+      int slot = slotCount++;
+      if (slot == slotPlane.length) {
+         int capacity = slot * 2;
+         slotPlane = Arrays.copyOf(slotPlane, capacity);
+         slotCode = Arrays.copyOf(slotCode, capacity);
+         slotEvents = Arrays.copyOf(slotEvents, capacity);
+         slotSize = Arrays.copyOf(slotSize, capacity);
+      }
+      slotPlane[slot] = planeId;
+      slotCode[slot] = repairCode;
+      slotEvents[slot] = new long[4];
+      slots.put(key, slot);
+
+      int[] mine = planeSlots.get(planeId);
+      mine = mine == null ? new int[1] : Arrays.copyOf(mine, mine.length + 1);
+      mine[mine.length - 1] = slot;
+      planeSlots.put(planeId, mine);
+      return slot;
+   }//end slotFor
+
+   /*
+    * Expires events before the lookback from the given slots, counts the
+    * faults that started inside the window and collects those above the
+    * threshold.
+    */
+   private void collect(int[] slotIds, List<Offender> result) {
+      int today = (int) java.time.LocalDate.now().toEpochDay();
+      int windowStart = today - WINDOW_DAYS + 1;
+      int firstKept = windowStart - LOOKBACK_DAYS;
+      for (int slot : slotIds) {
+         long[] events = slotEvents[slot];
+         int size = slotSize[slot];
+         int expired = 0;
+         while (expired < size && dayOf(events[expired]) < firstKept)
+            seen.remove(seenKey(events[expired++]));
+         if (expired > 0) {
+            System.arraycopy(events, expired, events, 0, size - expired);
+            size = slotSize[slot] = size - expired;
+         }
+
+         int faults = 0;
+         boolean open = false;
+         for (int i = 0; i < size; ++i) {
+            int day = dayOf(events[i]);
+            if (!open && day >= windowStart && day <= today)
+               ++faults;
+            open = kindOf(events[i]) == REQUEST;
+         }//end for
+         if (faults >= REPEAT_THRESHOLD)
+            result.add(new Offender(slotPlane[slot], slotCode[slot], faults));
+      }//end for
+   }//end collect
+
+   /*
+    * Highest count first, then by PlaneID and RepairCode.
+    */
+   private static void sort(List<Offender> offenders) {
+      java.util.Collections.sort(offenders, new java.util.Comparator<Offender>() {
+         public int compare(Offender a, Offender b) {
+            if (a.count != b.count)
+               return b.count - a.count;
+            int byPlane = a.planeId.compareTo(b.planeId);
+            return byPlane != 0 ? byPlane : a.repairCode.compareTo(b.repairCode);
+         }
+      });
+   }//end sort
+
+}//end RepairAnalytics
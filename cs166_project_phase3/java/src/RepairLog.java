@@ -0,0 +1,225 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes completed repairs.  A repair is the Repair row plus the matching
+ * Plane.LastRepairDate, so both are always written in one transaction.
+ * Bulk imports insert with JDBC batches and then refresh LastRepairDate
+ * with a single set-based update.
+ *
+ */
+public class RepairLog {
+
+   // rows sent to the server per executeBatch call during imports
+   public static final int BATCH_SIZE = 500;
+
+   private static final String MAX_ID_QUERY = "SELECT MAX(RepairID) FROM Repair";
+
+   private static final String INSERT_REPAIR =
+      "INSERT INTO Repair (RepairID, PlaneID, RepairCode, RepairDate, TechnicianID) VALUES (?, ?, ?, ?, ?)";
+
+   // never moves LastRepairDate backwards when an older repair is logged late
+   private static final String UPDATE_PLANE =
+      "UPDATE Plane SET LastRepairDate = ? " +
+      "WHERE PlaneID = ? AND (LastRepairDate IS NULL OR LastRepairDate < ?)";
+
+   // one pass over the imported id range; each plane is updated at most once
+   private static final String UPDATE_IMPORTED_PLANES =
+      "UPDATE Plane SET LastRepairDate = R.MaxDate " +
+      "FROM (SELECT PlaneID, MAX(RepairDate) AS MaxDate FROM Repair " +
+      "      WHERE RepairID BETWEEN ? AND ? GROUP BY PlaneID) R " +
+      "WHERE Plane.PlaneID = R.PlaneID " +
+      "AND (Plane.LastRepairDate IS NULL OR Plane.LastRepairDate < R.MaxDate)";
+
+   /**
+    * Outcome of a bulk import.
+    */
+   public static class ImportResult {
+      public int imported = 0;
+      public int planesUpdated = 0;
+      public int firstRepairId = 0;
+      public int lastRepairId = 0;
+      // "line N: reason" for every row that was not imported
+      public final List<String> rejected = new ArrayList<String>();
+   }//end ImportResult
+
+   /**
+    * Logs one completed repair.  The id generation, the Repair insert and
+    * the Plane update are committed together or not at all; a collision on
+    * the generated RepairID is retried by the transaction runner.
+    *
+    * @param tx the transaction runner of the connection to write on
+    * @param planeId the repaired plane
+    * @param repairCode the repair code of the work done
+    * @param repairDate the repair date (YYYY-MM-DD)
+    * @param technicianId the technician who did the work
+    * @param analytics the fault analytics to notify after commit, or null
+    * @return the new RepairID
+    * @throws java.sql.SQLException when the transaction failed and was rolled back
+    */
+   public static int logRepair(TransactionRunner tx, final String planeId, final String repairCode,
+                               String repairDate, final String technicianId,
+                               RepairAnalytics analytics) throws SQLException {
+      final java.sql.Date date = java.sql.Date.valueOf(repairDate);
+      int repairId = tx.run("Plane " + planeId, Connection.TRANSACTION_SERIALIZABLE,
+                            new TransactionRunner.Work<Integer>() {
+         public Integer run(Connection conn) throws SQLException {
+            int repairId = nextRepairId(conn);
+
+            PreparedStatement insert = conn.prepareStatement(INSERT_REPAIR);
+            insert.setInt(1, repairId);
+            insert.setString(2, planeId);
+            insert.setString(3, repairCode);
+            insert.setDate(4, date);
+            insert.setString(5, technicianId);
+            insert.executeUpdate();
+            insert.close();
+
+            PreparedStatement update = conn.prepareStatement(UPDATE_PLANE);
+            update.setDate(1, date);
+            update.setString(2, planeId);
+            update.setDate(3, date);
+            update.executeUpdate();
+            update.close();
+            return repairId;
+         }
+      });
+      if (analytics != null)
+         analytics.recordRepair(repairId, planeId, repairCode, repairDate);
+      return repairId;
+   }//end logRepair
+
+   /**
+    * Imports completed repairs from a CSV file in the Repair.csv layout
+    * (RepairID,PlaneID,RepairCode,RepairDate,TechnicianID, with a header
+    * line).  The file's RepairIDs are replaced by fresh ids after the current
+    * maximum so an import never collides with existing rows.  Malformed lines,
+    * including dates that are not real calendar dates, are reported and
+    * skipped; the valid rows are inserted in one transaction.
+    *
+    * @param conn the connection to write on
+    * @param path the CSV file to read
+    * @param analytics the fault analytics to notify after commit, or null
+    * @return the outcome of the import
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when the import failed and was rolled back
+    */
+   public static ImportResult importCsv(Connection conn, String path, RepairAnalytics analytics)
+         throws IOException, SQLException {
+      ImportResult result = new ImportResult();
+      List<String[]> rows = new ArrayList<String[]>();
+
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+         String line = reader.readLine(); // header
+         int lineNo = 1;
+         while ((line = reader.readLine()) != null) {
+            ++lineNo;
+            if (line.trim().isEmpty())
+               continue;
+            String[] fields = line.split(",", -1);
+            if (fields.length != 5) {
+               result.rejected.add("line " + lineNo + ": expected 5 fields, found " + fields.length);
+               continue;
+            }
+            String planeId = fields[1].trim().toUpperCase();
+            String repairCode = fields[2].trim().toUpperCase();
+            String repairDate = fields[3].trim();
+            String technicianId = fields[4].trim().toUpperCase();
+            if (planeId.isEmpty() || repairCode.isEmpty() || technicianId.isEmpty()) {
+               result.rejected.add("line " + lineNo + ": PlaneID, RepairCode and TechnicianID are required");
+               continue;
+            }
+            if (!AirlineManagement.isValidDate(repairDate)) {
+               result.rejected.add("line " + lineNo + ": invalid RepairDate '" + repairDate + "'");
+               continue;
+            }
+            rows.add(new String[] {planeId, repairCode, repairDate, technicianId});
+         }//end while
+      } finally {
+         reader.close();
+      }//end try
+
+      if (rows.isEmpty())
+         return result;
+
+      conn.setAutoCommit(false);
+      boolean committed = false;
+      try {
+         int repairId = nextRepairId(conn);
+         result.firstRepairId = repairId;
+
+         PreparedStatement insert = conn.prepareStatement(INSERT_REPAIR);
+         int pending = 0;
+         for (String[] row : rows) {
+            insert.setInt(1, repairId++);
+            insert.setString(2, row[0]);
+            insert.setString(3, row[1]);
+            insert.setDate(4, java.sql.Date.valueOf(row[2]));
+            insert.setString(5, row[3]);
+            insert.addBatch();
+            if (++pending == BATCH_SIZE) {
+               insert.executeBatch();
+               pending = 0;
+            }
+         }//end for
+         if (pending > 0)
+            insert.executeBatch();
+         insert.close();
+         result.lastRepairId = repairId - 1;
+
+         PreparedStatement update = conn.prepareStatement(UPDATE_IMPORTED_PLANES);
+         update.setInt(1, result.firstRepairId);
+         update.setInt(2, result.lastRepairId);
+         result.planesUpdated = update.executeUpdate();
+         update.close();
+
+         conn.commit();
+         committed = true;
+         result.imported = rows.size();
+         if (analytics != null)
+            for (int i = 0; i < rows.size(); ++i)
+               analytics.recordRepair(result.firstRepairId + i, rows.get(i)[0], rows.get(i)[1], rows.get(i)[2]);
+         return result;
+      } finally {
+         // any failure, not only an SQLException, must not let setAutoCommit commit a partial import
+         if (!committed)
+            conn.rollback();
+         conn.setAutoCommit(true);
+      }//end try
+   }//end importCsv
+
+   /*
+    * Next RepairID (MAX + 1), read inside the caller's transaction.
+    */
+   private static int nextRepairId(Connection conn) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(MAX_ID_QUERY);
+      ResultSet rs = stmt.executeQuery();
+      int next = 1;
+      if (rs.next())
+         next = rs.getInt(1) + 1;
+      stmt.close();
+      return next;
+   }//end nextRepairId
+
+}//end RepairLog
@@ -0,0 +1,322 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Recomputes TicketCost of all future flight instances from their load
+ * factor, the days left to departure and the history of their route.
+ *
+ * The base fare of a route is kept in RouteFare.  It is set on the route's
+ * first pass to the average fare its instances had then, and never changed
+ * by later passes, so repriced fares do not feed back into the base they
+ * are computed from.  The base fares and the average past load factor of
+ * each route are read once per pass.  Future instances are split into FlightInstanceID
+ * ranges that are repriced in parallel, each on its own pooled connection.
+ * A partition reads its range in chunks of CHUNK_SIZE rows and writes back
+ * only the rows whose price changed, one short transaction per chunk.  No
+ * row lock is held for longer than one batched update, so bookings are
+ * never blocked behind a pass.
+ *
+ * A fare is only written if it is still the one that was read, so a fare
+ * changed meanwhile by someone else is left alone until the next pass.
+ * Flights whose route has no base fare (no instance with a fare) keep
+ * their fare.
+ *
+ * The engine counts its transactions in its own ContentionMetrics, so
+ * repricing chunks do not show up among the application's hot spots.
+ *
+ */
+public class RepricingEngine {
+
+   // rows read and written back per transaction
+   public static final int CHUNK_SIZE = 1000;
+
+   // a fare stays between these multiples of the route's base fare
+   public static final double MIN_FACTOR = 0.5;
+   public static final double MAX_FACTOR = 2.0;
+
+   /**
+    * Outcome of one repricing pass.
+    */
+   public static class PassResult {
+      public int examined = 0;
+      public int changed = 0;
+      public int noBaseFare = 0;
+      public int conflicts = 0;
+
+      synchronized void add(PassResult other) {
+         examined += other.examined;
+         changed += other.changed;
+         noBaseFare += other.noBaseFare;
+         conflicts += other.conflicts;
+      }
+   }//end PassResult
+
+   // average load factor assumed for routes without past instances
+   public static final double DEFAULT_ROUTE_LOAD = 0.5;
+
+   // fixes the base fare of routes that have none yet, from the current fares of their instances
+   private static final String SEED_BASE_FARES =
+      "INSERT INTO RouteFare (DepartureCity, ArrivalCity, BaseFare) " +
+      "SELECT F.DepartureCity, F.ArrivalCity, CAST(AVG(I.TicketCost) AS DECIMAL(10,2)) " +
+      "FROM Flight F INNER JOIN FlightInstance I ON I.FlightNumber = F.FlightNumber " +
+      "WHERE F.DepartureCity IS NOT NULL AND F.ArrivalCity IS NOT NULL AND I.TicketCost IS NOT NULL " +
+      "GROUP BY F.DepartureCity, F.ArrivalCity " +
+      "ON CONFLICT (DepartureCity, ArrivalCity) DO NOTHING";
+
+   // per flight: {base fare, average load factor of the past instances} of its route
+   private static final String ROUTE_HISTORY_QUERY =
+      "SELECT F.FlightNumber, B.BaseFare, H.RouteLoad " +
+      "FROM Flight F " +
+      "INNER JOIN RouteFare B ON B.DepartureCity = F.DepartureCity AND B.ArrivalCity = F.ArrivalCity " +
+      "LEFT JOIN (SELECT R.DepartureCity, R.ArrivalCity, AVG(CAST(P.SeatsSold AS FLOAT) / P.SeatsTotal) AS RouteLoad " +
+      "           FROM Flight R INNER JOIN FlightInstance P ON P.FlightNumber = R.FlightNumber " +
+      "           WHERE P.FlightDate < CURRENT_DATE AND P.SeatsTotal > 0 " +
+      "           GROUP BY R.DepartureCity, R.ArrivalCity) H " +
+      "       ON H.DepartureCity = F.DepartureCity AND H.ArrivalCity = F.ArrivalCity";
+
+   private static final String RANGE_QUERY =
+      "SELECT MIN(FlightInstanceID), MAX(FlightInstanceID) FROM FlightInstance WHERE FlightDate >= CURRENT_DATE";
+
+   private static final String CHUNK_QUERY =
+      "SELECT FlightInstanceID, FlightNumber, FlightDate - CURRENT_DATE, SeatsTotal, SeatsSold, TicketCost " +
+      "FROM FlightInstance " +
+      "WHERE FlightInstanceID > ? AND FlightInstanceID <= ? AND FlightDate >= CURRENT_DATE " +
+      "ORDER BY FlightInstanceID LIMIT ?";
+
+   // only overwrites the fare that was read
+   private static final String UPDATE_FARE =
+      "UPDATE FlightInstance SET TicketCost = ? " +
+      "WHERE FlightInstanceID = ? AND TicketCost IS NOT DISTINCT FROM CAST(? AS DECIMAL(10,2))";
+
+   private final ConnectionPool pool;
+   private final ContentionMetrics metrics = new ContentionMetrics();
+   private final int partitions;
+
+   /**
+    * @param pool the pool the partitions borrow their connections from
+    * @param partitions the number of ranges repriced in parallel
+    */
+   public RepricingEngine(ConnectionPool pool, int partitions) {
+      this.pool = pool;
+      this.partitions = partitions;
+   }
+
+   /**
+    * Returns the transaction outcomes of the repricing chunks, kept apart
+    * from the application's.
+    *
+    * @return the metrics
+    */
+   public ContentionMetrics getMetrics() {
+      return metrics;
+   }//end getMetrics
+
+   /**
+    * Computes the fare of one flight instance.
+    *
+    * @param baseFare the fixed base fare of the route
+    * @param routeLoad the average past load factor of the route (0 to 1)
+    * @param seatsTotal the seats of the instance
+    * @param seatsSold the seats sold so far
+    * @param daysToDeparture days from today to the flight date
+    * @return the fare, rounded to cents
+    */
+   public static BigDecimal price(double baseFare, double routeLoad, int seatsTotal, int seatsSold,
+                                  long daysToDeparture) {
+      double load = seatsTotal > 0 ? Math.min(1.0, (double) seatsSold / seatsTotal) : 1.0;
+      double factor = (0.8 + 0.6 * load)                   // fuller flights cost more
+                    * (0.9 + 0.2 * routeLoad)              // so do routes that usually fill up
+                    * timeFactor(daysToDeparture);         // and late bookings
+      factor = Math.max(MIN_FACTOR, Math.min(MAX_FACTOR, factor));
+      return BigDecimal.valueOf(baseFare * factor).setScale(2, RoundingMode.HALF_UP);
+   }//end price
+
+   private static double timeFactor(long days) {
+      if (days <= 3)
+         return 1.3;
+      if (days <= 7)
+         return 1.15;
+      if (days <= 21)
+         return 1.0;
+      return 0.9;
+   }//end timeFactor
+
+   /**
+    * Reprices all future flight instances once.
+    *
+    * @return what the pass examined and changed
+    * @throws java.sql.SQLException when a partition failed; the chunks
+    *         committed before the failure keep their new fares
+    */
+   public PassResult reprice() throws SQLException {
+      final Map<String, double[]> history = new HashMap<String, double[]>();
+      long first, last;
+      Connection conn = pool.borrow();
+      try {
+         PreparedStatement query = conn.prepareStatement(SEED_BASE_FARES);
+         query.executeUpdate();
+         query.close();
+
+         query = conn.prepareStatement(ROUTE_HISTORY_QUERY);
+         ResultSet rs = query.executeQuery();
+         while (rs.next()) {
+            double baseFare = rs.getDouble(2);
+            double routeLoad = rs.getDouble(3);
+            history.put(rs.getString(1), new double[] {baseFare, rs.wasNull() ? DEFAULT_ROUTE_LOAD : routeLoad});
+         }
+         query.close();
+
+         query = conn.prepareStatement(RANGE_QUERY);
+         rs = query.executeQuery();
+         rs.next();
+         first = rs.getLong(1) - 1;
+         last = rs.getLong(2);
+         boolean empty = rs.wasNull();
+         query.close();
+         if (empty)
+            return new PassResult();
+      } finally {
+         pool.release(conn);
+      }//end try
+
+      // ranges (low, high] of about equal width
+      ExecutorService workers = Executors.newFixedThreadPool(partitions, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "repricing");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      List<Future<PassResult>> parts = new ArrayList<Future<PassResult>>();
+      long width = (last - first + partitions - 1) / partitions;
+      for (int p = 0; p < partitions; ++p) {
+         final long low = first + p * width;
+         final long high = Math.min(last, low + width);
+         if (low >= high)
+            break;
+         final String key = "Repricing " + (low + 1) + "-" + high;
+         parts.add(workers.submit(new Callable<PassResult>() {
+            public PassResult call() throws SQLException {
+               return repriceRange(key, low, high, history);
+            }
+         }));
+      }//end for
+      workers.shutdown();
+
+      PassResult total = new PassResult();
+      SQLException failure = null;
+      for (Future<PassResult> part : parts) {
+         try {
+            total.add(part.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while repricing");
+         } catch (ExecutionException e) {
+            if (failure == null)
+               failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                              : new SQLException("Repricing failed: " + e.getCause());
+         }//end try
+      }//end for
+      if (failure != null)
+         throw failure;
+      return total;
+   }//end reprice
+
+   /*
+    * Reprices the instances with low < FlightInstanceID <= high, a chunk
+    * per transaction.
+    */
+   private PassResult repriceRange(String key, long low, long high, Map<String, double[]> history)
+         throws SQLException {
+      final PassResult result = new PassResult();
+      Connection conn = pool.borrow();
+      try {
+         TransactionRunner tx = new TransactionRunner(conn, metrics);
+         PreparedStatement read = conn.prepareStatement(CHUNK_QUERY);
+         long after = low;
+         while (after < high) {
+            read.setLong(1, after);
+            read.setLong(2, high);
+            read.setInt(3, CHUNK_SIZE);
+            ResultSet rs = read.executeQuery();
+            final List<Object[]> updates = new ArrayList<Object[]>();
+            int rows = 0;
+            while (rs.next()) {
+               ++rows;
+               after = rs.getLong(1);
+               double[] route = history.get(rs.getString(2));
+               if (route == null) {
+                  ++result.noBaseFare;
+                  continue;
+               }
+               BigDecimal current = rs.getBigDecimal(6);
+               BigDecimal fare = price(route[0], route[1], rs.getInt(4), rs.getInt(5), rs.getLong(3));
+               if (current == null || fare.compareTo(current) != 0)
+                  updates.add(new Object[] {fare, after, current});
+            }//end while
+            rs.close();
+            result.examined += rows;
+            if (rows < CHUNK_SIZE)
+               after = high;
+            if (updates.isEmpty())
+               continue;
+
+            int[] counts = tx.run(key, Connection.TRANSACTION_READ_COMMITTED, new TransactionRunner.Work<int[]>() {
+               public int[] run(Connection conn) throws SQLException {
+                  PreparedStatement update = conn.prepareStatement(UPDATE_FARE);
+                  for (Object[] u : updates) {
+                     update.setBigDecimal(1, (BigDecimal) u[0]);
+                     update.setLong(2, (Long) u[1]);
+                     if (u[2] == null)
+                        update.setNull(3, java.sql.Types.DECIMAL);
+                     else
+                        update.setBigDecimal(3, (BigDecimal) u[2]);
+                     update.addBatch();
+                  }
+                  int[] counts = update.executeBatch();
+                  update.close();
+                  return counts;
+               }
+            });
+            for (int count : counts) {
+               if (count == 0)
+                  ++result.conflicts;
+               else
+                  ++result.changed;
+            }
+         }//end while
+         read.close();
+         return result;
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end repriceRange
+
+}//end RepricingEngine
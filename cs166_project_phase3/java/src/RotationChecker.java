@@ -0,0 +1,373 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds aircraft rotation conflicts: a plane on two flights whose times
+ * overlap, and a plane still flying while a maintenance request on it is
+ * open.  Flight.PlaneID gives the plane of each flight number.  Each
+ * FlightInstance becomes one leg, from FlightDate + Schedule.DepartureTime
+ * to the arrival (the next day when ArrivalTime is before DepartureTime).
+ *
+ * The legs of each plane go into an interval tree: a balanced binary tree
+ * over the legs sorted by departure, where every node keeps the latest
+ * arrival in its subtree.  All overlaps of a leg are found in O(log n + k),
+ * so the whole timetable is validated in O(n log n + k) for n legs and k
+ * conflicts, with no pairwise comparison.  A proposed schedule change only
+ * loads the legs of its own plane and checks each retimed leg against
+ * that plane's tree.
+ *
+ */
+public class RotationChecker {
+
+   // legs of every plane (or of one), one row per FlightInstance
+   private static final String LEGS =
+      "SELECT F.PlaneID, FI.FlightInstanceID, FI.FlightNumber, FI.FlightDate + S.DepartureTime, " +
+      "FI.FlightDate + S.ArrivalTime + CASE WHEN S.ArrivalTime < S.DepartureTime " +
+      "THEN INTERVAL '1 day' ELSE INTERVAL '0 days' END " +
+      "FROM FlightInstance FI " +
+      "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
+      "WHERE F.PlaneID IS NOT NULL AND S.DepartureTime IS NOT NULL AND S.ArrivalTime IS NOT NULL";
+
+   // flight instance id of a checked leg whose date has no instance yet
+   public static final int NOT_GENERATED = -1;
+
+   private static final String OPEN_REQUESTS =
+      "SELECT MR.RequestID, MR.PlaneID, MR.RepairCode, MR.RequestDate FROM MaintenanceRequest MR " +
+      "WHERE " + WorkQueue.OPEN + " ORDER BY MR.PlaneID, MR.RequestDate, MR.RequestID";
+
+   /**
+    * One flight instance of a plane.
+    */
+   public static class Leg {
+      public final int flightInstanceId;
+      public final String flightNumber;
+      public final long departure;
+      public final long arrival;
+      // position in the plane's legs sorted by departure
+      int rank;
+
+      public Leg(int flightInstanceId, String flightNumber, long departure, long arrival) {
+         this.flightInstanceId = flightInstanceId;
+         this.flightNumber = flightNumber;
+         this.departure = departure;
+         this.arrival = arrival;
+      }
+   }//end Leg
+
+   /**
+    * Two legs of one plane whose times overlap.
+    */
+   public static class Overlap {
+      public final String planeId;
+      public final Leg first;
+      public final Leg second;
+
+      public Overlap(String planeId, Leg first, Leg second) {
+         this.planeId = planeId;
+         this.first = first;
+         this.second = second;
+      }
+   }//end Overlap
+
+   /**
+    * A plane with legs departing on or after the date of an open
+    * maintenance request.
+    */
+   public static class GroundingConflict {
+      public final int requestId;
+      public final String planeId;
+      public final String repairCode;
+      public final java.sql.Date requestDate;
+      // legs departing on or after the request date, and the earliest of them
+      public final int legs;
+      public final Leg next;
+
+      public GroundingConflict(int requestId, String planeId, String repairCode, java.sql.Date requestDate,
+                               int legs, Leg next) {
+         this.requestId = requestId;
+         this.planeId = planeId;
+         this.repairCode = repairCode;
+         this.requestDate = requestDate;
+         this.legs = legs;
+         this.next = next;
+      }
+   }//end GroundingConflict
+
+   /*
+    * Static interval tree over legs sorted by departure.  The node of the
+    * range [lo, hi) is its middle element; maxArrival[mid] is the latest
+    * arrival in that range.  Intervals are half-open, so a plane may depart
+    * at the minute it arrived.
+    */
+   static class IntervalTree {
+      private final Leg[] legs;
+      private final long[] maxArrival;
+
+      IntervalTree(List<Leg> planeLegs) {
+         legs = planeLegs.toArray(new Leg[planeLegs.size()]);
+         Arrays.sort(legs, new Comparator<Leg>() {
+            public int compare(Leg a, Leg b) {
+               int c = Long.compare(a.departure, b.departure);
+               return c != 0 ? c : Integer.compare(a.flightInstanceId, b.flightInstanceId);
+            }
+         });
+         for (int i = 0; i < legs.length; ++i)
+            legs[i].rank = i;
+         maxArrival = new long[legs.length];
+         build(0, legs.length);
+      }
+
+      private long build(int lo, int hi) {
+         if (lo >= hi)
+            return Long.MIN_VALUE;
+         int mid = (lo + hi) >>> 1;
+         maxArrival[mid] = Math.max(legs[mid].arrival, Math.max(build(lo, mid), build(mid + 1, hi)));
+         return maxArrival[mid];
+      }//end build
+
+      /*
+       * Adds to out every leg that overlaps [departure, arrival).
+       */
+      void overlapping(long departure, long arrival, List<Leg> out) {
+         search(0, legs.length, departure, arrival, out);
+      }//end overlapping
+
+      private void search(int lo, int hi, long departure, long arrival, List<Leg> out) {
+         if (lo >= hi)
+            return;
+         int mid = (lo + hi) >>> 1;
+         // nothing in this range lands after the departure
+         if (maxArrival[mid] <= departure)
+            return;
+         search(lo, mid, departure, arrival, out);
+         // legs right of mid depart no earlier than mid does
+         if (legs[mid].departure >= arrival)
+            return;
+         if (legs[mid].arrival > departure)
+            out.add(legs[mid]);
+         search(mid + 1, hi, departure, arrival, out);
+      }//end search
+
+      /*
+       * The index of the first leg departing at or after a time.
+       */
+      int firstDepartingFrom(long time) {
+         int lo = 0;
+         int hi = legs.length;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (legs[mid].departure < time)
+               lo = mid + 1;
+            else
+               hi = mid;
+         }
+         return lo;
+      }//end firstDepartingFrom
+
+      int size() {
+         return legs.length;
+      }//end size
+
+      Leg get(int i) {
+         return legs[i];
+      }//end get
+   }//end IntervalTree
+
+   private final Map<String, IntervalTree> planes;
+   private final int legCount;
+
+   private RotationChecker(Map<String, IntervalTree> planes, int legCount) {
+      this.planes = planes;
+      this.legCount = legCount;
+   }
+
+   /**
+    * Loads the legs of the flight instances between two dates and builds
+    * one interval tree per plane.
+    *
+    * @param shards the shard router; every shard holds flight instances
+    * @param first the first flight date (YYYY-MM-DD), or null for no bound
+    * @param last the last flight date (YYYY-MM-DD), or null for no bound
+    * @param planeId the only plane to load, or null for all planes
+    * @return the checker
+    * @throws java.sql.SQLException when the legs cannot be read
+    */
+   public static RotationChecker load(ShardRouter shards, String first, String last, String planeId)
+         throws SQLException {
+      StringBuilder query = new StringBuilder(LEGS);
+      List<Object> params = new ArrayList<Object>();
+      if (first != null) {
+         query.append(" AND FI.FlightDate >= ?");
+         params.add(java.sql.Date.valueOf(first));
+      }
+      if (last != null) {
+         query.append(" AND FI.FlightDate <= ?");
+         params.add(java.sql.Date.valueOf(last));
+      }
+      if (planeId != null) {
+         query.append(" AND F.PlaneID = ?");
+         params.add(planeId);
+      }
+      ShardRouter.Rows rows = shards.scatter(query.toString(), params.toArray());
+
+      Map<String, List<Leg>> byPlane = new HashMap<String, List<Leg>>();
+      for (Object[] row : rows.rows) {
+         List<Leg> planeLegs = byPlane.get((String) row[0]);
+         if (planeLegs == null) {
+            planeLegs = new ArrayList<Leg>();
+            byPlane.put((String) row[0], planeLegs);
+         }
+         planeLegs.add(new Leg(((Number) row[1]).intValue(), (String) row[2],
+                               ((Timestamp) row[3]).getTime(), ((Timestamp) row[4]).getTime()));
+      }//end for
+      Map<String, IntervalTree> planes = new HashMap<String, IntervalTree>();
+      for (Map.Entry<String, List<Leg>> plane : byPlane.entrySet())
+         planes.put(plane.getKey(), new IntervalTree(plane.getValue()));
+      return new RotationChecker(planes, rows.rows.size());
+   }//end load
+
+   /**
+    * Returns the number of legs loaded.
+    *
+    * @return the legs
+    */
+   public int legs() {
+      return legCount;
+   }//end legs
+
+   /**
+    * Returns the number of planes with legs.
+    *
+    * @return the planes
+    */
+   public int planes() {
+      return planes.size();
+   }//end planes
+
+   /**
+    * Finds every pair of overlapping legs of one plane.  Each leg is looked
+    * up in its plane's tree, and a pair is reported by its earlier leg.
+    *
+    * @return the overlaps, by plane and departure
+    */
+   public List<Overlap> overlaps() {
+      List<Overlap> overlaps = new ArrayList<Overlap>();
+      List<String> planeIds = new ArrayList<String>(planes.keySet());
+      java.util.Collections.sort(planeIds);
+      List<Leg> found = new ArrayList<Leg>();
+      for (String planeId : planeIds) {
+         IntervalTree tree = planes.get(planeId);
+         for (int i = 0; i < tree.size(); ++i) {
+            Leg leg = tree.get(i);
+            found.clear();
+            tree.overlapping(leg.departure, leg.arrival, found);
+            for (Leg other : found) {
+               if (other.rank > i)
+                  overlaps.add(new Overlap(planeId, leg, other));
+            }
+         }//end for
+      }//end for
+      return overlaps;
+   }//end overlaps
+
+   /**
+    * Finds the open maintenance requests whose plane still has legs
+    * departing on or after the request date.
+    *
+    * @param shards the shard router; maintenance requests are on shard 0
+    * @return the conflicts, by plane and request date
+    * @throws java.sql.SQLException when the requests cannot be read
+    */
+   public List<GroundingConflict> groundingConflicts(ShardRouter shards) throws SQLException {
+      List<GroundingConflict> conflicts = new ArrayList<GroundingConflict>();
+      for (Object[] row : shards.query(0, OPEN_REQUESTS).rows) {
+         IntervalTree tree = planes.get((String) row[1]);
+         if (tree == null)
+            continue;
+         java.sql.Date requestDate = (java.sql.Date) row[3];
+         int from = requestDate == null ? 0 : tree.firstDepartingFrom(requestDate.getTime());
+         if (from < tree.size())
+            conflicts.add(new GroundingConflict(((Number) row[0]).intValue(), (String) row[1], (String) row[2],
+                                                requestDate, tree.size() - from, tree.get(from)));
+      }//end for
+      return conflicts;
+   }//end groundingConflicts
+
+   /**
+    * Checks a proposed Schedule entry before it is written: every date
+    * between the two bounds that falls on that day of the week gets a leg at
+    * the new times, which is looked up in the tree of the flight's plane.
+    * Dates with a flight instance reuse its id and leave its current leg
+    * out, since the change replaces it; dates without one get a
+    * NOT_GENERATED leg, since generate will create it.  The checker must
+    * have been loaded for that plane and the same dates.
+    *
+    * @param shards the shard router
+    * @param planeId the plane of the flight
+    * @param flightNumber the flight
+    * @param dayOfWeek the day, e.g. Monday
+    * @param departureTime the new departure time
+    * @param arrivalTime the new arrival time; before the departure means the next day
+    * @param first the first flight date checked (YYYY-MM-DD)
+    * @param last the last flight date checked (YYYY-MM-DD)
+    * @return the overlaps, each with the retimed leg first
+    * @throws java.sql.SQLException when the flight instances cannot be read
+    */
+   public List<Overlap> checkSchedule(ShardRouter shards, String planeId, String flightNumber, String dayOfWeek,
+                                      java.sql.Time departureTime, java.sql.Time arrivalTime,
+                                      String first, String last) throws SQLException {
+      java.time.LocalDate from = java.time.LocalDate.parse(first);
+      java.time.LocalDate to = java.time.LocalDate.parse(last);
+      java.time.DayOfWeek day = java.time.DayOfWeek.valueOf(dayOfWeek.toUpperCase());
+      ShardRouter.Rows instances = shards.query(shards.shardOf(flightNumber),
+         "SELECT FlightInstanceID, FlightDate FROM FlightInstance " +
+         "WHERE FlightNumber = ? AND FlightDate >= ? AND FlightDate <= ?",
+         flightNumber, java.sql.Date.valueOf(from), java.sql.Date.valueOf(to));
+      Map<java.time.LocalDate, Integer> generated = new HashMap<java.time.LocalDate, Integer>();
+      for (Object[] row : instances.rows)
+         generated.put(((java.sql.Date) row[1]).toLocalDate(), ((Number) row[0]).intValue());
+
+      List<Overlap> overlaps = new ArrayList<Overlap>();
+      IntervalTree tree = planes.get(planeId);
+      if (tree == null)
+         return overlaps;
+      List<Leg> found = new ArrayList<Leg>();
+      java.time.LocalDate date = from.with(java.time.temporal.TemporalAdjusters.nextOrSame(day));
+      for (; !date.isAfter(to); date = date.plusWeeks(1)) {
+         Integer instance = generated.get(date);
+         int flightInstanceId = instance == null ? NOT_GENERATED : instance.intValue();
+         java.time.LocalDate arrivalDate = arrivalTime.before(departureTime) ? date.plusDays(1) : date;
+         Leg retimed = new Leg(flightInstanceId, flightNumber,
+                               Timestamp.valueOf(date.atTime(departureTime.toLocalTime())).getTime(),
+                               Timestamp.valueOf(arrivalDate.atTime(arrivalTime.toLocalTime())).getTime());
+         found.clear();
+         tree.overlapping(retimed.departure, retimed.arrival, found);
+         for (Leg other : found) {
+            if (instance == null || other.flightInstanceId != flightInstanceId)
+               overlaps.add(new Overlap(planeId, retimed, other));
+         }
+      }//end for
+      return overlaps;
+   }//end checkSchedule
+
+}//end RotationChecker
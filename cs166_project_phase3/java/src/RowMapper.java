@@ -0,0 +1,34 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to a value, reading each column
+ * with its typed getter (getInt, getLong, getBigDecimal, getDate, ...)
+ * instead of going through a String.
+ *
+ */
+public interface RowMapper<T> {
+
+   /**
+    * Maps the current row.  Must not move the cursor.
+    *
+    * @param rs the result set, positioned on a row
+    * @return the value of the row
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   T map(ResultSet rs) throws SQLException;
+
+}//end RowMapper
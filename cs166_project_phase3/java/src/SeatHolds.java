@@ -0,0 +1,320 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-limited seat holds.  A hold counts its seats in
+ * FlightInstance.SeatsSold right away, so searches and bookings never hand
+ * out a held seat.  Confirming a hold turns it into reservations, seated
+ * together through the SeatMap.  When a hold expires, its seats are given
+ * back.
+ *
+ * Each hold is stored in the SeatHold table.  Expiry is driven by a
+ * TimingWheel with one timer per hold.  When timers fire, all expired
+ * SeatHold rows are released in one set-based statement.  That statement
+ * also releases holds of other sessions and of earlier runs, so it is safe
+ * to run twice.  The wheel only knows the holds of this session, so the
+ * statement also runs every SWEEP_MILLIS; holds of sessions that ended
+ * are then given back without waiting for a restart.  Confirmation only
+ * accepts holds that have not expired, so SeatsSold and the holds always
+ * agree.
+ *
+ */
+public class SeatHolds {
+
+   // how long a hold lasts
+   public static final int HOLD_SECONDS = Integer.getInteger("airline.hold.seconds", 600);
+
+   // resolution of the expiry wheel
+   public static final long TICK_MILLIS = 100;
+
+   // delay between two sweeps for expired holds of any session
+   public static final long SWEEP_MILLIS = 60000;
+
+   private static final String INSERT_HOLD =
+      "INSERT INTO SeatHold (HoldID, CustomerID, FlightInstanceID, Seats, ExpiresAt) " +
+      "VALUES (?, ?, ?, ?, now() + ? * INTERVAL '1 second')";
+
+   private static final String TAKE_HOLD =
+      "DELETE FROM SeatHold WHERE HoldID = ? AND CustomerID = ? AND ExpiresAt > now() " +
+      "RETURNING FlightInstanceID, Seats";
+
+   // deletes every expired hold and gives its seats back, in one statement
+   private static final String RELEASE_EXPIRED =
+      "WITH Released AS (DELETE FROM SeatHold WHERE ExpiresAt <= now() " +
+      "                  RETURNING FlightInstanceID, Seats), " +
+      "     PerFlight AS (SELECT FlightInstanceID, SUM(Seats) AS Seats FROM Released GROUP BY FlightInstanceID) " +
+      "UPDATE FlightInstance FI SET SeatsSold = FI.SeatsSold - P.Seats " +
+      "FROM PerFlight P WHERE FI.FlightInstanceID = P.FlightInstanceID";
+
+   private static final String PENDING_HOLDS =
+      "SELECT HoldID, EXTRACT(EPOCH FROM (ExpiresAt - now())) * 1000 FROM SeatHold";
+
+   /**
+    * A hold that was placed.
+    */
+   public static class Hold {
+      public final int holdId;
+      public final int flightInstanceId;
+      public final int seats;
+      public final int seconds;
+
+      public Hold(int holdId, int flightInstanceId, int seats, int seconds) {
+         this.holdId = holdId;
+         this.flightInstanceId = flightInstanceId;
+         this.seats = seats;
+         this.seconds = seconds;
+      }
+   }//end Hold
+
+   private final TransactionRunner tx;
+   private final ConnectionPool pool;
+   private final ContentionMetrics metrics;
+   private final long origin = System.currentTimeMillis();
+   private final TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+   private final Map<Integer, TimingWheel.Timer<Integer>> timers =
+      new ConcurrentHashMap<Integer, TimingWheel.Timer<Integer>>();
+   private ScheduledExecutorService ticker = null;
+
+   /**
+    * Creates the hold service.
+    *
+    * @param tx the transaction runner of the interactive connection
+    * @param pool the pool the expiry thread borrows its connection from
+    */
+   public SeatHolds(TransactionRunner tx, ConnectionPool pool) {
+      this.tx = tx;
+      this.pool = pool;
+      this.metrics = tx.getMetrics();
+   }
+
+   /**
+    * Releases holds that expired while no session was running, schedules
+    * the remaining ones and starts the expiry thread.
+    *
+    * @throws java.sql.SQLException when the SeatHold table cannot be read
+    */
+   public synchronized void start() throws SQLException {
+      if (ticker != null)
+         return;
+      releaseExpired();
+      Connection conn = pool.borrow();
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(PENDING_HOLDS);
+         while (rs.next())
+            schedule(rs.getInt(1), (long) rs.getDouble(2));
+         stmt.close();
+      } finally {
+         pool.release(conn);
+      }//end try
+
+      ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "seat-hold-expiry");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      ticker.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            List<Integer> expired = new ArrayList<Integer>();
+            wheel.advance(tickOf(System.currentTimeMillis()) + 1, expired);
+            if (expired.isEmpty())
+               return;
+            for (Integer holdId : expired)
+               timers.remove(holdId);
+            try {
+               releaseExpired();
+            } catch (SQLException e) {
+               System.err.println("Warning: releasing expired seat holds failed: " + e.getMessage());
+            }//end try
+         }
+      }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+      ticker.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               releaseExpired();
+            } catch (SQLException e) {
+               System.err.println("Warning: sweeping expired seat holds failed: " + e.getMessage());
+            }//end try
+         }
+      }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops the expiry thread.  Pending holds stay in SeatHold and are
+    * released by the next session.
+    */
+   public synchronized void stop() {
+      if (ticker != null) {
+         ticker.shutdown();
+         ticker = null;
+      }
+   }//end stop
+
+   /**
+    * Holds seats on a flight for HOLD_SECONDS.
+    *
+    * @param customerId the customer placing the hold
+    * @param flightInstanceId the flight
+    * @param seats the number of seats
+    * @return the hold, or null when fewer seats are available
+    * @throws java.sql.SQLException when the flight does not exist or the transaction failed
+    */
+   public Hold hold(final int customerId, final int flightInstanceId, final int seats) throws SQLException {
+      Hold hold = tx.run("FlightInstance " + flightInstanceId, Connection.TRANSACTION_SERIALIZABLE,
+                         new TransactionRunner.Work<Hold>() {
+         public Hold run(Connection conn) throws SQLException {
+            PreparedStatement take = conn.prepareStatement(
+               "UPDATE FlightInstance SET SeatsSold = SeatsSold + ? " +
+               "WHERE FlightInstanceID = ? AND SeatsTotal - SeatsSold >= ?");
+            take.setInt(1, seats);
+            take.setInt(2, flightInstanceId);
+            take.setInt(3, seats);
+            int updated = take.executeUpdate();
+            take.close();
+            if (updated == 0)
+               return null;
+
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT nextval('seathold_holdid_seq')");
+            rs.next();
+            int holdId = rs.getInt(1);
+            stmt.close();
+
+            PreparedStatement insert = conn.prepareStatement(INSERT_HOLD);
+            insert.setInt(1, holdId);
+            insert.setInt(2, customerId);
+            insert.setInt(3, flightInstanceId);
+            insert.setInt(4, seats);
+            insert.setInt(5, HOLD_SECONDS);
+            insert.executeUpdate();
+            insert.close();
+            return new Hold(holdId, flightInstanceId, seats, HOLD_SECONDS);
+         }
+      });
+      if (hold != null)
+         schedule(hold.holdId, HOLD_SECONDS * 1000L);
+      return hold;
+   }//end hold
+
+   /**
+    * Turns an unexpired hold into one reservation per held seat.
+    *
+    * @param customerId the customer who placed the hold
+    * @param holdId the hold
+    * @return the new ReservationIDs, or null when the hold is unknown, not
+    *         the customer's, or expired
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public List<String> confirm(final int customerId, final int holdId) throws SQLException {
+      List<String> reservations = tx.run("SeatHold " + holdId, Connection.TRANSACTION_SERIALIZABLE,
+                                         new TransactionRunner.Work<List<String>>() {
+         public List<String> run(Connection conn) throws SQLException {
+            PreparedStatement take = conn.prepareStatement(TAKE_HOLD);
+            take.setInt(1, holdId);
+            take.setInt(2, customerId);
+            ResultSet rs = take.executeQuery();
+            if (!rs.next()) {
+               take.close();
+               return null;
+            }
+            int flightInstanceId = rs.getInt(1);
+            int seats = rs.getInt(2);
+            take.close();
+
+            // the seats are already counted in SeatsSold; only the reservations are added
+            // holds are off while sharded, so this is the only database
+            List<String> ids = ShardRouter.reservationIds(conn, seats);
+            PreparedStatement insert = conn.prepareStatement(
+               "INSERT INTO Reservation (ReservationID, CustomerID, FlightInstanceID, Status) VALUES (?, ?, ?, 'reserved')");
+            for (String id : ids) {
+               insert.setString(1, id);
+               insert.setInt(2, customerId);
+               insert.setInt(3, flightInstanceId);
+               insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+
+            // seat the party side by side when one row has room for all of them
+            SeatMap.assign(conn, flightInstanceId, ids);
+            return ids;
+         }
+      });
+      if (reservations != null) {
+         TimingWheel.Timer<Integer> timer = timers.remove(holdId);
+         if (timer != null)
+            wheel.cancel(timer);
+      }
+      return reservations;
+   }//end confirm
+
+   /**
+    * Returns the number of holds waiting to expire in this session.
+    *
+    * @return the number of pending timers
+    */
+   public int pending() {
+      return wheel.size();
+   }//end pending
+
+   /*
+    * Gives back the seats of every expired hold, on a pooled connection so
+    * the expiry thread never shares the interactive connection.
+    */
+   private void releaseExpired() throws SQLException {
+      Connection conn = pool.borrow();
+      try {
+         new TransactionRunner(conn, metrics).run("SeatHold expiry", Connection.TRANSACTION_SERIALIZABLE,
+                                                  new TransactionRunner.Work<Integer>() {
+            public Integer run(Connection conn) throws SQLException {
+               Statement stmt = conn.createStatement();
+               int released = stmt.executeUpdate(RELEASE_EXPIRED);
+               stmt.close();
+               return released;
+            }
+         });
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end releaseExpired
+
+   /*
+    * Arms the expiry timer of a hold; it fires one tick late so the
+    * database clock has passed ExpiresAt by then.
+    */
+   private void schedule(int holdId, long delayMillis) {
+      long tick = tickOf(System.currentTimeMillis() + Math.max(delayMillis, 0)) + 1;
+      timers.put(holdId, wheel.schedule(holdId, tick));
+   }//end schedule
+
+   private long tickOf(long millis) {
+      return (millis - origin) / TICK_MILLIS;
+   }//end tickOf
+
+}//end SeatHolds
@@ -0,0 +1,386 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The occupied seats of one flight instance, one 64-bit word per cabin row:
+ * bit i of row r is seat (r + 1) followed by the letter 'A' + i, e.g. 12C.
+ * Seats past SeatsTotal in the last row are marked occupied, so they are
+ * never handed out.
+ *
+ * The words are stored in SeatMap.Occupied as text of 16 hex digits per
+ * row, so a 180-seat flight takes 480 characters and checking a seat needs
+ * no row per seat.  Text rather than BYTEA, because the 7.3 driver cannot
+ * read or write BYTEA values.  SeatMap.SeatsTotal is the seat count the map
+ * was built for; when the instance's SeatsTotal changes, the next
+ * assignment resizes the map and keeps the occupied seats that still
+ * exist.  The seat each reservation got is recorded in SeatAssignment for
+ * the manifest, and release() gives it back.
+ *
+ * N adjacent free seats are found with shifts and ANDs on each row's free
+ * mask: after free & free >>> 1 & ... & free >>> (N - 1), bit i is set
+ * exactly when seats i .. i + N - 1 are all free.  That is N word
+ * operations per row, independent of how full the row is.
+ *
+ */
+public class SeatMap {
+
+   // seats per cabin row of a seat map created on first assignment
+   public static final int DEFAULT_SEATS_PER_ROW = Integer.getInteger("airline.seats.per.row", 6);
+
+   // row letters run from A to Z
+   public static final int MAX_SEATS_PER_ROW = 26;
+
+   private static final String LOCK_MAP =
+      "SELECT M.SeatsPerRow, M.SeatsTotal, M.Occupied, F.SeatsTotal " +
+      "FROM SeatMap M JOIN FlightInstance F ON F.FlightInstanceID = M.FlightInstanceID " +
+      "WHERE M.FlightInstanceID = ? FOR UPDATE OF M";
+
+   private static final String CREATE_MAP =
+      "INSERT INTO SeatMap (FlightInstanceID, SeatsPerRow, SeatsTotal, Occupied) " +
+      "SELECT FlightInstanceID, ?, 0, ? FROM FlightInstance WHERE FlightInstanceID = ? " +
+      "ON CONFLICT (FlightInstanceID) DO NOTHING";
+
+   private static final String SAVE_MAP =
+      "UPDATE SeatMap SET SeatsTotal = ?, Occupied = ? WHERE FlightInstanceID = ?";
+
+   private static final String INSERT_ASSIGNMENT =
+      "INSERT INTO SeatAssignment (ReservationID, FlightInstanceID, Seat) VALUES (?, ?, ?)";
+
+   private static final String DELETE_ASSIGNMENT =
+      "DELETE FROM SeatAssignment WHERE ReservationID = ? AND FlightInstanceID = ? RETURNING Seat";
+
+   private final int seatsPerRow;
+   private final int seatsTotal;
+   private final long[] rows;
+
+   private SeatMap(int seatsPerRow, int seatsTotal, long[] rows) {
+      this.seatsPerRow = seatsPerRow;
+      this.seatsTotal = seatsTotal;
+      this.rows = rows;
+   }
+
+   /**
+    * Creates the map of an empty cabin.
+    *
+    * @param seatsTotal the number of seats
+    * @param seatsPerRow the seats per row, 1 to MAX_SEATS_PER_ROW
+    * @return the map
+    */
+   public static SeatMap empty(int seatsTotal, int seatsPerRow) {
+      if (seatsPerRow < 1 || seatsPerRow > MAX_SEATS_PER_ROW)
+         throw new IllegalArgumentException("seats per row must be 1 to " + MAX_SEATS_PER_ROW);
+      long[] rows = new long[(Math.max(seatsTotal, 0) + seatsPerRow - 1) / seatsPerRow];
+      int lastRowSeats = seatsTotal - (rows.length - 1) * seatsPerRow;
+      if (rows.length > 0 && lastRowSeats < seatsPerRow)
+         rows[rows.length - 1] = rowMask(seatsPerRow) & ~rowMask(lastRowSeats);
+      return new SeatMap(seatsPerRow, Math.max(seatsTotal, 0), rows);
+   }//end empty
+
+   /**
+    * Reads a map from its stored form.
+    *
+    * @param seatsPerRow the seats per row
+    * @param seatsTotal the seat count the map was built for
+    * @param occupied the Occupied column
+    * @return the map
+    */
+   public static SeatMap decode(int seatsPerRow, int seatsTotal, String occupied) {
+      long[] rows = new long[occupied.length() / 16];
+      for (int r = 0; r < rows.length; ++r)
+         rows[r] = Long.parseUnsignedLong(occupied.substring(r * 16, r * 16 + 16), 16);
+      return new SeatMap(seatsPerRow, seatsTotal, rows);
+   }//end decode
+
+   /**
+    * Returns the stored form of the map.
+    *
+    * @return 16 hex digits per row, most significant first
+    */
+   public String encode() {
+      StringBuilder hex = new StringBuilder(rows.length * 16);
+      for (long row : rows)
+         hex.append(String.format("%016x", row));
+      return hex.toString();
+   }//end encode
+
+   /**
+    * Returns the map for a new seat count: the occupied seats that still
+    * exist stay occupied, seats past the new count are dropped.
+    *
+    * @param newSeatsTotal the new number of seats
+    * @return the map, or this map when the count is unchanged
+    */
+   public SeatMap resize(int newSeatsTotal) {
+      if (newSeatsTotal == seatsTotal)
+         return this;
+      SeatMap resized = empty(newSeatsTotal, seatsPerRow);
+      int keep = Math.min(seatsTotal, newSeatsTotal);
+      for (int seat = 0; seat < keep; ++seat)
+         if (isOccupied(seat))
+            resized.rows[seat / seatsPerRow] |= 1L << (seat % seatsPerRow);
+      return resized;
+   }//end resize
+
+   private static long rowMask(int seats) {
+      return seats >= 64 ? -1L : (1L << seats) - 1;
+   }//end rowMask
+
+   /**
+    * Finds n adjacent free seats in one row, front rows first.
+    *
+    * @param n the number of seats
+    * @return the seat numbers (row * seatsPerRow + position), or null when
+    *         no row has n adjacent free seats
+    */
+   public int[] findAdjacent(int n) {
+      if (n < 1 || n > seatsPerRow)
+         return null;
+      long mask = rowMask(seatsPerRow);
+      for (int r = 0; r < rows.length; ++r) {
+         long free = ~rows[r] & mask;
+         long runs = free;
+         for (int i = 1; i < n && runs != 0; ++i)
+            runs &= free >>> i;
+         if (runs != 0) {
+            int first = Long.numberOfTrailingZeros(runs);
+            int[] seats = new int[n];
+            for (int i = 0; i < n; ++i)
+               seats[i] = r * seatsPerRow + first + i;
+            return seats;
+         }
+      }//end for
+      return null;
+   }//end findAdjacent
+
+   /**
+    * Finds n free seats, front rows first, for when no row has them side
+    * by side.
+    *
+    * @param n the number of seats
+    * @return the seat numbers, or null when fewer than n seats are free
+    */
+   public int[] findAny(int n) {
+      int[] seats = new int[n];
+      int found = 0;
+      long mask = rowMask(seatsPerRow);
+      for (int r = 0; r < rows.length && found < n; ++r) {
+         long free = ~rows[r] & mask;
+         while (free != 0 && found < n) {
+            seats[found++] = r * seatsPerRow + Long.numberOfTrailingZeros(free);
+            free &= free - 1;
+         }
+      }//end for
+      return found == n ? seats : null;
+   }//end findAny
+
+   /**
+    * Marks seats as occupied.
+    *
+    * @param seats the seat numbers
+    */
+   public void occupy(int[] seats) {
+      for (int seat : seats)
+         rows[seat / seatsPerRow] |= 1L << (seat % seatsPerRow);
+   }//end occupy
+
+   /**
+    * Marks seats as free again.  Seats the map no longer has, after a
+    * shrinking resize, are skipped.
+    *
+    * @param seats the seat numbers
+    */
+   public void vacate(int[] seats) {
+      for (int seat : seats)
+         if (seat >= 0 && seat < seatsTotal)
+            rows[seat / seatsPerRow] &= ~(1L << (seat % seatsPerRow));
+   }//end vacate
+
+   /**
+    * Tells whether a seat is taken.
+    *
+    * @param seat the seat number
+    * @return true when the seat is occupied
+    */
+   public boolean isOccupied(int seat) {
+      return (rows[seat / seatsPerRow] & 1L << (seat % seatsPerRow)) != 0;
+   }//end isOccupied
+
+   /**
+    * Returns the number of free seats.
+    *
+    * @return the free seats
+    */
+   public int free() {
+      int free = 0;
+      long mask = rowMask(seatsPerRow);
+      for (long row : rows)
+         free += Long.bitCount(~row & mask);
+      return free;
+   }//end free
+
+   /**
+    * Returns the name of a seat, e.g. 12C.
+    *
+    * @param seat the seat number
+    * @return the name
+    */
+   public String label(int seat) {
+      return (seat / seatsPerRow + 1) + String.valueOf((char) ('A' + seat % seatsPerRow));
+   }//end label
+
+   /**
+    * Returns the seat number of a name made by label().
+    *
+    * @param label the name, e.g. 12C
+    * @return the seat number, or -1 when the name is not a seat of this map
+    */
+   public int seat(String label) {
+      if (label == null || label.length() < 2)
+         return -1;
+      int letter = label.charAt(label.length() - 1) - 'A';
+      int row;
+      try {
+         row = Integer.parseInt(label.substring(0, label.length() - 1)) - 1;
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+      if (row < 0 || letter < 0 || letter >= seatsPerRow)
+         return -1;
+      return row * seatsPerRow + letter;
+   }//end seat
+
+   /**
+    * Assigns seats to new reservations of one flight instance, side by side
+    * when one row has room for all of them.  Must run in the transaction
+    * that creates the reservations: the SeatMap row is locked until it
+    * commits, so concurrent assignments on the same flight take turns and
+    * never get the same seat.  The map is created on first use, and resized
+    * when the instance's SeatsTotal has changed since it was saved.
+    *
+    * @param conn the connection of the transaction
+    * @param flightInstanceId the flight instance
+    * @param reservationIds the reservations to seat
+    * @return the seat of each reservation, in order, or null when the map
+    *         has fewer free seats than reservations (the reservations stay
+    *         without a seat)
+    * @throws java.sql.SQLException when the map cannot be read or written
+    */
+   public static List<String> assign(Connection conn, int flightInstanceId, List<String> reservationIds)
+         throws SQLException {
+      SeatMap map = lock(conn, flightInstanceId);
+      if (map == null) {
+         // a map of no seats, resized to the instance's SeatsTotal when it is read back
+         PreparedStatement create = conn.prepareStatement(CREATE_MAP);
+         create.setInt(1, DEFAULT_SEATS_PER_ROW);
+         create.setString(2, "");
+         create.setInt(3, flightInstanceId);
+         create.executeUpdate();
+         create.close();
+         // a concurrent first assignment may have created it instead
+         map = lock(conn, flightInstanceId);
+         if (map == null)
+            return null; // no such flight instance
+      }//end if
+
+      int[] seats = map.findAdjacent(reservationIds.size());
+      if (seats == null)
+         seats = map.findAny(reservationIds.size());
+      if (seats == null)
+         return null;
+      map.occupy(seats);
+      map.save(conn, flightInstanceId);
+
+      List<String> labels = new ArrayList<String>();
+      PreparedStatement insert = conn.prepareStatement(INSERT_ASSIGNMENT);
+      for (int i = 0; i < seats.length; ++i) {
+         labels.add(map.label(seats[i]));
+         insert.setString(1, reservationIds.get(i));
+         insert.setInt(2, flightInstanceId);
+         insert.setString(3, labels.get(i));
+         insert.addBatch();
+      }
+      insert.executeBatch();
+      insert.close();
+      return labels;
+   }//end assign
+
+   /**
+    * Gives back the seats of reservations that are cancelled or moved off
+    * the flight, so later bookings can take them.  Must run in the
+    * transaction that changes the reservations; the SeatMap row is locked
+    * like in assign().  Reservations without a seat are skipped.
+    *
+    * @param conn the connection of the transaction
+    * @param flightInstanceId the flight instance
+    * @param reservationIds the reservations whose seats are released
+    * @return the number of seats released
+    * @throws java.sql.SQLException when the map cannot be read or written
+    */
+   public static int release(Connection conn, int flightInstanceId, List<String> reservationIds)
+         throws SQLException {
+      SeatMap map = lock(conn, flightInstanceId);
+      if (map == null)
+         return 0; // nothing was ever seated on this flight
+
+      List<Integer> seats = new ArrayList<Integer>();
+      PreparedStatement delete = conn.prepareStatement(DELETE_ASSIGNMENT);
+      for (String reservationId : reservationIds) {
+         delete.setString(1, reservationId);
+         delete.setInt(2, flightInstanceId);
+         ResultSet rs = delete.executeQuery();
+         if (rs.next())
+            seats.add(map.seat(rs.getString(1)));
+         rs.close();
+      }
+      delete.close();
+      if (seats.isEmpty())
+         return 0;
+
+      int[] freed = new int[seats.size()];
+      for (int i = 0; i < freed.length; ++i)
+         freed[i] = seats.get(i);
+      map.vacate(freed);
+      map.save(conn, flightInstanceId);
+      return freed.length;
+   }//end release
+
+   /*
+    * Locks the SeatMap row of a flight instance and reads it, resized to the
+    * instance's current SeatsTotal.  Returns null when the map does not exist.
+    */
+   private static SeatMap lock(Connection conn, int flightInstanceId) throws SQLException {
+      PreparedStatement select = conn.prepareStatement(LOCK_MAP);
+      select.setInt(1, flightInstanceId);
+      ResultSet rs = select.executeQuery();
+      SeatMap map = rs.next() ? decode(rs.getInt(1), rs.getInt(2), rs.getString(3)).resize(rs.getInt(4)) : null;
+      select.close();
+      return map;
+   }//end lock
+
+   private void save(Connection conn, int flightInstanceId) throws SQLException {
+      PreparedStatement save = conn.prepareStatement(SAVE_MAP);
+      save.setInt(1, seatsTotal);
+      save.setString(2, encode());
+      save.setInt(3, flightInstanceId);
+      save.executeUpdate();
+      save.close();
+   }//end save
+
+}//end SeatMap
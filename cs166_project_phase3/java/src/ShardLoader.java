@@ -0,0 +1,204 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings the shards in line with the shard router: copies the replicated
+ * reference tables from shard 0 to the other shards, and moves every
+ * FlightInstance, with its Reservation, SeatHold, SeatMap and
+ * SeatAssignment rows, to the shard of its flight.
+ *
+ * Both steps can be rerun.  Copies upsert on the primary key; a move
+ * inserts on the destination before it deletes from the source, so a move
+ * interrupted between the two leaves rows that the next run skips on the
+ * destination and deletes from the source.  Moves are not coordinated with
+ * bookings, so run the loader while no application is connected.
+ *
+ */
+public class ShardLoader {
+
+   // flight instances read per chunk while looking for misplaced ones
+   public static final int MOVE_CHUNK = 500;
+
+   // moved holds keep their HoldID, so the destination's numbering continues after them
+   private static final String ADVANCE_HOLD_IDS =
+      "SELECT setval(pg_get_serial_sequence('SeatHold', 'holdid'), MAX(HoldID)) FROM SeatHold";
+
+   /**
+    * Copies Plane, Flight, Schedule and Customer from shard 0 to every other
+    * shard, inserting missing rows and overwriting changed ones.  Each table
+    * is written to each shard in one transaction, in foreign key order.
+    *
+    * @param shards the shard router
+    * @return the number of rows written on all shards
+    * @throws java.sql.SQLException when a copy failed
+    */
+   public static int copyReferenceTables(ShardRouter shards) throws SQLException {
+      int written = 0;
+      for (String[] table : ShardRouter.REPLICATED_TABLES) {
+         ShardRouter.Rows rows = shards.query(0, "SELECT * FROM " + table[0]);
+         StringBuilder updates = new StringBuilder();
+         for (String column : rows.columns) {
+            if (!column.equalsIgnoreCase(table[1]))
+               updates.append(updates.length() == 0 ? "" : ", ").append(column).append(" = EXCLUDED.").append(column);
+         }
+         String upsert = insert(table[0], rows.columns) + " ON CONFLICT (" + table[1] + ") DO UPDATE SET " + updates;
+         for (int shard = 1; shard < shards.count(); ++shard)
+            written += write(shards, shard, table[0] + " copy", upsert, rows.rows);
+      }//end for
+      return written;
+   }//end copyReferenceTables
+
+   /**
+    * Moves every FlightInstance that is not on the shard of its flight,
+    * together with its Reservation, SeatHold, SeatMap and SeatAssignment
+    * rows.  This also rebalances the rows after shards were added to
+    * airline.shards.
+    *
+    * @param shards the shard router
+    * @return the number of flight instances moved
+    * @throws java.sql.SQLException when a move failed; the instances moved
+    *         before it stay moved
+    */
+   public static int moveFlightInstances(ShardRouter shards) throws SQLException {
+      int moved = 0;
+      for (int source = 0; source < shards.count(); ++source) {
+         int after = Integer.MIN_VALUE;
+         while (true) {
+            ShardRouter.Rows chunk = shards.query(source,
+               "SELECT * FROM FlightInstance WHERE FlightInstanceID > ? ORDER BY FlightInstanceID LIMIT ?",
+               after, MOVE_CHUNK);
+            if (chunk.rows.isEmpty())
+               break;
+            int idCol = column(chunk.columns, "flightinstanceid");
+            int flightNumberCol = column(chunk.columns, "flightnumber");
+            after = ((Number) chunk.rows.get(chunk.rows.size() - 1)[idCol]).intValue();
+
+            List<List<Object[]>> byDestination = new ArrayList<List<Object[]>>();
+            for (int shard = 0; shard < shards.count(); ++shard)
+               byDestination.add(new ArrayList<Object[]>());
+            for (Object[] row : chunk.rows)
+               byDestination.get(shards.shardOf((String) row[flightNumberCol])).add(row);
+            for (int destination = 0; destination < shards.count(); ++destination) {
+               if (destination != source && !byDestination.get(destination).isEmpty())
+                  moved += move(shards, source, destination, chunk.columns, idCol, byDestination.get(destination));
+            }
+         }//end while
+      }//end for
+      return moved;
+   }//end moveFlightInstances
+
+   /*
+    * Copies the instances, their reservations, holds and seats to the
+    * destination, then deletes them from the source.
+    */
+   private static int move(ShardRouter shards, int source, int destination, String[] columns, int idCol,
+                           List<Object[]> instances) throws SQLException {
+      StringBuilder ids = new StringBuilder();
+      for (Object[] row : instances)
+         ids.append(ids.length() == 0 ? "" : ", ").append(((Number) row[idCol]).intValue());
+      ShardRouter.Rows reservations = shards.query(source,
+         "SELECT * FROM Reservation WHERE FlightInstanceID IN (" + ids + ")");
+      ShardRouter.Rows seatHolds = shards.query(source,
+         "SELECT * FROM SeatHold WHERE FlightInstanceID IN (" + ids + ")");
+      ShardRouter.Rows seatMaps = shards.query(source,
+         "SELECT * FROM SeatMap WHERE FlightInstanceID IN (" + ids + ")");
+      ShardRouter.Rows seatAssignments = shards.query(source,
+         "SELECT * FROM SeatAssignment WHERE FlightInstanceID IN (" + ids + ")");
+
+      write(shards, destination, "FlightInstance move", insert("FlightInstance", columns) +
+            " ON CONFLICT (FlightInstanceID) DO NOTHING", instances);
+      if (!reservations.rows.isEmpty())
+         write(shards, destination, "Reservation move", insert("Reservation", reservations.columns) +
+               " ON CONFLICT (ReservationID) DO NOTHING", reservations.rows);
+      if (!seatHolds.rows.isEmpty()) {
+         write(shards, destination, "SeatHold move", insert("SeatHold", seatHolds.columns) +
+               " ON CONFLICT (HoldID) DO NOTHING", seatHolds.rows);
+         shards.query(destination, ADVANCE_HOLD_IDS);
+      }
+      if (!seatMaps.rows.isEmpty())
+         write(shards, destination, "SeatMap move", insert("SeatMap", seatMaps.columns) +
+               " ON CONFLICT (FlightInstanceID) DO NOTHING", seatMaps.rows);
+      if (!seatAssignments.rows.isEmpty())
+         write(shards, destination, "SeatAssignment move", insert("SeatAssignment", seatAssignments.columns) +
+               " ON CONFLICT (ReservationID) DO NOTHING", seatAssignments.rows);
+
+      final String deleteSeatAssignments = "DELETE FROM SeatAssignment WHERE FlightInstanceID IN (" + ids + ")";
+      final String deleteSeatHolds = "DELETE FROM SeatHold WHERE FlightInstanceID IN (" + ids + ")";
+      final String deleteSeatMaps = "DELETE FROM SeatMap WHERE FlightInstanceID IN (" + ids + ")";
+      final String deleteReservations = "DELETE FROM Reservation WHERE FlightInstanceID IN (" + ids + ")";
+      final String deleteInstances = "DELETE FROM FlightInstance WHERE FlightInstanceID IN (" + ids + ")";
+      return shards.run(source, "FlightInstance move", Connection.TRANSACTION_READ_COMMITTED,
+                        new TransactionRunner.Work<Integer>() {
+         public Integer run(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate(deleteSeatAssignments);
+            stmt.executeUpdate(deleteSeatHolds);
+            stmt.executeUpdate(deleteSeatMaps);
+            stmt.executeUpdate(deleteReservations);
+            int deleted = stmt.executeUpdate(deleteInstances);
+            stmt.close();
+            return deleted;
+         }
+      });
+   }//end move
+
+   private static String insert(String table, String[] columns) {
+      StringBuilder values = new StringBuilder();
+      for (int i = 0; i < columns.length; ++i)
+         values.append(i == 0 ? "?" : ", ?");
+      return "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES (" + values + ")";
+   }//end insert
+
+   /*
+    * Writes rows with one batched statement in one transaction on a shard.
+    */
+   private static int write(ShardRouter shards, int shard, String key, final String sql, final List<Object[]> rows)
+         throws SQLException {
+      return shards.run(shard, key, Connection.TRANSACTION_READ_COMMITTED, new TransactionRunner.Work<Integer>() {
+         public Integer run(Connection conn) throws SQLException {
+            PreparedStatement pstmt = conn.prepareStatement(sql);
+            for (Object[] row : rows) {
+               for (int i = 0; i < row.length; ++i) {
+                  if (row[i] == null)
+                     pstmt.setNull(i + 1, Types.NULL);
+                  else
+                     pstmt.setObject(i + 1, row[i]);
+               }
+               pstmt.addBatch();
+            }
+            int written = 0;
+            for (int count : pstmt.executeBatch())
+               written += Math.max(count, 0);
+            pstmt.close();
+            return written;
+         }
+      });
+   }//end write
+
+   private static int column(String[] columns, String name) {
+      for (int i = 0; i < columns.length; ++i) {
+         if (columns[i].equalsIgnoreCase(name))
+            return i;
+      }
+      throw new IllegalArgumentException("no column " + name);
+   }//end column
+
+}//end ShardLoader
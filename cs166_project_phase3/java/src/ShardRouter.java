@@ -0,0 +1,503 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads FlightInstance and Reservation rows over several databases by a
+ * hash of FlightNumber.  Shard 0 is the database the application connects
+ * to; the other shards are listed in the airline.shards system property.
+ * Every shard has the full schema:
+ *    - FlightInstance and Reservation rows live on the shard of their
+ *      FlightNumber only, so a booking is a local transaction on one shard;
+ *    - Plane, Flight, Schedule and Customer are replicated to every shard,
+ *      so the joins of the flight and reservation queries stay local;
+ *    - the pilot and technician tables stay on shard 0.
+ * Reads that are not keyed by one flight run on every shard in parallel,
+ * and their rows are merged in the order of the query.  Each calling
+ * thread has its own scatter threads, so concurrent callers never queue
+ * behind one another and a scatter from inside a scatter cannot deadlock.
+ *
+ * With no shards configured there is one shard, the primary, and every
+ * routing call answers shard 0 without a query.
+ *
+ */
+public class ShardRouter {
+
+   // comma-separated databases of shards 1..N-1, each <dbname> or <dbname>:<port>
+   public static final String SHARDS = System.getProperty("airline.shards", "");
+
+   // reference tables copied to every shard, with their primary keys
+   public static final String[][] REPLICATED_TABLES = {
+      {"Plane", "PlaneID"}, {"Flight", "FlightNumber"}, {"Schedule", "ScheduleID"}, {"Customer", "CustomerID"}};
+
+   // idle scatter threads of a caller end after this long
+   public static final long SCATTER_IDLE_MILLIS = 60000;
+
+   // numbers of new ReservationIDs, drawn on shard 0 for every shard (sql/src/create_tables.sql)
+   private static final String NEXT_RESERVATION_NUMBERS =
+      "SELECT nextval('reservation_number_seq') FROM generate_series(1, ?)";
+
+   /**
+    * Rows gathered from one or more shards, with the column names of the
+    * query.  Values are kept as the driver returned them, so merging
+    * compares numbers, dates and times by value.
+    */
+   public static class Rows {
+      public final String[] columns;
+      public final List<Object[]> rows;
+
+      Rows(String[] columns, List<Object[]> rows) {
+         this.columns = columns;
+         this.rows = rows;
+      }
+
+      /**
+       * Returns the rows as printable Strings, as ResultSet.getString gives
+       * them: booleans as t and f, NULL as "null" once printed.
+       *
+       * @return the rows
+       */
+      public List<String[]> strings() {
+         List<String[]> result = new ArrayList<String[]>(rows.size());
+         for (Object[] row : rows) {
+            String[] values = new String[row.length];
+            for (int i = 0; i < row.length; ++i)
+               values[i] = row[i] instanceof Boolean ? (((Boolean) row[i]) ? "t" : "f") : String.valueOf(row[i]);
+            result.add(values);
+         }
+         return result;
+      }
+   }//end Rows
+
+   private final String[] urls;
+   private final ConnectionPool[] pools;
+   private final TransactionRunner primaryTx;
+   private final QueryGuard guard;
+
+   // scatter threads of each calling thread, for shards 1..N-1; shard 0 runs on the caller
+   private final ThreadLocal<ExecutorService> threads = new ThreadLocal<ExecutorService>();
+   private final List<ExecutorService> allThreads = new CopyOnWriteArrayList<ExecutorService>();
+   private volatile boolean closed = false;
+
+   // shard of every FlightInstanceID looked up so far; instances never move once loaded
+   private final ConcurrentHashMap<Integer, Integer> instanceShards = new ConcurrentHashMap<Integer, Integer>();
+
+   /**
+    * Creates the router.
+    *
+    * @param primaryUrl the JDBC URL of shard 0
+    * @param primaryPool the pool of shard 0
+    * @param primaryTx the runner of the interactive connection to shard 0
+    * @param shardUrls the JDBC URLs of shards 1..N-1
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @param poolSize the size of the pool of each further shard
+    * @param guard the time budget and breaker of the calls
+    */
+   public ShardRouter(String primaryUrl, ConnectionPool primaryPool, TransactionRunner primaryTx,
+                      List<String> shardUrls, String user, String passwd, int poolSize, QueryGuard guard) {
+      this.urls = new String[shardUrls.size() + 1];
+      this.pools = new ConnectionPool[urls.length];
+      this.urls[0] = primaryUrl;
+      this.pools[0] = primaryPool;
+      for (int i = 1; i < urls.length; ++i) {
+         this.urls[i] = shardUrls.get(i - 1);
+         this.pools[i] = new ConnectionPool(urls[i], user, passwd, poolSize);
+      }
+      this.primaryTx = primaryTx;
+      this.guard = guard;
+   }//end ShardRouter
+
+   /*
+    * Returns the scatter threads of the calling thread, creating them on
+    * first use.  They end when idle, so the threads of a finished caller
+    * do not linger.
+    */
+   private ExecutorService scatterThreads() throws SQLException {
+      ExecutorService executor = threads.get();
+      if (executor != null)
+         return executor;
+      if (closed)
+         throw new SQLException("Shard router is closed");
+      ThreadPoolExecutor created = new ThreadPoolExecutor(urls.length - 1, urls.length - 1,
+         SCATTER_IDLE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "shard-scatter");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      created.allowCoreThreadTimeOut(true);
+      threads.set(created);
+      allThreads.add(created);
+      return created;
+   }//end scatterThreads
+
+   /**
+    * Parses the shard list of the airline.shards property.
+    *
+    * @param spec the list, <dbname>[:<port>] separated by commas
+    * @param defaultPort the port of a shard given without one
+    * @return the JDBC URLs of the shards
+    */
+   public static List<String> parse(String spec, String defaultPort) {
+      List<String> result = new ArrayList<String>();
+      for (String shard : spec.split(",")) {
+         shard = shard.trim();
+         if (shard.isEmpty())
+            continue;
+         int colon = shard.lastIndexOf(':');
+         String dbname = colon < 0 ? shard : shard.substring(0, colon);
+         String port = colon < 0 ? defaultPort : shard.substring(colon + 1);
+         result.add("jdbc:postgresql://localhost:" + port + "/" + dbname);
+      }
+      return result;
+   }//end parse
+
+   /**
+    * Returns the number of shards, 1 when sharding is off.
+    *
+    * @return the number of shards
+    */
+   public int count() {
+      return urls.length;
+   }//end count
+
+   /**
+    * Tells whether the rows are spread over more than one database.
+    *
+    * @return true when shards are configured
+    */
+   public boolean isSharded() {
+      return urls.length > 1;
+   }//end isSharded
+
+   /**
+    * Returns the JDBC URL of a shard.
+    *
+    * @param shard the shard
+    * @return the URL
+    */
+   public String url(int shard) {
+      return urls[shard];
+   }//end url
+
+   /**
+    * Returns the connection pool of a shard.
+    *
+    * @param shard the shard
+    * @return the pool
+    */
+   public ConnectionPool pool(int shard) {
+      return pools[shard];
+   }//end pool
+
+   /**
+    * Returns the shard holding the instances and reservations of a flight.
+    * String.hashCode is specified by the language, so every client and
+    * every run places a flight on the same shard.
+    *
+    * @param flightNumber the flight
+    * @return the shard
+    */
+   public int shardOf(String flightNumber) {
+      return (flightNumber.trim().hashCode() & 0x7fffffff) % urls.length;
+   }//end shardOf
+
+   /**
+    * Returns the shard holding a flight instance.  The first lookup of an
+    * instance asks every shard; the answer is kept for the session.
+    *
+    * @param flightInstanceId the instance
+    * @return the shard, or -1 when no shard has the instance
+    * @throws java.sql.SQLException when a shard cannot be asked
+    */
+   public int shardOfInstance(int flightInstanceId) throws SQLException {
+      if (!isSharded())
+         return 0;
+      Integer known = instanceShards.get(flightInstanceId);
+      if (known != null)
+         return known;
+      Rows found = scatter("SELECT FlightNumber FROM FlightInstance WHERE FlightInstanceID = ?", flightInstanceId);
+      if (found.rows.isEmpty())
+         return -1;
+      int shard = shardOf((String) found.rows.get(0)[0]);
+      instanceShards.put(flightInstanceId, shard);
+      return shard;
+   }//end shardOfInstance
+
+   /**
+    * Runs a transaction on one shard.  Shard 0 uses the interactive
+    * connection; the others borrow a connection of their pool.
+    *
+    * @param shard the shard
+    * @param key the resource the work contends on
+    * @param isolation one of the Connection.TRANSACTION_* levels
+    * @param work the work to run
+    * @return the value returned by the committed attempt
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public <T> T run(int shard, String key, int isolation, TransactionRunner.Work<T> work) throws SQLException {
+      if (shard == 0)
+         return primaryTx.run(key, isolation, work);
+      Connection conn = pools[shard].borrow();
+      try {
+         TransactionRunner tx = new TransactionRunner(conn, primaryTx.getMetrics());
+         tx.setGuard(guard);
+         return tx.run(key, isolation, work);
+      } finally {
+         pools[shard].release(conn);
+      }//end try
+   }//end run
+
+   /**
+    * Runs a query on one shard.
+    *
+    * @param shard the shard
+    * @param query the query, with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Rows query(int shard, String query, Object... params) throws SQLException {
+      guard.before();
+      Connection conn = pools[shard].borrow();
+      try {
+         PreparedStatement pstmt = conn.prepareStatement(query);
+         QueryGuard.Watch watch = null;
+         try {
+            for (int i = 0; i < params.length; ++i)
+               pstmt.setObject(i + 1, params[i]);
+            watch = guard.watch(pstmt);
+            ResultSet rs = pstmt.executeQuery();
+            ResultSetMetaData rsmd = rs.getMetaData();
+            String[] columns = new String[rsmd.getColumnCount()];
+            for (int i = 0; i < columns.length; ++i)
+               columns[i] = rsmd.getColumnName(i + 1);
+            List<Object[]> rows = new ArrayList<Object[]>();
+            while (rs.next()) {
+               Object[] row = new Object[columns.length];
+               for (int i = 0; i < columns.length; ++i)
+                  row[i] = rs.getObject(i + 1);
+               rows.add(row);
+            }
+            guard.succeeded();
+            return new Rows(columns, rows);
+         } catch (SQLException e) {
+            throw guard.failed(e, conn);
+         } finally {
+            if (watch != null)
+               watch.done();
+            pstmt.close();
+         }//end try
+      } finally {
+         pools[shard].release(conn);
+      }//end try
+   }//end query
+
+   /**
+    * Runs a query on every shard in parallel and gathers the rows, those of
+    * shard 0 first.  The rows are not merged; see sort.
+    *
+    * @param query the query, with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the rows of all shards
+    * @throws java.sql.SQLException when a shard failed to execute the query
+    */
+   public Rows scatter(final String query, final Object... params) throws SQLException {
+      if (!isSharded())
+         return query(0, query, params);
+      ExecutorService executor = scatterThreads();
+      List<Future<Rows>> results = new ArrayList<Future<Rows>>();
+      for (int i = 1; i < urls.length; ++i) {
+         final int shard = i;
+         results.add(executor.submit(new Callable<Rows>() {
+            public Rows call() throws SQLException {
+               return query(shard, query, params);
+            }
+         }));
+      }
+      String[] columns = null;
+      List<Object[]> rows = new ArrayList<Object[]>();
+      SQLException failure = null;
+      try {
+         Rows shardRows = query(0, query, params);
+         columns = shardRows.columns;
+         rows.addAll(shardRows.rows);
+      } catch (SQLException e) {
+         failure = e;
+      }//end try
+      for (Future<Rows> result : results) {
+         try {
+            Rows shardRows = result.get();
+            columns = shardRows.columns;
+            rows.addAll(shardRows.rows);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying the shards");
+         } catch (ExecutionException e) {
+            if (failure == null)
+               failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                              : new SQLException("Shard query failed: " + e.getCause());
+         }//end try
+      }//end for
+      if (failure != null)
+         throw failure;
+      return new Rows(columns, rows);
+   }//end scatter
+
+   /**
+    * Sorts gathered rows on key columns the way Postgres orders them: NULL
+    * after every value when ascending, before every value when descending.
+    *
+    * @param rows the rows, sorted in place
+    * @param keyCols the (1-based) key columns, most significant first
+    * @param descending true to sort from the highest key to the lowest
+    */
+   public static void sort(List<Object[]> rows, int[] keyCols, boolean descending) {
+      boolean[] directions = new boolean[keyCols.length];
+      Arrays.fill(directions, descending);
+      sort(rows, keyCols, directions);
+   }//end sort
+
+   /**
+    * Sorts gathered rows on key columns that run in different directions.
+    *
+    * @param rows the rows, sorted in place
+    * @param keyCols the (1-based) key columns, most significant first
+    * @param descending for each key column, true to sort it from the highest value to the lowest
+    */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public static void sort(List<Object[]> rows, final int[] keyCols, final boolean[] descending) {
+      Collections.sort(rows, new Comparator<Object[]>() {
+         public int compare(Object[] a, Object[] b) {
+            for (int k = 0; k < keyCols.length; ++k) {
+               Object x = a[keyCols[k] - 1], y = b[keyCols[k] - 1];
+               int cmp;
+               if (x == null || y == null)
+                  cmp = x == y ? 0 : (x == null ? 1 : -1);
+               else
+                  cmp = ((Comparable) x).compareTo(y);
+               if (cmp != 0)
+                  return descending[k] ? -cmp : cmp;
+            }
+            return 0;
+         }
+      });
+   }//end sort
+
+   /**
+    * Applies a write to a replicated table on shards 1..N-1.  Call it before
+    * making the write on shard 0: a shard that fails stops the write before
+    * it reaches shard 0, so a row on shard 0 is on every shard.  The write
+    * must be idempotent (an upsert), because a failed attempt can leave it
+    * on the shards before the failing one, where the next attempt or the
+    * next use of the key overwrites it.
+    *
+    * @param sql the upsert, UPDATE or DELETE, with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @throws java.sql.SQLException when a shard failed to apply the write
+    */
+   public void replicate(String sql, Object... params) throws SQLException {
+      for (int shard = 1; shard < urls.length; ++shard) {
+         Connection conn = pools[shard].borrow();
+         try {
+            PreparedStatement pstmt = conn.prepareStatement(sql);
+            for (int i = 0; i < params.length; ++i)
+               pstmt.setObject(i + 1, params[i]);
+            pstmt.executeUpdate();
+            pstmt.close();
+         } finally {
+            pools[shard].release(conn);
+         }//end try
+      }//end for
+   }//end replicate
+
+   /**
+    * Draws new ReservationIDs.  They are numbered by one sequence on shard 0
+    * for all shards, so no two bookings, on any shard, get the same
+    * ReservationID.  Sequence numbers are not handed back on rollback, so a
+    * retried booking never collides with a concurrent one.
+    *
+    * @param conn the connection of the booking, used when it is on shard 0
+    * @param shard the shard of that connection
+    * @param count the number of ids
+    * @return the ids, e.g. R0042
+    * @throws java.sql.SQLException when the sequence cannot be read
+    */
+   public List<String> nextReservationIds(Connection conn, int shard, int count) throws SQLException {
+      if (shard == 0)
+         return reservationIds(conn, count);
+      Connection primary = pools[0].borrow();
+      try {
+         return reservationIds(primary, count);
+      } finally {
+         pools[0].release(primary);
+      }//end try
+   }//end nextReservationIds
+
+   /**
+    * Draws new ReservationIDs on a connection to shard 0, or to the only
+    * database when sharding is off.
+    *
+    * @param conn the connection
+    * @param count the number of ids
+    * @return the ids, e.g. R0042
+    * @throws java.sql.SQLException when the sequence cannot be read
+    */
+   public static List<String> reservationIds(Connection conn, int count) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(NEXT_RESERVATION_NUMBERS);
+      try {
+         stmt.setInt(1, count);
+         ResultSet rs = stmt.executeQuery();
+         List<String> ids = new ArrayList<String>();
+         while (rs.next())
+            ids.add("R" + String.format("%04d", rs.getLong(1)));
+         return ids;
+      } finally {
+         stmt.close();
+      }//end try
+   }//end reservationIds
+
+   /**
+    * Closes the pools of shards 1..N-1; shard 0 belongs to the caller.
+    */
+   public void close() {
+      closed = true;
+      for (ExecutorService executor : allThreads)
+         executor.shutdownNow();
+      for (int shard = 1; shard < urls.length; ++shard)
+         pools[shard].close();
+   }//end close
+
+}//end ShardRouter
@@ -0,0 +1,172 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Warms the application up in the background while the login menu is
+ * already shown: opens the pooled connections, preloads the reference
+ * tables, opens the flight snapshot and runs the hot queries once.
+ *
+ * Prepared statements and plans belong to one server session, so a
+ * background thread cannot prepare them for the interactive connection.
+ * The hot queries are run once on every pooled connection instead.  This
+ * loads the catalog entries and index pages the first real queries need.
+ *
+ * Timings are measured from JVM start and printed by report().
+ *
+ */
+public class StartupWarmer {
+
+   // the queries behind login, search and booking, run once against keys that do not exist
+   private static final String[] HOT_QUERIES = {
+      "SELECT CustomerID, FirstName, LastName FROM Customer WHERE CustomerID = -1 AND Password = ''",
+      "SELECT PilotID, Name FROM Pilot WHERE PilotID = '' AND Password = ''",
+      "SELECT TechnicianID, Name FROM Technician WHERE TechnicianID = '' AND Password = ''",
+      "SELECT AgentID, Name FROM Agent WHERE AgentID = '' AND Password = ''",
+      "SELECT FI.FlightInstanceID, S.DepartureTime, FI.TicketCost FROM FlightInstance FI " +
+      "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
+      "WHERE F.DepartureCity = '' AND F.ArrivalCity = '' AND FI.FlightDate = CURRENT_DATE",
+      "SELECT SeatsTotal, SeatsSold FROM FlightInstance WHERE FlightInstanceID = -1",
+      "SELECT nextval('reservation_number_seq') FROM generate_series(1, 0)",
+      "SELECT R.ReservationID FROM Reservation R WHERE R.CustomerID = -1"
+   };
+
+   private final AirlineManagement esql;
+   private final int poolSize;
+   private final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+   private final List<String> steps = new ArrayList<String>();
+   private volatile long firstMenu = 0;
+   private volatile long ready = 0;
+   private Thread thread = null;
+
+   public StartupWarmer(AirlineManagement esql, int poolSize) {
+      this.esql = esql;
+      this.poolSize = poolSize;
+   }
+
+   /**
+    * Starts the warm-up on a background daemon thread.
+    */
+   public synchronized void start() {
+      if (thread != null)
+         return;
+      thread = new Thread(new Runnable() {
+         public void run() {
+            warm();
+         }
+      }, "startup-warmup");
+      thread.setDaemon(true);
+      thread.start();
+   }//end start
+
+   /**
+    * Records that the first menu is on screen; later calls are ignored.
+    */
+   public void markFirstMenu() {
+      if (firstMenu == 0)
+         firstMenu = System.currentTimeMillis();
+   }//end markFirstMenu
+
+   /**
+    * Tells whether the warm-up has finished.
+    *
+    * @return true once caches and connections are warm
+    */
+   public boolean isReady() {
+      return ready != 0;
+   }//end isReady
+
+   /**
+    * Prints the startup timings.
+    */
+   public void report() {
+      System.out.println("\n--- Startup ---");
+      System.out.println("time to first menu:\t" + since(firstMenu));
+      synchronized (steps) {
+         for (String step : steps)
+            System.out.println(step);
+      }
+      System.out.println("time to first fast query:\t" + since(ready));
+   }//end report
+
+   /*
+    * The warm-up steps.  A failed step is reported and the next one still runs.
+    */
+   private void warm() {
+      step("pool of " + poolSize + " connections", new Step() {
+         public void run() throws SQLException { esql.getPool().warm(poolSize); }
+      });
+      step("Plane, Flight and Schedule preloaded", new Step() {
+         public void run() throws SQLException {
+            esql.getReferenceCache().loadPlanes();
+            esql.getReferenceCache().loadFlights();
+            esql.getReferenceCache().loadSchedules();
+         }
+      });
+      step("flight snapshot opened", new Step() {
+         public void run() throws SQLException {
+            if (esql.getFlightSnapshot() == null)
+               throw new SQLException(esql.getShards().isSharded() ? "not used with shards" : "not available");
+         }
+      });
+      step("hot queries run on the pool", new Step() {
+         public void run() throws SQLException {
+            List<Connection> borrowed = new ArrayList<Connection>();
+            try {
+               for (int i = 0; i < poolSize; ++i) {
+                  Connection conn = esql.getPool().borrow();
+                  borrowed.add(conn);
+                  Statement stmt = conn.createStatement();
+                  for (String query : HOT_QUERIES)
+                     stmt.executeQuery(query).close();
+                  stmt.close();
+               }
+            } finally {
+               for (Connection conn : borrowed)
+                  esql.getPool().release(conn);
+            }//end try
+         }
+      });
+      ready = System.currentTimeMillis();
+   }//end warm
+
+   private interface Step {
+      void run() throws SQLException;
+   }
+
+   private void step(String name, Step step) {
+      long start = System.currentTimeMillis();
+      String outcome;
+      try {
+         step.run();
+         outcome = (System.currentTimeMillis() - start) + " ms";
+      } catch (SQLException e) {
+         outcome = "failed (" + e.getMessage() + ")";
+      }//end try
+      synchronized (steps) {
+         steps.add("  " + name + ":\t" + outcome);
+      }
+   }//end step
+
+   private String since(long time) {
+      return time == 0 ? "not reached" : (time - jvmStart) + " ms after JVM start";
+   }//end since
+
+}//end StartupWarmer
@@ -0,0 +1,188 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel.  Time advances in ticks; LEVELS wheels of
+ * SLOTS slots each cover SLOTS, SLOTS^2, ... ticks ahead.  A timer sits in
+ * the coarsest wheel it needs and moves down one wheel each time the finer
+ * wheel wraps around, until it fires from wheel 0.  Scheduling, cancelling
+ * and firing a timer each cost O(1), independent of how many are pending.
+ *
+ * Timers further away than the wheels cover are parked in the last slot and
+ * re-inserted when it is reached.  The wheel is not tied to a clock: the
+ * owner calls advance() with the current tick.
+ *
+ */
+public class TimingWheel<T> {
+
+   // slots per wheel (a power of two) and the matching bit count
+   public static final int SLOT_BITS = 6;
+   public static final int SLOTS = 1 << SLOT_BITS;
+
+   // number of wheels; together they cover SLOTS^LEVELS ticks
+   public static final int LEVELS = 4;
+
+   private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+   /**
+    * A scheduled timer; pass it to cancel() to remove it.
+    */
+   public static final class Timer<T> {
+      final T item;
+      final long expiry;
+      Timer<T> prev, next;
+
+      Timer(T item, long expiry) {
+         this.item = item;
+         this.expiry = expiry;
+      }
+
+      public T item() { return item; }
+   }//end Timer
+
+   // per wheel and slot, a sentinel of a circular doubly linked list
+   private final Timer<T>[][] slots;
+
+   // the next tick to be processed
+   private long current;
+   private int size = 0;
+
+   @SuppressWarnings("unchecked")
+   public TimingWheel(long startTick) {
+      this.current = startTick;
+      slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+      for (int level = 0; level < LEVELS; ++level)
+         for (int slot = 0; slot < SLOTS; ++slot) {
+            Timer<T> head = new Timer<T>(null, 0);
+            head.prev = head.next = head;
+            slots[level][slot] = head;
+         }
+   }//end TimingWheel
+
+   /**
+    * Schedules an item to fire at a tick.  Ticks already passed fire on the
+    * next advance.
+    *
+    * @param item the item handed back when the timer fires
+    * @param tick the tick to fire at
+    * @return the timer, for cancel()
+    */
+   public synchronized Timer<T> schedule(T item, long tick) {
+      Timer<T> timer = new Timer<T>(item, Math.max(tick, current));
+      insert(timer);
+      ++size;
+      return timer;
+   }//end schedule
+
+   /**
+    * Removes a timer that has not fired yet.
+    *
+    * @param timer the timer
+    * @return true if it was pending
+    */
+   public synchronized boolean cancel(Timer<T> timer) {
+      if (timer.next == null)
+         return false; // fired or cancelled already
+      unlink(timer);
+      --size;
+      return true;
+   }//end cancel
+
+   /**
+    * Processes every tick before the given one and collects the items of
+    * the timers that fired.
+    *
+    * @param tick the first tick not to process
+    * @param fired receives the fired items, in tick order
+    */
+   public synchronized void advance(long tick, List<T> fired) {
+      while (current < tick) {
+         // wheel 0 wrapped: move the timers of the next coarser slot down
+         for (int level = 1; level < LEVELS; ++level) {
+            if ((current & mask(level - 1)) != 0)
+               break;
+            cascade(level, index(current, level));
+         }
+         Timer<T> head = slots[0][index(current, 0)];
+         while (head.next != head) {
+            Timer<T> timer = head.next;
+            unlink(timer);
+            --size;
+            fired.add(timer.item);
+         }
+         ++current;
+      }//end while
+   }//end advance
+
+   /**
+    * Returns the number of pending timers.
+    *
+    * @return the number of timers
+    */
+   public synchronized int size() {
+      return size;
+   }//end size
+
+   /*
+    * Links a timer into the slot of the coarsest wheel it needs.
+    */
+   private void insert(Timer<T> timer) {
+      long delta = timer.expiry - current;
+      Timer<T> head;
+      if (delta >= SPAN) {
+         // beyond the wheels: park in the farthest slot, re-inserted when it cascades
+         head = slots[LEVELS - 1][index(current + SPAN - 1, LEVELS - 1)];
+      } else {
+         int level = 0;
+         while (delta >= (1L << (SLOT_BITS * (level + 1))))
+            ++level;
+         head = slots[level][index(timer.expiry, level)];
+      }
+      timer.prev = head.prev;
+      timer.next = head;
+      head.prev.next = timer;
+      head.prev = timer;
+   }//end insert
+
+   /*
+    * Re-inserts the timers of one slot, which lands them in finer wheels.
+    */
+   private void cascade(int level, int slot) {
+      Timer<T> head = slots[level][slot];
+      Timer<T> timer = head.next;
+      head.prev = head.next = head;
+      while (timer != head) {
+         Timer<T> next = timer.next;
+         insert(timer);
+         timer = next;
+      }
+   }//end cascade
+
+   private static <T> void unlink(Timer<T> timer) {
+      timer.prev.next = timer.next;
+      timer.next.prev = timer.prev;
+      timer.prev = timer.next = null;
+   }//end unlink
+
+   private static int index(long tick, int level) {
+      return (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+   }//end index
+
+   // the tick bits below wheel level + 1
+   private static long mask(int level) {
+      return (1L << (SLOT_BITS * (level + 1))) - 1;
+   }//end mask
+
+}//end TimingWheel
@@ -0,0 +1,70 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the K smallest of a stream of items.  The largest kept item sits at
+ * the top of a heap of at most K entries, so each offer costs O(log K)
+ * regardless of the stream length and the rest of the stream is never
+ * sorted.  Streams from several sources (flights, dates, city pairs) can
+ * be offered to the same TopK to merge them.
+ *
+ */
+public class TopK<T> {
+
+   private final int k;
+   private final Comparator<? super T> order;
+   private final PriorityQueue<T> heap;
+
+   /**
+    * @param k the number of items to keep (at least 1)
+    * @param order the order in which "smallest" is meant
+    */
+   public TopK(int k, Comparator<? super T> order) {
+      this.k = k;
+      this.order = order;
+      // the heap grows as items come; K may be far larger than the stream
+      this.heap = new PriorityQueue<T>(Math.min(k, 64) + 1, Collections.reverseOrder(order));
+   }
+
+   /**
+    * Offers an item; it is kept if it is among the K smallest so far.
+    *
+    * @param item the item
+    */
+   public void offer(T item) {
+      if (heap.size() < k) {
+         heap.add(item);
+      } else if (order.compare(item, heap.peek()) < 0) {
+         heap.poll();
+         heap.add(item);
+      }
+   }//end offer
+
+   /**
+    * Returns the kept items, smallest first.
+    *
+    * @return the K (or fewer) smallest items offered
+    */
+   public List<T> sorted() {
+      List<T> result = new ArrayList<T>(heap);
+      Collections.sort(result, order);
+      return result;
+   }//end sorted
+
+}//end TopK
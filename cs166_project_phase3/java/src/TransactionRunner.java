@@ -0,0 +1,196 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a unit of work as one transaction at a chosen isolation level.
+ * Conflicts are retried from the start with jittered exponential backoff:
+ * serialization failures, deadlocks and unique violations (two sessions
+ * that generated the same MAX+1 id), recognised by SQLState or, with the
+ * 7.3 driver, by the server's message.  The outcome of every attempt is
+ * counted in ContentionMetrics under the resource key of the work.
+ * With a QueryGuard set, a transaction is not started while the circuit
+ * breaker is open, and its outcome is reported to the breaker.
+ *
+ * The work may run several times, so it must not read user input or
+ * change anything outside the database.
+ *
+ */
+public class TransactionRunner {
+
+   /**
+    * A unit of work run inside a transaction.
+    */
+   public interface Work<T> {
+      T run(Connection conn) throws SQLException;
+   }//end Work
+
+   // attempts before the transaction gives up
+   public static final int MAX_ATTEMPTS = 5;
+
+   // backoff before the first retry; doubled after every further conflict
+   public static final long BASE_BACKOFF_MILLIS = 10;
+
+   // upper bound of the backoff
+   public static final long MAX_BACKOFF_MILLIS = 500;
+
+   private final Connection conn;
+   private final ContentionMetrics metrics;
+   private QueryGuard guard = null;
+
+   public TransactionRunner(Connection conn, ContentionMetrics metrics) {
+      this.conn = conn;
+      this.metrics = metrics;
+   }
+
+   /**
+    * Returns the counters this runner records to.
+    *
+    * @return the contention metrics
+    */
+   public ContentionMetrics getMetrics() {
+      return metrics;
+   }//end getMetrics
+
+   /**
+    * Reports the transactions of this runner to a guard.
+    *
+    * @param guard the guard, or null for none
+    */
+   public void setGuard(QueryGuard guard) {
+      this.guard = guard;
+   }//end setGuard
+
+   /**
+    * Runs the work in a transaction, retrying conflicts.
+    *
+    * @param key the resource the work contends on, e.g. "FlightInstance 42"
+    * @param isolation one of the Connection.TRANSACTION_* levels
+    * @param work the work to run
+    * @return the value returned by the committed attempt
+    * @throws java.sql.SQLException when the work failed with a non-retryable
+    *         error, or still conflicted after MAX_ATTEMPTS
+    */
+   public <T> T run(String key, int isolation, Work<T> work) throws SQLException {
+      if (guard != null)
+         guard.before();
+      int previousIsolation = conn.getTransactionIsolation();
+      conn.setAutoCommit(false);
+      conn.setTransactionIsolation(isolation);
+      SQLException failure = null;
+      try {
+         for (int attempt = 1; ; ++attempt) {
+            try {
+               T result = work.run(conn);
+               conn.commit();
+               metrics.commit(key);
+               if (guard != null)
+                  guard.succeeded();
+               return result;
+            } catch (SQLException e) {
+               // an attempt that cannot be rolled back is not retried on the same connection
+               boolean rolledBack = rollback(e);
+               if (!rolledBack || !isRetryable(e) || attempt == MAX_ATTEMPTS) {
+                  if (isRetryable(e))
+                     metrics.abort(key);
+                  failure = guard != null ? guard.failed(e, conn) : e;
+                  throw failure;
+               }
+               metrics.retry(key);
+               backoff(attempt);
+            }//end try
+         }//end for
+      } finally {
+         try {
+            conn.setAutoCommit(true);
+            conn.setTransactionIsolation(previousIsolation);
+         } catch (SQLException e) {
+            if (failure == null)
+               throw e;
+            failure.addSuppressed(e); // the work's failure stays the one reported
+         }//end try
+      }//end try
+   }//end run
+
+   /*
+    * Rolls back a failed attempt.  If the rollback fails too, its exception
+    * is attached to the attempt's failure, which stays the one reported.
+    */
+   private boolean rollback(SQLException failure) {
+      try {
+         conn.rollback();
+         return true;
+      } catch (SQLException e) {
+         failure.addSuppressed(e);
+         return false;
+      }//end try
+   }//end rollback
+
+   /**
+    * Tells whether a failure is a conflict with another transaction.  The
+    * 7.3 driver reports server errors without a SQLState, so the server's
+    * message is matched as well.
+    *
+    * @param e the failure
+    * @return true for serialization failures, deadlocks and unique violations
+    */
+   public static boolean isRetryable(SQLException e) {
+      String state = e.getSQLState();
+      return "40001".equals(state)      // serialization_failure
+          || "40P01".equals(state)      // deadlock_detected
+          || mentions(e, "could not serialize access")
+          || mentions(e, "deadlock detected")
+          || isDuplicateKey(e);
+   }//end isRetryable
+
+   /**
+    * Tells whether an insert lost its key to another session.
+    *
+    * @param e the failure
+    * @return true for unique violations
+    */
+   public static boolean isDuplicateKey(SQLException e) {
+      return "23505".equals(e.getSQLState()) || mentions(e, "duplicate key");
+   }//end isDuplicateKey
+
+   /*
+    * Whether the message of the failure, or of a failure chained to it (a
+    * batch reports the failed statement there), contains the text.
+    */
+   private static boolean mentions(SQLException e, String text) {
+      for (SQLException next = e; next != null; next = next.getNextException()) {
+         String message = next.getMessage();
+         if (message != null && message.contains(text))
+            return true;
+      }//end for
+      return false;
+   }//end mentions
+
+   /*
+    * Sleeps a random time up to the exponential bound of this attempt, so
+    * that sessions that conflicted once do not collide again.
+    */
+   private static void backoff(int attempt) throws SQLException {
+      long bound = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while waiting to retry");
+      }//end try
+   }//end backoff
+
+}//end TransactionRunner
@@ -0,0 +1,246 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-customer travel statistics: flown, reserved and waitlisted counts and
+ * the spend per flight year (CustomerTravelStats), and the reserved and
+ * flown segments per route (CustomerRouteStats).
+ *
+ * The counters are maintained by the reservation_travel_stats trigger on
+ * every Reservation change, so reading them is a primary key lookup.  The
+ * backfill recomputes them from the Reservation rows, for data loaded
+ * before the trigger existed or to repair drift.
+ *
+ * With sharded reservations every shard counts its own reservations, and
+ * the rows of all shards are summed when read.
+ *
+ */
+public class TravelStats {
+
+   // customers recomputed per backfill transaction
+   public static final int BACKFILL_CHUNK = 2000;
+
+   static final String YEARS_QUERY =
+      "SELECT Year, Flown, Reserved, Waitlisted, Spend FROM CustomerTravelStats " +
+      "WHERE CustomerID = %d ORDER BY Year DESC";
+
+   static final String FAVORITE_ROUTE_QUERY =
+      "SELECT DepartureCity, ArrivalCity, Segments FROM CustomerRouteStats " +
+      "WHERE CustomerID = %d AND Segments > 0 ORDER BY Segments DESC LIMIT 1";
+
+   // every route of a customer, to sum the segments of all shards before picking the favorite
+   static final String ROUTES_QUERY =
+      "SELECT DepartureCity, ArrivalCity, Segments FROM CustomerRouteStats " +
+      "WHERE CustomerID = %d AND Segments > 0";
+
+   private static final String RANGE_QUERY = "SELECT MIN(CustomerID), MAX(CustomerID) FROM Customer";
+
+   private static final String CLEAR_YEARS =
+      "DELETE FROM CustomerTravelStats WHERE CustomerID > ? AND CustomerID <= ?";
+
+   private static final String CLEAR_ROUTES =
+      "DELETE FROM CustomerRouteStats WHERE CustomerID > ? AND CustomerID <= ?";
+
+   // the same counters as apply_travel_stats() in create_triggers.sql
+   private static final String FILL_YEARS =
+      "INSERT INTO CustomerTravelStats (CustomerID, Year, Flown, Reserved, Waitlisted, Spend) " +
+      "SELECT R.CustomerID, COALESCE(CAST(EXTRACT(YEAR FROM FI.FlightDate) AS INTEGER), 0), " +
+      "       SUM(CASE WHEN R.Status = 'flown' THEN 1 ELSE 0 END), " +
+      "       SUM(CASE WHEN R.Status = 'reserved' THEN 1 ELSE 0 END), " +
+      "       SUM(CASE WHEN R.Status = 'waitlist' THEN 1 ELSE 0 END), " +
+      "       SUM(CASE WHEN R.Status = 'flown' THEN COALESCE(FI.TicketCost, 0) ELSE 0 END) " +
+      "FROM Reservation R INNER JOIN FlightInstance FI ON R.FlightInstanceID = FI.FlightInstanceID " +
+      "WHERE R.CustomerID > ? AND R.CustomerID <= ? " +
+      "GROUP BY 1, 2";
+
+   private static final String FILL_ROUTES =
+      "INSERT INTO CustomerRouteStats (CustomerID, DepartureCity, ArrivalCity, Segments) " +
+      "SELECT R.CustomerID, F.DepartureCity, F.ArrivalCity, COUNT(*) " +
+      "FROM Reservation R " +
+      "INNER JOIN FlightInstance FI ON R.FlightInstanceID = FI.FlightInstanceID " +
+      "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "WHERE R.CustomerID > ? AND R.CustomerID <= ? AND R.Status IN ('reserved', 'flown') " +
+      "AND F.DepartureCity IS NOT NULL AND F.ArrivalCity IS NOT NULL " +
+      "GROUP BY 1, 2, 3";
+
+   /**
+    * Sums the YEARS_QUERY rows of all shards per year, newest year first.
+    *
+    * @param gathered the rows of all shards
+    * @return the summed rows
+    */
+   static ShardRouter.Rows mergeYears(ShardRouter.Rows gathered) {
+      ShardRouter.sort(gathered.rows, new int[] {1}, true);
+      List<Object[]> years = new ArrayList<Object[]>();
+      for (Object[] row : gathered.rows) {
+         Object[] last = years.isEmpty() ? null : years.get(years.size() - 1);
+         if (last == null || !last[0].equals(row[0])) {
+            years.add(row.clone());
+            continue;
+         }
+         for (int i = 1; i <= 3; ++i)
+            last[i] = ((Number) last[i]).longValue() + ((Number) row[i]).longValue();
+         last[4] = ((BigDecimal) last[4]).add((BigDecimal) row[4]);
+      }
+      return new ShardRouter.Rows(gathered.columns, years);
+   }//end mergeYears
+
+   /**
+    * Sums the ROUTES_QUERY rows of all shards per route and keeps the route
+    * with the most segments, like FAVORITE_ROUTE_QUERY on one database.
+    *
+    * @param gathered the rows of all shards
+    * @return the favorite route, or no row when there is none
+    */
+   static ShardRouter.Rows mergeFavoriteRoute(ShardRouter.Rows gathered) {
+      ShardRouter.sort(gathered.rows, new int[] {1, 2}, false);
+      Object[] favorite = null;
+      Object[] route = null;
+      for (Object[] row : gathered.rows) {
+         if (route != null && route[0].equals(row[0]) && route[1].equals(row[1])) {
+            route[2] = ((Number) route[2]).longValue() + ((Number) row[2]).longValue();
+         } else {
+            route = row.clone();
+         }
+         if (favorite == null || ((Number) route[2]).longValue() > ((Number) favorite[2]).longValue())
+            favorite = route;
+      }
+      List<Object[]> rows = new ArrayList<Object[]>();
+      if (favorite != null)
+         rows.add(favorite);
+      return new ShardRouter.Rows(gathered.columns, rows);
+   }//end mergeFavoriteRoute
+
+   /**
+    * Recomputes the statistics of all customers from the Reservation rows.
+    * Workers take chunks of BACKFILL_CHUNK customer ids from a shared cursor,
+    * so a worker that gets sparse chunks simply takes more of them.  Each
+    * chunk is replaced in one SERIALIZABLE transaction; a booking that
+    * changes the same counters meanwhile makes one of the two retry, so no
+    * update is lost or counted twice.
+    *
+    * @param pool the pool the workers borrow their connections from
+    * @param metrics where the backfill transactions are counted
+    * @param workers the number of chunks recomputed in parallel
+    * @return the number of statistics rows written
+    * @throws java.sql.SQLException when a chunk failed; the chunks committed
+    *         before the failure keep their new counters
+    */
+   public static int backfill(final ConnectionPool pool, final ContentionMetrics metrics, int workers)
+         throws SQLException {
+      long first, last;
+      Connection conn = pool.borrow();
+      try {
+         ResultSet rs = conn.createStatement().executeQuery(RANGE_QUERY);
+         rs.next();
+         first = rs.getLong(1) - 1;
+         last = rs.getLong(2);
+         boolean empty = rs.wasNull();
+         rs.getStatement().close();
+         if (empty)
+            return 0;
+      } finally {
+         pool.release(conn);
+      }//end try
+
+      final AtomicLong cursor = new AtomicLong(first);
+      final long end = last;
+      ExecutorService threads = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "travel-stats-backfill");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < workers; ++i) {
+         results.add(threads.submit(new Callable<Integer>() {
+            public Integer call() throws SQLException {
+               return backfillChunks(pool, metrics, cursor, end);
+            }
+         }));
+      }
+      threads.shutdown();
+
+      int written = 0;
+      SQLException failure = null;
+      for (Future<Integer> result : results) {
+         try {
+            written += result.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while backfilling travel statistics");
+         } catch (ExecutionException e) {
+            if (failure == null)
+               failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                              : new SQLException("Backfill failed: " + e.getCause());
+         }//end try
+      }//end for
+      if (failure != null)
+         throw failure;
+      return written;
+   }//end backfill
+
+   /*
+    * Recomputes chunks (low, low + BACKFILL_CHUNK] until the cursor passes end.
+    */
+   private static int backfillChunks(ConnectionPool pool, ContentionMetrics metrics, AtomicLong cursor, long end)
+         throws SQLException {
+      int written = 0;
+      Connection conn = pool.borrow();
+      try {
+         TransactionRunner tx = new TransactionRunner(conn, metrics);
+         while (true) {
+            final long low = cursor.getAndAdd(BACKFILL_CHUNK);
+            if (low >= end)
+               return written;
+            final long high = Math.min(end, low + BACKFILL_CHUNK);
+            written += tx.run("CustomerTravelStats " + (low + 1) + "-" + high, Connection.TRANSACTION_SERIALIZABLE,
+                              new TransactionRunner.Work<Integer>() {
+               public Integer run(Connection conn) throws SQLException {
+                  update(conn, CLEAR_YEARS, low, high);
+                  update(conn, CLEAR_ROUTES, low, high);
+                  return update(conn, FILL_YEARS, low, high) + update(conn, FILL_ROUTES, low, high);
+               }
+            });
+         }//end while
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end backfillChunks
+
+   private static int update(Connection conn, String sql, long low, long high) throws SQLException {
+      PreparedStatement pstmt = conn.prepareStatement(sql);
+      pstmt.setLong(1, low);
+      pstmt.setLong(2, high);
+      int count = pstmt.executeUpdate();
+      pstmt.close();
+      return count;
+   }//end update
+
+}//end TravelStats
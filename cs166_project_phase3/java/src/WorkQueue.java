@@ -0,0 +1,699 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The technicians' work queue: open maintenance requests ranked by the next
+ * departure of their plane (Flight.PlaneID, FlightInstance and Schedule),
+ * then by RequestDate and RequestID.  A request is open until a Repair of
+ * the same plane and RepairCode is dated on or after its RequestDate.
+ *
+ * Unassigned requests sit in an indexed binary heap, so the next job is
+ * found in O(1), and a request that is filed, repaired, claimed or whose
+ * plane gets a new next departure is moved or removed in O(log n) without
+ * re-sorting the rest.  Changes arrive from this session directly and from
+ * other sessions through the ChangeLog triggers on MaintenanceRequest,
+ * Repair, WorkAssignment, Flight, Schedule and FlightInstance, the last
+ * from every shard.
+ *
+ * Next departures are kept only for planes with open requests.  A changed
+ * flight, schedule or flight instance refreshes the planes it belongs to
+ * now, and the plane whose next departure it was; updates that leave the
+ * departure columns alone, such as bookings moving SeatsSold, are ignored.
+ * Departures are read as epoch milliseconds computed by the server, so the
+ * JVM's time zone never has to match the database's.
+ *
+ * Statements on pooled connections go through the QueryGuard, so they keep
+ * to the running feature's time budget and respect the circuit breaker.
+ *
+ * A technician claims the head of the queue with a WorkAssignment row.
+ * The insert only succeeds while the request is open and unclaimed, so two
+ * technicians never get the same request.
+ *
+ */
+public class WorkQueue implements ChangeLogPoller.ChangeListener {
+
+   // a request is open while no repair of its plane and code is dated on or after it
+   static final String OPEN =
+      "NOT EXISTS (SELECT 1 FROM Repair R WHERE R.PlaneID = MR.PlaneID AND R.RepairCode = MR.RepairCode " +
+      "AND R.RepairDate >= MR.RequestDate)";
+
+   private static final String OPEN_REQUESTS =
+      "SELECT MR.RequestID, MR.PlaneID, MR.RepairCode, MR.RequestDate, WA.TechnicianID " +
+      "FROM MaintenanceRequest MR LEFT JOIN WorkAssignment WA ON MR.RequestID = WA.RequestID " +
+      "WHERE " + OPEN;
+
+   // FlightDate + DepartureTime is local time in the server's zone, like LOCALTIMESTAMP;
+   // the cast to TIMESTAMPTZ makes it an instant before it leaves the server
+   private static final String NEXT_DEPARTURES =
+      "SELECT DISTINCT ON (F.PlaneID) F.PlaneID, " +
+      "CAST(EXTRACT(EPOCH FROM CAST(FI.FlightDate + S.DepartureTime AS TIMESTAMPTZ)) * 1000 AS BIGINT) AS Departure, " +
+      "FI.FlightInstanceID, F.FlightNumber, S.ScheduleID " +
+      "FROM FlightInstance FI " +
+      "INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "INNER JOIN Schedule S ON F.FlightNumber = S.FlightNumber AND TRIM(TO_CHAR(FI.FlightDate, 'Day')) = S.DayOfWeek " +
+      "WHERE FI.FlightDate >= CURRENT_DATE AND FI.FlightDate + S.DepartureTime >= LOCALTIMESTAMP";
+
+   private static final String INSTANCE_PLANES =
+      "SELECT DISTINCT F.PlaneID FROM FlightInstance FI INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber " +
+      "WHERE FI.FlightInstanceID IN ";
+
+   private static final String FLIGHT_PLANES =
+      "SELECT DISTINCT PlaneID FROM Flight WHERE FlightNumber IN ";
+
+   private static final String SCHEDULE_PLANES =
+      "SELECT DISTINCT F.PlaneID FROM Schedule S INNER JOIN Flight F ON S.FlightNumber = F.FlightNumber " +
+      "WHERE S.ScheduleID IN ";
+
+   private static final String CLAIM =
+      "INSERT INTO WorkAssignment (RequestID, TechnicianID, AssignedAt) " +
+      "SELECT MR.RequestID, ?, now() FROM MaintenanceRequest MR WHERE MR.RequestID = ? AND " + OPEN + " " +
+      "ON CONFLICT (RequestID) DO NOTHING";
+
+   /**
+    * One open maintenance request.
+    */
+   public static class Job {
+      public final int requestId;
+      public final String planeId;
+      public final String repairCode;
+      public final java.sql.Date requestDate;
+      // next departure of the plane, or null when it has none scheduled
+      public final Timestamp departure;
+      // the technician who claimed it, or null
+      public final String technicianId;
+
+      Job(Entry e, long departure) {
+         this.requestId = e.requestId;
+         this.planeId = e.planeId;
+         this.repairCode = e.repairCode;
+         this.requestDate = e.requestDate == NO_DATE ? null : new java.sql.Date(e.requestDate);
+         this.departure = departure == NONE ? null : new Timestamp(departure);
+         this.technicianId = e.technicianId;
+      }
+   }//end Job
+
+   private static class Entry {
+      final int requestId;
+      final String planeId;
+      final String repairCode;
+      final long requestDate;
+      String technicianId;
+      int heapIndex = -1;
+
+      Entry(int requestId, String planeId, String repairCode, long requestDate, String technicianId) {
+         this.requestId = requestId;
+         this.planeId = planeId;
+         this.repairCode = repairCode;
+         this.requestDate = requestDate;
+         this.technicianId = technicianId;
+      }
+   }//end Entry
+
+   /*
+    * The next departure of a plane and the rows it comes from.
+    */
+   private static class Departure {
+      final long at;               // epoch millis, NONE when the plane has no upcoming flight
+      final int flightInstanceId;
+      final String flightNumber;
+      final int scheduleId;
+
+      Departure(long at, int flightInstanceId, String flightNumber, int scheduleId) {
+         this.at = at;
+         this.flightInstanceId = flightInstanceId;
+         this.flightNumber = flightNumber;
+         this.scheduleId = scheduleId;
+      }
+   }//end Departure
+
+   // departure of a plane with no upcoming flight; such requests rank last
+   private static final long NONE = Long.MAX_VALUE;
+
+   private static final Departure NO_DEPARTURE = new Departure(NONE, -1, null, -1);
+
+   // request date of a request filed without one; such requests rank first among their plane's
+   private static final long NO_DATE = Long.MIN_VALUE;
+
+   private final ConnectionPool pool;
+   private final ShardRouter shards;
+   private final QueryGuard guard;
+   private boolean loaded = false;
+
+   // every open request, claimed or not, by RequestID
+   private final Map<Integer, Entry> open = new HashMap<Integer, Entry>();
+   // open requests per plane
+   private final Map<String, Set<Entry>> byPlane = new HashMap<String, Set<Entry>>();
+   // next departure of each plane with open requests
+   private final Map<String, Departure> departures = new HashMap<String, Departure>();
+   // unclaimed requests; heap[i].heapIndex == i
+   private final List<Entry> heap = new ArrayList<Entry>();
+
+   private final Comparator<Entry> order = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         int c = Long.compare(departure(a.planeId), departure(b.planeId));
+         if (c == 0)
+            c = Long.compare(a.requestDate, b.requestDate);
+         return c != 0 ? c : Integer.compare(a.requestId, b.requestId);
+      }
+   };
+
+   public WorkQueue(ConnectionPool pool, ShardRouter shards, QueryGuard guard) {
+      this.pool = pool;
+      this.shards = shards;
+      this.guard = guard;
+   }
+
+   /**
+    * Returns the first unclaimed requests in queue order.
+    *
+    * @param limit the maximum number of requests
+    * @return the requests, most urgent first
+    * @throws java.sql.SQLException when the queue cannot be loaded
+    */
+   public synchronized List<Job> queue(int limit) throws SQLException {
+      ensureLoaded();
+      refreshDeparted();
+      // the k smallest of a heap without popping: expand a frontier of heap indexes
+      List<Job> jobs = new ArrayList<Job>();
+      PriorityQueue<Integer> frontier = new PriorityQueue<Integer>(16, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return order.compare(heap.get(a), heap.get(b));
+         }
+      });
+      if (!heap.isEmpty())
+         frontier.add(0);
+      while (!frontier.isEmpty() && jobs.size() < limit) {
+         int i = frontier.poll();
+         jobs.add(job(heap.get(i)));
+         if (2 * i + 1 < heap.size())
+            frontier.add(2 * i + 1);
+         if (2 * i + 2 < heap.size())
+            frontier.add(2 * i + 2);
+      }//end while
+      return jobs;
+   }//end queue
+
+   /**
+    * Returns the open requests claimed by a technician, in queue order.
+    *
+    * @param technicianId the technician
+    * @return the claimed requests
+    * @throws java.sql.SQLException when the queue cannot be loaded
+    */
+   public synchronized List<Job> claimedBy(String technicianId) throws SQLException {
+      ensureLoaded();
+      refreshDeparted();
+      List<Entry> mine = new ArrayList<Entry>();
+      for (Entry e : open.values()) {
+         if (technicianId.equals(e.technicianId))
+            mine.add(e);
+      }
+      mine.sort(order);
+      List<Job> jobs = new ArrayList<Job>();
+      for (Entry e : mine)
+         jobs.add(job(e));
+      return jobs;
+   }//end claimedBy
+
+   /**
+    * Returns the number of unclaimed open requests.
+    *
+    * @return the queue length
+    * @throws java.sql.SQLException when the queue cannot be loaded
+    */
+   public synchronized int size() throws SQLException {
+      ensureLoaded();
+      return heap.size();
+   }//end size
+
+   /**
+    * Assigns the most urgent unclaimed request to a technician.  A request
+    * that another session claimed or repaired in the meantime is dropped
+    * from the queue and the next one is tried.
+    *
+    * @param technicianId the technician
+    * @return the claimed request, or null when the queue is empty
+    * @throws java.sql.SQLException when the queue cannot be loaded or the claim failed
+    */
+   public synchronized Job claimNext(String technicianId) throws SQLException {
+      ensureLoaded();
+      refreshDeparted();
+      while (!heap.isEmpty()) {
+         Entry head = heap.get(0);
+         Connection conn = pool.borrow();
+         int claimed;
+         try {
+            PreparedStatement claim = conn.prepareStatement(CLAIM);
+            claim.setString(1, technicianId);
+            claim.setInt(2, head.requestId);
+            claimed = guard.executeUpdate(claim);
+            claim.close();
+         } finally {
+            pool.release(conn);
+         }//end try
+         if (claimed == 1) {
+            removeFromHeap(head);
+            head.technicianId = technicianId;
+            return job(head);
+         }
+         // repaired or claimed elsewhere; learn which and move on
+         refresh(java.util.Collections.singletonList(head.requestId));
+      }//end while
+      return null;
+   }//end claimNext
+
+   /**
+    * Tells whether a request is open.
+    *
+    * @param requestId the request
+    * @return true while no repair closed it
+    * @throws java.sql.SQLException when the queue cannot be loaded
+    */
+   public synchronized boolean isOpen(int requestId) throws SQLException {
+      ensureLoaded();
+      return open.containsKey(requestId);
+   }//end isOpen
+
+   /**
+    * Takes in requests that were filed, changed, deleted or claimed.  If
+    * they cannot be read, the queue reloads on next use.
+    *
+    * @param requestIds the requests
+    */
+   public synchronized void requestsChanged(Collection<Integer> requestIds) {
+      try {
+         refresh(requestIds);
+      } catch (SQLException e) {
+         loaded = false;
+      }//end try
+   }//end requestsChanged
+
+   /**
+    * Closes the requests answered by repairs that were logged: those of the
+    * same plane and code requested on or before the repair date.  If the
+    * repairs cannot be read, the queue reloads on next use.
+    *
+    * @param repairIds the repairs
+    */
+   public synchronized void repairsLogged(Collection<Integer> repairIds) {
+      try {
+         closeRepaired(repairIds);
+      } catch (SQLException e) {
+         loaded = false;
+      }//end try
+   }//end repairsLogged
+
+   /*
+    * Re-reads requests: each is added, moved or removed according to its row.
+    */
+   private void refresh(Collection<Integer> requestIds) throws SQLException {
+      if (!loaded || requestIds.isEmpty())
+         return;
+      Set<Integer> missing = new HashSet<Integer>(requestIds);
+      List<Entry> found = new ArrayList<Entry>();
+      Connection conn = pool.borrow();
+      try {
+         PreparedStatement select = conn.prepareStatement(OPEN_REQUESTS + " AND MR.RequestID IN (" + ids(requestIds) + ")");
+         ResultSet rs = guard.executeQuery(select);
+         while (rs.next())
+            found.add(entry(rs));
+         select.close();
+      } finally {
+         pool.release(conn);
+      }//end try
+      Set<String> newPlanes = new HashSet<String>();
+      for (Entry e : found) {
+         missing.remove(e.requestId);
+         remove(open.get(e.requestId));
+         if (!departures.containsKey(e.planeId))
+            newPlanes.add(e.planeId);
+         add(e);
+      }
+      for (Integer id : missing)
+         remove(open.get(id));
+      refreshDepartures(newPlanes);
+   }//end refresh
+
+   /*
+    * Removes the open requests that one of the repairs answers.
+    */
+   private void closeRepaired(Collection<Integer> repairIds) throws SQLException {
+      if (!loaded || repairIds.isEmpty())
+         return;
+      Connection conn = pool.borrow();
+      try {
+         PreparedStatement select = conn.prepareStatement(
+            "SELECT PlaneID, RepairCode, RepairDate FROM Repair WHERE RepairID IN (" + ids(repairIds) + ")");
+         ResultSet rs = guard.executeQuery(select);
+         while (rs.next()) {
+            Set<Entry> planeRequests = byPlane.get(rs.getString(1));
+            String repairCode = rs.getString(2);
+            java.sql.Date repairDate = rs.getDate(3);
+            if (planeRequests == null || repairCode == null || repairDate == null)
+               continue;
+            for (Entry e : new ArrayList<Entry>(planeRequests)) {
+               if (repairCode.equals(e.repairCode) && e.requestDate != NO_DATE && e.requestDate <= repairDate.getTime())
+                  remove(e);
+            }
+         }//end while
+         select.close();
+      } finally {
+         pool.release(conn);
+      }//end try
+   }//end closeRepaired
+
+   /**
+    * Applies the changes of other sessions, from the ChangeLog of any
+    * shard.  A failure, or a changed or deleted repair that may reopen
+    * requests, makes the queue reload on next use.
+    *
+    * @param batch the changes, in ChangeID order
+    */
+   public synchronized void onChanges(List<ChangeLogPoller.ChangeEvent> batch) {
+      if (!loaded)
+         return;
+      Set<Integer> requests = new HashSet<Integer>();
+      Set<Integer> repairs = new HashSet<Integer>();
+      Set<Integer> instances = new HashSet<Integer>();
+      Set<String> flights = new HashSet<String>();
+      Set<Integer> schedules = new HashSet<Integer>();
+      for (ChangeLogPoller.ChangeEvent e : batch) {
+         if (e.table.equals("maintenancerequest") || e.table.equals("workassignment")) {
+            requests.add(Integer.valueOf(e.rowKey));
+         } else if (e.table.equals("repair")) {
+            if (e.operation != 'I') {
+               loaded = false;
+               return;
+            }
+            repairs.add(Integer.valueOf(e.rowKey));
+         } else if (e.table.equals("flightinstance")) {
+            // bookings and repricing only update SeatsSold and TicketCost
+            if (e.changedAny("flightdate", "flightnumber"))
+               instances.add(Integer.valueOf(e.rowKey));
+         } else if (e.table.equals("flight")) {
+            if (e.changedAny("flightnumber", "planeid"))
+               flights.add(e.rowKey);
+         } else if (e.table.equals("schedule")) {
+            if (e.changedAny("scheduleid", "flightnumber", "dayofweek", "departuretime"))
+               schedules.add(Integer.valueOf(e.rowKey));
+         }//end if
+      }//end for
+      try {
+         refresh(requests);
+         closeRepaired(repairs);
+         refreshDepartures(affectedPlanes(instances, flights, schedules));
+      } catch (SQLException e) {
+         loaded = false;
+      }//end try
+   }//end onChanges
+
+   /*
+    * Loads the open requests and the next departure of every plane.
+    */
+   private void ensureLoaded() throws SQLException {
+      if (loaded)
+         return;
+      open.clear();
+      byPlane.clear();
+      departures.clear();
+      heap.clear();
+      Connection conn = pool.borrow();
+      try {
+         PreparedStatement select = conn.prepareStatement(OPEN_REQUESTS);
+         ResultSet rs = guard.executeQuery(select);
+         while (rs.next()) {
+            Entry e = entry(rs);
+            open.put(e.requestId, e);
+            planeRequests(e.planeId).add(e);
+         }
+         select.close();
+      } finally {
+         pool.release(conn);
+      }//end try
+      Map<String, Departure> next = nextDepartures(null);
+      for (String plane : byPlane.keySet())
+         departures.put(plane, next.containsKey(plane) ? next.get(plane) : NO_DEPARTURE);
+      // heapify once instead of n inserts
+      for (Entry e : open.values()) {
+         if (e.technicianId == null) {
+            e.heapIndex = heap.size();
+            heap.add(e);
+         }
+      }
+      for (int i = heap.size() / 2 - 1; i >= 0; --i)
+         siftDown(i);
+      loaded = true;
+   }//end ensureLoaded
+
+   /*
+    * Looks up a new next departure for the planes whose last one has left.
+    */
+   private void refreshDeparted() throws SQLException {
+      long now = System.currentTimeMillis();
+      Set<String> departed = new HashSet<String>();
+      for (Map.Entry<String, Departure> d : departures.entrySet()) {
+         if (d.getValue().at != NONE && d.getValue().at < now)
+            departed.add(d.getKey());
+      }
+      refreshDepartures(departed);
+   }//end refreshDeparted
+
+   /*
+    * The planes whose next departure a change of some flight instances,
+    * flights or schedules may have moved: those the rows belong to now, read
+    * from every shard since an instance lives on the shard of its flight,
+    * and those whose next departure was one of the rows, which may be gone.
+    */
+   private Set<String> affectedPlanes(Set<Integer> instances, Set<String> flights, Set<Integer> schedules)
+         throws SQLException {
+      Set<String> planes = new HashSet<String>();
+      if (instances.isEmpty() && flights.isEmpty() && schedules.isEmpty())
+         return planes;
+      for (Map.Entry<String, Departure> d : departures.entrySet()) {
+         Departure next = d.getValue();
+         if (instances.contains(next.flightInstanceId) || flights.contains(next.flightNumber)
+               || schedules.contains(next.scheduleId))
+            planes.add(d.getKey());
+      }
+      if (!instances.isEmpty()) {
+         for (Object[] row : shards.scatter(INSTANCE_PLANES + "(" + ids(instances) + ")").rows)
+            planes.add((String) row[0]);
+      }
+      if (flights.isEmpty() && schedules.isEmpty())
+         return planes;
+      // Flight and Schedule are replicated, so shard 0 has them all
+      Connection conn = pool.borrow();
+      try {
+         if (!flights.isEmpty()) {
+            StringBuilder marks = new StringBuilder();
+            for (int i = 0; i < flights.size(); ++i)
+               marks.append(i == 0 ? "?" : ", ?");
+            PreparedStatement select = conn.prepareStatement(FLIGHT_PLANES + "(" + marks + ")");
+            int i = 0;
+            for (String flightNumber : flights)
+               select.setString(++i, flightNumber);
+            ResultSet rs = guard.executeQuery(select);
+            while (rs.next())
+               planes.add(rs.getString(1));
+            select.close();
+         }//end if
+         if (!schedules.isEmpty()) {
+            PreparedStatement select = conn.prepareStatement(SCHEDULE_PLANES + "(" + ids(schedules) + ")");
+            ResultSet rs = guard.executeQuery(select);
+            while (rs.next())
+               planes.add(rs.getString(1));
+            select.close();
+         }//end if
+      } finally {
+         pool.release(conn);
+      }//end try
+      return planes;
+   }//end affectedPlanes
+
+   /*
+    * Re-reads the next departure of some planes and moves the requests of
+    * the planes whose departure changed.  Planes without open requests are
+    * skipped.
+    */
+   private void refreshDepartures(Set<String> planes) throws SQLException {
+      Set<String> affected = new HashSet<String>(planes);
+      affected.retainAll(byPlane.keySet());
+      if (affected.isEmpty())
+         return;
+      Map<String, Departure> fresh = nextDepartures(affected);
+      for (String plane : affected) {
+         Departure next = fresh.containsKey(plane) ? fresh.get(plane) : NO_DEPARTURE;
+         Departure last = departures.get(plane);
+         if (last != null && last.at == next.at) {
+            departures.put(plane, next); // same time, maybe from another row
+            continue;
+         }
+         // every key of the plane changes at once, so its requests leave the heap and come back
+         List<Entry> moved = new ArrayList<Entry>();
+         for (Entry e : byPlane.get(plane)) {
+            if (e.heapIndex >= 0) {
+               removeFromHeap(e);
+               moved.add(e);
+            }
+         }
+         departures.put(plane, next);
+         for (Entry e : moved)
+            push(e);
+      }//end for
+   }//end refreshDepartures
+
+   /*
+    * The next departure of each plane that has one, from every shard.
+    */
+   private Map<String, Departure> nextDepartures(Set<String> planes) throws SQLException {
+      String query = NEXT_DEPARTURES;
+      Object[] params = new Object[0];
+      if (planes != null) {
+         StringBuilder marks = new StringBuilder();
+         for (int i = 0; i < planes.size(); ++i)
+            marks.append(i == 0 ? "?" : ", ?");
+         query += " AND F.PlaneID IN (" + marks + ")";
+         params = planes.toArray();
+      }
+      ShardRouter.Rows rows = shards.scatter(query + " ORDER BY F.PlaneID, Departure", params);
+      Map<String, Departure> next = new HashMap<String, Departure>();
+      for (Object[] row : rows.rows) {
+         if (row[1] == null)
+            continue;
+         Departure departure = new Departure(((Number) row[1]).longValue(), ((Number) row[2]).intValue(),
+                                             (String) row[3], ((Number) row[4]).intValue());
+         Departure seen = next.get((String) row[0]);
+         if (seen == null || departure.at < seen.at)
+            next.put((String) row[0], departure);
+      }
+      return next;
+   }//end nextDepartures
+
+   private void add(Entry e) {
+      open.put(e.requestId, e);
+      planeRequests(e.planeId).add(e);
+      if (e.technicianId == null)
+         push(e);
+   }//end add
+
+   private void push(Entry e) {
+      e.heapIndex = heap.size();
+      heap.add(e);
+      siftUp(e.heapIndex);
+   }//end push
+
+   private void remove(Entry e) {
+      if (e == null)
+         return;
+      open.remove(e.requestId);
+      Set<Entry> planeRequests = byPlane.get(e.planeId);
+      planeRequests.remove(e);
+      if (planeRequests.isEmpty()) {
+         byPlane.remove(e.planeId);
+         departures.remove(e.planeId);
+      }
+      if (e.heapIndex >= 0)
+         removeFromHeap(e);
+   }//end remove
+
+   private void removeFromHeap(Entry e) {
+      int i = e.heapIndex;
+      Entry last = heap.remove(heap.size() - 1);
+      e.heapIndex = -1;
+      if (last != e) {
+         heap.set(i, last);
+         last.heapIndex = i;
+         siftUp(i);
+         siftDown(last.heapIndex);
+      }
+   }//end removeFromHeap
+
+   private void siftUp(int i) {
+      Entry e = heap.get(i);
+      while (i > 0) {
+         int parent = (i - 1) / 2;
+         if (order.compare(e, heap.get(parent)) >= 0)
+            break;
+         place(heap.get(parent), i);
+         i = parent;
+      }
+      place(e, i);
+   }//end siftUp
+
+   private void siftDown(int i) {
+      Entry e = heap.get(i);
+      int half = heap.size() / 2;
+      while (i < half) {
+         int child = 2 * i + 1;
+         if (child + 1 < heap.size() && order.compare(heap.get(child + 1), heap.get(child)) < 0)
+            ++child;
+         if (order.compare(e, heap.get(child)) <= 0)
+            break;
+         place(heap.get(child), i);
+         i = child;
+      }
+      place(e, i);
+   }//end siftDown
+
+   private void place(Entry e, int i) {
+      heap.set(i, e);
+      e.heapIndex = i;
+   }//end place
+
+   private long departure(String planeId) {
+      Departure d = departures.get(planeId);
+      return d == null ? NONE : d.at;
+   }//end departure
+
+   private Set<Entry> planeRequests(String planeId) {
+      Set<Entry> planeRequests = byPlane.get(planeId);
+      if (planeRequests == null) {
+         planeRequests = new HashSet<Entry>();
+         byPlane.put(planeId, planeRequests);
+      }
+      return planeRequests;
+   }//end planeRequests
+
+   private Job job(Entry e) {
+      return new Job(e, departure(e.planeId));
+   }//end job
+
+   private static Entry entry(ResultSet rs) throws SQLException {
+      java.sql.Date requestDate = rs.getDate(4);
+      return new Entry(rs.getInt(1), rs.getString(2), rs.getString(3),
+                       requestDate == null ? NO_DATE : requestDate.getTime(), rs.getString(5));
+   }//end entry
+
+   private static String ids(Collection<Integer> ids) {
+      StringBuilder list = new StringBuilder();
+      for (Integer id : ids)
+         list.append(list.length() == 0 ? "" : ", ").append(id.intValue());
+      return list.toString();
+   }//end ids
+
+}//end WorkQueue
@@ -6,6 +6,14 @@ DROP INDEX IF EXISTS idx_customer_name_combo;
 DROP INDEX IF EXISTS idx_flight_departure_arrival;
 DROP INDEX IF EXISTS idx_repair_plane_date;
 DROP INDEX IF EXISTS idx_maintenancerequest_pilotid;
+DROP INDEX IF EXISTS idx_reservation_customer_instance;
+DROP INDEX IF EXISTS idx_reservation_customer_id;
+DROP INDEX IF EXISTS idx_flightinstance_id_date;
+DROP INDEX IF EXISTS idx_maintenancerequest_plane_date;
+DROP INDEX IF EXISTS idx_seathold_expires;
+DROP INDEX IF EXISTS idx_flightinstance_flight_date_cost;
+DROP INDEX IF EXISTS idx_customerroutestats_segments;
+DROP INDEX IF EXISTS idx_repair_plane_code_date;
 
 CREATE INDEX idx_schedule_flightnumber ON Schedule(FlightNumber);
 CREATE INDEX idx_flightinstance_date_flight ON FlightInstance(FlightDate, FlightNumber);
@@ -13,5 +21,26 @@ CREATE INDEX idx_reservation_flightinstanceid ON Reservation(FlightInstanceID);
 CREATE INDEX idx_reservation_status ON Reservation(Status);
 CREATE INDEX idx_customer_name_combo ON Customer(LastName, FirstName);
 CREATE INDEX idx_flight_departure_arrival ON Flight(DepartureCity, ArrivalCity);
-CREATE INDEX idx_repair_plane_date ON Repair(PlaneID, RepairDate);
+CREATE INDEX idx_repair_plane_date ON Repair(PlaneID, RepairDate, RepairID);
 CREATE INDEX idx_maintenancerequest_pilotid ON MaintenanceRequest(PilotID);
+
+-- keyset pagination of the history views
+CREATE INDEX idx_reservation_customer_instance ON Reservation(CustomerID, FlightInstanceID);
+-- reservation history seeks on (FlightDate DESC, ReservationID): FlightDate lives on
+-- FlightInstance, so the customer's rows come in ReservationID order from the first
+-- index and each date is an index-only probe of the second
+CREATE INDEX idx_reservation_customer_id ON Reservation(CustomerID, ReservationID, FlightInstanceID);
+CREATE INDEX idx_flightinstance_id_date ON FlightInstance(FlightInstanceID, FlightDate);
+CREATE INDEX idx_maintenancerequest_plane_date ON MaintenanceRequest(PlaneID, RequestDate, RequestID);
+
+-- seat hold expiry sweep
+CREATE INDEX idx_seathold_expires ON SeatHold(ExpiresAt);
+
+-- price-bounded and cheapest-first flight search
+CREATE INDEX idx_flightinstance_flight_date_cost ON FlightInstance(FlightNumber, FlightDate, TicketCost);
+
+-- favorite route of a customer
+CREATE INDEX idx_customerroutestats_segments ON CustomerRouteStats(CustomerID, Segments DESC);
+
+-- open maintenance requests (no repair of the same plane and code since the request)
+CREATE INDEX idx_repair_plane_code_date ON Repair(PlaneID, RepairCode, RepairDate);
@@ -1,4 +1,13 @@
 -- Drop existing tables
+DROP TABLE IF EXISTS ChangeLog;
+DROP TABLE IF EXISTS ReplicaHeartbeat;
+DROP TABLE IF EXISTS RouteFare;
+DROP TABLE IF EXISTS WorkAssignment;
+DROP TABLE IF EXISTS SeatAssignment;
+DROP TABLE IF EXISTS SeatMap;
+DROP TABLE IF EXISTS SeatHold;
+DROP TABLE IF EXISTS CustomerRouteStats;
+DROP TABLE IF EXISTS CustomerTravelStats;
 DROP TABLE IF EXISTS MaintenanceRequest;
 DROP TABLE IF EXISTS Repair;
 DROP TABLE IF EXISTS Technician;
@@ -9,6 +18,8 @@ DROP TABLE IF EXISTS Schedule;
 DROP TABLE IF EXISTS Flight;
 DROP TABLE IF EXISTS Plane;
 DROP TABLE IF EXISTS Pilot;
+DROP TABLE IF EXISTS Agent;
+DROP SEQUENCE IF EXISTS reservation_number_seq;
 
 -- Plane Table
 CREATE TABLE Plane (
@@ -75,6 +86,62 @@ CREATE TABLE Reservation (
     FOREIGN KEY (FlightInstanceID) REFERENCES FlightInstance(FlightInstanceID)
 );
 
+-- Numbers of new ReservationIDs (R0001, ...); moved past the loaded ones by
+-- load_data.sql.  Only the one on shard 0 is used (see ShardRouter.java).
+CREATE SEQUENCE reservation_number_seq;
+
+-- SeatHold Table (seats held for a customer until ExpiresAt; counted in SeatsSold)
+CREATE TABLE SeatHold (
+    HoldID SERIAL PRIMARY KEY,
+    CustomerID INTEGER,
+    FlightInstanceID INTEGER,
+    Seats INTEGER CHECK(Seats > 0),
+    ExpiresAt TIMESTAMP,
+    FOREIGN KEY (CustomerID) REFERENCES Customer(CustomerID),
+    FOREIGN KEY (FlightInstanceID) REFERENCES FlightInstance(FlightInstanceID)
+);
+
+-- SeatMap Table (occupied seats of a flight instance: 16 hex digits per cabin row, bit i is seat letter 'A' + i; SeatsTotal is the count it was built for)
+CREATE TABLE SeatMap (
+    FlightInstanceID INTEGER PRIMARY KEY,
+    SeatsPerRow INTEGER CHECK(SeatsPerRow BETWEEN 1 AND 26),
+    SeatsTotal INTEGER NOT NULL,
+    Occupied TEXT NOT NULL,
+    FOREIGN KEY (FlightInstanceID) REFERENCES FlightInstance(FlightInstanceID)
+);
+
+-- SeatAssignment Table (the seat of a reservation, e.g. 12C; its seat map bit is set)
+CREATE TABLE SeatAssignment (
+    ReservationID TEXT PRIMARY KEY,
+    FlightInstanceID INTEGER,
+    Seat TEXT NOT NULL,
+    UNIQUE (FlightInstanceID, Seat),
+    FOREIGN KEY (ReservationID) REFERENCES Reservation(ReservationID),
+    FOREIGN KEY (FlightInstanceID) REFERENCES FlightInstance(FlightInstanceID)
+);
+
+-- CustomerTravelStats Table (per customer and flight year; kept up to date by a Reservation trigger)
+CREATE TABLE CustomerTravelStats (
+    CustomerID INTEGER,
+    Year INTEGER,
+    Flown INTEGER NOT NULL DEFAULT 0,
+    Reserved INTEGER NOT NULL DEFAULT 0,
+    Waitlisted INTEGER NOT NULL DEFAULT 0,
+    Spend DECIMAL(12,2) NOT NULL DEFAULT 0,
+    PRIMARY KEY (CustomerID, Year),
+    FOREIGN KEY (CustomerID) REFERENCES Customer(CustomerID)
+);
+
+-- CustomerRouteStats Table (reserved and flown segments per customer and route)
+CREATE TABLE CustomerRouteStats (
+    CustomerID INTEGER,
+    DepartureCity TEXT,
+    ArrivalCity TEXT,
+    Segments INTEGER NOT NULL DEFAULT 0,
+    PRIMARY KEY (CustomerID, DepartureCity, ArrivalCity),
+    FOREIGN KEY (CustomerID) REFERENCES Customer(CustomerID)
+);
+
 -- Technician Table
 CREATE TABLE Technician (
     TechnicianID TEXT PRIMARY KEY,
@@ -100,6 +167,13 @@ CREATE TABLE Pilot (
     Password TEXT
 );
 
+-- Agent Table (customer service staff; they look customers up by name)
+CREATE TABLE Agent (
+    AgentID TEXT PRIMARY KEY,
+    Name TEXT,
+    Password TEXT
+);
+
 -- MaintenanceRequest Table
 CREATE TABLE MaintenanceRequest (
     RequestID INTEGER PRIMARY KEY,
@@ -109,4 +183,30 @@ CREATE TABLE MaintenanceRequest (
     PilotID TEXT,
     FOREIGN KEY (PlaneID) REFERENCES Plane(PlaneID),
     FOREIGN KEY (PilotID) REFERENCES Pilot(PilotID)
-);
\ No newline at end of file
+);
+
+-- WorkAssignment Table (the technician who took an open maintenance request)
+CREATE TABLE WorkAssignment (
+    RequestID INTEGER PRIMARY KEY,
+    TechnicianID TEXT NOT NULL,
+    AssignedAt TIMESTAMP NOT NULL DEFAULT now(),
+    FOREIGN KEY (RequestID) REFERENCES MaintenanceRequest(RequestID),
+    FOREIGN KEY (TechnicianID) REFERENCES Technician(TechnicianID)
+);
+
+-- ReplicaHeartbeat Table (one row, stamped by the primary every second; a
+-- replica's copy shows how far behind it is, see ReadRouter.java)
+CREATE TABLE ReplicaHeartbeat (
+    ID INTEGER PRIMARY KEY CHECK (ID = 1),
+    Beat TIMESTAMP NOT NULL
+);
+INSERT INTO ReplicaHeartbeat (ID, Beat) VALUES (1, now());
+
+-- RouteFare Table (the fixed base fare of a route, set on its first
+-- repricing pass from the fares it had then, see RepricingEngine.java)
+CREATE TABLE RouteFare (
+    DepartureCity TEXT,
+    ArrivalCity TEXT,
+    BaseFare DECIMAL(10,2) NOT NULL,
+    PRIMARY KEY (DepartureCity, ArrivalCity)
+);
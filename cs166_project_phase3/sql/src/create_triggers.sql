@@ -0,0 +1,130 @@
+-- Change capture for the tables cached by the client (see ChangeLogPoller.java)
+-- and the technicians' work queue (see WorkQueue.java).
+-- Run after load_data.sql so the initial load is not logged.
+DROP TABLE IF EXISTS ChangeLog;
+
+CREATE TABLE ChangeLog (
+    ChangeID BIGSERIAL PRIMARY KEY,
+    TableName TEXT NOT NULL,
+    RowKey TEXT,
+    Operation CHAR(1) NOT NULL CHECK(Operation IN ('I', 'U', 'D')),
+    -- the (lower case) columns an update changed, comma separated; NULL for inserts and deletes
+    ChangedColumns TEXT,
+    ChangedAt TIMESTAMP NOT NULL DEFAULT now(),
+    -- the writing transaction; a reader that saw txid_snapshot_xmin(txid_current_snapshot())
+    -- = X has seen every change with TxID < X that will ever commit
+    TxID BIGINT NOT NULL DEFAULT txid_current()
+);
+
+-- TG_ARGV[0] is the (lower case) primary key column of the audited table
+CREATE OR REPLACE FUNCTION log_row_change() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        INSERT INTO ChangeLog (TableName, RowKey, Operation)
+        VALUES (TG_TABLE_NAME, to_jsonb(OLD) ->> TG_ARGV[0], 'D');
+    ELSIF TG_OP = 'UPDATE' THEN
+        INSERT INTO ChangeLog (TableName, RowKey, Operation, ChangedColumns)
+        SELECT TG_TABLE_NAME, to_jsonb(NEW) ->> TG_ARGV[0], 'U', string_agg(n.key, ',' ORDER BY n.key)
+        FROM jsonb_each(to_jsonb(NEW)) AS n JOIN jsonb_each(to_jsonb(OLD)) AS o ON n.key = o.key
+        WHERE n.value IS DISTINCT FROM o.value;
+    ELSE
+        INSERT INTO ChangeLog (TableName, RowKey, Operation)
+        VALUES (TG_TABLE_NAME, to_jsonb(NEW) ->> TG_ARGV[0], 'I');
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS plane_changelog ON Plane;
+DROP TRIGGER IF EXISTS flight_changelog ON Flight;
+DROP TRIGGER IF EXISTS schedule_changelog ON Schedule;
+DROP TRIGGER IF EXISTS flightinstance_changelog ON FlightInstance;
+DROP TRIGGER IF EXISTS customer_changelog ON Customer;
+DROP TRIGGER IF EXISTS maintenancerequest_changelog ON MaintenanceRequest;
+DROP TRIGGER IF EXISTS repair_changelog ON Repair;
+DROP TRIGGER IF EXISTS workassignment_changelog ON WorkAssignment;
+
+CREATE TRIGGER plane_changelog AFTER INSERT OR UPDATE OR DELETE ON Plane
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('planeid');
+CREATE TRIGGER flight_changelog AFTER INSERT OR UPDATE OR DELETE ON Flight
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('flightnumber');
+CREATE TRIGGER schedule_changelog AFTER INSERT OR UPDATE OR DELETE ON Schedule
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('scheduleid');
+CREATE TRIGGER flightinstance_changelog AFTER INSERT OR UPDATE OR DELETE ON FlightInstance
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('flightinstanceid');
+CREATE TRIGGER customer_changelog AFTER INSERT OR UPDATE OR DELETE ON Customer
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('customerid');
+CREATE TRIGGER maintenancerequest_changelog AFTER INSERT OR UPDATE OR DELETE ON MaintenanceRequest
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('requestid');
+CREATE TRIGGER repair_changelog AFTER INSERT OR UPDATE OR DELETE ON Repair
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('repairid');
+CREATE TRIGGER workassignment_changelog AFTER INSERT OR UPDATE OR DELETE ON WorkAssignment
+    FOR EACH ROW EXECUTE PROCEDURE log_row_change('requestid');
+
+-- Per-customer travel statistics (see TravelStats.java).  Every change of a
+-- Reservation takes the old row out of the counters and adds the new one.
+-- Spend counts the fares of flown reservations only, whose flights are in
+-- the past and no longer repriced.  Rows loaded before this trigger existed
+-- are counted by the backfill job (operations.sh backfill-stats).
+CREATE OR REPLACE FUNCTION apply_travel_stats(cust INTEGER, instance INTEGER, state TEXT, delta INTEGER)
+RETURNS VOID AS $$
+DECLARE
+    yr INTEGER;
+    fare DECIMAL(10,2);
+    dep TEXT;
+    arr TEXT;
+BEGIN
+    IF cust IS NULL OR instance IS NULL THEN
+        RETURN;
+    END IF;
+    SELECT COALESCE(CAST(EXTRACT(YEAR FROM FI.FlightDate) AS INTEGER), 0), FI.TicketCost,
+           F.DepartureCity, F.ArrivalCity
+      INTO yr, fare, dep, arr
+      FROM FlightInstance FI INNER JOIN Flight F ON FI.FlightNumber = F.FlightNumber
+     WHERE FI.FlightInstanceID = instance;
+    IF NOT FOUND THEN
+        RETURN;
+    END IF;
+
+    INSERT INTO CustomerTravelStats AS T (CustomerID, Year, Flown, Reserved, Waitlisted, Spend)
+    VALUES (cust, yr,
+            CASE WHEN state = 'flown' THEN delta ELSE 0 END,
+            CASE WHEN state = 'reserved' THEN delta ELSE 0 END,
+            CASE WHEN state = 'waitlist' THEN delta ELSE 0 END,
+            CASE WHEN state = 'flown' THEN delta * COALESCE(fare, 0) ELSE 0 END)
+    ON CONFLICT (CustomerID, Year) DO UPDATE
+       SET Flown = T.Flown + EXCLUDED.Flown,
+           Reserved = T.Reserved + EXCLUDED.Reserved,
+           Waitlisted = T.Waitlisted + EXCLUDED.Waitlisted,
+           Spend = T.Spend + EXCLUDED.Spend;
+
+    IF state IN ('reserved', 'flown') AND dep IS NOT NULL AND arr IS NOT NULL THEN
+        INSERT INTO CustomerRouteStats AS T (CustomerID, DepartureCity, ArrivalCity, Segments)
+        VALUES (cust, dep, arr, delta)
+        ON CONFLICT (CustomerID, DepartureCity, ArrivalCity) DO UPDATE
+           SET Segments = T.Segments + EXCLUDED.Segments;
+    END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION reservation_travel_stats() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' AND OLD.CustomerID IS NOT DISTINCT FROM NEW.CustomerID
+       AND OLD.FlightInstanceID IS NOT DISTINCT FROM NEW.FlightInstanceID
+       AND OLD.Status IS NOT DISTINCT FROM NEW.Status THEN
+        RETURN NULL;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM apply_travel_stats(OLD.CustomerID, OLD.FlightInstanceID, OLD.Status, -1);
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        PERFORM apply_travel_stats(NEW.CustomerID, NEW.FlightInstanceID, NEW.Status, 1);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS reservation_travel_stats ON Reservation;
+
+CREATE TRIGGER reservation_travel_stats AFTER INSERT OR UPDATE OR DELETE ON Reservation
+    FOR EACH ROW EXECUTE PROCEDURE reservation_travel_stats();
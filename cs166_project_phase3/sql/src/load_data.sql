@@ -20,3 +20,7 @@
 
 \copy MaintenanceRequest FROM 'data/MaintenanceRequest.csv' WITH DELIMITER ',' CSV HEADER; 
 
+-- new ReservationIDs continue after the loaded ones
+SELECT setval('reservation_number_seq',
+              (SELECT COALESCE(MAX(CAST(SUBSTRING(ReservationID FROM 2) AS INTEGER)), 0) + 1
+                 FROM Reservation WHERE ReservationID LIKE 'R%'), false);